@@ -0,0 +1,204 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decrypts every record returned by poll() in parallel. {@link CryptoDeserializer} normally decrypts one record at a
+ * time on the polling thread, which limits a consumer to the AES throughput of a single core. With
+ * `passthrough.enabled` the deserializer hands the encrypted bytes through and this interceptor decrypts the whole batch
+ * on a {@link ForkJoinPool} before the records reach the application. Records keep their order within each partition.
+ * <p>
+ * The interceptor uses the same settings as the deserializer, so it shares its {@link CipherManager} and version cache
+ * through {@link CipherManagerRegistry}. The wrapped deserializer is called from multiple threads and must be thread
+ * safe. It should be the first entry in `interceptor.classes` so other interceptors see the decrypted records. Kafka
+ * logs and ignores exceptions thrown by interceptors and returns the records it was given, which are still encrypted,
+ * so this interceptor never throws. Each record is decrypted on its own and a key or value that fails is logged and
+ * replaced with a {@link DecryptionFailure}, while the rest of the batch is returned decrypted.
+ *
+ * @param <K> key type returned to the application.
+ * @param <V> value type returned to the application.
+ */
+public class BatchDecryptInterceptor<K, V> implements ConsumerInterceptor<K, V> {
+  private static final Logger log = LoggerFactory.getLogger(BatchDecryptInterceptor.class);
+  static final int CHUNK_RECORDS = 16;
+  CryptoDeserializer.Config config;
+  CryptoDeserializer<Object> keyDeserializer;
+  CryptoDeserializer<Object> valueDeserializer;
+  ForkJoinPool pool;
+
+  @Override
+  public void configure(Map<String, ?> settings) {
+    this.config = new CryptoDeserializer.Config(settings);
+    Map<String, Object> deserializerSettings = new HashMap<>(settings);
+    deserializerSettings.put(CryptoDeserializer.Config.PASSTHROUGH_ENABLED_CONF, false);
+    this.valueDeserializer = new CryptoDeserializer<>();
+    this.valueDeserializer.configure(deserializerSettings, false);
+    if (this.config.batchDecryptKeys) {
+      this.keyDeserializer = new CryptoDeserializer<>();
+      this.keyDeserializer.configure(deserializerSettings, true);
+    }
+    this.pool = new ForkJoinPool(this.config.batchDecryptParallelism);
+  }
+
+  @Override
+  public ConsumerRecords<K, V> onConsume(ConsumerRecords<K, V> records) {
+    final int count = records.count();
+    if (0 == count) {
+      return records;
+    }
+
+    final ConsumerRecord<?, ?>[] input = new ConsumerRecord<?, ?>[count];
+    int index = 0;
+    for (ConsumerRecord<K, V> record : records) {
+      input[index++] = record;
+    }
+    final Object[] keys = new Object[count];
+    final Object[] values = new Object[count];
+    DecryptTask task = new DecryptTask(input, keys, values, 0, count);
+    if (count < this.config.batchDecryptMinRecords) {
+      task.compute();
+    } else {
+      try {
+        this.pool.invoke(task);
+      } catch (RuntimeException e) {
+        log.warn(
+            "onConsume() - Exception thrown while decrypting {} record(s) in parallel. Decrypting on this thread.",
+            count,
+            e
+        );
+        task.compute();
+      }
+    }
+
+    Map<TopicPartition, List<ConsumerRecord<K, V>>> result = new LinkedHashMap<>();
+    index = 0;
+    for (TopicPartition partition : records.partitions()) {
+      List<ConsumerRecord<K, V>> partitionRecords = records.records(partition);
+      List<ConsumerRecord<K, V>> decrypted = new ArrayList<>(partitionRecords.size());
+      for (ConsumerRecord<K, V> record : partitionRecords) {
+        decrypted.add(
+            new ConsumerRecord<>(
+                record.topic(),
+                record.partition(),
+                record.offset(),
+                record.timestamp(),
+                record.timestampType(),
+                record.checksum(),
+                record.serializedKeySize(),
+                record.serializedValueSize(),
+                (K) keys[index],
+                (V) values[index]
+            )
+        );
+        index++;
+      }
+      result.put(partition, decrypted);
+    }
+    return new ConsumerRecords<>(result);
+  }
+
+  /**
+   * Decrypts a range of the batch, splitting it in half until it is at most {@link #CHUNK_RECORDS} records. Each record
+   * writes its own slot of the output arrays so no locking is needed.
+   */
+  class DecryptTask extends RecursiveAction {
+    final ConsumerRecord<?, ?>[] input;
+    final Object[] keys;
+    final Object[] values;
+    final int start;
+    final int end;
+
+    DecryptTask(ConsumerRecord<?, ?>[] input, Object[] keys, Object[] values, int start, int end) {
+      this.input = input;
+      this.keys = keys;
+      this.values = values;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.end - this.start > CHUNK_RECORDS) {
+        final int middle = (this.start + this.end) >>> 1;
+        invokeAll(
+            new DecryptTask(this.input, this.keys, this.values, this.start, middle),
+            new DecryptTask(this.input, this.keys, this.values, middle, this.end)
+        );
+        return;
+      }
+      for (int i = this.start; i < this.end; i++) {
+        final ConsumerRecord<?, ?> record = this.input[i];
+        this.keys[i] = null == keyDeserializer ? record.key() : decrypt(keyDeserializer, record, record.key());
+        this.values[i] = decrypt(valueDeserializer, record, record.value());
+      }
+    }
+  }
+
+  /**
+   * Decrypts the key or value of a record.
+   *
+   * @return the decrypted key or value, or a {@link DecryptionFailure} if it could not be decrypted.
+   */
+  static Object decrypt(CryptoDeserializer<Object> deserializer, ConsumerRecord<?, ?> record, Object data) {
+    try {
+      return decrypt(deserializer, record.topic(), data);
+    } catch (RuntimeException e) {
+      log.error(
+          "decrypt() - Exception thrown while decrypting topic '{}' partition {} offset {}.",
+          record.topic(),
+          record.partition(),
+          record.offset(),
+          e
+      );
+      return new DecryptionFailure(record.topic(), record.partition(), record.offset(), e);
+    }
+  }
+
+  static Object decrypt(CryptoDeserializer<Object> deserializer, String topic, Object data) {
+    if (null == data || deserializer.plaintextTopics.matches(topic)) {
+      return data;
+    }
+    if (!(data instanceof byte[])) {
+      throw new IllegalStateException(
+          String.format(
+              "Expected byte[] but found %s. Set %s to true on the deserializer.",
+              data.getClass().getName(),
+              CryptoDeserializer.Config.PASSTHROUGH_ENABLED_CONF
+          )
+      );
+    }
+    return deserializer.decrypt(topic, (byte[]) data);
+  }
+
+  @Override
+  public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {
+
+  }
+
+  @Override
+  public void close() {
+    if (null != this.pool) {
+      this.pool.shutdownNow();
+    }
+    if (null != this.keyDeserializer) {
+      this.keyDeserializer.close();
+    }
+    if (null != this.valueDeserializer) {
+      this.valueDeserializer.close();
+    }
+  }
+}
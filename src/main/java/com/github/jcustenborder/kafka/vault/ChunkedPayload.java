@@ -0,0 +1,208 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Payload encrypted as a sequence of chunks holding `payload.chunk.bytes` of plaintext each, following the STREAM
+ * construction. The payload starts with a random {@link #RECORD_ID_LENGTH} byte id for the record. Every chunk has its
+ * own nonce and tag, and the record id, the index of the chunk and whether it is the last one are authenticated as
+ * additional data, so chunks cannot be reordered, dropped, cut off or moved to another record encrypted with the same
+ * key without failing decryption.
+ * <p>
+ * The JDK buffers the whole ciphertext when decrypting with GCM. Chunking bounds that buffer to one chunk and lets
+ * {@link ChunkedInputStream} pass the plaintext to a {@link StreamingDeserializer} one chunk at a time. Only used with
+ * authenticated ciphers.
+ */
+class ChunkedPayload {
+  static final int OVERHEAD = CipherManager.CipherState.GCM_NONCE_LENGTH + CipherManager.CipherState.GCM_TAG_LENGTH;
+  static final int RECORD_ID_LENGTH = 16;
+  static final int AAD_LENGTH = RECORD_ID_LENGTH + 9;
+  /**
+   * Largest chunk size that keeps the encrypted chunk within an array.
+   */
+  static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 8 - OVERHEAD;
+
+  static int chunks(int length, int chunkSize) {
+    return (int) Math.max(1L, (length + (long) chunkSize - 1L) / chunkSize);
+  }
+
+  /**
+   * Returns the exact number of bytes {@link #encrypt(CipherManager.CipherState, byte[], byte[], int, int)} writes.
+   */
+  static int encryptedSize(int length, int chunkSize) {
+    long size = RECORD_ID_LENGTH + length + (long) chunks(length, chunkSize) * OVERHEAD;
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("Payload of " + length + " bytes is too large to encrypt.");
+    }
+    return (int) size;
+  }
+
+  /**
+   * Returns the number of plaintext bytes in a chunked payload.
+   *
+   * @throws IllegalStateException if the length does not match any chunked payload.
+   */
+  static int decryptedSize(int length, int chunkSize) {
+    final long encryptedChunkSize = chunkSize + (long) OVERHEAD;
+    final long chunksLength = length - (long) RECORD_ID_LENGTH;
+    final long chunks = chunksLength <= 0 ? 0 : (chunksLength + encryptedChunkSize - 1L) / encryptedChunkSize;
+    if (0 == chunks || chunksLength - (chunks - 1L) * encryptedChunkSize < OVERHEAD) {
+      throw new IllegalStateException(
+          String.format("Chunked payload of %s bytes with %s byte chunks is truncated.", length, chunkSize)
+      );
+    }
+    return (int) (chunksLength - chunks * OVERHEAD);
+  }
+
+  static void checkChunkSize(long chunkSize) {
+    if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+      throw new IllegalStateException("Chunk size " + chunkSize + " is out of range.");
+    }
+  }
+
+  /**
+   * Creates the additional data for the chunks of a record, starting with the record id at the offset.
+   */
+  static byte[] aad(byte[] input, int offset) {
+    final byte[] aad = new byte[AAD_LENGTH];
+    System.arraycopy(input, offset, aad, 0, RECORD_ID_LENGTH);
+    return aad;
+  }
+
+  static void aad(byte[] aad, long index, boolean last) {
+    for (int i = 0; i < 8; i++) {
+      aad[RECORD_ID_LENGTH + i] = (byte) (index >>> (56 - 8 * i));
+    }
+    aad[RECORD_ID_LENGTH + 8] = (byte) (last ? 1 : 0);
+  }
+
+  /**
+   * Encrypts the input into the output at the offset. The output must have room for
+   * {@link #encryptedSize(int, int)} bytes.
+   *
+   * @return number of bytes written.
+   */
+  static int encrypt(CipherManager.CipherState state, byte[] input, byte[] output, int outputOffset, int chunkSize) throws GeneralSecurityException {
+    final byte[] recordId = new byte[RECORD_ID_LENGTH];
+    CipherManager.CipherState.NONCE_RANDOM.get().nextBytes(recordId);
+    System.arraycopy(recordId, 0, output, outputOffset, RECORD_ID_LENGTH);
+    final byte[] aad = aad(recordId, 0);
+    int position = 0;
+    int written = RECORD_ID_LENGTH;
+    long index = 0;
+    do {
+      final int chunkLength = Math.min(chunkSize, input.length - position);
+      aad(aad, index++, position + chunkLength == input.length);
+      written += state.encrypt(input, position, chunkLength, output, outputOffset + written, aad);
+      position += chunkLength;
+    } while (position < input.length);
+    return written;
+  }
+
+  /**
+   * Decrypts a chunked payload into the output. The output must have room for {@link #decryptedSize(int, int)} bytes.
+   *
+   * @return number of bytes written.
+   */
+  static int decrypt(CipherManager.CipherState state, byte[] input, int offset, int length, byte[] output, int chunkSize) throws GeneralSecurityException {
+    final byte[] aad = aad(input, offset);
+    final int end = offset + length;
+    final long encryptedChunkSize = chunkSize + (long) OVERHEAD;
+    int position = offset + RECORD_ID_LENGTH;
+    int written = 0;
+    long index = 0;
+    do {
+      final int chunkLength = (int) Math.min(encryptedChunkSize, end - position);
+      aad(aad, index++, position + chunkLength == end);
+      written += state.decrypt(input, position, chunkLength, output, written, aad);
+      position += chunkLength;
+    } while (position < end);
+    return written;
+  }
+
+  /**
+   * Stream over the plaintext of a chunked payload that decrypts the next chunk when the previous one has been read.
+   * Only the current chunk is held in memory, and it is cleared when the stream is closed. Uses the ciphers of the
+   * thread that reads from it.
+   */
+  static class ChunkedInputStream extends InputStream {
+    final CipherManager.CipherState state;
+    final byte[] input;
+    final int end;
+    final long encryptedChunkSize;
+    final byte[] aad;
+    final byte[] buffer;
+    int position;
+    long index;
+    int bufferPosition;
+    int bufferLimit;
+
+    ChunkedInputStream(CipherManager.CipherState state, byte[] input, int offset, int length, int chunkSize) {
+      this.state = state;
+      this.input = input;
+      this.buffer = new byte[Math.min(chunkSize, decryptedSize(length, chunkSize))];
+      this.aad = aad(input, offset);
+      this.position = offset + RECORD_ID_LENGTH;
+      this.end = offset + length;
+      this.encryptedChunkSize = chunkSize + (long) OVERHEAD;
+    }
+
+    boolean fill() throws IOException {
+      if (this.position >= this.end) {
+        return false;
+      }
+      final int chunkLength = (int) Math.min(this.encryptedChunkSize, this.end - this.position);
+      aad(this.aad, this.index, this.position + chunkLength == this.end);
+      try {
+        this.bufferLimit = this.state.decrypt(this.input, this.position, chunkLength, this.buffer, 0, this.aad);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Exception thrown while decrypting chunk " + this.index + " of " + this.state.topic, e);
+      }
+      this.bufferPosition = 0;
+      this.position += chunkLength;
+      this.index++;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      while (this.bufferPosition == this.bufferLimit) {
+        if (!fill()) {
+          return -1;
+        }
+      }
+      return this.buffer[this.bufferPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (0 == len) {
+        return 0;
+      }
+      while (this.bufferPosition == this.bufferLimit) {
+        if (!fill()) {
+          return -1;
+        }
+      }
+      final int count = Math.min(len, this.bufferLimit - this.bufferPosition);
+      System.arraycopy(this.buffer, this.bufferPosition, b, off, count);
+      this.bufferPosition += count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return this.bufferLimit - this.bufferPosition;
+    }
+
+    @Override
+    public void close() {
+      Arrays.fill(this.buffer, (byte) 0);
+      this.bufferPosition = this.bufferLimit = 0;
+      this.position = this.end;
+    }
+  }
+}
@@ -1,42 +1,83 @@
 package com.github.jcustenborder.kafka.vault;
 
-import com.bettercloud.vault.Vault;
-import com.bettercloud.vault.VaultException;
-import com.bettercloud.vault.response.LogicalResponse;
-import com.google.common.base.MoreObjects;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.ComparisonChain;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.kafka.common.utils.SystemTime;
 import org.apache.kafka.common.utils.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 
 class CipherManager {
   private static final Logger log = LoggerFactory.getLogger(CipherManager.class);
   final KafkaVaultConfig config;
-  final Vault vault;
-  final Cache<CacheKey, CipherState> stateCache;
+  final KeyProvider keyProvider;
+  final LoadingCache<String, CipherState> stateCache;
+  final ConcurrentMap<String, VersionMap> versionMaps = new ConcurrentHashMap<>();
+  final ConcurrentMap<String, SettableFuture<CipherState>> inFlightVersions = new ConcurrentHashMap<>();
+  final ExecutorService refreshExecutor;
+  final ThreadPoolExecutor versionExecutor;
+  KeyRotationScheduler rotationScheduler;
+  final EnvelopeManager envelopeManager;
   final Time time;
+  final CryptoMetrics metrics;
+  final Tracing tracing;
+  final KeyScopes keyScopes;
+  final List<AtomicLong> vaultRetries = new CopyOnWriteArrayList<>();
+  final Object keyWrapperLock = new Object();
+  final Object rotateLock = new Object();
+  final AtomicLong lastKeyVersion = new AtomicLong();
+  volatile KeyWrapper keyWrapper;
+  final CircuitBreaker circuitBreaker;
+  final Cache<String, KeyNotFoundException> missingKeys;
 
   CipherManager(KafkaVaultConfig config) {
     this(config, new SystemTime());
@@ -45,19 +86,134 @@ class CipherManager {
   CipherManager(KafkaVaultConfig config, Time time) {
     this.config = config;
     this.time = time;
-    this.vault = new Vault(this.config.vaultConfig());
+    this.metrics = new CryptoMetrics(this.config, this.time);
+    this.tracing = new Tracing(this.config, this.time);
+    this.keyScopes = new KeyScopes(this.config.keyScopePrefixes, this.config.keyScopePattern);
+    this.circuitBreaker = new CircuitBreaker(this.config, this.time);
+    this.keyProvider = keyProvider(this.config);
+    this.envelopeManager = new EnvelopeManager(this.config, new Supplier<KeyWrapper>() {
+      @Override
+      public KeyWrapper get() {
+        return keyWrapper();
+      }
+    }, this.time);
 
-    this.stateCache = CacheBuilder.newBuilder()
-        .expireAfterWrite(this.config.vaultCacheInterval, TimeUnit.MILLISECONDS)
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return CipherManager.this.time.nanoseconds();
+      }
+    };
+    CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+        .recordStats()
+        .ticker(ticker);
+    this.missingKeys = CacheBuilder.newBuilder()
+        .maximumSize(this.config.versionCacheMaxSize)
+        .expireAfterWrite(this.config.negativeCacheMs, TimeUnit.MILLISECONDS)
+        .ticker(ticker)
         .build();
+
+    if (this.config.vaultCacheRefreshEnabled) {
+      this.refreshExecutor = Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("kafka-vault-refresh-%d")
+              .build()
+      );
+      cacheBuilder
+          .refreshAfterWrite(this.config.vaultCacheInterval, TimeUnit.MILLISECONDS)
+          .expireAfterWrite(this.config.vaultCacheInterval + this.config.vaultCacheStaleMs, TimeUnit.MILLISECONDS);
+    } else {
+      this.refreshExecutor = null;
+      cacheBuilder.expireAfterWrite(this.config.vaultCacheInterval, TimeUnit.MILLISECONDS);
+    }
+
+    this.stateCache = cacheBuilder.build(new StateLoader());
+
+    this.versionExecutor = new ThreadPoolExecutor(
+        this.config.versionLoadThreads,
+        this.config.versionLoadThreads,
+        60L,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("kafka-vault-version-%d")
+            .build()
+    );
+    this.versionExecutor.allowCoreThreadTimeOut(true);
+
+    this.metrics.addCacheStats(this.stateCache);
+    this.metrics.addCircuitBreaker(this.circuitBreaker);
+    if (this.keyProvider instanceof VaultKeyProvider) {
+      this.vaultRetries.add(((VaultKeyProvider) this.keyProvider).retry.retries);
+    }
+    this.metrics.addVaultRetries(this.vaultRetries);
   }
 
-  public void setRandomKey(String topic) {
-    Long keyVersion = this.time.milliseconds();
-    Path versionedPath = secretPath(topic, keyVersion);
-    Path currentPath = secretCurrentPath(topic);
+  static KeyProvider keyProvider(KafkaVaultConfig config) {
+    KeyProvider keyProvider;
+    try {
+      keyProvider = (KeyProvider) config.keyProviderClass.newInstance();
+    } catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+      throw new IllegalStateException("Exception thrown while creating " + config.keyProviderClass.getName(), e);
+    }
+    keyProvider.configure(config);
+    return keyProvider;
+  }
 
+  /**
+   * Returns the key wrapper, creating it on first use. Only envelope encryption, the key snapshot and rewrapping use
+   * it, so clients that use none of them never open a vault session for it.
+   */
+  KeyWrapper keyWrapper() {
+    KeyWrapper keyWrapper = this.keyWrapper;
+    if (null == keyWrapper) {
+      synchronized (this.keyWrapperLock) {
+        keyWrapper = this.keyWrapper;
+        if (null == keyWrapper) {
+          keyWrapper = createKeyWrapper();
+          if (keyWrapper instanceof VaultTransitKeyWrapper) {
+            this.vaultRetries.add(((VaultTransitKeyWrapper) keyWrapper).retry.retries);
+          }
+          this.keyWrapper = keyWrapper;
+        }
+      }
+    }
+    return keyWrapper;
+  }
+
+  KeyWrapper createKeyWrapper() {
+    if (KafkaVaultConfig.ENVELOPE_KEY_WRAPPER_LOCAL.equals(this.config.envelopeKeyWrapper)) {
+      return new LocalKeyWrapper(this.config);
+    }
+    return new VaultTransitKeyWrapper(this.config, VaultSession.acquire(this.config));
+  }
 
+  /**
+   * Generates a new {@link SecretConfig#CIPHER_AES_GCM} key for the topic and makes it the current version. Secrets
+   * without a cipher are still read as {@link SecretConfig#CIPHER_DEFAULT} so existing keys keep working.
+   */
+  public void setRandomKey(String topic) {
+    setRandomKey(topic, SecretConfig.CIPHER_AES_GCM);
+  }
+
+  /**
+   * Generates a new key for the topic and makes it the current version.
+   *
+   * @param topic  topic to generate the key for.
+   * @param cipher cipher transformation that will be used with the key. For example
+   *               {@link SecretConfig#CIPHER_AES_GCM}.
+   * @return state for the new key.
+   */
+  public CipherState setRandomKey(String topic, String cipher) {
+    // Keys rotated within the same millisecond must not overwrite each other.
+    long keyVersion;
+    long last;
+    do {
+      last = this.lastKeyVersion.get();
+      keyVersion = Math.max(this.time.milliseconds(), last + 1L);
+    } while (!this.lastKeyVersion.compareAndSet(last, keyVersion));
 
     byte[] key;
     try {
@@ -68,164 +224,996 @@ class CipherManager {
       throw new IllegalStateException(e);
     }
 
-    byte[] iv = new byte[16];
-    SecureRandom random = new SecureRandom();
-    random.nextBytes(iv);
+    ImmutableMap.Builder<String, String> settings = ImmutableMap.<String, String>builder()
+        .put(SecretConfig.CIPHER_CONF, cipher)
+        .put(SecretConfig.KEY_CONF, BaseEncoding.base64().encode(key));
 
-    Map<String, String> settings = ImmutableMap.of(
-        SecretConfig.CIPHER_CONF, SecretConfig.CIPHER_DEFAULT,
-        SecretConfig.KEY_CONF, BaseEncoding.base64().encode(key),
-        SecretConfig.IV_CONF, BaseEncoding.base64().encode(iv)
-    );
+    if (!SecretConfig.isAuthenticated(cipher)) {
+      byte[] iv = new byte[16];
+      SecureRandom random = new SecureRandom();
+      random.nextBytes(iv);
+      settings.put(SecretConfig.IV_CONF, BaseEncoding.base64().encode(iv));
+    }
 
+    Map<String, String> secret = settings.build();
+    CipherState state;
     try {
-      this.vault.withRetries(this.config.vaultMaxRetries, this.config.vaultMaxRetries)
-          .logical().write(versionedPath.toString(), settings);
-    } catch (VaultException e) {
-      throw new IllegalStateException(e);
+      state = new CipherState(topic, keyVersion, new SecretConfig(secret));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while configuring ciphers for " + topic, e);
     }
-
+    final long start = beforeKeyProvider();
+    boolean failed = true;
     try {
-      this.vault.withRetries(this.config.vaultMaxRetries, this.config.vaultMaxRetries)
-          .logical().write(
-          currentPath.toString(),
-          ImmutableMap.of(SecretConfig.VERSION_KEY, keyVersion.toString())
+      this.keyProvider.secret(topic, keyVersion, secret);
+      this.keyProvider.currentVersion(topic, keyVersion);
+      failed = false;
+    } finally {
+      this.metrics.recordKeyProviderWrite(start, failed);
+      afterKeyProvider(failed, false);
+    }
+    return state;
+  }
+
+  /**
+   * Generates a new key for the topic with the same cipher as the current key and puts it in the local caches, so
+   * the next record for the topic is encrypted with the new key without going back to the key provider.
+   *
+   * @param topic topic to rotate.
+   * @return state for the new key.
+   */
+  CipherState rotate(String topic) {
+    CipherState current = get(topic);
+    CipherState state = setRandomKey(topic, current.secretConfig.cipher);
+    versions(topic).put(state.version, state);
+    this.stateCache.put(topic, state);
+    this.metrics.currentState(topic, state);
+    log.info("rotate('{}') - Rotated key from version {} to {}.", topic, current.version, state.version);
+    return state;
+  }
+
+  /**
+   * Rotates the key of the topic once it has been used for `gcm.max.encryptions` encryptions. Threads that see the same
+   * exhausted key wait for one rotation instead of each rotating it.
+   *
+   * @param topic     topic to rotate.
+   * @param exhausted key that reached the limit.
+   * @return state for the new key.
+   * @throws IllegalStateException if the key could not be rotated.
+   */
+  CipherState rotateExhausted(String topic, CipherState exhausted) {
+    synchronized (this.rotateLock) {
+      CipherState current = get(topic);
+      if (current != exhausted && !current.exhausted) {
+        return current;
+      }
+      log.warn(
+          "rotateExhausted('{}') - Key version {} reached {} = {}. Rotating.",
+          topic,
+          current.version,
+          KafkaVaultConfig.GCM_MAX_ENCRYPTIONS_CONF,
+          this.config.gcmMaxEncryptions
       );
-    } catch (VaultException e) {
-      throw new IllegalStateException(e);
+      try {
+        return rotate(topic);
+      } catch (RuntimeException e) {
+        throw new IllegalStateException(
+            String.format(
+                "Key version %s of %s reached %s and could not be rotated. Refusing to encrypt.",
+                current.version,
+                topic,
+                KafkaVaultConfig.GCM_MAX_ENCRYPTIONS_CONF
+            ),
+            e
+        );
+      }
     }
   }
 
+  /**
+   * Puts the current version of the topic from the key provider into the local caches. Used when another client
+   * rotated the key.
+   *
+   * @param topic topic to reload.
+   * @return current state.
+   */
+  CipherState reload(String topic) {
+    this.stateCache.invalidate(topic);
+    return get(topic);
+  }
 
-  private CipherState getInternal(final CacheKey key) {
-    log.trace("getInternal({})", key);
+  CipherState loadCurrent(String topic) throws GeneralSecurityException {
+    final long start = beforeKeyProvider();
+    boolean failed = true;
+    boolean missing = false;
+    long version;
+    try {
+      version = this.keyProvider.currentVersion(topic);
+      failed = false;
+    } catch (KeyNotFoundException e) {
+      missing = true;
+      throw e;
+    } finally {
+      this.metrics.recordKeyProviderRead(start, failed);
+      afterKeyProvider(failed, missing);
+    }
+    if (log.isTraceEnabled()) {
+      log.trace("loadCurrent('{}') - Current version is {}.", topic, version);
+    }
+    // Reuse the loaded state so a refresh keeps the usage counts of the key.
+    VersionMap versions = this.versionMaps.get(topic);
+    CipherState state = null == versions ? null : versions.get(version);
+    return null != state ? state : loadVersion(topic, version);
+  }
 
+  CipherState loadVersion(String topic, long version) throws GeneralSecurityException {
+    if (log.isTraceEnabled()) {
+      log.trace("loadVersion('{}', {}) - Retrieving secret.", topic, version);
+    }
+    final long start = beforeKeyProvider();
+    boolean failed = true;
+    boolean missing = false;
+    Map<String, String> secret;
     try {
-      return this.stateCache.get(key, new Callable<CipherState>() {
-        @Override
-        public CipherState call() throws Exception {
-          log.trace("load('{}') - Retrieving secret from vault '{}'.", key, key.path);
-          LogicalResponse response = vault
-              .withRetries(config.vaultMaxRetries, config.vaultRetryInterval)
-              .logical().read(key.path.toString());
-
-          long actualVersion;
-          if (response.getData().containsKey(SecretConfig.VERSION_KEY)) {
-            String version = response.getData().get(SecretConfig.VERSION_KEY);
-            CacheKey versionCacheKey = key(key.topic, Long.parseLong(version));
-            log.trace("load('{}') - Data contains '{}' key, retrieving '{}' instead.", key, SecretConfig.VERSION_KEY, versionCacheKey.path);
-            response = vault
-                .withRetries(config.vaultMaxRetries, config.vaultRetryInterval)
-                .logical().read(versionCacheKey.path.toString());
-            actualVersion = Long.parseLong(versionCacheKey.version);
-          } else {
-            actualVersion = Long.parseLong(key.version);
+      secret = this.keyProvider.secret(topic, version);
+      failed = false;
+    } catch (KeyNotFoundException e) {
+      missing = true;
+      throw e;
+    } finally {
+      this.metrics.recordKeyProviderRead(start, failed);
+      afterKeyProvider(failed, missing);
+    }
+    return new CipherState(topic, version, new SecretConfig(secret));
+  }
+
+  /**
+   * Checks the circuit breaker before a call to the key provider.
+   *
+   * @return start time of the call for {@link CryptoMetrics}.
+   * @throws IllegalStateException if the circuit breaker is open.
+   */
+  long beforeKeyProvider() {
+    this.circuitBreaker.acquire();
+    return this.time.nanoseconds();
+  }
+
+  /**
+   * Reports the outcome of a call to the key provider to the circuit breaker. A key that does not exist means the key
+   * provider is up, so it does not count as a failure.
+   */
+  void afterKeyProvider(boolean failed, boolean missing) {
+    if (failed && !missing) {
+      this.circuitBreaker.failure();
+    } else {
+      this.circuitBreaker.success();
+    }
+  }
+
+  /**
+   * Throws if the key provider recently reported the key as missing.
+   *
+   * @param key topic, or secret key of a topic version.
+   */
+  void checkMissing(String key) {
+    KeyNotFoundException missing = this.missingKeys.getIfPresent(key);
+    if (null != missing) {
+      throw new KeyNotFoundException(missing.getMessage(), missing);
+    }
+  }
+
+  /**
+   * Loads the key snapshot, pre-warms the configured topics and starts key rotation if it is enabled. Called by
+   * {@link CipherManagerRegistry} before the manager is handed to any serializer.
+   */
+  void start() {
+    if (!this.config.snapshotPath.isEmpty()) {
+      loadSnapshot(Paths.get(this.config.snapshotPath));
+    }
+    prewarm();
+    if (this.config.rotationEnabled) {
+      this.rotationScheduler = new KeyRotationScheduler(this, this.config, this.time);
+      this.rotationScheduler.start();
+    }
+  }
+
+  /**
+   * Loads the current state of every topic in `prewarm.topics` or matching `prewarm.topic.pattern` in parallel.
+   * Failures are logged and the topic is loaded on first use instead.
+   */
+  void prewarm() {
+    Set<String> topics = new TreeSet<>();
+    for (String topic : this.config.prewarmTopics) {
+      topics.add(scope(topic));
+    }
+    if (!this.config.prewarmTopicPattern.isEmpty()) {
+      Pattern pattern = Pattern.compile(this.config.prewarmTopicPattern);
+      for (String topic : this.keyProvider.topics()) {
+        if (pattern.matcher(topic).matches()) {
+          topics.add(topic);
+        }
+      }
+    }
+    if (topics.isEmpty()) {
+      return;
+    }
+
+    log.info("prewarm() - Loading keys for {} topic(s).", topics.size());
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(this.config.prewarmThreads, topics.size()),
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("kafka-vault-prewarm-%d")
+            .build()
+    );
+    try {
+      List<Callable<CipherState>> tasks = new ArrayList<>(topics.size());
+      for (final String topic : topics) {
+        tasks.add(new Callable<CipherState>() {
+          @Override
+          public CipherState call() throws Exception {
+            return get(topic);
           }
+        });
+      }
+      List<Future<CipherState>> futures = executor.invokeAll(tasks, this.config.prewarmTimeoutMs, TimeUnit.MILLISECONDS);
+      Iterator<String> topicIterator = topics.iterator();
+      for (Future<CipherState> future : futures) {
+        String topic = topicIterator.next();
+        try {
+          future.get();
+        } catch (CancellationException e) {
+          log.warn("prewarm() - Timed out loading key for '{}'.", topic);
+        } catch (ExecutionException e) {
+          log.warn("prewarm() - Exception thrown while loading key for '{}'.", topic, e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
-          Cipher encryptCipher = createCipher(response.getData(), Cipher.ENCRYPT_MODE);
-          Cipher decryptCipher = createCipher(response.getData(), Cipher.DECRYPT_MODE);
+  /**
+   * Fills the caches from a snapshot written by {@link #saveSnapshot(Path)}. Current states from the snapshot are
+   * served straight away and refreshed in the background when refresh is enabled. The snapshot is only an
+   * optimization so failures are logged and startup continues.
+   */
+  void loadSnapshot(Path path) {
+    if (!Files.exists(path)) {
+      log.info("loadSnapshot() - Key snapshot '{}' does not exist.", path);
+      return;
+    }
+    Map<String, Long> currentVersions = new LinkedHashMap<>();
+    Map<String, Map<String, String>> secrets = new LinkedHashMap<>();
+    try {
+      KeySnapshot.read(path, keyWrapper(), currentVersions, secrets);
+      for (Map.Entry<String, Map<String, String>> entry : secrets.entrySet()) {
+        int index = entry.getKey().lastIndexOf('/');
+        String topic = entry.getKey().substring(0, index);
+        long version = Long.parseLong(entry.getKey().substring(index + 1));
+        versions(topic).put(version, new CipherState(topic, version, new SecretConfig(entry.getValue())));
+      }
+    } catch (IllegalStateException | GeneralSecurityException e) {
+      log.warn("loadSnapshot() - Exception thrown while reading key snapshot '{}'.", path, e);
+      return;
+    }
 
-          return new CipherState(key.topic, encryptCipher, decryptCipher, actualVersion);
+    for (Map.Entry<String, Long> entry : currentVersions.entrySet()) {
+      VersionMap versions = this.versionMaps.get(entry.getKey());
+      CipherState state = null == versions ? null : versions.get(entry.getValue());
+      if (null != state) {
+        this.stateCache.put(entry.getKey(), state);
+        this.metrics.currentState(entry.getKey(), state);
+        if (null != this.refreshExecutor) {
+          this.stateCache.refresh(entry.getKey());
         }
-      });
-    } catch (ExecutionException e) {
-      throw new IllegalStateException("Exception thrown while configuring ciphers for " + key, e);
+      }
     }
+    log.info("loadSnapshot() - Loaded {} key(s) for {} topic(s) from '{}'.", secrets.size(), this.versionMaps.size(), path);
   }
 
-  private Path secretPath(String topic, Long version) {
-    return secretPath(topic, version.toString());
+  /**
+   * Writes every cached state to an encrypted snapshot.
+   */
+  void saveSnapshot(Path path) {
+    Map<String, Long> currentVersions = new LinkedHashMap<>();
+    Map<String, Map<String, String>> secrets = new LinkedHashMap<>();
+    for (Map.Entry<String, CipherState> entry : this.stateCache.asMap().entrySet()) {
+      currentVersions.put(entry.getKey(), entry.getValue().version);
+    }
+    for (Map.Entry<String, VersionMap> entry : this.versionMaps.entrySet()) {
+      for (CipherState state : entry.getValue().values()) {
+        secrets.put(KeySnapshot.secretKey(entry.getKey(), state.version), state.secretConfig.originalsStrings());
+      }
+    }
+    KeySnapshot.write(path, keyWrapper(), currentVersions, secrets);
   }
 
-  private Path secretPath(String topic, String version) {
-    return Paths.get(this.config.vaultBackend, this.config.kafkaPath, topic, version);
+  /**
+   * Drops every cached state so the next lookup goes back to the key provider.
+   */
+  void invalidateAll() {
+    this.stateCache.invalidateAll();
+    this.versionMaps.clear();
   }
 
-  private Path secretCurrentPath(String topic) {
-    return secretPath(topic, "current");
+  /**
+   * Writes the key snapshot if one is configured, shuts down the background executors and closes the key provider.
+   */
+  public void close() {
+    if (null != this.rotationScheduler) {
+      this.rotationScheduler.close();
+    }
+    if (!this.config.snapshotPath.isEmpty()) {
+      try {
+        saveSnapshot(Paths.get(this.config.snapshotPath));
+      } catch (IllegalStateException e) {
+        log.warn("close() - Exception thrown while writing key snapshot.", e);
+      }
+    }
+    if (null != this.refreshExecutor) {
+      this.refreshExecutor.shutdownNow();
+    }
+    this.versionExecutor.shutdownNow();
+    this.keyProvider.close();
+    synchronized (this.keyWrapperLock) {
+      if (null != this.keyWrapper) {
+        this.keyWrapper.close();
+      }
+    }
+    this.metrics.close();
+    this.tracing.close();
+  }
+
+  /**
+   * Loader for the current state of each topic. When refresh is enabled, reloads run on the refresh executor so readers
+   * keep getting the old state while the key provider is queried. Every loaded state is also added to the version map
+   * for the topic so consumers of the current version never have to go to the key provider for it.
+   */
+  class StateLoader extends CacheLoader<String, CipherState> {
+    @Override
+    public CipherState load(String topic) throws Exception {
+      checkMissing(topic);
+      CipherState state;
+      try {
+        state = loadCurrent(topic);
+      } catch (KeyNotFoundException e) {
+        missingKeys.put(topic, e);
+        throw e;
+      }
+      versions(topic).put(state.version, state);
+      metrics.currentState(topic, state);
+      return state;
+    }
+
+    @Override
+    public ListenableFuture<CipherState> reload(final String topic, CipherState oldValue) throws Exception {
+      log.trace("reload('{}') - Scheduling background refresh.", topic);
+      ListenableFutureTask<CipherState> task = ListenableFutureTask.create(new Callable<CipherState>() {
+        @Override
+        public CipherState call() throws Exception {
+          try {
+            return load(topic);
+          } catch (Exception e) {
+            log.warn("reload('{}') - Exception thrown while refreshing. Continuing to serve the cached state.", topic, e);
+            throw e;
+          }
+        }
+      });
+      refreshExecutor.execute(task);
+      return task;
+    }
+  }
+
+  /**
+   * Returns the name the keys of the topic are stored under, see {@link KeyScopes}. The rest of the manager is keyed on
+   * this name, so callers map the topic of each record once before looking up its state.
+   */
+  String scope(String topic) {
+    return this.keyScopes.scope(topic);
   }
 
+  /**
+   * Returns the current state for the topic. Cache hits do not allocate.
+   */
   public CipherState get(String topic) {
     log.trace("get('{}')", topic);
-    CacheKey key = key(topic, null);
-    return getInternal(key);
+    try {
+      return this.stateCache.get(topic);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw new IllegalStateException("Exception thrown while configuring ciphers for " + topic, e.getCause());
+    }
+  }
+
+  /**
+   * Returns the state for a specific version of the key for the topic. Versions never change once written so each one
+   * is loaded from the key provider once and then served from the version map for the topic without allocating. A miss
+   * also starts loading the versions that follow it, see {@link #prefetch(VersionMap, String, long)}.
+   */
+  public CipherState get(String topic, long version) {
+    if (log.isTraceEnabled()) {
+      log.trace("get('{}', {})", topic, version);
+    }
+    VersionMap versions = this.versionMaps.get(topic);
+    if (null != versions) {
+      CipherState state = versions.get(version);
+      if (null != state) {
+        this.metrics.versionHits.increment();
+        return state;
+      }
+    }
+    this.metrics.versionMisses.increment();
+    return load(versions(topic), topic, version);
+  }
+
+  /**
+   * Loads a version that missed the version map. Concurrent misses for the same version wait for the first one
+   * instead of going to the key provider again, and get its exception if it fails, so a failing key provider sees one
+   * call per version instead of one per waiting thread.
+   */
+  private CipherState load(VersionMap versions, String topic, long version) {
+    final String key = KeySnapshot.secretKey(topic, version);
+    final SettableFuture<CipherState> future = SettableFuture.create();
+    final SettableFuture<CipherState> existing = this.inFlightVersions.putIfAbsent(key, future);
+    if (null != existing) {
+      try {
+        return Uninterruptibles.getUninterruptibly(existing);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof KeyNotFoundException) {
+          throw new KeyNotFoundException(e.getCause().getMessage(), e.getCause());
+        }
+        throw new IllegalStateException(
+            "Exception thrown while configuring ciphers for " + topic + " version " + version, e.getCause()
+        );
+      }
+    }
+
+    try {
+      CipherState state = versions.get(version);
+      if (null == state) {
+        checkMissing(key);
+        prefetch(versions, topic, version);
+        state = loadAndPut(versions, topic, version);
+      }
+      future.set(state);
+      return state;
+    } catch (RuntimeException e) {
+      future.setException(e);
+      throw e;
+    } finally {
+      this.inFlightVersions.remove(key, future);
+    }
   }
 
-  public CipherState get(String topic, Long version) {
-    log.trace("get('{}', {})", topic, version);
-    CacheKey key = key(topic, version);
-    return getInternal(key);
+  private CipherState loadAndPut(VersionMap versions, String topic, long version) {
+    CipherState state;
+    try {
+      state = loadVersion(topic, version);
+    } catch (KeyNotFoundException e) {
+      this.missingKeys.put(KeySnapshot.secretKey(topic, version), e);
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(
+          "Exception thrown while configuring ciphers for " + topic + " version " + version, e
+      );
+    }
+    versions.put(version, state);
+    return state;
   }
 
-  Cipher createCipher(Map<String, String> data, int mode) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException {
-    SecretConfig secretConfig = new SecretConfig(data);
-    Cipher cipher = Cipher.getInstance(secretConfig.cipher);
-    final String algorithm = cipher.getParameters().getAlgorithm();
-    log.trace("createCipher() - creating SecretKeySpec for algorithm='{}' mode={}", algorithm, mode);
-    IvParameterSpec ivParameterSpec = new IvParameterSpec(secretConfig.iv);
-    SecretKeySpec keySpec = new SecretKeySpec(secretConfig.key, algorithm);
-    cipher.init(mode, keySpec, ivParameterSpec);
-    return cipher;
+  /**
+   * Starts loading up to `version.prefetch.max` versions that follow the version that missed. Consumers that are
+   * catching up read versions in order, so the next ones are usually needed shortly. The versions of the topic are
+   * listed once and listed again when a version that was not in the listing is asked for. Listings and loads run on
+   * the version executor, bounded by `version.load.threads`, so the reader that missed only waits for its own version.
+   * Loads are registered as in flight so readers wait for them instead of loading the same version again.
+   */
+  void prefetch(final VersionMap versions, final String topic, final long version) {
+    final int limit = Math.min(this.config.versionPrefetchMax, this.config.versionCacheMaxSize - 1);
+    if (limit <= 0) {
+      return;
+    }
+    long[] listed = versions.listed;
+    if (null != listed && Arrays.binarySearch(listed, version) >= 0) {
+      prefetch(versions, topic, version, listed, limit);
+      return;
+    }
+    try {
+      this.versionExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          long[] listed = listVersions(topic, version);
+          if (null != listed) {
+            versions.listed = listed;
+            prefetch(versions, topic, version, listed, limit);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      log.debug("prefetch('{}', {}) - Version executor is shut down.", topic, version, e);
+    }
   }
 
-  CacheKey key(String topic, Long version) {
-    Path path = secretPath(topic, null == version ? "current" : version.toString());
-    return new CacheKey(topic, null == version ? "current" : version.toString(), path);
+  /**
+   * Lists the versions of the topic. A topic the key provider has nothing for is reported as missing, so it does not
+   * count against the circuit breaker.
+   *
+   * @return sorted versions, or null if they could not be listed.
+   */
+  long[] listVersions(String topic, long version) {
+    final long start;
+    try {
+      start = beforeKeyProvider();
+    } catch (IllegalStateException e) {
+      log.debug("listVersions('{}', {}) - Circuit breaker is open.", topic, version, e);
+      return null;
+    }
+    boolean failed = true;
+    boolean missing = false;
+    try {
+      Set<Long> stored = this.keyProvider.versions(topic);
+      long[] listed = new long[stored.size()];
+      int i = 0;
+      for (Long v : stored) {
+        listed[i++] = v;
+      }
+      Arrays.sort(listed);
+      failed = false;
+      return listed;
+    } catch (KeyNotFoundException e) {
+      missing = true;
+      log.debug("listVersions('{}', {}) - No versions stored.", topic, version, e);
+      return null;
+    } catch (IllegalStateException e) {
+      log.debug("listVersions('{}', {}) - Exception thrown while listing versions.", topic, version, e);
+      return null;
+    } finally {
+      this.metrics.recordKeyProviderRead(start, failed);
+      afterKeyProvider(failed, missing);
+    }
   }
 
-  static class CacheKey implements Comparable<CacheKey> {
-    public final String topic;
-    public final String version;
-    public final Path path;
+  void prefetch(final VersionMap versions, final String topic, long version, long[] listed, int limit) {
+    int start = Arrays.binarySearch(listed, version);
+    start = start < 0 ? -start - 1 : start + 1;
+    final int end = Math.min(listed.length, start + limit);
+    for (int i = start; i < end; i++) {
+      final long next = listed[i];
+      if (null != versions.get(next)) {
+        continue;
+      }
+      final String key = KeySnapshot.secretKey(topic, next);
+      final SettableFuture<CipherState> future = SettableFuture.create();
+      if (null != this.inFlightVersions.putIfAbsent(key, future)) {
+        continue;
+      }
+      try {
+        this.versionExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              future.set(loadAndPut(versions, topic, next));
+            } catch (RuntimeException e) {
+              log.debug("prefetch('{}', {}) - Exception thrown while loading.", topic, next, e);
+              future.setException(e);
+            } finally {
+              inFlightVersions.remove(key, future);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        future.setException(e);
+        this.inFlightVersions.remove(key, future);
+        return;
+      }
+    }
+  }
 
+  VersionMap versions(String topic) {
+    VersionMap versions = this.versionMaps.get(topic);
+    if (null == versions) {
+      VersionMap existing = this.versionMaps.putIfAbsent(topic, versions = new VersionMap(this.config.versionCacheMaxSize));
+      if (null != existing) {
+        versions = existing;
+      }
+    }
+    return versions;
+  }
 
-    private CacheKey(String topic, String version, Path path) {
-      this.topic = topic;
-      this.version = version;
-      this.path = path;
+  /**
+   * Copy on write map from key version to state using open addressing over a {@code long[]}. Reads are a volatile read
+   * and a short probe so looking up a known version does not box the version or allocate. Writes copy the table, which
+   * is fine since each version is only written once.
+   * <p>
+   * The map holds at most {@code maxSize} versions. Eviction approximates least recently used with the clock
+   * algorithm: reads mark the state as referenced, and a write that needs room walks the table from the clock hand,
+   * clearing the mark on referenced states and evicting the first state that was not read since the last pass. This
+   * keeps reads free of locks and queues.
+   */
+  static class VersionMap {
+    final int maxSize;
+    private volatile Table table = new Table(8);
+    private int hand;
+    /**
+     * Sorted versions stored for the topic, as of the last time they were listed. Used by
+     * {@link CipherManager#prefetch(VersionMap, String, long)}.
+     */
+    volatile long[] listed;
+
+    VersionMap(int maxSize) {
+      this.maxSize = maxSize;
     }
 
-    @Override
-    public int compareTo(CacheKey that) {
-      return ComparisonChain.start()
-          .compare(this.topic, that.topic)
-          .compare(this.version, that.version)
-          .compare(this.path, that.path)
-          .result();
+    CipherState get(long version) {
+      final Table table = this.table;
+      final int mask = table.keys.length - 1;
+      for (int i = index(version, mask); ; i = (i + 1) & mask) {
+        CipherState state = table.values[i];
+        if (null == state) {
+          return null;
+        }
+        if (table.keys[i] == version) {
+          if (!state.referenced) {
+            state.referenced = true;
+          }
+          return state;
+        }
+      }
     }
 
-    @Override
-    public boolean equals(Object obj) {
-      if (obj instanceof CacheKey) {
-        CacheKey that = (CacheKey) obj;
-        return 0 == compareTo(that);
-      } else {
-        return false;
+    synchronized void put(long version, CipherState state) {
+      final Table current = this.table;
+      final int mask = current.keys.length - 1;
+      final CipherState[] values = current.values.clone();
+      int size = current.size;
+      for (int i = 0; i < values.length; i++) {
+        if (null != values[i] && current.keys[i] == version) {
+          values[i] = null;
+          size--;
+        }
+      }
+      while (size >= this.maxSize) {
+        final int i = this.hand;
+        this.hand = (i + 1) & mask;
+        final CipherState candidate = values[i];
+        if (null == candidate) {
+          continue;
+        }
+        if (candidate.referenced) {
+          candidate.referenced = false;
+          continue;
+        }
+        values[i] = null;
+        size--;
+      }
+
+      int capacity = values.length;
+      while ((size + 1) * 2 > capacity) {
+        capacity *= 2;
       }
+      Table table = new Table(capacity);
+      for (int i = 0; i < values.length; i++) {
+        if (null != values[i]) {
+          table.insert(current.keys[i], values[i]);
+        }
+      }
+      table.insert(version, state);
+      this.hand &= capacity - 1;
+      this.table = table;
     }
 
-    @Override
-    public String toString() {
-      return MoreObjects.toStringHelper(CacheKey.class)
-          .add("topic", this.topic)
-          .add("version", this.version)
-          .add("path", this.path)
-          .toString();
+    int size() {
+      return this.table.size;
+    }
+
+    List<CipherState> values() {
+      final Table table = this.table;
+      List<CipherState> values = new ArrayList<>(table.size);
+      for (CipherState state : table.values) {
+        if (null != state) {
+          values.add(state);
+        }
+      }
+      return values;
+    }
+
+    static int index(long version, int mask) {
+      long hash = version * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    static class Table {
+      final long[] keys;
+      final CipherState[] values;
+      int size;
+
+      Table(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new CipherState[capacity];
+      }
+
+      void insert(long version, CipherState state) {
+        final int mask = this.keys.length - 1;
+        int i = index(version, mask);
+        while (null != this.values[i]) {
+          i = (i + 1) & mask;
+        }
+        this.keys[i] = version;
+        this.values[i] = state;
+        this.size++;
+      }
     }
   }
 
+  /**
+   * The key material for a topic and version. {@link Cipher} instances are not thread safe so each thread that uses
+   * this state is handed its own pair of ciphers, initialized once from the pre-built key and parameter specs and
+   * reused for every record afterwards. Checkout is a {@link ThreadLocal} lookup so no locks are taken on the hot path.
+   * <p>
+   * Keys using {@link SecretConfig#CIPHER_AES_GCM} are authenticated and use a random nonce for every record. The
+   * nonce is written in front of the ciphertext so the output of {@link #encrypt(byte[], int, int, byte[], int)} is
+   * {@code nonce || ciphertext || tag}. Other ciphers use the IV stored with the key.
+   */
   public static class CipherState {
+    static final int GCM_NONCE_LENGTH = 12;
+    static final int GCM_TAG_LENGTH = 16;
+    static final ThreadLocal<SecureRandom> NONCE_RANDOM = new ThreadLocal<SecureRandom>() {
+      @Override
+      protected SecureRandom initialValue() {
+        try {
+          // SHA1PRNG keeps its state per instance so threads do not contend on the shared native PRNG.
+          return SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+          return new SecureRandom();
+        }
+      }
+    };
+    static final ThreadLocal<byte[]> NONCE = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return new byte[GCM_NONCE_LENGTH];
+      }
+    };
+
     public final String topic;
-    public final Cipher encryptCipher;
-    public final Cipher decryptCipher;
     public final long version;
+    public final boolean authenticated;
+    /**
+     * Set on every read from a {@link VersionMap} and cleared by its eviction. Racy updates only affect which version
+     * is evicted, so the field is not volatile.
+     */
+    boolean referenced;
+    /**
+     * Number of records encrypted with this key by this client. Only counted when `rotation.max.records` is set.
+     */
+    final StripedCounter records = new StripedCounter();
+    /**
+     * Number of random nonces drawn from this key by this client, see {@link #useNonces(long, long)}.
+     */
+    final StripedCounter nonces = new StripedCounter();
+    /**
+     * Set once {@link #nonces} reached `gcm.max.encryptions`.
+     */
+    volatile boolean exhausted;
+    final SecretConfig secretConfig;
+    final SecretKeySpec keySpec;
+    final IvParameterSpec ivParameterSpec;
+    private final ThreadLocal<Cipher> encryptCipher;
+    private final ThreadLocal<Cipher> decryptCipher;
+    private volatile SyntheticIvCipher syntheticIvCipher;
 
-
-    public CipherState(String topic, Cipher encryptCipher, Cipher decryptCipher, long version) {
+    public CipherState(String topic, long version, SecretConfig secretConfig) throws GeneralSecurityException {
       this.topic = topic;
-      this.encryptCipher = encryptCipher;
-      this.decryptCipher = decryptCipher;
       this.version = version;
+      this.secretConfig = secretConfig;
+      this.authenticated = secretConfig.isAuthenticated();
+      this.keySpec = new SecretKeySpec(secretConfig.key, secretConfig.keyType);
+      this.ivParameterSpec = this.authenticated ? null : new IvParameterSpec(secretConfig.iv);
+      this.encryptCipher = new CipherThreadLocal(Cipher.ENCRYPT_MODE);
+      this.decryptCipher = new CipherThreadLocal(Cipher.DECRYPT_MODE);
+
+      /*
+       * Create the ciphers for the loading thread up front so bad key material fails the load instead of the first
+       * record.
+       */
+      this.encryptCipher.set(createCipher(Cipher.ENCRYPT_MODE));
+      this.decryptCipher.set(createCipher(Cipher.DECRYPT_MODE));
+    }
+
+    /**
+     * Returns the encrypt cipher owned by the calling thread.
+     *
+     * @return initialized cipher in {@link Cipher#ENCRYPT_MODE}.
+     */
+    public Cipher encryptCipher() {
+      return this.encryptCipher.get();
+    }
+
+    /**
+     * Returns the decrypt cipher owned by the calling thread.
+     *
+     * @return initialized cipher in {@link Cipher#DECRYPT_MODE}.
+     */
+    public Cipher decryptCipher() {
+      return this.decryptCipher.get();
+    }
+
+    /**
+     * Returns the deterministic cipher for this key, creating it on first use. See {@link SyntheticIvCipher}.
+     */
+    SyntheticIvCipher syntheticIvCipher() {
+      SyntheticIvCipher result = this.syntheticIvCipher;
+      if (null == result) {
+        try {
+          result = new SyntheticIvCipher(this.secretConfig.key);
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException("Exception thrown while creating deterministic cipher for " + this.topic, e);
+        }
+        this.syntheticIvCipher = result;
+      }
+      return result;
+    }
+
+    /**
+     * Returns the maximum number of bytes {@link #encrypt(byte[], int, int, byte[], int)} will write.
+     *
+     * @param length length of the plaintext.
+     * @return maximum size of the encrypted output.
+     */
+    public int encryptedSize(int length) {
+      if (this.authenticated) {
+        return GCM_NONCE_LENGTH + length + GCM_TAG_LENGTH;
+      }
+      return encryptCipher().getOutputSize(length);
+    }
+
+    /**
+     * Returns the maximum number of bytes {@link #decrypt(byte[], int, int, byte[], int)} will write.
+     *
+     * @param length length of the encrypted input.
+     * @return maximum size of the plaintext.
+     */
+    public int decryptedSize(int length) {
+      if (this.authenticated) {
+        return Math.max(0, length - GCM_NONCE_LENGTH - GCM_TAG_LENGTH);
+      }
+      return decryptCipher().getOutputSize(length);
+    }
+
+    /**
+     * Counts the random nonces a record is about to use. The record that reaches the limit is still encrypted and the
+     * key is marked {@link #exhausted}, so callers rotate it before the next one. Does nothing for keys that do not use
+     * random nonces.
+     *
+     * @param count number of nonces, one per chunk.
+     * @param limit `gcm.max.encryptions`.
+     * @throws IllegalStateException if the key already reached the limit.
+     */
+    void useNonces(long count, long limit) {
+      if (!this.authenticated) {
+        return;
+      }
+      if (this.exhausted) {
+        throw new IllegalStateException(
+            String.format("Key version %s of %s has reached its encryption limit.", this.version, this.topic)
+        );
+      }
+      if (this.nonces.add(count, limit)) {
+        this.exhausted = true;
+      }
+    }
+
+    /**
+     * Encrypts the input into the output using the cipher owned by the calling thread.
+     *
+     * @return number of bytes written to the output.
+     */
+    public int encrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+      return encrypt(input, offset, length, output, outputOffset, null);
+    }
+
+    /**
+     * Encrypts the input into the output using the cipher owned by the calling thread.
+     *
+     * @param aad additional data that is authenticated along with the input but not written, or null. Only used by
+     *            authenticated ciphers.
+     * @return number of bytes written to the output.
+     */
+    int encrypt(byte[] input, int offset, int length, byte[] output, int outputOffset, byte[] aad) throws GeneralSecurityException {
+      final Cipher cipher = encryptCipher();
+      int written = 0;
+      if (this.authenticated) {
+        byte[] nonce = NONCE.get();
+        NONCE_RANDOM.get().nextBytes(nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, this.keySpec, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+        if (null != aad) {
+          cipher.updateAAD(aad);
+        }
+        System.arraycopy(nonce, 0, output, outputOffset, GCM_NONCE_LENGTH);
+        written = GCM_NONCE_LENGTH;
+      }
+
+      /*
+       * The block aligned bulk of the payload goes through update() because padded ciphers copy their whole input into
+       * a scratch buffer when doFinal() has to add padding.
+       */
+      final int blockSize = cipher.getBlockSize();
+      final int bulkLength = !this.authenticated && blockSize > 0 ? length - (length % blockSize) : 0;
+      written += cipher.update(input, offset, bulkLength, output, outputOffset + written);
+      written += cipher.doFinal(input, offset + bulkLength, length - bulkLength, output, outputOffset + written);
+      return written;
+    }
+
+    /**
+     * Decrypts the input into the output using the cipher owned by the calling thread.
+     *
+     * @return number of bytes written to the output.
+     */
+    public int decrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+      return decrypt(input, offset, length, output, outputOffset, null);
+    }
+
+    /**
+     * Decrypts the input into the output using the cipher owned by the calling thread.
+     *
+     * @param aad additional data passed to {@link #encrypt(byte[], int, int, byte[], int, byte[])}, or null.
+     * @return number of bytes written to the output.
+     */
+    int decrypt(byte[] input, int offset, int length, byte[] output, int outputOffset, byte[] aad) throws GeneralSecurityException {
+      final Cipher cipher = decryptCipher();
+      if (this.authenticated) {
+        if (length < GCM_NONCE_LENGTH + GCM_TAG_LENGTH) {
+          throw new AEADBadTagException("Encrypted payload is too short to contain the nonce and tag.");
+        }
+        cipher.init(Cipher.DECRYPT_MODE, this.keySpec, new GCMParameterSpec(GCM_TAG_LENGTH * 8, input, offset, GCM_NONCE_LENGTH));
+        if (null != aad) {
+          cipher.updateAAD(aad);
+        }
+        return cipher.doFinal(input, offset + GCM_NONCE_LENGTH, length - GCM_NONCE_LENGTH, output, outputOffset);
+      }
+
+      /*
+       * Padded ciphers allocate a temporary buffer for everything passed to doFinal() when decrypting, so all but the
+       * last block goes through update().
+       */
+      final int blockSize = cipher.getBlockSize();
+      final int bulkLength = blockSize > 0 && length > blockSize ? length - blockSize : 0;
+      int written = cipher.update(input, offset, bulkLength, output, outputOffset);
+      written += cipher.doFinal(input, offset + bulkLength, length - bulkLength, output, outputOffset + written);
+      return written;
+    }
+
+    Cipher createCipher(int mode) throws GeneralSecurityException {
+      log.trace("createCipher() - creating cipher '{}' for topic '{}' version {} mode={}", this.secretConfig.cipher, this.topic, this.version, mode);
+      Cipher cipher = Cipher.getInstance(this.secretConfig.cipher);
+      if (this.authenticated) {
+        // Re-initialized with a fresh nonce for every record.
+        byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        NONCE_RANDOM.get().nextBytes(nonce);
+        cipher.init(mode, this.keySpec, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+      } else {
+        cipher.init(mode, this.keySpec, this.ivParameterSpec);
+      }
+      return cipher;
+    }
+
+    class CipherThreadLocal extends ThreadLocal<Cipher> {
+      final int mode;
+
+      CipherThreadLocal(int mode) {
+        this.mode = mode;
+      }
+
+      @Override
+      protected Cipher initialValue() {
+        try {
+          return createCipher(this.mode);
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException("Exception thrown while creating cipher for " + topic + " version " + version, e);
+        }
+      }
     }
   }
 }
@@ -0,0 +1,127 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * JVM wide registry of {@link CipherManager} instances. Serializers and deserializers that are configured with the same
+ * vault settings share a single manager, so they share one vault client, one state cache and one set of in flight
+ * loads. Managers are reference counted and closed when the last serializer releases them.
+ */
+class CipherManagerRegistry {
+  private static final Logger log = LoggerFactory.getLogger(CipherManagerRegistry.class);
+  static final Map<Map<String, Object>, Entry> MANAGERS = new HashMap<>();
+
+  private CipherManagerRegistry() {
+  }
+
+  /**
+   * Returns the shared manager for the config, creating it if this is the first reference. The manager is created and
+   * started outside of the registry lock, since loading the snapshot and prewarming can take a while, so only callers
+   * with the same settings wait for it. A manager that fails to start is closed and every caller waiting on it gets the
+   * exception.
+   *
+   * @param config config to look up the manager for.
+   * @return shared manager. Call {@link #release(CipherManager)} once it is no longer used.
+   */
+  static CipherManager acquire(KafkaVaultConfig config) {
+    final Map<String, Object> key = key(config);
+    final Entry entry;
+    final boolean create;
+    synchronized (CipherManagerRegistry.class) {
+      Entry existing = MANAGERS.get(key);
+      create = null == existing;
+      entry = create ? new Entry() : existing;
+      if (create) {
+        MANAGERS.put(key, entry);
+      }
+      entry.references++;
+      log.trace("acquire() - {} reference(s) to CipherManager for {}.", entry.references, config.vaultAddress);
+    }
+
+    if (create) {
+      log.trace("acquire() - Creating CipherManager for {}.", config.vaultAddress);
+      CipherManager manager = null;
+      try {
+        manager = new CipherManager(config);
+        manager.start();
+      } catch (RuntimeException | Error e) {
+        synchronized (CipherManagerRegistry.class) {
+          if (MANAGERS.get(key) == entry) {
+            MANAGERS.remove(key);
+          }
+        }
+        if (null != manager) {
+          manager.close();
+        }
+        entry.future.setException(e);
+        throw e;
+      }
+      entry.manager = manager;
+      entry.future.set(manager);
+      return manager;
+    }
+
+    try {
+      return Uninterruptibles.getUninterruptibly(entry.future);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Exception thrown while creating CipherManager for " + config.vaultAddress, e.getCause());
+    }
+  }
+
+  /**
+   * Releases a reference to a manager returned by {@link #acquire(KafkaVaultConfig)}. The manager is closed when the
+   * last reference is released. Managers that were not created by the registry are closed immediately.
+   *
+   * @param manager manager to release.
+   */
+  static void release(CipherManager manager) {
+    synchronized (CipherManagerRegistry.class) {
+      Iterator<Entry> iterator = MANAGERS.values().iterator();
+      while (iterator.hasNext()) {
+        Entry entry = iterator.next();
+        if (entry.manager != manager) {
+          continue;
+        }
+        entry.references--;
+        log.trace("release() - {} reference(s) to CipherManager remaining.", entry.references);
+        if (entry.references > 0) {
+          return;
+        }
+        iterator.remove();
+        break;
+      }
+    }
+    manager.close();
+  }
+
+  /**
+   * Builds the registry key from the settings defined by {@link KafkaVaultConfig#config()}. Settings that only apply to
+   * the serializer or deserializer, like the wrapped serializer class, are left out so both sides can share a manager.
+   */
+  static Map<String, Object> key(KafkaVaultConfig config) {
+    Map<String, Object> key = new TreeMap<>();
+    Map<String, ?> values = config.values();
+    for (String name : KafkaVaultConfig.config().names()) {
+      key.put(name, values.get(name));
+    }
+    return key;
+  }
+
+  static class Entry {
+    final SettableFuture<CipherManager> future = SettableFuture.create();
+    /**
+     * Set once the manager has started.
+     */
+    volatile CipherManager manager;
+    int references;
+  }
+}
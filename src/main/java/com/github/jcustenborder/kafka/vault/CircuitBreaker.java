@@ -0,0 +1,92 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.utils.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker shared by every key provider call of a {@link CipherManager}. After
+ * `circuit.breaker.failure.threshold` failures in a row the breaker opens and calls fail straight away for
+ * `circuit.breaker.open.ms`, instead of every thread waiting on its own retries against a key store that is down.
+ * Once the open time is up a single call is let through. The breaker closes if it succeeds and opens again if it
+ * fails. Current keys that are already cached keep being served while the breaker is open.
+ */
+class CircuitBreaker {
+  private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  final int failureThreshold;
+  final long openMs;
+  final Time time;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedMs;
+  private boolean trialInFlight;
+
+  CircuitBreaker(KafkaVaultConfig config, Time time) {
+    this(config.circuitBreakerFailureThreshold, config.circuitBreakerOpenMs, time);
+  }
+
+  CircuitBreaker(int failureThreshold, long openMs, Time time) {
+    this.failureThreshold = failureThreshold;
+    this.openMs = openMs;
+    this.time = time;
+  }
+
+  /**
+   * Checks that a call may go ahead.
+   *
+   * @throws IllegalStateException if the breaker is open.
+   */
+  synchronized void acquire() {
+    switch (this.state) {
+      case OPEN:
+        final long remaining = this.openedMs + this.openMs - this.time.milliseconds();
+        if (remaining > 0) {
+          throw new IllegalStateException(
+              String.format("Key provider circuit breaker is open after %s failures. Retrying in %s ms.", this.failures, remaining)
+          );
+        }
+        log.info("acquire() - Circuit breaker is half open. Letting a trial call through.");
+        this.state = State.HALF_OPEN;
+        this.trialInFlight = true;
+        break;
+      case HALF_OPEN:
+        if (this.trialInFlight) {
+          throw new IllegalStateException("Key provider circuit breaker is half open and waiting on a trial call.");
+        }
+        this.trialInFlight = true;
+        break;
+      default:
+        break;
+    }
+  }
+
+  synchronized void success() {
+    if (State.CLOSED != this.state) {
+      log.info("success() - Key provider call succeeded. Closing circuit breaker.");
+    }
+    this.state = State.CLOSED;
+    this.failures = 0;
+    this.trialInFlight = false;
+  }
+
+  synchronized void failure() {
+    this.failures++;
+    this.trialInFlight = false;
+    if (State.HALF_OPEN == this.state || (State.CLOSED == this.state && this.failures >= this.failureThreshold)) {
+      log.warn("failure() - Opening circuit breaker for {} ms after {} failures.", this.openMs, this.failures);
+      this.state = State.OPEN;
+      this.openedMs = this.time.milliseconds();
+    }
+  }
+
+  synchronized State state() {
+    return this.state;
+  }
+}
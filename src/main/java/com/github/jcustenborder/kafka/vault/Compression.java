@@ -0,0 +1,231 @@
+package com.github.jcustenborder.kafka.vault;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression applied to the serialized payload before it is encrypted. Compressed payloads start with the varint
+ * length of the uncompressed payload followed by the output of the codec so the exact output buffer can be allocated
+ * when decompressing. The id of the codec is stored in the flags of the v2 frame. {@link #NONE} has no codec, so callers
+ * check {@link #isNone()} before compressing or decompressing.
+ */
+enum Compression {
+  NONE(0, "none", 1, null),
+  GZIP(1, "gzip", 1032, new Codec() {
+    @Override
+    public int compress(byte[] input, byte[] output, int offset) throws IOException {
+      ArrayOutputStream buffer = new ArrayOutputStream(output, offset);
+      try (OutputStream outputStream = new GZIPOutputStream(buffer)) {
+        outputStream.write(input);
+      }
+      return buffer.overflow ? -1 : buffer.position - offset;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+      return length;
+    }
+
+    @Override
+    public void decompress(byte[] input, int offset, int length, byte[] output) throws IOException {
+      try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(input, offset, length))) {
+        int read = 0;
+        while (read < output.length) {
+          int count = inputStream.read(output, read, output.length - read);
+          if (count < 0) {
+            throw new IOException("Compressed payload is shorter than " + output.length + " bytes.");
+          }
+          read += count;
+        }
+      }
+    }
+  }),
+  SNAPPY(2, "snappy", 32, new Codec() {
+    @Override
+    public int compress(byte[] input, byte[] output, int offset) throws IOException {
+      return Snappy.compress(input, 0, input.length, output, offset);
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+      return Snappy.maxCompressedLength(length);
+    }
+
+    @Override
+    public void decompress(byte[] input, int offset, int length, byte[] output) throws IOException {
+      if (Snappy.uncompressedLength(input, offset, length) != output.length) {
+        throw new IOException("Compressed payload does not decompress to " + output.length + " bytes.");
+      }
+      Snappy.uncompress(input, offset, length, output, 0);
+    }
+  }),
+  LZ4(3, "lz4", 256, new Codec() {
+    @Override
+    public int compress(byte[] input, byte[] output, int offset) {
+      return LZ4_COMPRESSOR.compress(input, 0, input.length, output, offset, output.length - offset);
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+      return LZ4_COMPRESSOR.maxCompressedLength(length);
+    }
+
+    @Override
+    public void decompress(byte[] input, int offset, int length, byte[] output) throws IOException {
+      int written = LZ4_DECOMPRESSOR.decompress(input, offset, length, output, 0, output.length);
+      if (written != output.length) {
+        throw new IOException("Compressed payload does not decompress to " + output.length + " bytes.");
+      }
+    }
+  });
+
+  static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+  static final LZ4SafeDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestInstance().safeDecompressor();
+
+  final int id;
+  final String type;
+  /**
+   * Upper bound of the decompressed size divided by the compressed size the codec can produce, used to reject a
+   * length prefix that the payload cannot hold before the output is allocated.
+   */
+  final int maxRatio;
+  final Codec codec;
+
+  Compression(int id, String type, int maxRatio, Codec codec) {
+    this.id = id;
+    this.type = type;
+    this.maxRatio = maxRatio;
+    this.codec = codec;
+  }
+
+  interface Codec {
+    /**
+     * Compresses the input into the output at the offset.
+     *
+     * @return the number of bytes written or -1 if the output does not have room.
+     */
+    int compress(byte[] input, byte[] output, int offset) throws IOException;
+
+    int maxCompressedLength(int length);
+
+    void decompress(byte[] input, int offset, int length, byte[] output) throws IOException;
+  }
+
+  boolean isNone() {
+    return null == this.codec;
+  }
+
+  /**
+   * Compresses the payload into a single buffer sized for the worst case, which is trimmed once at the end. Returns
+   * null when compression does not make the payload smaller, in which case the payload should be written uncompressed.
+   */
+  byte[] compress(byte[] input) {
+    final int prefixLength = Varint.size(input.length);
+    byte[] output = new byte[prefixLength + this.codec.maxCompressedLength(input.length)];
+    Varint.write(input.length, output, 0);
+    int written;
+    try {
+      written = this.codec.compress(input, output, prefixLength);
+    } catch (IOException e) {
+      throw new IllegalStateException("Exception thrown while compressing payload with " + this.type, e);
+    }
+    if (written < 0 || prefixLength + written >= input.length) {
+      return null;
+    }
+    return Arrays.copyOf(output, prefixLength + written);
+  }
+
+  /**
+   * Decompresses a payload written by {@link #compress(byte[])}. The length prefix is checked against the limit and
+   * against what the codec can produce from the payload before the output is allocated, so a corrupt or hostile
+   * record cannot make the consumer allocate more than it asked for.
+   *
+   * @param maxLength largest decompressed payload accepted, `decompressed.max.bytes`.
+   */
+  byte[] decompress(byte[] input, int offset, int length, int maxLength) {
+    ByteBuffer buffer = ByteBuffer.wrap(input, offset, length);
+    long decompressedLength = Varint.read(buffer);
+    final int compressedLength = offset + length - buffer.position();
+    if (decompressedLength < 0 || decompressedLength > maxLength) {
+      throw new IllegalStateException(
+          String.format("Decompressed length %s is larger than the limit of %s bytes.", decompressedLength, maxLength)
+      );
+    }
+    if (decompressedLength > (long) compressedLength * this.maxRatio) {
+      throw new IllegalStateException(
+          String.format(
+              "Decompressed length %s cannot be produced from %s bytes of %s.", decompressedLength, compressedLength, this.type
+          )
+      );
+    }
+    byte[] output = new byte[(int) decompressedLength];
+    try {
+      this.codec.decompress(input, buffer.position(), compressedLength, output);
+    } catch (IOException | RuntimeException e) {
+      throw new IllegalStateException("Exception thrown while decompressing payload with " + this.type, e);
+    }
+    return output;
+  }
+
+  /**
+   * Output stream over a fixed array. Writes past the end are dropped and flagged instead of growing the array.
+   */
+  static class ArrayOutputStream extends OutputStream {
+    final byte[] buffer;
+    int position;
+    boolean overflow;
+
+    ArrayOutputStream(byte[] buffer, int offset) {
+      this.buffer = buffer;
+      this.position = offset;
+    }
+
+    @Override
+    public void write(int b) {
+      if (this.position < this.buffer.length) {
+        this.buffer[this.position++] = (byte) b;
+      } else {
+        this.overflow = true;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (len > this.buffer.length - this.position) {
+        this.overflow = true;
+        return;
+      }
+      System.arraycopy(b, off, this.buffer, this.position, len);
+      this.position += len;
+    }
+  }
+
+  static Compression forId(int id) {
+    for (Compression compression : values()) {
+      if (compression.id == id) {
+        return compression;
+      }
+    }
+    throw new IllegalStateException("Unknown compression id " + id);
+  }
+
+  static Compression forType(String type) {
+    for (Compression compression : values()) {
+      if (compression.type.equalsIgnoreCase(type)) {
+        return compression;
+      }
+    }
+    throw new IllegalStateException("Unknown compression type " + type);
+  }
+}
@@ -5,9 +5,9 @@ import org.apache.kafka.common.serialization.Deserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,55 +16,251 @@ public class CryptoDeserializer<T> implements Deserializer<T> {
   Config config;
   CipherManager cipherManager;
   Deserializer<T> deserializer;
+  TopicMatcher plaintextTopics;
+  final ThreadLocal<byte[]> scratchBuffer = new ThreadLocal<>();
 
   @Override
   public void configure(Map<String, ?> settings, boolean isKey) {
-    this.config = new Config(settings);
-    this.cipherManager = new CipherManager(this.config);
+    Config config = new Config(settings);
+    Deserializer<T> deserializer;
     try {
-      this.deserializer = (Deserializer<T>) this.config.serializerClass.newInstance();
+      deserializer = (Deserializer<T>) config.serializerClass.newInstance();
     } catch (InstantiationException | IllegalAccessException e) {
       throw new IllegalStateException(e);
     }
 
-    this.deserializer.configure(this.config.serializerSettings, isKey);
+    deserializer.configure(config.serializerSettings, isKey);
+    configure(config, deserializer);
+  }
+
+  /**
+   * Configures the deserializer around a deserializer that is already configured. Used by {@link CryptoSerde}.
+   */
+  void configure(Config config, Deserializer<T> deserializer) {
+    this.config = config;
+    this.deserializer = deserializer;
+    this.plaintextTopics = new TopicMatcher(this.config.plaintextTopics, this.config.plaintextTopicPattern);
+    this.cipherManager = CipherManagerRegistry.acquire(this.config);
   }
 
   @Override
   public T deserialize(String topic, byte[] bytes) {
-    log.trace("deserialize('{}') - {} bytes.",topic, bytes.length);
+    if (this.plaintextTopics.matches(topic)) {
+      return this.deserializer.deserialize(topic, bytes);
+    }
+    if (null == bytes) {
+      return null;
+    }
+    if (this.config.passthroughEnabled) {
+      return (T) bytes;
+    }
+    return decrypt(topic, bytes);
+  }
+
+  /**
+   * Decrypts the record and passes the plaintext to the wrapped deserializer. Safe to call from multiple threads as
+   * long as the wrapped deserializer is. Records that fail are counted in `decrypt-errors-total` and traced as
+   * {@link Tracer.Stage#ERROR}.
+   */
+  T decrypt(String topic, byte[] bytes) {
+    if (log.isTraceEnabled()) {
+      log.trace("decrypt('{}') - {} bytes.", topic, bytes.length);
+    }
+    final long start = this.cipherManager.metrics.start();
+    final Tracing.Trace trace = this.cipherManager.tracing.start(topic, Tracer.Operation.DECRYPT);
+    try {
+      return decrypt(topic, bytes, start, trace);
+    } catch (RuntimeException e) {
+      trace.fail();
+      this.cipherManager.metrics.recordDecryptError();
+      throw e;
+    }
+  }
 
+  T decrypt(String topic, byte[] bytes, long start, Tracing.Trace trace) {
+    if (bytes.length < 2) {
+      throw new IllegalStateException("Message is shorter than the header.");
+    }
+
+    final String scope = this.cipherManager.scope(topic);
     ByteBuffer buffer = ByteBuffer.wrap(bytes);
     byte magicByte = buffer.get();
-    if(KafkaVaultConfig.MAGIC_BYTE != magicByte) {
-      throw new IllegalStateException("Message does not start with magic byte.");
+    CipherManager.CipherState state;
+    Compression compression = Compression.NONE;
+    int chunkSize = 0;
+    boolean deterministic = false;
+    int length;
+    switch (magicByte) {
+      case KafkaVaultConfig.MAGIC_BYTE:
+        checkLength(bytes, KafkaVaultConfig.HEADER_LENGTH);
+        long version = buffer.getLong();
+        state = this.cipherManager.get(scope, version);
+        length = readLength(buffer);
+        break;
+      case KafkaVaultConfig.ENVELOPE_MAGIC_BYTE:
+        checkLength(bytes, KafkaVaultConfig.ENVELOPE_HEADER_LENGTH);
+        long dataKeyId = buffer.getLong();
+        int wrappedKeyLength = buffer.getShort() & 0xFFFF;
+        if (wrappedKeyLength + 4 > buffer.remaining()) {
+          throw new IllegalStateException(
+              String.format("Wrapped key length %s does not fit in the %s bytes remaining.", wrappedKeyLength, buffer.remaining())
+          );
+        }
+        state = this.cipherManager.envelopeManager.get(scope, dataKeyId, bytes, buffer.position(), wrappedKeyLength);
+        buffer.position(buffer.position() + wrappedKeyLength);
+        length = readLength(buffer);
+        break;
+      case KafkaVaultConfig.V2_MAGIC_BYTE:
+        int flags = buffer.get() & 0xFF;
+        if ((flags & ~KafkaVaultConfig.V2_FLAGS_KNOWN) != 0) {
+          throw new IllegalStateException(String.format("Message has unknown flags 0x%02x.", flags));
+        }
+        compression = Compression.forId(flags & KafkaVaultConfig.V2_FLAG_COMPRESSION_MASK);
+        long keyId = Varint.read(buffer);
+        if ((flags & KafkaVaultConfig.V2_FLAG_ENVELOPE) != 0) {
+          long wrappedLength = Varint.read(buffer);
+          if (wrappedLength > buffer.remaining()) {
+            throw new IllegalStateException(
+                String.format("Wrapped key length %s does not fit in the %s bytes remaining.", wrappedLength, buffer.remaining())
+            );
+          }
+          state = this.cipherManager.envelopeManager.get(scope, keyId, bytes, buffer.position(), (int) wrappedLength);
+          buffer.position(buffer.position() + (int) wrappedLength);
+        } else {
+          state = this.cipherManager.get(scope, keyId);
+        }
+        deterministic = (flags & KafkaVaultConfig.V2_FLAG_DETERMINISTIC) != 0;
+        if ((flags & KafkaVaultConfig.V2_FLAG_CHUNKED) != 0) {
+          long chunk = Varint.read(buffer);
+          ChunkedPayload.checkChunkSize(chunk);
+          chunkSize = (int) chunk;
+        }
+        length = buffer.remaining();
+        break;
+      default:
+        throw new IllegalStateException("Message does not start with magic byte.");
+    }
+    trace.lap(Tracer.Stage.KEY_LOOKUP);
+
+    if (log.isTraceEnabled()) {
+      log.trace("decrypt('{}') - version = {}, length = {}.", topic, state.version, length);
+    }
+
+    if (chunkSize > 0 && compression.isNone() && this.deserializer instanceof StreamingDeserializer) {
+      final int plaintextLength = ChunkedPayload.decryptedSize(length, chunkSize);
+      T result;
+      try (ChunkedPayload.ChunkedInputStream inputStream = new ChunkedPayload.ChunkedInputStream(state, bytes, buffer.position(), length, chunkSize)) {
+        result = ((StreamingDeserializer<T>) this.deserializer).deserialize(topic, inputStream);
+      }
+      trace.lap(Tracer.Stage.DESERIALIZE);
+      trace.end();
+      this.cipherManager.metrics.recordDecrypt(start, bytes.length, plaintextLength);
+      return result;
     }
-    long version = buffer.getLong();
-    int length = buffer.getInt();
-    log.trace("deserialize('{}') - version = {}, length = {}.",topic, version, length);
-    CipherManager.CipherState state = this.cipherManager.get(topic, version);
 
     byte[] unencrypted;
     try {
-      byte[] encrypted = new byte[length];
-      buffer.get(encrypted);
-      unencrypted = state.decryptCipher.doFinal(encrypted);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      if (deterministic) {
+        unencrypted = decryptDeterministic(state, bytes, buffer.position(), length, compression);
+      } else if (chunkSize > 0) {
+        unencrypted = decryptChunked(state, bytes, buffer.position(), length, chunkSize, compression);
+      } else {
+        unencrypted = decrypt(state, bytes, buffer.position(), length, compression);
+      }
+    } catch (GeneralSecurityException e) {
       throw new IllegalStateException(e);
     }
+    trace.lap(Tracer.Stage.CRYPTO);
+    this.cipherManager.metrics.recordDecrypt(start, bytes.length, unencrypted.length);
 
-    return this.deserializer.deserialize(topic, unencrypted);
+    T result = this.deserializer.deserialize(topic, unencrypted);
+    trace.lap(Tracer.Stage.DESERIALIZE);
+    trace.end();
+    return result;
+  }
+
+  static void checkLength(byte[] bytes, int headerLength) {
+    if (bytes.length < headerLength) {
+      throw new IllegalStateException("Message is shorter than the header.");
+    }
+  }
+
+  static int readLength(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalStateException(
+          String.format("Message length %s does not fit in the %s bytes remaining.", length, buffer.remaining())
+      );
+    }
+    return length;
+  }
+
+  /**
+   * Decrypts straight out of the record. Plaintext that fits in {@link Config#scratchBufferMaxBytes} is decrypted into
+   * a buffer owned by the calling thread and only the exact plaintext is copied out, which leaves one allocation for
+   * the array that is handed to the deserializer. Compressed payloads are decompressed straight out of the buffer.
+   */
+  byte[] decrypt(CipherManager.CipherState state, byte[] input, int offset, int length, Compression compression) throws GeneralSecurityException {
+    final int outputSize = state.decryptedSize(length);
+
+    if (0 == this.config.scratchBufferMaxBytes || outputSize > this.config.scratchBufferMaxBytes) {
+      byte[] output = new byte[outputSize];
+      int written = state.decrypt(input, offset, length, output, 0);
+      if (!compression.isNone()) {
+        return compression.decompress(output, 0, written, this.config.decompressedMaxBytes);
+      }
+      return written == output.length ? output : Arrays.copyOf(output, written);
+    }
+
+    byte[] scratch = this.scratchBuffer.get();
+    if (null == scratch || scratch.length < outputSize) {
+      int size = Math.min(this.config.scratchBufferMaxBytes, Math.max(outputSize, null == scratch ? 0 : scratch.length * 2));
+      scratch = new byte[size];
+      this.scratchBuffer.set(scratch);
+    }
+    int written = state.decrypt(input, offset, length, scratch, 0);
+    byte[] result = compression.isNone() ? Arrays.copyOf(scratch, written) : compression.decompress(scratch, 0, written, this.config.decompressedMaxBytes);
+    Arrays.fill(scratch, 0, written, (byte) 0);
+    return result;
+  }
+
+  /**
+   * Decrypts a payload written by {@link SyntheticIvCipher} straight into an array of the exact size of the plaintext.
+   */
+  byte[] decryptDeterministic(CipherManager.CipherState state, byte[] input, int offset, int length, Compression compression) throws GeneralSecurityException {
+    final SyntheticIvCipher cipher = state.syntheticIvCipher();
+    byte[] output = new byte[cipher.decryptedSize(length)];
+    cipher.decrypt(input, offset, length, output, 0);
+    return compression.isNone() ? output : compression.decompress(output, 0, output.length, this.config.decompressedMaxBytes);
+  }
+
+  /**
+   * Decrypts a chunked payload straight into an array of the exact size of the plaintext.
+   */
+  byte[] decryptChunked(CipherManager.CipherState state, byte[] input, int offset, int length, int chunkSize, Compression compression) throws GeneralSecurityException {
+    byte[] output = new byte[ChunkedPayload.decryptedSize(length, chunkSize)];
+    ChunkedPayload.decrypt(state, input, offset, length, output, chunkSize);
+    return compression.isNone() ? output : compression.decompress(output, 0, output.length, this.config.decompressedMaxBytes);
   }
 
   @Override
   public void close() {
-
+    if (null != this.cipherManager) {
+      CipherManagerRegistry.release(this.cipherManager);
+      this.cipherManager = null;
+    }
   }
 
   public static class Config extends KafkaVaultConfig {
 
     public final Map<String, Object> serializerSettings;
     public final Class<?> serializerClass;
+    public final int scratchBufferMaxBytes;
+    public final int decompressedMaxBytes;
+    public final boolean passthroughEnabled;
+    public final int batchDecryptParallelism;
+    public final int batchDecryptMinRecords;
+    public final boolean batchDecryptKeys;
 
     public Config(Map<String, ?> parsedConfig) {
       super(config(), parsedConfig);
@@ -75,15 +271,61 @@ public class CryptoDeserializer<T> implements Deserializer<T> {
       serializerSettings.remove(DESERIALIZER_CLASS_CONF);
       this.serializerSettings = serializerSettings;
       this.serializerClass = this.getClass(DESERIALIZER_CLASS_CONF);
+      this.scratchBufferMaxBytes = this.getInt(SCRATCH_BUFFER_MAX_BYTES_CONF);
+      this.decompressedMaxBytes = this.getInt(DECOMPRESSED_MAX_BYTES_CONF);
+      this.passthroughEnabled = this.getBoolean(PASSTHROUGH_ENABLED_CONF);
+      int parallelism = this.getInt(BATCH_DECRYPT_PARALLELISM_CONF);
+      this.batchDecryptParallelism = 0 == parallelism ? Runtime.getRuntime().availableProcessors() : parallelism;
+      this.batchDecryptMinRecords = this.getInt(BATCH_DECRYPT_MIN_RECORDS_CONF);
+      this.batchDecryptKeys = this.getBoolean(BATCH_DECRYPT_KEYS_CONF);
     }
 
     public static final String DESERIALIZER_CLASS_CONF = "deserializer.class";
     static final String DESERIALIZER_CLASS_DOC = "The standard kafka deserializer that will be used to read the unencrypted " +
         "payload. Any deserializer setting can be passed by prefixing `deserializer.` to the settings passed to this deserializer.";
 
+    public static final String SCRATCH_BUFFER_MAX_BYTES_CONF = "scratch.buffer.max.bytes";
+    static final String SCRATCH_BUFFER_MAX_BYTES_DOC = "The largest plaintext, in bytes, that is decrypted into a " +
+        "reusable per thread buffer before it is copied to the array passed to the deserializer. Larger records are " +
+        "decrypted into a newly allocated buffer. Set to 0 to disable the scratch buffer.";
+    static final int SCRATCH_BUFFER_MAX_BYTES_DEFAULT = 1024 * 1024;
+
+    public static final String DECOMPRESSED_MAX_BYTES_CONF = "decompressed.max.bytes";
+    static final String DECOMPRESSED_MAX_BYTES_DOC = "The largest payload, in bytes, that a compressed record may " +
+        "decompress to. Records whose length prefix is larger, or larger than the codec can produce from the record, " +
+        "are rejected before the output is allocated.";
+    static final int DECOMPRESSED_MAX_BYTES_DEFAULT = 64 * 1024 * 1024;
+
+    public static final String PASSTHROUGH_ENABLED_CONF = "passthrough.enabled";
+    static final String PASSTHROUGH_ENABLED_DOC = "Flag to return the encrypted bytes unchanged so that " +
+        "`BatchDecryptInterceptor` can decrypt every record returned by poll() in parallel. The interceptor must be " +
+        "configured in `interceptor.classes` when this is enabled.";
+    static final boolean PASSTHROUGH_ENABLED_DEFAULT = false;
+
+    public static final String BATCH_DECRYPT_PARALLELISM_CONF = "batch.decrypt.parallelism";
+    static final String BATCH_DECRYPT_PARALLELISM_DOC = "The number of threads `BatchDecryptInterceptor` decrypts " +
+        "with. Set to 0 to use one thread per processor.";
+    static final int BATCH_DECRYPT_PARALLELISM_DEFAULT = 0;
+
+    public static final String BATCH_DECRYPT_MIN_RECORDS_CONF = "batch.decrypt.min.records";
+    static final String BATCH_DECRYPT_MIN_RECORDS_DOC = "Batches with fewer records than this are decrypted on the " +
+        "polling thread by `BatchDecryptInterceptor`, since handing them to other threads costs more than it saves.";
+    static final int BATCH_DECRYPT_MIN_RECORDS_DEFAULT = 64;
+
+    public static final String BATCH_DECRYPT_KEYS_CONF = "batch.decrypt.keys";
+    static final String BATCH_DECRYPT_KEYS_DOC = "Flag to have `BatchDecryptInterceptor` decrypt record keys as well as " +
+        "values. Enable when `key.deserializer` is also this deserializer with `passthrough.enabled`.";
+    static final boolean BATCH_DECRYPT_KEYS_DEFAULT = false;
+
     public static ConfigDef config() {
       return KafkaVaultConfig.config()
-          .define(DESERIALIZER_CLASS_CONF, ConfigDef.Type.CLASS, ConfigDef.Importance.HIGH, DESERIALIZER_CLASS_DOC);
+          .define(DESERIALIZER_CLASS_CONF, ConfigDef.Type.CLASS, ConfigDef.Importance.HIGH, DESERIALIZER_CLASS_DOC)
+          .define(SCRATCH_BUFFER_MAX_BYTES_CONF, ConfigDef.Type.INT, SCRATCH_BUFFER_MAX_BYTES_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, SCRATCH_BUFFER_MAX_BYTES_DOC)
+          .define(DECOMPRESSED_MAX_BYTES_CONF, ConfigDef.Type.INT, DECOMPRESSED_MAX_BYTES_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, DECOMPRESSED_MAX_BYTES_DOC)
+          .define(PASSTHROUGH_ENABLED_CONF, ConfigDef.Type.BOOLEAN, PASSTHROUGH_ENABLED_DEFAULT, ConfigDef.Importance.MEDIUM, PASSTHROUGH_ENABLED_DOC)
+          .define(BATCH_DECRYPT_PARALLELISM_CONF, ConfigDef.Type.INT, BATCH_DECRYPT_PARALLELISM_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, BATCH_DECRYPT_PARALLELISM_DOC)
+          .define(BATCH_DECRYPT_MIN_RECORDS_CONF, ConfigDef.Type.INT, BATCH_DECRYPT_MIN_RECORDS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, BATCH_DECRYPT_MIN_RECORDS_DOC)
+          .define(BATCH_DECRYPT_KEYS_CONF, ConfigDef.Type.BOOLEAN, BATCH_DECRYPT_KEYS_DEFAULT, ConfigDef.Importance.LOW, BATCH_DECRYPT_KEYS_DOC);
     }
   }
 }
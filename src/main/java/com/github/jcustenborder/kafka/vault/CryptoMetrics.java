@@ -0,0 +1,332 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.MetricsReporter;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Count;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics for a {@link CipherManager}, registered with a Kafka {@link Metrics} registry and reported over JMX under
+ * {@code kafka.vault:type=kafka-vault-metrics,manager-id=<id>}. Per topic metrics use
+ * {@code type=kafka-vault-topic-metrics} with a {@code topic} tag.
+ * <p>
+ * Recording is on by default so it has to stay off the profile. Record and byte counts go to {@link StripedCounter}s
+ * and cache counts come from the Guava cache stats, neither of which take locks. Latency sensors synchronize on every
+ * record, so only one in `metrics.sample.interval` records is timed.
+ */
+class CryptoMetrics implements Closeable {
+  static final String JMX_PREFIX = "kafka.vault";
+  static final String GROUP = "kafka-vault-metrics";
+  static final String TOPIC_GROUP = "kafka-vault-topic-metrics";
+  static final long NOT_SAMPLED = Long.MIN_VALUE;
+  static final AtomicInteger MANAGER_IDS = new AtomicInteger();
+
+  final Metrics metrics;
+  final Time time;
+  final Map<String, String> tags;
+  final int sampleInterval;
+  final ConcurrentMap<String, TopicState> topics = new ConcurrentHashMap<>();
+
+  final StripedCounter encryptRecords = new StripedCounter();
+  final StripedCounter encryptBytesIn = new StripedCounter();
+  final StripedCounter encryptBytesOut = new StripedCounter();
+  final StripedCounter decryptRecords = new StripedCounter();
+  final StripedCounter decryptBytesIn = new StripedCounter();
+  final StripedCounter decryptBytesOut = new StripedCounter();
+  final StripedCounter decryptErrors = new StripedCounter();
+  final StripedCounter versionHits = new StripedCounter();
+  final StripedCounter versionMisses = new StripedCounter();
+  final Sensor encryptLatency;
+  final Sensor decryptLatency;
+  final Sensor keyProviderReadLatency;
+  final Sensor keyProviderWriteLatency;
+  final Sensor keyProviderErrors;
+
+  CryptoMetrics(KafkaVaultConfig config, Time time) {
+    this.time = time;
+    this.sampleInterval = config.metricsSampleInterval;
+    Map<String, String> tags = new LinkedHashMap<>();
+    tags.put("manager-id", Integer.toString(MANAGER_IDS.incrementAndGet()));
+    this.tags = Collections.unmodifiableMap(tags);
+    this.metrics = new Metrics(
+        new MetricConfig(),
+        Collections.<MetricsReporter>singletonList(new JmxReporter(JMX_PREFIX)),
+        time
+    );
+
+    addCounter("encrypt-records-total", "The number of records encrypted.", this.encryptRecords);
+    addCounter("encrypt-bytes-in-total", "The number of plaintext bytes encrypted.", this.encryptBytesIn);
+    addCounter("encrypt-bytes-out-total", "The number of encrypted bytes written, including headers.", this.encryptBytesOut);
+    addCounter("decrypt-records-total", "The number of records decrypted.", this.decryptRecords);
+    addCounter("decrypt-bytes-in-total", "The number of encrypted bytes read, including headers.", this.decryptBytesIn);
+    addCounter("decrypt-bytes-out-total", "The number of plaintext bytes decrypted.", this.decryptBytesOut);
+    addCounter("decrypt-errors-total", "The number of records that failed to decrypt or deserialize.", this.decryptErrors);
+    addCounter("version-cache-hit-total", "The number of key version lookups served from memory.", this.versionHits);
+    addCounter("version-cache-miss-total", "The number of key version lookups that went to the key provider.", this.versionMisses);
+    this.metrics.addMetric(
+        metricName("key-age-max-ms", "The age of the oldest current key in memory since it was loaded from the key provider."),
+        new Measurable() {
+          @Override
+          public double measure(MetricConfig config, long now) {
+            double max = 0D;
+            for (TopicState topic : topics.values()) {
+              max = Math.max(max, now - topic.loadedMs);
+            }
+            return max;
+          }
+        }
+    );
+
+    this.encryptLatency = latencySensor("encrypt", 100000D);
+    this.decryptLatency = latencySensor("decrypt", 100000D);
+    this.keyProviderReadLatency = latencySensor("key-provider-read", 60000000D);
+    this.keyProviderWriteLatency = latencySensor("key-provider-write", 60000000D);
+    this.keyProviderErrors = this.metrics.sensor("key-provider-errors");
+    this.keyProviderErrors.add(
+        metricName("key-provider-error-count", "The number of failed key provider calls in the sample window."),
+        new Count()
+    );
+  }
+
+  MetricName metricName(String name, String description) {
+    return this.metrics.metricName(name, GROUP, description, this.tags);
+  }
+
+  void addCounter(String name, String description, final StripedCounter counter) {
+    this.metrics.addMetric(metricName(name, description), new Measurable() {
+      @Override
+      public double measure(MetricConfig config, long now) {
+        return counter.sum();
+      }
+    });
+  }
+
+  /**
+   * Sensor with the average, max, median and 99th percentile latency in microseconds over the sample window.
+   */
+  Sensor latencySensor(String name, double maxMicros) {
+    Sensor sensor = this.metrics.sensor(name + "-latency");
+    sensor.add(metricName(name + "-latency-avg", "The average " + name + " latency in microseconds."), new Avg());
+    sensor.add(metricName(name + "-latency-max", "The maximum " + name + " latency in microseconds."), new Max());
+    sensor.add(
+        new Percentiles(
+            4000,
+            maxMicros,
+            Percentiles.BucketSizing.LINEAR,
+            new Percentile(metricName(name + "-latency-p50", "The median " + name + " latency in microseconds."), 50),
+            new Percentile(metricName(name + "-latency-p99", "The 99th percentile " + name + " latency in microseconds."), 99)
+        )
+    );
+    return sensor;
+  }
+
+  /**
+   * Registers the state of the circuit breaker in front of the key provider.
+   */
+  void addCircuitBreaker(final CircuitBreaker circuitBreaker) {
+    this.metrics.addMetric(
+        metricName("circuit-breaker-open", "1 if key provider calls are failing fast because the circuit breaker is open, 0 otherwise."),
+        new Measurable() {
+          @Override
+          public double measure(MetricConfig config, long now) {
+            return CircuitBreaker.State.CLOSED == circuitBreaker.state() ? 0D : 1D;
+          }
+        }
+    );
+  }
+
+  /**
+   * Registers the Guava cache stats of the current state cache. The cache must be built with
+   * {@link com.google.common.cache.CacheBuilder#recordStats()}.
+   */
+  void addCacheStats(final LoadingCache<String, ?> cache) {
+    addCacheStat("cache-hit-total", "The number of current key lookups served from memory.", cache, new Stat() {
+      @Override
+      public long get(CacheStats stats) {
+        return stats.hitCount();
+      }
+    });
+    addCacheStat("cache-miss-total", "The number of current key lookups that were not in memory.", cache, new Stat() {
+      @Override
+      public long get(CacheStats stats) {
+        return stats.missCount();
+      }
+    });
+    addCacheStat("cache-load-total", "The number of current keys loaded from the key provider.", cache, new Stat() {
+      @Override
+      public long get(CacheStats stats) {
+        return stats.loadSuccessCount();
+      }
+    });
+    addCacheStat("cache-load-failure-total", "The number of failed current key loads.", cache, new Stat() {
+      @Override
+      public long get(CacheStats stats) {
+        return stats.loadExceptionCount();
+      }
+    });
+  }
+
+  interface Stat {
+    long get(CacheStats stats);
+  }
+
+  void addCacheStat(String name, String description, final LoadingCache<String, ?> cache, final Stat stat) {
+    this.metrics.addMetric(metricName(name, description), new Measurable() {
+      @Override
+      public double measure(MetricConfig config, long now) {
+        return stat.get(cache.stats());
+      }
+    });
+  }
+
+  /**
+   * Registers the number of vault retries made by the vault clients of the manager. The collection is read on every
+   * measurement, so clients that are created later are counted once they are added.
+   */
+  void addVaultRetries(final Collection<AtomicLong> retries) {
+    this.metrics.addMetric(
+        metricName("vault-retry-total", "The number of vault requests that were retried."),
+        new Measurable() {
+          @Override
+          public double measure(MetricConfig config, long now) {
+            long sum = 0L;
+            for (AtomicLong retry : retries) {
+              sum += retry.get();
+            }
+            return sum;
+          }
+        }
+    );
+  }
+
+  /**
+   * Records that a new current state was loaded for the topic. Registers the per topic metrics the first time.
+   */
+  void currentState(final String topic, CipherManager.CipherState state) {
+    TopicState topicState = this.topics.get(topic);
+    if (null == topicState) {
+      topicState = new TopicState();
+      if (null == this.topics.putIfAbsent(topic, topicState)) {
+        final TopicState registered = topicState;
+        Map<String, String> tags = new LinkedHashMap<>(this.tags);
+        tags.put("topic", topic);
+        this.metrics.addMetric(
+            this.metrics.metricName("key-version", TOPIC_GROUP, "The version of the current key for the topic.", tags),
+            new Measurable() {
+              @Override
+              public double measure(MetricConfig config, long now) {
+                return registered.version;
+              }
+            }
+        );
+        this.metrics.addMetric(
+            this.metrics.metricName(
+                "key-age-ms",
+                TOPIC_GROUP,
+                "Milliseconds since the current key for the topic was loaded from the key provider. Grows past " +
+                    "`vault.cache.interval.ms` while refreshes fail and the stale key is served.",
+                tags
+            ),
+            new Measurable() {
+              @Override
+              public double measure(MetricConfig config, long now) {
+                return now - registered.loadedMs;
+              }
+            }
+        );
+      } else {
+        topicState = this.topics.get(topic);
+      }
+    }
+    topicState.version = state.version;
+    topicState.loadedMs = this.time.milliseconds();
+  }
+
+  static class TopicState {
+    volatile long version;
+    volatile long loadedMs;
+  }
+
+  /**
+   * Starts timing a record.
+   *
+   * @return start time in nanoseconds, or {@link #NOT_SAMPLED} if this record is not timed.
+   */
+  long start() {
+    if (1 == this.sampleInterval || 0 == ThreadLocalRandom.current().nextInt(this.sampleInterval)) {
+      return this.time.nanoseconds();
+    }
+    return NOT_SAMPLED;
+  }
+
+  void recordEncrypt(long start, int bytesIn, int bytesOut) {
+    this.encryptRecords.increment();
+    this.encryptBytesIn.add(bytesIn);
+    this.encryptBytesOut.add(bytesOut);
+    recordLatency(this.encryptLatency, start);
+  }
+
+  void recordDecrypt(long start, int bytesIn, int bytesOut) {
+    this.decryptRecords.increment();
+    this.decryptBytesIn.add(bytesIn);
+    this.decryptBytesOut.add(bytesOut);
+    recordLatency(this.decryptLatency, start);
+  }
+
+  /**
+   * Failed records are counted but not timed, so they do not skew the decrypt latency.
+   */
+  void recordDecryptError() {
+    this.decryptErrors.increment();
+  }
+
+  /**
+   * Key provider calls are rare so every call is timed.
+   */
+  void recordKeyProviderRead(long start, boolean failed) {
+    recordLatency(this.keyProviderReadLatency, start);
+    if (failed) {
+      this.keyProviderErrors.record();
+    }
+  }
+
+  void recordKeyProviderWrite(long start, boolean failed) {
+    recordLatency(this.keyProviderWriteLatency, start);
+    if (failed) {
+      this.keyProviderErrors.record();
+    }
+  }
+
+  void recordLatency(Sensor sensor, long start) {
+    if (NOT_SAMPLED != start) {
+      sensor.record((this.time.nanoseconds() - start) / 1000D);
+    }
+  }
+
+  @Override
+  public void close() {
+    this.metrics.close();
+  }
+}
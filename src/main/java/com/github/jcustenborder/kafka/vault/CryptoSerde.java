@@ -0,0 +1,106 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link Serde} for Kafka Streams that wraps another serde with a {@link CryptoSerializer} and a
+ * {@link CryptoDeserializer}. Both halves share one {@link CipherManager}, and each stream thread uses its own ciphers
+ * from {@link CipherManager.CipherState}, so records are encrypted and decrypted without locking. Streams writes every
+ * record to changelog and repartition topics as well, so `plaintext.topics` and `plaintext.topic.pattern` can be used
+ * to skip encryption for internal topics on clusters where they are already protected.
+ * <p>
+ * Set `serde.class` when this is used as `default.key.serde` or `default.value.serde`, or pass the serde to wrap to
+ * {@link #CryptoSerde(Serde)} and call {@link #configure(Map, boolean)} when it is passed to the DSL.
+ *
+ * @param <T> type to serialize.
+ */
+public class CryptoSerde<T> implements Serde<T> {
+  Config config;
+  Serde<T> serde;
+  final CryptoSerializer<T> serializer = new CryptoSerializer<>();
+  final CryptoDeserializer<T> deserializer = new CryptoDeserializer<>();
+
+  public CryptoSerde() {
+  }
+
+  /**
+   * @param serde serde to wrap. Configured along with this serde.
+   */
+  public CryptoSerde(Serde<T> serde) {
+    this.serde = serde;
+  }
+
+  @Override
+  public void configure(Map<String, ?> settings, boolean isKey) {
+    this.config = new Config(settings);
+    if (null == this.serde) {
+      if (null == this.config.serdeClass) {
+        throw new ConfigException(Config.SERDE_CLASS_CONF, null, "A serde is required when one is not passed to the constructor.");
+      }
+      try {
+        this.serde = (Serde<T>) this.config.serdeClass.newInstance();
+      } catch (InstantiationException | IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    this.serde.configure(this.config.serdeSettings, isKey);
+
+    Map<String, Object> cryptoSettings = new LinkedHashMap<>(settings);
+    cryptoSettings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, this.serde.serializer().getClass());
+    cryptoSettings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, this.serde.deserializer().getClass());
+    cryptoSettings.put(CryptoDeserializer.Config.PASSTHROUGH_ENABLED_CONF, false);
+    this.serializer.configure(new CryptoSerializer.Config(cryptoSettings), this.serde.serializer(), isKey);
+    this.deserializer.configure(new CryptoDeserializer.Config(cryptoSettings), this.serde.deserializer());
+  }
+
+  @Override
+  public Serializer<T> serializer() {
+    return this.serializer;
+  }
+
+  @Override
+  public Deserializer<T> deserializer() {
+    return this.deserializer;
+  }
+
+  @Override
+  public void close() {
+    this.serializer.close();
+    this.deserializer.close();
+    if (null != this.serde) {
+      this.serde.close();
+    }
+  }
+
+  public static class Config extends KafkaVaultConfig {
+    public final Class<?> serdeClass;
+    public final Map<String, Object> serdeSettings;
+
+    public Config(Map<String, ?> parsedConfig) {
+      super(config(), parsedConfig);
+      this.serdeClass = this.getClass(SERDE_CLASS_CONF);
+      Map<String, Object> serdeSettings = new HashMap<>(this.originalsWithPrefix(SERDE_PREFIX));
+      serdeSettings.remove(SERDE_CLASS_CONF.substring(SERDE_PREFIX.length()));
+      this.serdeSettings = serdeSettings;
+    }
+
+    static final String SERDE_PREFIX = "serde.";
+    public static final String SERDE_CLASS_CONF = SERDE_PREFIX + "class";
+    static final String SERDE_CLASS_DOC = "The serde that will be used to write and read the unencrypted payload. Any " +
+        "serde setting can be passed by prefixing `serde.` to the settings passed to this serde. Not needed when the " +
+        "serde is passed to the constructor.";
+
+    public static ConfigDef config() {
+      return KafkaVaultConfig.config()
+          .define(SERDE_CLASS_CONF, ConfigDef.Type.CLASS, null, ConfigDef.Importance.HIGH, SERDE_CLASS_DOC);
+    }
+  }
+}
@@ -1,13 +1,14 @@
 package com.github.jcustenborder.kafka.vault;
 
 import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.ConfigException;
 import org.apache.kafka.common.serialization.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,52 +17,245 @@ public class CryptoSerializer<T> implements Serializer<T> {
   Config config;
   Serializer<T> serializer;
   CipherManager cipherManager;
+  TopicMatcher plaintextTopics;
+  boolean deterministic;
 
   @Override
   public void configure(Map<String, ?> settings, boolean isKey) {
-    this.config = new Config(settings);
-    this.cipherManager = new CipherManager(this.config);
-
+    Config config = new Config(settings);
+    Serializer<T> serializer;
     try {
-      this.serializer = (Serializer<T>) this.config.serializerClass.newInstance();
+      serializer = (Serializer<T>) config.serializerClass.newInstance();
     } catch (InstantiationException | IllegalAccessException e) {
       throw new IllegalStateException(e);
     }
 
-    this.serializer.configure(this.config.serializerSettings, isKey);
+    serializer.configure(config.serializerSettings, isKey);
+    configure(config, serializer, isKey);
+  }
+
+  /**
+   * Configures the serializer around a serializer that is already configured. Used by {@link CryptoSerde}.
+   */
+  void configure(Config config, Serializer<T> serializer, boolean isKey) {
+    this.config = config;
+    this.serializer = serializer;
+    this.deterministic = isKey && this.config.deterministicKeysEnabled;
+    this.plaintextTopics = new TopicMatcher(this.config.plaintextTopics, this.config.plaintextTopicPattern);
+    this.cipherManager = CipherManagerRegistry.acquire(this.config);
   }
 
   @Override
   public byte[] serialize(String topic, T value) {
-    final CipherManager.CipherState state = this.cipherManager.get(topic);
+    if (this.plaintextTopics.matches(topic)) {
+      return this.serializer.serialize(topic, value);
+    }
+    if (null == value) {
+      // Tombstones must stay null so compaction and Kafka Streams deletes keep working.
+      return null;
+    }
+    final Tracing.Trace trace = this.cipherManager.tracing.start(topic, Tracer.Operation.ENCRYPT);
     byte[] unencrypted = this.serializer.serialize(topic, value);
-    byte[] encrypted;
+    trace.lap(Tracer.Stage.SERIALIZE);
+    final CryptoMetrics metrics = this.cipherManager.metrics;
+    final long start = metrics.start();
+    final String scope = this.cipherManager.scope(topic);
+    final byte[] result;
+    if (2 == this.config.formatVersion) {
+      result = serializeV2(scope, unencrypted, trace);
+    } else if (this.config.envelopeEnabled) {
+      result = serializeEnvelope(scope, unencrypted, trace);
+    } else {
+      result = serializeV1(scope, unencrypted, trace);
+    }
+    metrics.recordEncrypt(start, unencrypted.length, result.length);
+    trace.end();
+    return result;
+  }
+
+  byte[] serializeV1(String topic, byte[] unencrypted, Tracing.Trace trace) {
+    final CipherManager.CipherState state = currentState(topic);
+    trace.lap(Tracer.Stage.KEY_LOOKUP);
+    state.useNonces(1L, this.config.gcmMaxEncryptions);
+    byte[] result = encrypt(state, unencrypted, KafkaVaultConfig.HEADER_LENGTH);
+    trace.lap(Tracer.Stage.CRYPTO);
+    writeHeader(result, state.version, result.length - KafkaVaultConfig.HEADER_LENGTH);
+    trace.lap(Tracer.Stage.FRAME);
+    if (log.isTraceEnabled()) {
+      log.trace("serializeV1() - returning {} bytes.", result.length);
+    }
+    return result;
+  }
+
+  byte[] serializeEnvelope(String topic, byte[] unencrypted, Tracing.Trace trace) {
+    final EnvelopeManager.DataKey dataKey = this.cipherManager.envelopeManager.current(topic);
+    trace.lap(Tracer.Stage.KEY_LOOKUP);
+    final int headerLength = KafkaVaultConfig.ENVELOPE_HEADER_LENGTH + dataKey.wrappedKey.length;
+    dataKey.state.useNonces(1L, this.config.gcmMaxEncryptions);
+    byte[] result = encrypt(dataKey.state, unencrypted, headerLength);
+    trace.lap(Tracer.Stage.CRYPTO);
+    ByteBuffer.wrap(result)
+        .put(KafkaVaultConfig.ENVELOPE_MAGIC_BYTE)
+        .putLong(dataKey.state.version)
+        .putShort((short) dataKey.wrappedKey.length)
+        .put(dataKey.wrappedKey)
+        .putInt(result.length - headerLength);
+    trace.lap(Tracer.Stage.FRAME);
+    if (log.isTraceEnabled()) {
+      log.trace("serializeEnvelope() - returning {} bytes.", result.length);
+    }
+    return result;
+  }
+
+  /**
+   * Writes the v2 frame. The payload is compressed first when it is at least `payload.compression.min.bytes` long and
+   * compression makes it smaller. Payloads still larger than `payload.chunk.bytes` are encrypted in chunks when the key
+   * uses an authenticated cipher, see {@link ChunkedPayload}. Record keys are encrypted with the topic key by
+   * {@link SyntheticIvCipher} when `deterministic.keys.enabled` is set.
+   */
+  byte[] serializeV2(String topic, byte[] unencrypted, Tracing.Trace trace) {
+    int flags = Compression.NONE.id;
+    byte[] payload = unencrypted;
+    if (!this.config.compression.isNone() && unencrypted.length >= this.config.compressionMinBytes) {
+      byte[] compressed = this.config.compression.compress(unencrypted);
+      if (null != compressed) {
+        payload = compressed;
+        flags = this.config.compression.id;
+      }
+      trace.lap(Tracer.Stage.COMPRESS);
+    }
+
+    final CipherManager.CipherState state;
+    final byte[] wrappedKey;
+    if (this.deterministic) {
+      // Data keys change every few records, so deterministic records always use the topic key.
+      state = currentState(topic);
+      wrappedKey = null;
+      flags |= KafkaVaultConfig.V2_FLAG_DETERMINISTIC;
+    } else if (this.config.envelopeEnabled) {
+      EnvelopeManager.DataKey dataKey = this.cipherManager.envelopeManager.current(topic);
+      state = dataKey.state;
+      wrappedKey = dataKey.wrappedKey;
+      flags |= KafkaVaultConfig.V2_FLAG_ENVELOPE;
+    } else {
+      state = currentState(topic);
+      wrappedKey = null;
+    }
+    trace.lap(Tracer.Stage.KEY_LOOKUP);
+
+    final int chunkSize = !this.deterministic && this.config.chunkBytes > 0 && payload.length > this.config.chunkBytes &&
+        state.authenticated ? this.config.chunkBytes : 0;
+    if (!this.deterministic) {
+      final long nonces = chunkSize > 0 ? ChunkedPayload.chunks(payload.length, chunkSize) : 1L;
+      state.useNonces(nonces, this.config.gcmMaxEncryptions);
+    }
+    int headerLength = 2 + Varint.size(state.version);
+    if (null != wrappedKey) {
+      headerLength += Varint.size(wrappedKey.length) + wrappedKey.length;
+    }
+    byte[] result;
+    if (this.deterministic) {
+      final SyntheticIvCipher cipher = state.syntheticIvCipher();
+      result = new byte[headerLength + cipher.encryptedSize(payload.length)];
+      try {
+        cipher.encrypt(payload, 0, payload.length, result, headerLength);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Exception thrown while encrypting payload.", e);
+      }
+    } else if (chunkSize > 0) {
+      flags |= KafkaVaultConfig.V2_FLAG_CHUNKED;
+      headerLength += Varint.size(chunkSize);
+      result = new byte[headerLength + ChunkedPayload.encryptedSize(payload.length, chunkSize)];
+      try {
+        ChunkedPayload.encrypt(state, payload, result, headerLength, chunkSize);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Exception thrown while encrypting payload.", e);
+      }
+    } else {
+      result = encrypt(state, payload, headerLength);
+    }
+    trace.lap(Tracer.Stage.CRYPTO);
+    result[0] = KafkaVaultConfig.V2_MAGIC_BYTE;
+    result[1] = (byte) flags;
+    int offset = Varint.write(state.version, result, 2);
+    if (null != wrappedKey) {
+      offset = Varint.write(wrappedKey.length, result, offset);
+      System.arraycopy(wrappedKey, 0, result, offset, wrappedKey.length);
+      offset += wrappedKey.length;
+    }
+    if (chunkSize > 0) {
+      Varint.write(chunkSize, result, offset);
+    }
+    trace.lap(Tracer.Stage.FRAME);
+    if (log.isTraceEnabled()) {
+      log.trace("serializeV2() - returning {} bytes for {} bytes of payload.", result.length, unencrypted.length);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the current state for the topic, counting the record against the key when `rotation.max.records` is set.
+   * Keys that reached `gcm.max.encryptions` are rotated first.
+   */
+  CipherManager.CipherState currentState(String topic) {
+    CipherManager.CipherState state = this.cipherManager.get(topic);
+    if (state.exhausted) {
+      state = this.cipherManager.rotateExhausted(topic, state);
+    }
+    if (this.config.rotationMaxRecords > 0) {
+      state.records.increment();
+    }
+    return state;
+  }
+
+  /**
+   * Sizes the output for the header plus the ciphertext and lets the cipher write directly after the header so the
+   * record is only allocated once.
+   */
+  static byte[] encrypt(CipherManager.CipherState state, byte[] unencrypted, int headerLength) {
+    final int outputSize = state.encryptedSize(unencrypted.length);
+    byte[] result = new byte[headerLength + outputSize];
+    int encryptedLength;
 
     try {
-      encrypted = state.encryptCipher.doFinal(unencrypted);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      encryptedLength = state.encrypt(unencrypted, 0, unencrypted.length, result, headerLength);
+    } catch (GeneralSecurityException e) {
       throw new IllegalStateException("Exception thrown while encrypting payload.", e);
     }
 
-    ByteBuffer buffer = ByteBuffer.allocate(encrypted.length + 13);
-    buffer.put(KafkaVaultConfig.MAGIC_BYTE);
-    buffer.putLong(state.version);
-    buffer.putInt(encrypted.length);
-    buffer.put(encrypted);
-    byte[] result = buffer.array();
-    log.trace("serialize() - returning {} bytes.", result.length);
+    if (encryptedLength < outputSize) {
+      result = Arrays.copyOf(result, headerLength + encryptedLength);
+    }
     return result;
   }
 
+  static void writeHeader(byte[] buffer, long version, int length) {
+    buffer[0] = KafkaVaultConfig.MAGIC_BYTE;
+    for (int i = 0; i < 8; i++) {
+      buffer[1 + i] = (byte) (version >>> (56 - 8 * i));
+    }
+    for (int i = 0; i < 4; i++) {
+      buffer[9 + i] = (byte) (length >>> (24 - 8 * i));
+    }
+  }
+
   @Override
   public void close() {
-
+    if (null != this.cipherManager) {
+      CipherManagerRegistry.release(this.cipherManager);
+      this.cipherManager = null;
+    }
   }
 
   public static class Config extends KafkaVaultConfig {
 
     public final Map<String, Object> serializerSettings;
     public final Class<?> serializerClass;
+    public final int formatVersion;
+    public final Compression compression;
+    public final int compressionMinBytes;
+    public final int chunkBytes;
+    public final boolean deterministicKeysEnabled;
 
     public Config(Map<String, ?> parsedConfig) {
       super(config(), parsedConfig);
@@ -72,15 +266,79 @@ public class CryptoSerializer<T> implements Serializer<T> {
       serializerSettings.remove(SERIALIZER_CLASS_CONF);
       this.serializerSettings = serializerSettings;
       this.serializerClass = this.getClass(SERIALIZER_CLASS_CONF);
+      this.formatVersion = this.getInt(FORMAT_VERSION_CONF);
+      this.compression = Compression.forType(this.getString(PAYLOAD_COMPRESSION_TYPE_CONF));
+      this.compressionMinBytes = this.getInt(PAYLOAD_COMPRESSION_MIN_BYTES_CONF);
+      this.chunkBytes = this.getInt(PAYLOAD_CHUNK_BYTES_CONF);
+      this.deterministicKeysEnabled = this.getBoolean(DETERMINISTIC_KEYS_ENABLED_CONF);
+
+      if (!this.compression.isNone() && 2 != this.formatVersion) {
+        throw new ConfigException(
+            PAYLOAD_COMPRESSION_TYPE_CONF,
+            this.compression.type,
+            "Compression requires " + FORMAT_VERSION_CONF + " = 2."
+        );
+      }
+      if (this.chunkBytes > 0 && 2 != this.formatVersion) {
+        throw new ConfigException(
+            PAYLOAD_CHUNK_BYTES_CONF,
+            this.chunkBytes,
+            "Chunking requires " + FORMAT_VERSION_CONF + " = 2."
+        );
+      }
+      if (this.deterministicKeysEnabled && 2 != this.formatVersion) {
+        throw new ConfigException(
+            DETERMINISTIC_KEYS_ENABLED_CONF,
+            true,
+            "Deterministic keys require " + FORMAT_VERSION_CONF + " = 2."
+        );
+      }
     }
 
     public static final String SERIALIZER_CLASS_CONF = "serializer.class";
     static final String SERIALIZER_CLASS_DOC = "The standard kafka serializer that will be used to write the unencrypted " +
         "payload. Any serializer setting can be passed by prefixing `serializer.` to the settings passed to this serializer.";
 
+    public static final String FORMAT_VERSION_CONF = "format.version";
+    static final String FORMAT_VERSION_DOC = "The version of the record format to write. `1` writes a fixed 13 byte " +
+        "header with the key version and payload length. `2` writes a varint key version, drops the length and " +
+        "supports `payload.compression.type`. Version 2 can only be read by deserializers that support it. Both " +
+        "versions are always readable.";
+    static final int FORMAT_VERSION_DEFAULT = 1;
+
+    public static final String PAYLOAD_COMPRESSION_TYPE_CONF = "payload.compression.type";
+    static final String PAYLOAD_COMPRESSION_TYPE_DOC = "Compression applied to the serialized payload before it is " +
+        "encrypted. Encrypted records do not compress so this replaces the `compression.type` of the producer. " +
+        "Requires `format.version` 2.";
+    static final String PAYLOAD_COMPRESSION_TYPE_DEFAULT = "none";
+
+    public static final String PAYLOAD_COMPRESSION_MIN_BYTES_CONF = "payload.compression.min.bytes";
+    static final String PAYLOAD_COMPRESSION_MIN_BYTES_DOC = "Payloads smaller than this are written uncompressed.";
+    static final int PAYLOAD_COMPRESSION_MIN_BYTES_DEFAULT = 128;
+
+    public static final String PAYLOAD_CHUNK_BYTES_CONF = "payload.chunk.bytes";
+    static final String PAYLOAD_CHUNK_BYTES_DOC = "Payloads larger than this are encrypted as a series of chunks of " +
+        "this many bytes, each with its own nonce and tag. This bounds the memory used to decrypt very large records " +
+        "and lets a `StreamingDeserializer` read the plaintext one chunk at a time. Only applies to keys with an " +
+        "authenticated cipher. Requires `format.version` 2. Set to 0 to disable.";
+    static final int PAYLOAD_CHUNK_BYTES_DEFAULT = 0;
+
+    public static final String DETERMINISTIC_KEYS_ENABLED_CONF = "deterministic.keys.enabled";
+    static final String DETERMINISTIC_KEYS_ENABLED_DOC = "Flag to encrypt record keys deterministically, so the same " +
+        "key encrypts to the same bytes for as long as the topic key version does not change. This keeps the default " +
+        "partitioner and log compaction working. Equal record keys can be told apart from different ones, which the " +
+        "partitioner reveals anyway. Only applies when this is the `key.serializer`. Records are encrypted with the " +
+        "topic key even when `envelope.enabled` is set. Requires `format.version` 2.";
+    static final boolean DETERMINISTIC_KEYS_ENABLED_DEFAULT = false;
+
     public static ConfigDef config() {
       return KafkaVaultConfig.config()
-          .define(SERIALIZER_CLASS_CONF, ConfigDef.Type.CLASS, ConfigDef.Importance.HIGH, SERIALIZER_CLASS_DOC);
+          .define(SERIALIZER_CLASS_CONF, ConfigDef.Type.CLASS, ConfigDef.Importance.HIGH, SERIALIZER_CLASS_DOC)
+          .define(FORMAT_VERSION_CONF, ConfigDef.Type.INT, FORMAT_VERSION_DEFAULT, ConfigDef.Range.between(1, 2), ConfigDef.Importance.MEDIUM, FORMAT_VERSION_DOC)
+          .define(PAYLOAD_COMPRESSION_TYPE_CONF, ConfigDef.Type.STRING, PAYLOAD_COMPRESSION_TYPE_DEFAULT, ConfigDef.ValidString.in("none", "gzip", "snappy", "lz4"), ConfigDef.Importance.MEDIUM, PAYLOAD_COMPRESSION_TYPE_DOC)
+          .define(PAYLOAD_COMPRESSION_MIN_BYTES_CONF, ConfigDef.Type.INT, PAYLOAD_COMPRESSION_MIN_BYTES_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, PAYLOAD_COMPRESSION_MIN_BYTES_DOC)
+          .define(PAYLOAD_CHUNK_BYTES_CONF, ConfigDef.Type.INT, PAYLOAD_CHUNK_BYTES_DEFAULT, ConfigDef.Range.between(0, ChunkedPayload.MAX_CHUNK_SIZE), ConfigDef.Importance.LOW, PAYLOAD_CHUNK_BYTES_DOC)
+          .define(DETERMINISTIC_KEYS_ENABLED_CONF, ConfigDef.Type.BOOLEAN, DETERMINISTIC_KEYS_ENABLED_DEFAULT, ConfigDef.Importance.MEDIUM, DETERMINISTIC_KEYS_ENABLED_DOC);
     }
   }
 }
@@ -0,0 +1,48 @@
+package com.github.jcustenborder.kafka.vault;
+
+/**
+ * Returned by {@link BatchDecryptInterceptor} in place of a key or value that could not be decrypted. Kafka ignores
+ * exceptions thrown by interceptors and hands the application the records the interceptor was given, which with
+ * `passthrough.enabled` are still encrypted. Replacing the record instead means the application never sees the
+ * encrypted bytes. Reading the key or value as its configured type fails with a {@link ClassCastException}, so check
+ * for this type first to skip or dead letter the record.
+ */
+public final class DecryptionFailure {
+  final String topic;
+  final int partition;
+  final long offset;
+  final RuntimeException exception;
+
+  DecryptionFailure(String topic, int partition, long offset, RuntimeException exception) {
+    this.topic = topic;
+    this.partition = partition;
+    this.offset = offset;
+    this.exception = exception;
+  }
+
+  public String topic() {
+    return this.topic;
+  }
+
+  public int partition() {
+    return this.partition;
+  }
+
+  public long offset() {
+    return this.offset;
+  }
+
+  /**
+   * Returns the exception thrown while decrypting the record.
+   */
+  public RuntimeException exception() {
+    return this.exception;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "DecryptionFailure{topic = '%s', partition = %s, offset = %s}", this.topic, this.partition, this.offset
+    );
+  }
+}
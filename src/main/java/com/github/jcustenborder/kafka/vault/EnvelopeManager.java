@@ -0,0 +1,241 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.kafka.common.utils.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.KeyGenerator;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages the data keys used for envelope encryption. Producers generate a data key locally, wrap it once with the
+ * {@link KeyWrapper} and use it for `envelope.data.key.max.records` records or `envelope.data.key.max.age.ms`
+ * milliseconds, whichever comes first. The wrapped key travels with every record so consumers only need to unwrap each
+ * data key once.
+ */
+class EnvelopeManager {
+  private static final Logger log = LoggerFactory.getLogger(EnvelopeManager.class);
+  final KafkaVaultConfig config;
+  final Supplier<KeyWrapper> keyWrapper;
+  final Time time;
+  final SecureRandom random = new SecureRandom();
+  final ConcurrentMap<String, DataKey> currentKeys = new ConcurrentHashMap<>();
+  final ConcurrentMap<String, SettableFuture<DataKey>> pendingKeys = new ConcurrentHashMap<>();
+  final Cache<Long, UnwrappedKey> unwrappedKeys;
+
+  EnvelopeManager(KafkaVaultConfig config, KeyWrapper keyWrapper, Time time) {
+    this(config, Suppliers.ofInstance(keyWrapper), time);
+  }
+
+  /**
+   * @param keyWrapper supplies the key wrapper the first time a data key is wrapped or unwrapped.
+   */
+  EnvelopeManager(KafkaVaultConfig config, Supplier<KeyWrapper> keyWrapper, Time time) {
+    this.config = config;
+    this.keyWrapper = keyWrapper;
+    this.time = time;
+    this.unwrappedKeys = CacheBuilder.newBuilder()
+        .maximumSize(this.config.envelopeDataKeyCacheSize)
+        .expireAfterAccess(this.config.envelopeDataKeyMaxAgeMs * 2, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Returns the data key to encrypt the next record for the topic with. Once the current key has been used for too
+   * many records or is too old, one thread generates the next key while the others keep using the current one until
+   * it is ready. Only the first key of a topic is waited for.
+   */
+  public DataKey current(String topic) {
+    DataKey dataKey = this.currentKeys.get(topic);
+    if (null == dataKey) {
+      return rotate(topic, null);
+    }
+    if (dataKey.exhausted() && this.time.milliseconds() >= dataKey.retryAt) {
+      return rotate(topic, dataKey);
+    }
+    return dataKey;
+  }
+
+  /**
+   * Generates and wraps the next data key for the topic. Wrapping can be a round trip to vault, so no lock is held and
+   * only one thread per topic does it. When wrapping fails the previous key is used for another
+   * `vault.retry.interval.ms` before trying again.
+   */
+  DataKey rotate(String topic, DataKey previous) {
+    final SettableFuture<DataKey> future = SettableFuture.create();
+    final SettableFuture<DataKey> pending = this.pendingKeys.putIfAbsent(topic, future);
+    if (null != pending) {
+      if (null != previous) {
+        return previous;
+      }
+      try {
+        return Uninterruptibles.getUninterruptibly(pending);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Exception thrown while generating data key for " + topic, e.getCause());
+      }
+    }
+
+    try {
+      DataKey dataKey = this.currentKeys.get(topic);
+      if (dataKey == previous) {
+        dataKey = generate(topic);
+        this.currentKeys.put(topic, dataKey);
+      }
+      future.set(dataKey);
+      return dataKey;
+    } catch (RuntimeException e) {
+      future.setException(e);
+      if (null == previous) {
+        throw e;
+      }
+      log.warn("rotate('{}') - Exception thrown while generating data key. Using the previous key for {} ms.", topic, this.config.vaultRetryInterval, e);
+      previous.retryAt = this.time.milliseconds() + this.config.vaultRetryInterval;
+      return previous;
+    } finally {
+      this.pendingKeys.remove(topic, future);
+    }
+  }
+
+  DataKey generate(String topic) {
+    byte[] key;
+    try {
+      KeyGenerator kgen = KeyGenerator.getInstance("AES");
+      kgen.init(256);
+      key = kgen.generateKey().getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+
+    final long id = this.random.nextLong();
+    log.trace("generate('{}') - Generating data key {}.", topic, id);
+    byte[] wrappedKey = this.keyWrapper.get().wrap(topic, key);
+    if (wrappedKey.length > 0xFFFF) {
+      throw new IllegalStateException("Wrapped data key is larger than 65535 bytes.");
+    }
+    CipherManager.CipherState state = createState(topic, id, key);
+    this.unwrappedKeys.put(id, new UnwrappedKey(topic, wrappedKey, state));
+    return new DataKey(state, wrappedKey, this.time.milliseconds());
+  }
+
+  /**
+   * Returns the state for a data key read from a record, unwrapping it on the first use. The cache is keyed by the id
+   * in the record, so a hit is only used when the topic and the wrapped key match as well. A record that reuses a known
+   * id with another wrapped key is unwrapped on its own and does not replace the cached key.
+   */
+  public CipherManager.CipherState get(final String topic, final long id, final byte[] buffer, final int offset, final int length) {
+    UnwrappedKey unwrappedKey = this.unwrappedKeys.getIfPresent(id);
+    if (null != unwrappedKey) {
+      if (unwrappedKey.matches(topic, buffer, offset, length)) {
+        return unwrappedKey.state;
+      }
+      log.warn("get('{}', {}) - Wrapped key does not match the cached data key with the same id.", topic, id);
+      return unwrap(topic, id, buffer, offset, length).state;
+    }
+    try {
+      return this.unwrappedKeys.get(id, new Callable<UnwrappedKey>() {
+        @Override
+        public UnwrappedKey call() throws Exception {
+          return unwrap(topic, id, buffer, offset, length);
+        }
+      }).state;
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw new IllegalStateException("Exception thrown while unwrapping data key " + id + " for " + topic, e.getCause());
+    }
+  }
+
+  UnwrappedKey unwrap(String topic, long id, byte[] buffer, int offset, int length) {
+    log.trace("unwrap('{}', {}) - Unwrapping data key.", topic, id);
+    byte[] wrappedKey = Arrays.copyOfRange(buffer, offset, offset + length);
+    byte[] key = this.keyWrapper.get().unwrap(topic, wrappedKey);
+    return new UnwrappedKey(topic, wrappedKey, createState(topic, id, key));
+  }
+
+  static CipherManager.CipherState createState(String topic, long id, byte[] key) {
+    SecretConfig secretConfig = new SecretConfig(
+        ImmutableMap.of(
+            SecretConfig.CIPHER_CONF, SecretConfig.CIPHER_AES_GCM,
+            SecretConfig.KEY_CONF, BaseEncoding.base64().encode(key)
+        )
+    );
+    try {
+      return new CipherManager.CipherState(topic, id, secretConfig);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while creating data key " + id + " for " + topic, e);
+    }
+  }
+
+  static class UnwrappedKey {
+    final String topic;
+    final byte[] wrappedKey;
+    final CipherManager.CipherState state;
+
+    UnwrappedKey(String topic, byte[] wrappedKey, CipherManager.CipherState state) {
+      this.topic = topic;
+      this.wrappedKey = wrappedKey;
+      this.state = state;
+    }
+
+    boolean matches(String topic, byte[] buffer, int offset, int length) {
+      if (length != this.wrappedKey.length || !this.topic.equals(topic)) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (this.wrappedKey[i] != buffer[offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  class DataKey {
+    final CipherManager.CipherState state;
+    final byte[] wrappedKey;
+    final long created;
+    /**
+     * Uses of the key after the record it was generated for.
+     */
+    final StripedCounter records = new StripedCounter();
+    /**
+     * Set once {@link #records} reached `envelope.data.key.max.records`.
+     */
+    volatile boolean full;
+    /**
+     * Time before which a failed rotation is not tried again.
+     */
+    volatile long retryAt;
+
+    DataKey(CipherManager.CipherState state, byte[] wrappedKey, long created) {
+      this.state = state;
+      this.wrappedKey = wrappedKey;
+      this.created = created;
+    }
+
+    /**
+     * Counts a use of the key and checks it against the rotation policy and `gcm.max.encryptions`. The count is striped
+     * so producer threads do not contend on it, which lets a key go past `envelope.data.key.max.records` by up to 1/16.
+     */
+    boolean exhausted() {
+      if (!this.full && this.records.add(1L, config.envelopeDataKeyMaxRecords)) {
+        this.full = true;
+      }
+      return this.full || this.state.exhausted || time.milliseconds() - this.created > config.envelopeDataKeyMaxAgeMs;
+    }
+  }
+}
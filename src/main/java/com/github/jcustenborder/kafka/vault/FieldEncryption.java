@@ -0,0 +1,222 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.connect.connector.ConnectRecord;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.DataException;
+import org.apache.kafka.connect.transforms.Transformation;
+
+import java.util.Map;
+
+/**
+ * Kafka Connect transformation that encrypts or decrypts the fields listed in `fields` with the keys of the topic of
+ * the record, leaving the other fields in plaintext. Works on {@link Struct} values with a schema and on schemaless
+ * maps. Encrypted fields of a struct get an optional or required bytes schema with the original type stored in the
+ * {@link #TYPE_PARAMETER} parameter, which `mode = decrypt` uses to restore the schema. Use
+ * {@link FieldEncryption.Key} for record keys and {@link FieldEncryption.Value} for record values.
+ *
+ * @param <R> record type.
+ */
+public abstract class FieldEncryption<R extends ConnectRecord<R>> implements Transformation<R> {
+  static final String TYPE_PARAMETER = "kafka.vault.type";
+  Config config;
+  FieldEncryptor encryptor;
+  Cache<Schema, Schema> schemaCache;
+
+  @Override
+  public void configure(Map<String, ?> settings) {
+    this.config = new Config(settings);
+    this.encryptor = new FieldEncryptor();
+    this.encryptor.configure(settings);
+    this.schemaCache = CacheBuilder.newBuilder()
+        .maximumSize(64)
+        .build();
+  }
+
+  @Override
+  public ConfigDef config() {
+    return Config.config();
+  }
+
+  protected abstract Schema operatingSchema(R record);
+
+  protected abstract Object operatingValue(R record);
+
+  protected abstract R newRecord(R record, Schema updatedSchema, Object updatedValue);
+
+  @Override
+  public R apply(R record) {
+    final Object value = operatingValue(record);
+    if (null == value) {
+      return record;
+    }
+    if (value instanceof Struct) {
+      Struct updated = applyStruct(record.topic(), (Struct) value);
+      return newRecord(record, updated.schema(), updated);
+    } else if (value instanceof Map) {
+      Map<String, ?> map = (Map<String, ?>) value;
+      Map<String, Object> updated = this.config.encrypt ?
+          this.encryptor.encryptFields(record.topic(), map) :
+          this.encryptor.decryptFields(record.topic(), map);
+      return newRecord(record, operatingSchema(record), updated);
+    }
+    throw new DataException(
+        "Only Struct and Map values are supported. Found " + value.getClass().getName() + " on topic " + record.topic()
+    );
+  }
+
+  Struct applyStruct(String topic, Struct struct) {
+    final Schema updatedSchema = updatedSchema(struct.schema());
+    final Struct updated = new Struct(updatedSchema);
+    for (Field field : updatedSchema.fields()) {
+      Object fieldValue = struct.get(field.name());
+      if (this.encryptor.isEncrypted(field.name())) {
+        fieldValue = this.config.encrypt ?
+            this.encryptor.encrypt(topic, fieldValue) :
+            this.encryptor.decrypt(topic, fieldValue);
+      }
+      updated.put(field.name(), fieldValue);
+    }
+    return updated;
+  }
+
+  Schema updatedSchema(Schema schema) {
+    Schema updated = this.schemaCache.getIfPresent(schema);
+    if (null != updated) {
+      return updated;
+    }
+
+    SchemaBuilder builder = SchemaBuilder.struct()
+        .name(schema.name())
+        .version(schema.version())
+        .doc(schema.doc());
+    if (null != schema.parameters()) {
+      builder.parameters(schema.parameters());
+    }
+    if (schema.isOptional()) {
+      builder.optional();
+    }
+    for (Field field : schema.fields()) {
+      builder.field(
+          field.name(),
+          this.encryptor.isEncrypted(field.name()) ? updatedFieldSchema(field) : field.schema()
+      );
+    }
+    updated = builder.build();
+    this.schemaCache.put(schema, updated);
+    return updated;
+  }
+
+  Schema updatedFieldSchema(Field field) {
+    final Schema schema = field.schema();
+    final SchemaBuilder builder;
+    if (this.config.encrypt) {
+      if (!schema.type().isPrimitive() || null != schema.name()) {
+        throw new DataException(
+            String.format("Field '%s' has schema %s. Only primitive fields can be encrypted.", field.name(), schema.type())
+        );
+      }
+      builder = SchemaBuilder.bytes().parameter(TYPE_PARAMETER, schema.type().name());
+    } else {
+      String type = null == schema.parameters() ? null : schema.parameters().get(TYPE_PARAMETER);
+      if (null == type) {
+        throw new DataException(
+            String.format("Field '%s' does not have the '%s' parameter written when it was encrypted.", field.name(), TYPE_PARAMETER)
+        );
+      }
+      builder = SchemaBuilder.type(Schema.Type.valueOf(type));
+    }
+    if (schema.isOptional()) {
+      builder.optional();
+    }
+    return builder.build();
+  }
+
+  @Override
+  public void close() {
+    if (null != this.encryptor) {
+      this.encryptor.close();
+      this.encryptor = null;
+    }
+  }
+
+  public static class Config extends FieldEncryptor.Config {
+    public final boolean encrypt;
+
+    public Config(Map<String, ?> parsedConfig) {
+      super(config(), parsedConfig);
+      this.encrypt = MODE_ENCRYPT.equals(this.getString(MODE_CONF));
+    }
+
+    public static final String MODE_CONF = "mode";
+    static final String MODE_DOC = "`encrypt` to encrypt the fields or `decrypt` to restore them.";
+    static final String MODE_ENCRYPT = "encrypt";
+    static final String MODE_DECRYPT = "decrypt";
+
+    public static ConfigDef config() {
+      return FieldEncryptor.Config.config()
+          .define(MODE_CONF, ConfigDef.Type.STRING, MODE_ENCRYPT, ConfigDef.ValidString.in(MODE_ENCRYPT, MODE_DECRYPT), ConfigDef.Importance.HIGH, MODE_DOC);
+    }
+  }
+
+  /**
+   * Encrypts or decrypts fields of the record key.
+   */
+  public static class Key<R extends ConnectRecord<R>> extends FieldEncryption<R> {
+    @Override
+    protected Schema operatingSchema(R record) {
+      return record.keySchema();
+    }
+
+    @Override
+    protected Object operatingValue(R record) {
+      return record.key();
+    }
+
+    @Override
+    protected R newRecord(R record, Schema updatedSchema, Object updatedValue) {
+      return record.newRecord(
+          record.topic(),
+          record.kafkaPartition(),
+          updatedSchema,
+          updatedValue,
+          record.valueSchema(),
+          record.value(),
+          record.timestamp()
+      );
+    }
+  }
+
+  /**
+   * Encrypts or decrypts fields of the record value.
+   */
+  public static class Value<R extends ConnectRecord<R>> extends FieldEncryption<R> {
+    @Override
+    protected Schema operatingSchema(R record) {
+      return record.valueSchema();
+    }
+
+    @Override
+    protected Object operatingValue(R record) {
+      return record.value();
+    }
+
+    @Override
+    protected R newRecord(R record, Schema updatedSchema, Object updatedValue) {
+      return record.newRecord(
+          record.topic(),
+          record.kafkaPartition(),
+          record.keySchema(),
+          record.key(),
+          updatedSchema,
+          updatedValue,
+          record.timestamp()
+      );
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encrypts individual field values with the keys of a topic, so only the sensitive fields of a record are opaque and the
+ * rest stay readable for filtering and compression. Each value is written in the same frame as
+ * {@link CryptoSerializer}, so `format.version`, envelope encryption and key rotation apply as they do to whole records.
+ * The type of the value is stored in the first byte of the plaintext so it is restored without a schema.
+ * <p>
+ * Used by the {@link FieldEncryption} transformation for Kafka Connect, and can be used from Kafka Streams, for example in
+ * `mapValues()`. Thread safe.
+ */
+public class FieldEncryptor implements Closeable {
+  static final byte TYPE_BYTES = 0;
+  static final byte TYPE_STRING = 1;
+  static final byte TYPE_BOOLEAN = 2;
+  static final byte TYPE_INT8 = 3;
+  static final byte TYPE_INT16 = 4;
+  static final byte TYPE_INT32 = 5;
+  static final byte TYPE_INT64 = 6;
+  static final byte TYPE_FLOAT32 = 7;
+  static final byte TYPE_FLOAT64 = 8;
+
+  Config config;
+  Set<String> fields;
+  CryptoSerializer<byte[]> serializer;
+  CryptoDeserializer<byte[]> deserializer;
+
+  public void configure(Map<String, ?> settings) {
+    this.config = new Config(settings);
+    this.fields = new HashSet<>(this.config.fields);
+
+    Map<String, Object> cryptoSettings = new LinkedHashMap<>(settings);
+    cryptoSettings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, ByteArraySerializer.class.getName());
+    cryptoSettings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, ByteArrayDeserializer.class.getName());
+    cryptoSettings.put(CryptoDeserializer.Config.PASSTHROUGH_ENABLED_CONF, "false");
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(cryptoSettings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(cryptoSettings, false);
+  }
+
+  /**
+   * Returns true if the field is listed in `fields`.
+   */
+  public boolean isEncrypted(String field) {
+    return this.fields.contains(field);
+  }
+
+  /**
+   * Encrypts a single value.
+   *
+   * @param topic topic whose key is used.
+   * @param value a String, byte[], ByteBuffer, Boolean, Byte, Short, Integer, Long, Float or Double.
+   * @return encrypted value, or null if the value is null.
+   */
+  public byte[] encrypt(String topic, Object value) {
+    if (null == value) {
+      return null;
+    }
+    return this.serializer.serialize(topic, encode(value));
+  }
+
+  /**
+   * Decrypts a value written by {@link #encrypt(String, Object)}.
+   *
+   * @param topic     topic whose key was used.
+   * @param encrypted a byte[] or ByteBuffer.
+   * @return the value with its original type, or null if the value is null.
+   */
+  public Object decrypt(String topic, Object encrypted) {
+    if (null == encrypted) {
+      return null;
+    }
+    return decode(this.deserializer.deserialize(topic, bytes(encrypted)));
+  }
+
+  /**
+   * Returns a copy of the map with the values of the fields listed in `fields` encrypted.
+   */
+  public Map<String, Object> encryptFields(String topic, Map<String, ?> value) {
+    Map<String, Object> result = new LinkedHashMap<>(value);
+    for (String field : this.config.fields) {
+      if (result.containsKey(field)) {
+        result.put(field, encrypt(topic, result.get(field)));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a copy of the map with the values of the fields listed in `fields` decrypted.
+   */
+  public Map<String, Object> decryptFields(String topic, Map<String, ?> value) {
+    Map<String, Object> result = new LinkedHashMap<>(value);
+    for (String field : this.config.fields) {
+      if (result.containsKey(field)) {
+        result.put(field, decrypt(topic, result.get(field)));
+      }
+    }
+    return result;
+  }
+
+  static byte[] bytes(Object value) {
+    if (value instanceof byte[]) {
+      return (byte[]) value;
+    }
+    if (value instanceof ByteBuffer) {
+      ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+      byte[] result = new byte[buffer.remaining()];
+      buffer.get(result);
+      return result;
+    }
+    throw new IllegalStateException("Encrypted values must be byte[] or ByteBuffer, not " + value.getClass().getName());
+  }
+
+  static byte[] encode(Object value) {
+    if (value instanceof byte[] || value instanceof ByteBuffer) {
+      return prefix(TYPE_BYTES, bytes(value));
+    } else if (value instanceof String) {
+      return prefix(TYPE_STRING, ((String) value).getBytes(StandardCharsets.UTF_8));
+    } else if (value instanceof Boolean) {
+      return new byte[]{TYPE_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+    } else if (value instanceof Byte) {
+      return new byte[]{TYPE_INT8, (Byte) value};
+    } else if (value instanceof Short) {
+      return ByteBuffer.allocate(3).put(TYPE_INT16).putShort((Short) value).array();
+    } else if (value instanceof Integer) {
+      return ByteBuffer.allocate(5).put(TYPE_INT32).putInt((Integer) value).array();
+    } else if (value instanceof Long) {
+      return ByteBuffer.allocate(9).put(TYPE_INT64).putLong((Long) value).array();
+    } else if (value instanceof Float) {
+      return ByteBuffer.allocate(5).put(TYPE_FLOAT32).putFloat((Float) value).array();
+    } else if (value instanceof Double) {
+      return ByteBuffer.allocate(9).put(TYPE_FLOAT64).putDouble((Double) value).array();
+    }
+    throw new IllegalStateException("Values of type " + value.getClass().getName() + " cannot be encrypted.");
+  }
+
+  static byte[] prefix(byte type, byte[] value) {
+    byte[] result = new byte[value.length + 1];
+    result[0] = type;
+    System.arraycopy(value, 0, result, 1, value.length);
+    return result;
+  }
+
+  static Object decode(byte[] plaintext) {
+    if (plaintext.length < 1) {
+      throw new IllegalStateException("Decrypted value is empty.");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(plaintext, 1, plaintext.length - 1);
+    switch (plaintext[0]) {
+      case TYPE_BYTES:
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+      case TYPE_STRING:
+        return new String(plaintext, 1, plaintext.length - 1, StandardCharsets.UTF_8);
+      case TYPE_BOOLEAN:
+        return 0 != buffer.get();
+      case TYPE_INT8:
+        return buffer.get();
+      case TYPE_INT16:
+        return buffer.getShort();
+      case TYPE_INT32:
+        return buffer.getInt();
+      case TYPE_INT64:
+        return buffer.getLong();
+      case TYPE_FLOAT32:
+        return buffer.getFloat();
+      case TYPE_FLOAT64:
+        return buffer.getDouble();
+      default:
+        throw new IllegalStateException("Decrypted value has unknown type " + plaintext[0]);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (null != this.serializer) {
+      this.serializer.close();
+      this.serializer = null;
+    }
+    if (null != this.deserializer) {
+      this.deserializer.close();
+      this.deserializer = null;
+    }
+  }
+
+  public static class Config extends KafkaVaultConfig {
+    public final List<String> fields;
+
+    public Config(Map<String, ?> parsedConfig) {
+      this(config(), parsedConfig);
+    }
+
+    protected Config(ConfigDef config, Map<String, ?> parsedConfig) {
+      super(config, parsedConfig);
+      this.fields = this.getList(FIELDS_CONF);
+    }
+
+    public static final String FIELDS_CONF = "fields";
+    static final String FIELDS_DOC = "The names of the fields to encrypt or decrypt. Other fields are left as they are. " +
+        "The serializer settings, like `format.version` and `payload.compression.type`, are used when encrypting.";
+
+    public static ConfigDef config() {
+      return KafkaVaultConfig.config()
+          .define(FIELDS_CONF, ConfigDef.Type.LIST, ConfigDef.Importance.HIGH, FIELDS_DOC);
+    }
+  }
+}
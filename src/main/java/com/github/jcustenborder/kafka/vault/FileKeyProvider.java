@@ -0,0 +1,96 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps keys in a local file encrypted with AES/GCM using the key in `key.provider.file.key`. The whole file is read
+ * when the provider is configured and rewritten atomically after every change. This allows isolated build and test
+ * machines to run with persistent keys without vault. The file is not meant to be shared by multiple processes that
+ * write keys.
+ */
+public class FileKeyProvider extends InMemoryKeyProvider {
+  private static final Logger log = LoggerFactory.getLogger(FileKeyProvider.class);
+  Path path;
+  CipherManager.CipherState state;
+
+  @Override
+  public void configure(KafkaVaultConfig config) {
+    Preconditions.checkState(
+        !config.keyProviderFilePath.isEmpty(),
+        "%s must be set to use %s.",
+        KafkaVaultConfig.KEY_PROVIDER_FILE_PATH_CONF,
+        FileKeyProvider.class.getSimpleName()
+    );
+    Preconditions.checkState(
+        !config.keyProviderFileKey.isEmpty(),
+        "%s must be set to use %s.",
+        KafkaVaultConfig.KEY_PROVIDER_FILE_KEY_CONF,
+        FileKeyProvider.class.getSimpleName()
+    );
+    this.path = Paths.get(config.keyProviderFilePath);
+    try {
+      this.state = new CipherManager.CipherState(
+          "file",
+          0L,
+          new SecretConfig(
+              ImmutableMap.of(
+                  SecretConfig.CIPHER_CONF, SecretConfig.CIPHER_AES_GCM,
+                  SecretConfig.KEY_CONF, config.keyProviderFileKey
+              )
+          )
+      );
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while creating file key provider.", e);
+    }
+
+    if (Files.exists(this.path)) {
+      load();
+    }
+  }
+
+  void load() {
+    log.trace("load() - Reading keys from '{}'.", this.path);
+    try {
+      byte[] encrypted = Files.readAllBytes(this.path);
+      byte[] decrypted = new byte[this.state.decryptedSize(encrypted.length)];
+      int length = this.state.decrypt(encrypted, 0, encrypted.length, decrypted, 0);
+      KeySnapshot.decode(decrypted, 0, length, this.currentVersions, this.secrets);
+      Arrays.fill(decrypted, (byte) 0);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while reading keys from " + this.path, e);
+    }
+  }
+
+  void save() {
+    log.trace("save() - Writing keys to '{}'.", this.path);
+    try {
+      byte[] encrypted = KeySnapshot.encrypt(this.state, KeySnapshot.encode(this.currentVersions, this.secrets));
+      KeySnapshot.writeAtomically(this.path, encrypted);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while writing keys to " + this.path, e);
+    }
+  }
+
+  @Override
+  public synchronized void currentVersion(String topic, long version) {
+    super.currentVersion(topic, version);
+    save();
+  }
+
+  @Override
+  public synchronized void secret(String topic, long version, Map<String, String> secret) {
+    super.secret(topic, version, secret);
+    save();
+  }
+}
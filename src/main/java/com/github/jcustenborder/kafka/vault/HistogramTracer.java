@@ -0,0 +1,158 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link Tracer}. Keeps a {@link LatencyHistogram.Recorder} for each topic, operation and stage and logs the
+ * percentiles of the `tracing.report.max.lines` slowest ones by p99 every `tracing.report.interval.ms`, then starts a
+ * new interval. Topics with nothing recorded during an interval are dropped. The last interval is logged when the
+ * tracer is closed.
+ */
+public class HistogramTracer implements Tracer {
+  private static final Logger log = LoggerFactory.getLogger(HistogramTracer.class);
+  static final Operation[] OPERATIONS = Operation.values();
+  static final Stage[] STAGES = Stage.values();
+
+  final ConcurrentMap<String, LatencyHistogram.Recorder[]> topics = new ConcurrentHashMap<>();
+  int reportMaxLines = KafkaVaultConfig.TRACING_REPORT_MAX_LINES_DEFAULT;
+  ScheduledExecutorService reporter;
+
+  @Override
+  public void configure(KafkaVaultConfig config) {
+    this.reportMaxLines = config.tracingReportMaxLines;
+    if (config.tracingReportIntervalMs > 0) {
+      this.reporter = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("kafka-vault-tracing-%d")
+              .build()
+      );
+      this.reporter.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          report();
+        }
+      }, config.tracingReportIntervalMs, config.tracingReportIntervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void record(String topic, Operation operation, Stage stage, long nanos) {
+    LatencyHistogram.Recorder[] recorders = this.topics.get(topic);
+    if (null == recorders) {
+      recorders = new LatencyHistogram.Recorder[OPERATIONS.length * STAGES.length];
+      for (int i = 0; i < recorders.length; i++) {
+        recorders[i] = new LatencyHistogram.Recorder();
+      }
+      LatencyHistogram.Recorder[] existing = this.topics.putIfAbsent(topic, recorders);
+      if (null != existing) {
+        recorders = existing;
+      }
+    }
+    recorders[operation.ordinal() * STAGES.length + stage.ordinal()].record(nanos);
+  }
+
+  /**
+   * Logs the percentiles of the topics, operations and stages with the highest p99 during the interval and starts a
+   * new interval. Topics that were idle for the whole interval are removed. A record that races with the removal of
+   * its topic is lost, like a record that races with the end of an interval.
+   *
+   * @return the logged lines.
+   */
+  List<String> report() {
+    List<Summary> summaries = new ArrayList<>();
+    for (Map.Entry<String, LatencyHistogram.Recorder[]> entry : this.topics.entrySet()) {
+      boolean idle = true;
+      for (Operation operation : OPERATIONS) {
+        for (Stage stage : STAGES) {
+          LatencyHistogram histogram = entry.getValue()[operation.ordinal() * STAGES.length + stage.ordinal()].interval();
+          if (null != histogram) {
+            idle = false;
+            summaries.add(new Summary(entry.getKey(), operation, stage, histogram));
+          }
+        }
+      }
+      if (idle) {
+        this.topics.remove(entry.getKey(), entry.getValue());
+      }
+    }
+    Collections.sort(summaries);
+
+    List<String> lines = new ArrayList<>();
+    for (Summary summary : summaries.subList(0, Math.min(this.reportMaxLines, summaries.size()))) {
+      lines.add(summary.toString());
+    }
+    if (summaries.size() > this.reportMaxLines) {
+      lines.add(String.format("%s more with a lower p99 were not logged.", summaries.size() - this.reportMaxLines));
+    }
+    for (String line : lines) {
+      log.info("report() - {}", line);
+    }
+    return lines;
+  }
+
+  /**
+   * Percentiles of one topic, operation and stage for an interval. Sorts slowest p99 first.
+   */
+  static class Summary implements Comparable<Summary> {
+    final String topic;
+    final Operation operation;
+    final Stage stage;
+    final long count;
+    final long p50;
+    final long p99;
+    final long p999;
+    final long max;
+
+    Summary(String topic, Operation operation, Stage stage, LatencyHistogram histogram) {
+      this.topic = topic;
+      this.operation = operation;
+      this.stage = stage;
+      this.count = histogram.count();
+      this.p50 = histogram.percentile(50D);
+      this.p99 = histogram.percentile(99D);
+      this.p999 = histogram.percentile(99.9D);
+      this.max = histogram.max();
+    }
+
+    @Override
+    public int compareTo(Summary that) {
+      return Long.compare(that.p99, this.p99);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "topic = '%s', operation = %s, stage = %s, count = %s, p50 = %.1f us, p99 = %.1f us, p99.9 = %.1f us, max = %.1f us",
+          this.topic,
+          this.operation,
+          this.stage,
+          this.count,
+          this.p50 / 1000D,
+          this.p99 / 1000D,
+          this.p999 / 1000D,
+          this.max / 1000D
+      );
+    }
+  }
+
+  @Override
+  public void close() {
+    if (null != this.reporter) {
+      this.reporter.shutdownNow();
+    }
+    report();
+  }
+}
@@ -0,0 +1,102 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps keys in memory. Keys are lost when the provider is closed, so this is meant for tests, benchmarks and load
+ * tests that need to exercise the encryption pipeline without vault. Serializers and deserializers with the same
+ * settings share a provider through {@link CipherManagerRegistry}.
+ */
+public class InMemoryKeyProvider implements KeyProvider {
+  final ConcurrentMap<String, Long> currentVersions = new ConcurrentHashMap<>();
+  final ConcurrentMap<String, Map<String, String>> secrets = new ConcurrentHashMap<>();
+  final Map<String, Lease> leases = new HashMap<>();
+
+  @Override
+  public void configure(KafkaVaultConfig config) {
+
+  }
+
+  @Override
+  public Set<String> topics() {
+    return ImmutableSet.copyOf(this.currentVersions.keySet());
+  }
+
+  @Override
+  public long currentVersion(String topic) {
+    Long version = this.currentVersions.get(topic);
+    if (null == version) {
+      throw new KeyNotFoundException("No current key version for " + topic);
+    }
+    return version;
+  }
+
+  @Override
+  public void currentVersion(String topic, long version) {
+    if (!this.secrets.containsKey(KeySnapshot.secretKey(topic, version))) {
+      throw new IllegalStateException("No key version " + version + " for " + topic);
+    }
+    this.currentVersions.put(topic, version);
+  }
+
+  @Override
+  public Set<Long> versions(String topic) {
+    final String prefix = topic + '/';
+    Set<Long> versions = new TreeSet<>();
+    for (String key : this.secrets.keySet()) {
+      if (key.startsWith(prefix) && key.indexOf('/', prefix.length()) < 0) {
+        versions.add(Long.parseLong(key.substring(prefix.length())));
+      }
+    }
+    return versions;
+  }
+
+  @Override
+  public Map<String, String> secret(String topic, long version) {
+    Map<String, String> secret = this.secrets.get(KeySnapshot.secretKey(topic, version));
+    if (null == secret) {
+      throw new KeyNotFoundException("No key version " + version + " for " + topic);
+    }
+    return secret;
+  }
+
+  @Override
+  public void secret(String topic, long version, Map<String, String> secret) {
+    this.secrets.put(KeySnapshot.secretKey(topic, version), ImmutableMap.copyOf(secret));
+  }
+
+  @Override
+  public boolean tryLease(String topic, String owner, long now, long durationMs) {
+    synchronized (this.leases) {
+      Lease lease = this.leases.get(topic);
+      if (null != lease && lease.expires > now && !lease.owner.equals(owner)) {
+        return false;
+      }
+      this.leases.put(topic, new Lease(owner, now + durationMs));
+      return true;
+    }
+  }
+
+  static class Lease {
+    final String owner;
+    final long expires;
+
+    Lease(String owner, long expires) {
+      this.owner = owner;
+      this.expires = expires;
+    }
+  }
+
+  @Override
+  public void close() {
+
+  }
+}
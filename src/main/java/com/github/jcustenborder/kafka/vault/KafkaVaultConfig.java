@@ -4,10 +4,42 @@ import com.bettercloud.vault.VaultConfig;
 import org.apache.kafka.common.config.AbstractConfig;
 import org.apache.kafka.common.config.ConfigDef;
 
+import java.util.List;
 import java.util.Map;
 
 public abstract class KafkaVaultConfig extends AbstractConfig {
   static final byte MAGIC_BYTE = 0x069;
+  /**
+   * Magic byte, 8 byte key version and 4 byte ciphertext length.
+   */
+  static final int HEADER_LENGTH = 13;
+  static final byte ENVELOPE_MAGIC_BYTE = 0x06A;
+  /**
+   * Magic byte, 8 byte data key id, 2 byte wrapped key length, the wrapped key and 4 byte ciphertext length.
+   */
+  static final int ENVELOPE_HEADER_LENGTH = 15;
+  /**
+   * Magic byte of the v2 frame: magic byte, flags, varint key version or data key id, the varint length and the wrapped
+   * key when {@link #V2_FLAG_ENVELOPE} is set, the varint chunk size when {@link #V2_FLAG_CHUNKED} is set, then the
+   * ciphertext to the end of the record.
+   */
+  static final byte V2_MAGIC_BYTE = 0x06B;
+  /**
+   * Bits of the v2 flags holding the id of the {@link Compression} applied before encryption.
+   */
+  static final int V2_FLAG_COMPRESSION_MASK = 0x07;
+  static final int V2_FLAG_ENVELOPE = 0x08;
+  /**
+   * The ciphertext is a random record id followed by a sequence of independently authenticated chunks bound to it. See
+   * {@link ChunkedPayload}.
+   */
+  static final int V2_FLAG_CHUNKED = 0x10;
+  /**
+   * The ciphertext was written by {@link SyntheticIvCipher} with the topic key, so equal payloads have equal
+   * ciphertext.
+   */
+  static final int V2_FLAG_DETERMINISTIC = 0x20;
+  static final int V2_FLAGS_KNOWN = V2_FLAG_COMPRESSION_MASK | V2_FLAG_ENVELOPE | V2_FLAG_CHUNKED | V2_FLAG_DETERMINISTIC;
   public final String vaultAddress;
   public final String vaultToken;
   public final String vaultBackend;
@@ -15,6 +47,54 @@ public abstract class KafkaVaultConfig extends AbstractConfig {
   public final int vaultMaxRetries;
   public final int vaultRetryInterval;
   public final long vaultCacheInterval;
+  public final boolean vaultCacheRefreshEnabled;
+  public final long vaultCacheStaleMs;
+  public final boolean envelopeEnabled;
+  public final String envelopeKeyWrapper;
+  public final String envelopeTransitPath;
+  public final String envelopeTransitKey;
+  public final String envelopeLocalKey;
+  public final long envelopeDataKeyMaxRecords;
+  public final long envelopeDataKeyMaxAgeMs;
+  public final int envelopeDataKeyCacheSize;
+  public final Class<?> keyProviderClass;
+  public final String keyProviderFilePath;
+  public final String keyProviderFileKey;
+  public final List<String> prewarmTopics;
+  public final String prewarmTopicPattern;
+  public final int prewarmThreads;
+  public final long prewarmTimeoutMs;
+  public final String snapshotPath;
+  public final int versionCacheMaxSize;
+  public final int versionPrefetchMax;
+  public final int versionLoadThreads;
+  public final boolean rotationEnabled;
+  public final long rotationIntervalMs;
+  public final long rotationMaxRecords;
+  public final long gcmMaxEncryptions;
+  public final long rotationCheckIntervalMs;
+  public final List<String> rotationTopics;
+  public final int rotationThreads;
+  public final long rotationLeaseMs;
+  public final int metricsSampleInterval;
+  public final long vaultRetryBackoffMaxMs;
+  public final int circuitBreakerFailureThreshold;
+  public final long circuitBreakerOpenMs;
+  public final long negativeCacheMs;
+  public final List<String> plaintextTopics;
+  public final String plaintextTopicPattern;
+  public final List<String> keyScopePrefixes;
+  public final String keyScopePattern;
+  public final String vaultAuthMethod;
+  public final String vaultAuthPath;
+  public final String vaultAuthRole;
+  public final String vaultAuthSecret;
+  public final String vaultAuthJwtPath;
+  public final boolean vaultTokenRenewEnabled;
+  public final Class<?> tracerClass;
+  public final int tracingSampleInterval;
+  public final long tracingReportIntervalMs;
+  public final int tracingReportMaxLines;
 
   public KafkaVaultConfig(ConfigDef config, Map<String, ?> parsedConfig) {
     super(config, parsedConfig);
@@ -24,7 +104,56 @@ public abstract class KafkaVaultConfig extends AbstractConfig {
     this.kafkaPath = this.getString(KAFKA_SECRET_PATH_CONF);
     this.vaultMaxRetries = this.getInt(VAULT_RETRIES_CONF);
     this.vaultRetryInterval = this.getInt(VAULT_RETRY_INTERVAL_CONF);
+    this.vaultRetryBackoffMaxMs = this.getLong(VAULT_RETRY_BACKOFF_MAX_MS_CONF);
     this.vaultCacheInterval = this.getLong(VAULT_CACHE_INTERVAL_MS_CONF);
+    this.vaultCacheRefreshEnabled = this.getBoolean(VAULT_CACHE_REFRESH_ENABLED_CONF);
+    this.vaultCacheStaleMs = this.getLong(VAULT_CACHE_STALE_MS_CONF);
+    this.envelopeEnabled = this.getBoolean(ENVELOPE_ENABLED_CONF);
+    this.envelopeKeyWrapper = this.getString(ENVELOPE_KEY_WRAPPER_CONF);
+    this.envelopeTransitPath = this.getString(ENVELOPE_TRANSIT_PATH_CONF);
+    this.envelopeTransitKey = this.getString(ENVELOPE_TRANSIT_KEY_CONF);
+    this.envelopeLocalKey = this.getPassword(ENVELOPE_LOCAL_KEY_CONF).value();
+    this.envelopeDataKeyMaxRecords = this.getLong(ENVELOPE_DATA_KEY_MAX_RECORDS_CONF);
+    this.envelopeDataKeyMaxAgeMs = this.getLong(ENVELOPE_DATA_KEY_MAX_AGE_MS_CONF);
+    this.envelopeDataKeyCacheSize = this.getInt(ENVELOPE_DATA_KEY_CACHE_SIZE_CONF);
+    this.keyProviderClass = this.getClass(KEY_PROVIDER_CLASS_CONF);
+    this.keyProviderFilePath = this.getString(KEY_PROVIDER_FILE_PATH_CONF);
+    this.keyProviderFileKey = this.getPassword(KEY_PROVIDER_FILE_KEY_CONF).value();
+    this.prewarmTopics = this.getList(PREWARM_TOPICS_CONF);
+    this.prewarmTopicPattern = this.getString(PREWARM_TOPIC_PATTERN_CONF);
+    this.prewarmThreads = this.getInt(PREWARM_THREADS_CONF);
+    this.prewarmTimeoutMs = this.getLong(PREWARM_TIMEOUT_MS_CONF);
+    this.snapshotPath = this.getString(SNAPSHOT_PATH_CONF);
+    this.versionCacheMaxSize = this.getInt(VERSION_CACHE_MAX_SIZE_CONF);
+    this.versionPrefetchMax = this.getInt(VERSION_PREFETCH_MAX_CONF);
+    this.versionLoadThreads = this.getInt(VERSION_LOAD_THREADS_CONF);
+    this.rotationEnabled = this.getBoolean(ROTATION_ENABLED_CONF);
+    this.rotationIntervalMs = this.getLong(ROTATION_INTERVAL_MS_CONF);
+    this.rotationMaxRecords = this.getLong(ROTATION_MAX_RECORDS_CONF);
+    this.gcmMaxEncryptions = this.getLong(GCM_MAX_ENCRYPTIONS_CONF);
+    this.rotationCheckIntervalMs = this.getLong(ROTATION_CHECK_INTERVAL_MS_CONF);
+    this.rotationTopics = this.getList(ROTATION_TOPICS_CONF);
+    this.rotationThreads = this.getInt(ROTATION_THREADS_CONF);
+    this.rotationLeaseMs = this.getLong(ROTATION_LEASE_MS_CONF);
+    this.metricsSampleInterval = this.getInt(METRICS_SAMPLE_INTERVAL_CONF);
+    this.circuitBreakerFailureThreshold = this.getInt(CIRCUIT_BREAKER_FAILURE_THRESHOLD_CONF);
+    this.circuitBreakerOpenMs = this.getLong(CIRCUIT_BREAKER_OPEN_MS_CONF);
+    this.negativeCacheMs = this.getLong(NEGATIVE_CACHE_MS_CONF);
+    this.plaintextTopics = this.getList(PLAINTEXT_TOPICS_CONF);
+    this.plaintextTopicPattern = this.getString(PLAINTEXT_TOPIC_PATTERN_CONF);
+    this.keyScopePrefixes = this.getList(KEY_SCOPE_PREFIXES_CONF);
+    this.keyScopePattern = this.getString(KEY_SCOPE_PATTERN_CONF);
+    this.vaultAuthMethod = this.getString(VAULT_AUTH_METHOD_CONF);
+    final String vaultAuthPath = this.getString(VAULT_AUTH_PATH_CONF);
+    this.vaultAuthPath = vaultAuthPath.isEmpty() ? this.vaultAuthMethod : vaultAuthPath;
+    this.vaultAuthRole = this.getString(VAULT_AUTH_ROLE_CONF);
+    this.vaultAuthSecret = this.getPassword(VAULT_AUTH_SECRET_CONF).value();
+    this.vaultAuthJwtPath = this.getString(VAULT_AUTH_JWT_PATH_CONF);
+    this.vaultTokenRenewEnabled = this.getBoolean(VAULT_TOKEN_RENEW_ENABLED_CONF);
+    this.tracerClass = this.getClass(TRACER_CLASS_CONF);
+    this.tracingSampleInterval = this.getInt(TRACING_SAMPLE_INTERVAL_CONF);
+    this.tracingReportIntervalMs = this.getLong(TRACING_REPORT_INTERVAL_MS_CONF);
+    this.tracingReportMaxLines = this.getInt(TRACING_REPORT_MAX_LINES_CONF);
   }
 
   public static final String VAULT_ADDRESS_CONF = "vault.address";
@@ -44,9 +173,16 @@ public abstract class KafkaVaultConfig extends AbstractConfig {
   static final int VAULT_RETRIES_DEFAULT = 3;
 
   public static final String VAULT_RETRY_INTERVAL_CONF = "vault.retry.interval.ms";
-  static final String VAULT_RETRY_INTERVAL_DOC = "The amount of time to delay between errors when interacting with vault.";
+  static final String VAULT_RETRY_INTERVAL_DOC = "The amount of time to delay before the first retry when interacting " +
+      "with vault. The delay doubles with each retry, up to `vault.retry.backoff.max.ms`, and is randomized so clients " +
+      "do not retry in lock step.";
   static final int VAULT_RETRY_INTERVAL_DEFAULT = 1000;
 
+  public static final String VAULT_RETRY_BACKOFF_MAX_MS_CONF = "vault.retry.backoff.max.ms";
+  static final String VAULT_RETRY_BACKOFF_MAX_MS_DOC = "The maximum amount of time to delay between retries when " +
+      "interacting with vault.";
+  static final long VAULT_RETRY_BACKOFF_MAX_MS_DEFAULT = 10 * 1000L;
+
   public static final String KAFKA_SECRET_PATH_CONF = "kafka.path";
   static final String KAFKA_SECRET_PATH_DOC = "The path under the storage engine to store kafka specific secrets.";
   static final String KAFKA_SECRET_PATH_DEFAULT = "kafka";
@@ -55,6 +191,245 @@ public abstract class KafkaVaultConfig extends AbstractConfig {
   static final String VAULT_CACHE_INTERVAL_MS_DOC = "The number of milliseconds to cache the encryption ciphers.";
   static final long VAULT_CACHE_INTERVAL_MS_DEFAULT = 60 * 1000 * 5;
 
+  public static final String VAULT_CACHE_REFRESH_ENABLED_CONF = "vault.cache.refresh.enabled";
+  static final String VAULT_CACHE_REFRESH_ENABLED_DOC = "Flag to determine if cached ciphers are refreshed in the background " +
+      "once they are older than `" + VAULT_CACHE_INTERVAL_MS_CONF + "`. The existing cipher continues to be used while " +
+      "the refresh is running. If false the cipher is expired and the next record blocks while it is reloaded from vault.";
+  static final boolean VAULT_CACHE_REFRESH_ENABLED_DEFAULT = true;
+
+  public static final String VAULT_CACHE_STALE_MS_CONF = "vault.cache.stale.ms";
+  static final String VAULT_CACHE_STALE_MS_DOC = "The number of milliseconds past `" + VAULT_CACHE_INTERVAL_MS_CONF + "` " +
+      "that a cipher will continue to be used while it cannot be refreshed from vault. Only used when `" +
+      VAULT_CACHE_REFRESH_ENABLED_CONF + "` is true.";
+  static final long VAULT_CACHE_STALE_MS_DEFAULT = 60 * 1000 * 5;
+
+  public static final String ENVELOPE_ENABLED_CONF = "envelope.enabled";
+  static final String ENVELOPE_ENABLED_DOC = "Flag to determine if records are written with envelope encryption. A data " +
+      "key is generated locally, wrapped once by `envelope.key.wrapper` and written with each record. " +
+      "Records written with envelope encryption can always be read regardless of this setting.";
+  static final boolean ENVELOPE_ENABLED_DEFAULT = false;
+
+  public static final String ENVELOPE_KEY_WRAPPER_CONF = "envelope.key.wrapper";
+  static final String ENVELOPE_KEY_WRAPPER_DOC = "The method used to wrap data keys. `transit` uses the vault transit " +
+      "backend. `local` uses AES/GCM with the key in `envelope.local.key`.";
+  static final String ENVELOPE_KEY_WRAPPER_TRANSIT = "transit";
+  static final String ENVELOPE_KEY_WRAPPER_LOCAL = "local";
+
+  public static final String ENVELOPE_TRANSIT_PATH_CONF = "envelope.transit.path";
+  static final String ENVELOPE_TRANSIT_PATH_DOC = "The path the vault transit backend is mounted at.";
+  static final String ENVELOPE_TRANSIT_PATH_DEFAULT = "transit";
+
+  public static final String ENVELOPE_TRANSIT_KEY_CONF = "envelope.transit.key";
+  static final String ENVELOPE_TRANSIT_KEY_DOC = "The name of the transit key used to wrap data keys.";
+  static final String ENVELOPE_TRANSIT_KEY_DEFAULT = "kafka";
+
+  public static final String ENVELOPE_LOCAL_KEY_CONF = "envelope.local.key";
+  static final String ENVELOPE_LOCAL_KEY_DOC = "Base64 encoded AES key used to wrap data keys when " +
+      "`envelope.key.wrapper` is `local`.";
+
+  public static final String ENVELOPE_DATA_KEY_MAX_RECORDS_CONF = "envelope.data.key.max.records";
+  static final String ENVELOPE_DATA_KEY_MAX_RECORDS_DOC = "The number of records a data key is used for before a new " +
+      "one is generated. Producer threads count separately and the counts are only added up periodically, so a key " +
+      "can be used for up to 1/16 more records.";
+  static final long ENVELOPE_DATA_KEY_MAX_RECORDS_DEFAULT = 1000000L;
+
+  public static final String ENVELOPE_DATA_KEY_MAX_AGE_MS_CONF = "envelope.data.key.max.age.ms";
+  static final String ENVELOPE_DATA_KEY_MAX_AGE_MS_DOC = "The number of milliseconds a data key is used for before a " +
+      "new one is generated.";
+  static final long ENVELOPE_DATA_KEY_MAX_AGE_MS_DEFAULT = 60 * 60 * 1000L;
+
+  public static final String ENVELOPE_DATA_KEY_CACHE_SIZE_CONF = "envelope.data.key.cache.size";
+  static final String ENVELOPE_DATA_KEY_CACHE_SIZE_DOC = "The maximum number of unwrapped data keys to keep in memory.";
+  static final int ENVELOPE_DATA_KEY_CACHE_SIZE_DEFAULT = 1000;
+
+  public static final String KEY_PROVIDER_CLASS_CONF = "key.provider.class";
+  static final String KEY_PROVIDER_CLASS_DOC = "The `KeyProvider` implementation that stores the keys. " +
+      "`com.github.jcustenborder.kafka.vault.VaultKeyProvider` stores keys in vault. " +
+      "`com.github.jcustenborder.kafka.vault.InMemoryKeyProvider` keeps keys in memory for testing. " +
+      "`com.github.jcustenborder.kafka.vault.FileKeyProvider` keeps keys in a local encrypted file.";
+
+  public static final String KEY_PROVIDER_FILE_PATH_CONF = "key.provider.file.path";
+  static final String KEY_PROVIDER_FILE_PATH_DOC = "The file keys are stored in when `key.provider.class` is " +
+      "`com.github.jcustenborder.kafka.vault.FileKeyProvider`.";
+
+  public static final String KEY_PROVIDER_FILE_KEY_CONF = "key.provider.file.key";
+  static final String KEY_PROVIDER_FILE_KEY_DOC = "Base64 encoded AES key used to encrypt the file in " +
+      "`key.provider.file.path`.";
+
+  public static final String PREWARM_TOPICS_CONF = "prewarm.topics";
+  static final String PREWARM_TOPICS_DOC = "Topics to load the current key for when the serializer is configured, " +
+      "before the first record is processed.";
+
+  public static final String PREWARM_TOPIC_PATTERN_CONF = "prewarm.topic.pattern";
+  static final String PREWARM_TOPIC_PATTERN_DOC = "Regular expression matched against the topics in the key provider. " +
+      "The current key of every matching topic is loaded when the serializer is configured.";
+
+  public static final String PLAINTEXT_TOPICS_CONF = "plaintext.topics";
+  static final String PLAINTEXT_TOPICS_DOC = "Topics that are written and read without encryption. Meant for the " +
+      "internal changelog and repartition topics of Kafka Streams applications on clusters where they are already " +
+      "protected.";
+
+  public static final String PLAINTEXT_TOPIC_PATTERN_CONF = "plaintext.topic.pattern";
+  static final String PLAINTEXT_TOPIC_PATTERN_DOC = "Regular expression for topics that are written and read without " +
+      "encryption, in addition to `plaintext.topics`. For example `.*-(changelog|repartition)` for the internal topics " +
+      "of Kafka Streams.";
+
+  public static final String KEY_SCOPE_PREFIXES_CONF = "key.scope.prefixes";
+  static final String KEY_SCOPE_PREFIXES_DOC = "Topics that share their keys, written as `<prefix>=<scope>`. Topics " +
+      "starting with the prefix use the keys stored under the scope instead of under the topic, so the key provider, " +
+      "the caches and key rotation see one key for all of them. The longest matching prefix wins. Records written " +
+      "under the key of the topic can no longer be read once the topic is mapped to a scope.";
+
+  public static final String KEY_SCOPE_PATTERN_CONF = "key.scope.pattern";
+  static final String KEY_SCOPE_PATTERN_DOC = "Regular expression with a capturing group for topics that share their " +
+      "keys. Topics that match and do not start with a prefix in `key.scope.prefixes` use the keys stored under the " +
+      "text of the first group. For example `tenant-([^.]+)\\..*` gives all of the topics of a tenant one key.";
+
+  public static final String PREWARM_THREADS_CONF = "prewarm.threads";
+  static final String PREWARM_THREADS_DOC = "The number of keys loaded in parallel while pre-warming.";
+  static final int PREWARM_THREADS_DEFAULT = 8;
+
+  public static final String PREWARM_TIMEOUT_MS_CONF = "prewarm.timeout.ms";
+  static final String PREWARM_TIMEOUT_MS_DOC = "The maximum number of milliseconds configure waits for pre-warming. " +
+      "Keys that are not loaded by then are loaded on first use.";
+  static final long PREWARM_TIMEOUT_MS_DEFAULT = 30 * 1000L;
+
+  public static final String SNAPSHOT_PATH_CONF = "snapshot.path";
+  static final String SNAPSHOT_PATH_DOC = "File to keep an encrypted snapshot of the cached keys in. The snapshot is " +
+      "written on close and read on startup so a restarted process does not have to load every key again. The " +
+      "snapshot is encrypted with a new key each time it is written, which is wrapped with `envelope.key.wrapper`. " +
+      "Leave empty to disable.";
+
+  public static final String VERSION_CACHE_MAX_SIZE_CONF = "version.cache.max.size";
+  static final String VERSION_CACHE_MAX_SIZE_DOC = "The maximum number of key versions kept in memory per topic for " +
+      "decrypting. The least recently used version is dropped once the limit is reached.";
+  static final int VERSION_CACHE_MAX_SIZE_DEFAULT = 1000;
+
+  public static final String VERSION_PREFETCH_MAX_CONF = "version.prefetch.max";
+  static final String VERSION_PREFETCH_MAX_DOC = "When a record is encrypted with a key version that is not loaded, the " +
+      "versions of the topic are listed once and up to this many of the following versions are loaded in the " +
+      "background, so consumers catching up over rotated keys do not load them one record at a time. Set to 0 to " +
+      "only load the version that was asked for.";
+  static final int VERSION_PREFETCH_MAX_DEFAULT = 64;
+
+  public static final String VERSION_LOAD_THREADS_CONF = "version.load.threads";
+  static final String VERSION_LOAD_THREADS_DOC = "The maximum number of key versions loaded in parallel from the key " +
+      "provider.";
+  static final int VERSION_LOAD_THREADS_DEFAULT = 8;
+
+  public static final String ROTATION_ENABLED_CONF = "rotation.enabled";
+  static final String ROTATION_ENABLED_DOC = "Flag to determine if keys are rotated in the background. The current key " +
+      "of every topic this client has encrypted for, and of the topics in `rotation.topics`, is rotated once it is " +
+      "older than `rotation.interval.ms` or has encrypted `rotation.max.records` records.";
+  static final boolean ROTATION_ENABLED_DEFAULT = false;
+
+  public static final String ROTATION_INTERVAL_MS_CONF = "rotation.interval.ms";
+  static final String ROTATION_INTERVAL_MS_DOC = "The maximum age of a key in milliseconds before it is rotated. Set " +
+      "to 0 to not rotate on age.";
+  static final long ROTATION_INTERVAL_MS_DEFAULT = 24 * 60 * 60 * 1000L;
+
+  public static final String ROTATION_MAX_RECORDS_CONF = "rotation.max.records";
+  static final String ROTATION_MAX_RECORDS_DOC = "The number of records this client encrypts with a key before it is " +
+      "rotated. Set to 0 to not rotate on record count.";
+  static final long ROTATION_MAX_RECORDS_DEFAULT = 0L;
+
+  public static final String GCM_MAX_ENCRYPTIONS_CONF = "gcm.max.encryptions";
+  static final String GCM_MAX_ENCRYPTIONS_DOC = "The number of random nonces this client draws from a " +
+      "`AES/GCM/NoPadding` key, one per record or per chunk, before the key is rotated. NIST SP 800-38D limits a key " +
+      "with random nonces to 2^32 encryptions across every client that uses it, so lower this when many producers " +
+      "share a key. When the key cannot be rotated, records for the topic are refused instead of risking a repeated " +
+      "nonce.";
+  static final long GCM_MAX_ENCRYPTIONS_DEFAULT = 1L << 30;
+
+  public static final String ROTATION_CHECK_INTERVAL_MS_CONF = "rotation.check.interval.ms";
+  static final String ROTATION_CHECK_INTERVAL_MS_DOC = "How often in milliseconds keys are checked against the " +
+      "rotation policy.";
+  static final long ROTATION_CHECK_INTERVAL_MS_DEFAULT = 60 * 1000L;
+
+  public static final String ROTATION_TOPICS_CONF = "rotation.topics";
+  static final String ROTATION_TOPICS_DOC = "Topics to rotate keys for in addition to the topics this client has " +
+      "encrypted for.";
+
+  public static final String ROTATION_THREADS_CONF = "rotation.threads";
+  static final String ROTATION_THREADS_DOC = "The number of topics rotated in parallel.";
+  static final int ROTATION_THREADS_DEFAULT = 8;
+
+  public static final String ROTATION_LEASE_MS_CONF = "rotation.lease.ms";
+  static final String ROTATION_LEASE_MS_DOC = "How long a client holds the rotation lease for a topic. Only the client " +
+      "holding the lease rotates the topic, so producers sharing a key store do not all rotate the same key.";
+  static final long ROTATION_LEASE_MS_DEFAULT = 5 * 60 * 1000L;
+
+  public static final String METRICS_SAMPLE_INTERVAL_CONF = "metrics.sample.interval";
+  static final String METRICS_SAMPLE_INTERVAL_DOC = "One in this many records has its encrypt or decrypt latency " +
+      "recorded. Record, byte and cache counts are recorded for every record. Set to 1 to time every record.";
+  static final int METRICS_SAMPLE_INTERVAL_DEFAULT = 16;
+
+  public static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD_CONF = "circuit.breaker.failure.threshold";
+  static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD_DOC = "The number of key provider failures in a row that " +
+      "open the circuit breaker. While it is open, keys that are not cached fail straight away instead of waiting on " +
+      "the key provider.";
+  static final int CIRCUIT_BREAKER_FAILURE_THRESHOLD_DEFAULT = 5;
+
+  public static final String CIRCUIT_BREAKER_OPEN_MS_CONF = "circuit.breaker.open.ms";
+  static final String CIRCUIT_BREAKER_OPEN_MS_DOC = "How long the circuit breaker stays open before a single call is " +
+      "let through to check whether the key provider is back.";
+  static final long CIRCUIT_BREAKER_OPEN_MS_DEFAULT = 10 * 1000L;
+
+  public static final String NEGATIVE_CACHE_MS_CONF = "negative.cache.ms";
+  static final String NEGATIVE_CACHE_MS_DOC = "How long a key that the key provider reported as missing is " +
+      "remembered. Records that need the key fail straight away during this time. Set to 0 to disable.";
+  static final long NEGATIVE_CACHE_MS_DEFAULT = 5 * 1000L;
+
+  public static final String VAULT_AUTH_METHOD_CONF = "vault.auth.method";
+  static final String VAULT_AUTH_METHOD_DOC = "How the vault token is obtained. `token` uses `vault.token`. `approle` " +
+      "logs in with the role id in `vault.auth.role` and the secret id in `vault.auth.secret`. `kubernetes` logs in " +
+      "with the role in `vault.auth.role` and the service account token in `vault.auth.jwt.path`.";
+  static final String VAULT_AUTH_METHOD_TOKEN = "token";
+  static final String VAULT_AUTH_METHOD_APPROLE = "approle";
+  static final String VAULT_AUTH_METHOD_KUBERNETES = "kubernetes";
+  static final String VAULT_AUTH_METHOD_DEFAULT = VAULT_AUTH_METHOD_TOKEN;
+
+  public static final String VAULT_AUTH_PATH_CONF = "vault.auth.path";
+  static final String VAULT_AUTH_PATH_DOC = "The path the auth method is mounted at. Defaults to the name of " +
+      "`vault.auth.method`.";
+
+  public static final String VAULT_AUTH_ROLE_CONF = "vault.auth.role";
+  static final String VAULT_AUTH_ROLE_DOC = "The role id for `approle` or the role name for `kubernetes`.";
+
+  public static final String VAULT_AUTH_SECRET_CONF = "vault.auth.secret";
+  static final String VAULT_AUTH_SECRET_DOC = "The secret id for `approle`.";
+
+  public static final String VAULT_AUTH_JWT_PATH_CONF = "vault.auth.jwt.path";
+  static final String VAULT_AUTH_JWT_PATH_DOC = "The file holding the service account token for `kubernetes`. It is " +
+      "read again on every login so rotated tokens are picked up.";
+  static final String VAULT_AUTH_JWT_PATH_DEFAULT = "/var/run/secrets/kubernetes.io/serviceaccount/token";
+
+  public static final String VAULT_TOKEN_RENEW_ENABLED_CONF = "vault.token.renew.enabled";
+  static final String VAULT_TOKEN_RENEW_ENABLED_DOC = "Flag to renew the vault token in the background once two thirds " +
+      "of its lease have passed. Tokens from `approle` and `kubernetes` are replaced by logging in again when they can " +
+      "no longer be renewed.";
+  static final boolean VAULT_TOKEN_RENEW_ENABLED_DEFAULT = true;
+
+  public static final String TRACING_SAMPLE_INTERVAL_CONF = "tracing.sample.interval";
+  static final String TRACING_SAMPLE_INTERVAL_DOC = "One in this many records has the time spent serializing, looking " +
+      "up the key, compressing, encrypting and framing passed to `tracer.class`. Set to 0 to disable tracing.";
+  static final int TRACING_SAMPLE_INTERVAL_DEFAULT = 0;
+
+  public static final String TRACER_CLASS_CONF = "tracer.class";
+  static final String TRACER_CLASS_DOC = "Class that receives the stage timings of traced records. Must implement " +
+      "`com.github.jcustenborder.kafka.vault.Tracer`. The default keeps a histogram for each topic and stage and logs " +
+      "the percentiles every `tracing.report.interval.ms`.";
+
+  public static final String TRACING_REPORT_INTERVAL_MS_CONF = "tracing.report.interval.ms";
+  static final String TRACING_REPORT_INTERVAL_MS_DOC = "How often the default tracer logs the percentiles of each " +
+      "topic and stage and starts a new interval. Set to 0 to only log when the serializer is closed.";
+  static final long TRACING_REPORT_INTERVAL_MS_DEFAULT = 60 * 1000L;
+
+  public static final String TRACING_REPORT_MAX_LINES_CONF = "tracing.report.max.lines";
+  static final String TRACING_REPORT_MAX_LINES_DOC = "The most topic and stage percentiles the default tracer logs " +
+      "each interval. The ones with the highest p99 are logged and the rest are counted in a single line.";
+  static final int TRACING_REPORT_MAX_LINES_DEFAULT = 20;
+
 
 
 
@@ -62,12 +437,60 @@ public abstract class KafkaVaultConfig extends AbstractConfig {
   public static ConfigDef config() {
     return new ConfigDef()
         .define(VAULT_TOKEN_CONF, ConfigDef.Type.PASSWORD, "", ConfigDef.Importance.HIGH, VAULT_TOKEN_DOC)
-        .define(VAULT_ADDRESS_CONF, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, VAULT_ADDRESS_DOC)
+        .define(VAULT_ADDRESS_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH, VAULT_ADDRESS_DOC)
         .define(VAULT_BACKEND_CONF, ConfigDef.Type.STRING, VAULT_BACKEND_DEFAULT, ConfigDef.Importance.HIGH, VAULT_BACKEND_DOC)
         .define(KAFKA_SECRET_PATH_CONF, ConfigDef.Type.STRING, KAFKA_SECRET_PATH_DEFAULT, ConfigDef.Importance.HIGH, KAFKA_SECRET_PATH_DOC)
         .define(VAULT_RETRIES_CONF, ConfigDef.Type.INT, VAULT_RETRIES_DEFAULT, ConfigDef.Importance.LOW, VAULT_RETRIES_DOC)
         .define(VAULT_RETRY_INTERVAL_CONF, ConfigDef.Type.INT, VAULT_RETRY_INTERVAL_DEFAULT, ConfigDef.Importance.LOW, VAULT_RETRY_INTERVAL_DOC)
-        .define(VAULT_CACHE_INTERVAL_MS_CONF, ConfigDef.Type.LONG, VAULT_CACHE_INTERVAL_MS_DEFAULT, ConfigDef.Importance.LOW, VAULT_CACHE_INTERVAL_MS_DOC);
+        .define(VAULT_RETRY_BACKOFF_MAX_MS_CONF, ConfigDef.Type.LONG, VAULT_RETRY_BACKOFF_MAX_MS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, VAULT_RETRY_BACKOFF_MAX_MS_DOC)
+        .define(VAULT_CACHE_INTERVAL_MS_CONF, ConfigDef.Type.LONG, VAULT_CACHE_INTERVAL_MS_DEFAULT, ConfigDef.Importance.LOW, VAULT_CACHE_INTERVAL_MS_DOC)
+        .define(VAULT_CACHE_REFRESH_ENABLED_CONF, ConfigDef.Type.BOOLEAN, VAULT_CACHE_REFRESH_ENABLED_DEFAULT, ConfigDef.Importance.LOW, VAULT_CACHE_REFRESH_ENABLED_DOC)
+        .define(VAULT_CACHE_STALE_MS_CONF, ConfigDef.Type.LONG, VAULT_CACHE_STALE_MS_DEFAULT, ConfigDef.Importance.LOW, VAULT_CACHE_STALE_MS_DOC)
+        .define(ENVELOPE_ENABLED_CONF, ConfigDef.Type.BOOLEAN, ENVELOPE_ENABLED_DEFAULT, ConfigDef.Importance.MEDIUM, ENVELOPE_ENABLED_DOC)
+        .define(ENVELOPE_KEY_WRAPPER_CONF, ConfigDef.Type.STRING, ENVELOPE_KEY_WRAPPER_TRANSIT, ConfigDef.ValidString.in(ENVELOPE_KEY_WRAPPER_TRANSIT, ENVELOPE_KEY_WRAPPER_LOCAL), ConfigDef.Importance.MEDIUM, ENVELOPE_KEY_WRAPPER_DOC)
+        .define(ENVELOPE_TRANSIT_PATH_CONF, ConfigDef.Type.STRING, ENVELOPE_TRANSIT_PATH_DEFAULT, ConfigDef.Importance.LOW, ENVELOPE_TRANSIT_PATH_DOC)
+        .define(ENVELOPE_TRANSIT_KEY_CONF, ConfigDef.Type.STRING, ENVELOPE_TRANSIT_KEY_DEFAULT, ConfigDef.Importance.MEDIUM, ENVELOPE_TRANSIT_KEY_DOC)
+        .define(ENVELOPE_LOCAL_KEY_CONF, ConfigDef.Type.PASSWORD, "", ConfigDef.Importance.MEDIUM, ENVELOPE_LOCAL_KEY_DOC)
+        .define(ENVELOPE_DATA_KEY_MAX_RECORDS_CONF, ConfigDef.Type.LONG, ENVELOPE_DATA_KEY_MAX_RECORDS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, ENVELOPE_DATA_KEY_MAX_RECORDS_DOC)
+        .define(ENVELOPE_DATA_KEY_MAX_AGE_MS_CONF, ConfigDef.Type.LONG, ENVELOPE_DATA_KEY_MAX_AGE_MS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, ENVELOPE_DATA_KEY_MAX_AGE_MS_DOC)
+        .define(ENVELOPE_DATA_KEY_CACHE_SIZE_CONF, ConfigDef.Type.INT, ENVELOPE_DATA_KEY_CACHE_SIZE_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, ENVELOPE_DATA_KEY_CACHE_SIZE_DOC)
+        .define(KEY_PROVIDER_CLASS_CONF, ConfigDef.Type.CLASS, VaultKeyProvider.class.getName(), ConfigDef.Importance.MEDIUM, KEY_PROVIDER_CLASS_DOC)
+        .define(KEY_PROVIDER_FILE_PATH_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, KEY_PROVIDER_FILE_PATH_DOC)
+        .define(KEY_PROVIDER_FILE_KEY_CONF, ConfigDef.Type.PASSWORD, "", ConfigDef.Importance.LOW, KEY_PROVIDER_FILE_KEY_DOC)
+        .define(PREWARM_TOPICS_CONF, ConfigDef.Type.LIST, "", ConfigDef.Importance.LOW, PREWARM_TOPICS_DOC)
+        .define(PREWARM_TOPIC_PATTERN_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, PREWARM_TOPIC_PATTERN_DOC)
+        .define(PLAINTEXT_TOPICS_CONF, ConfigDef.Type.LIST, "", ConfigDef.Importance.MEDIUM, PLAINTEXT_TOPICS_DOC)
+        .define(PLAINTEXT_TOPIC_PATTERN_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, PLAINTEXT_TOPIC_PATTERN_DOC)
+        .define(KEY_SCOPE_PREFIXES_CONF, ConfigDef.Type.LIST, "", ConfigDef.Importance.MEDIUM, KEY_SCOPE_PREFIXES_DOC)
+        .define(KEY_SCOPE_PATTERN_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, KEY_SCOPE_PATTERN_DOC)
+        .define(PREWARM_THREADS_CONF, ConfigDef.Type.INT, PREWARM_THREADS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, PREWARM_THREADS_DOC)
+        .define(PREWARM_TIMEOUT_MS_CONF, ConfigDef.Type.LONG, PREWARM_TIMEOUT_MS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, PREWARM_TIMEOUT_MS_DOC)
+        .define(SNAPSHOT_PATH_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, SNAPSHOT_PATH_DOC)
+        .define(VERSION_CACHE_MAX_SIZE_CONF, ConfigDef.Type.INT, VERSION_CACHE_MAX_SIZE_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, VERSION_CACHE_MAX_SIZE_DOC)
+        .define(VERSION_PREFETCH_MAX_CONF, ConfigDef.Type.INT, VERSION_PREFETCH_MAX_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, VERSION_PREFETCH_MAX_DOC)
+        .define(VERSION_LOAD_THREADS_CONF, ConfigDef.Type.INT, VERSION_LOAD_THREADS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, VERSION_LOAD_THREADS_DOC)
+        .define(ROTATION_ENABLED_CONF, ConfigDef.Type.BOOLEAN, ROTATION_ENABLED_DEFAULT, ConfigDef.Importance.MEDIUM, ROTATION_ENABLED_DOC)
+        .define(ROTATION_INTERVAL_MS_CONF, ConfigDef.Type.LONG, ROTATION_INTERVAL_MS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.MEDIUM, ROTATION_INTERVAL_MS_DOC)
+        .define(ROTATION_MAX_RECORDS_CONF, ConfigDef.Type.LONG, ROTATION_MAX_RECORDS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.MEDIUM, ROTATION_MAX_RECORDS_DOC)
+        .define(GCM_MAX_ENCRYPTIONS_CONF, ConfigDef.Type.LONG, GCM_MAX_ENCRYPTIONS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.MEDIUM, GCM_MAX_ENCRYPTIONS_DOC)
+        .define(ROTATION_CHECK_INTERVAL_MS_CONF, ConfigDef.Type.LONG, ROTATION_CHECK_INTERVAL_MS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, ROTATION_CHECK_INTERVAL_MS_DOC)
+        .define(ROTATION_TOPICS_CONF, ConfigDef.Type.LIST, "", ConfigDef.Importance.LOW, ROTATION_TOPICS_DOC)
+        .define(ROTATION_THREADS_CONF, ConfigDef.Type.INT, ROTATION_THREADS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, ROTATION_THREADS_DOC)
+        .define(ROTATION_LEASE_MS_CONF, ConfigDef.Type.LONG, ROTATION_LEASE_MS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, ROTATION_LEASE_MS_DOC)
+        .define(METRICS_SAMPLE_INTERVAL_CONF, ConfigDef.Type.INT, METRICS_SAMPLE_INTERVAL_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, METRICS_SAMPLE_INTERVAL_DOC)
+        .define(CIRCUIT_BREAKER_FAILURE_THRESHOLD_CONF, ConfigDef.Type.INT, CIRCUIT_BREAKER_FAILURE_THRESHOLD_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, CIRCUIT_BREAKER_FAILURE_THRESHOLD_DOC)
+        .define(CIRCUIT_BREAKER_OPEN_MS_CONF, ConfigDef.Type.LONG, CIRCUIT_BREAKER_OPEN_MS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, CIRCUIT_BREAKER_OPEN_MS_DOC)
+        .define(NEGATIVE_CACHE_MS_CONF, ConfigDef.Type.LONG, NEGATIVE_CACHE_MS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, NEGATIVE_CACHE_MS_DOC)
+        .define(VAULT_AUTH_METHOD_CONF, ConfigDef.Type.STRING, VAULT_AUTH_METHOD_DEFAULT, ConfigDef.ValidString.in(VAULT_AUTH_METHOD_TOKEN, VAULT_AUTH_METHOD_APPROLE, VAULT_AUTH_METHOD_KUBERNETES), ConfigDef.Importance.HIGH, VAULT_AUTH_METHOD_DOC)
+        .define(VAULT_AUTH_PATH_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, VAULT_AUTH_PATH_DOC)
+        .define(VAULT_AUTH_ROLE_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH, VAULT_AUTH_ROLE_DOC)
+        .define(VAULT_AUTH_SECRET_CONF, ConfigDef.Type.PASSWORD, "", ConfigDef.Importance.HIGH, VAULT_AUTH_SECRET_DOC)
+        .define(VAULT_AUTH_JWT_PATH_CONF, ConfigDef.Type.STRING, VAULT_AUTH_JWT_PATH_DEFAULT, ConfigDef.Importance.MEDIUM, VAULT_AUTH_JWT_PATH_DOC)
+        .define(VAULT_TOKEN_RENEW_ENABLED_CONF, ConfigDef.Type.BOOLEAN, VAULT_TOKEN_RENEW_ENABLED_DEFAULT, ConfigDef.Importance.MEDIUM, VAULT_TOKEN_RENEW_ENABLED_DOC)
+        .define(TRACING_SAMPLE_INTERVAL_CONF, ConfigDef.Type.INT, TRACING_SAMPLE_INTERVAL_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, TRACING_SAMPLE_INTERVAL_DOC)
+        .define(TRACER_CLASS_CONF, ConfigDef.Type.CLASS, HistogramTracer.class.getName(), ConfigDef.Importance.LOW, TRACER_CLASS_DOC)
+        .define(TRACING_REPORT_INTERVAL_MS_CONF, ConfigDef.Type.LONG, TRACING_REPORT_INTERVAL_MS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, TRACING_REPORT_INTERVAL_MS_DOC)
+        .define(TRACING_REPORT_MAX_LINES_CONF, ConfigDef.Type.INT, TRACING_REPORT_MAX_LINES_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, TRACING_REPORT_MAX_LINES_DOC);
   }
 
   public VaultConfig vaultConfig() {
@@ -0,0 +1,16 @@
+package com.github.jcustenborder.kafka.vault;
+
+/**
+ * Thrown by a {@link KeyProvider} when the key store answered but does not have the requested key. Unlike other
+ * failures this does not count against the circuit breaker, and the miss is cached for `negative.cache.ms` so records
+ * encrypted with a key that does not exist fail fast.
+ */
+public class KeyNotFoundException extends IllegalStateException {
+  public KeyNotFoundException(String message) {
+    super(message);
+  }
+
+  public KeyNotFoundException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,88 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Source of the key material used by {@link CipherManager}. Each topic has a set of immutable versioned secrets,
+ * stored as the settings described by {@link SecretConfig}, and a pointer to the version that is currently used to
+ * encrypt. The implementation is selected with `key.provider.class` and must have a public no argument constructor.
+ * Implementations must be thread safe and report failures with {@link IllegalStateException}.
+ */
+public interface KeyProvider extends Closeable {
+  /**
+   * Configures the provider. Called once before any other method.
+   *
+   * @param config config of the serializer or deserializer that created the provider.
+   */
+  void configure(KafkaVaultConfig config);
+
+  /**
+   * Returns the topics that have a current key version.
+   *
+   * @return topic names.
+   */
+  Set<String> topics();
+
+  /**
+   * Returns the version of the key that is currently used to encrypt records for the topic.
+   *
+   * @param topic topic to look up.
+   * @return current version.
+   * @throws KeyNotFoundException if the topic does not have a key.
+   */
+  long currentVersion(String topic);
+
+  /**
+   * Points the topic at a new current version. The secret for the version must already be stored.
+   *
+   * @param topic   topic to update.
+   * @param version version to make current.
+   */
+  void currentVersion(String topic, long version);
+
+  /**
+   * Returns every version of the key stored for the topic. Used to load the versions a consumer is about to need in
+   * one batch instead of one at a time.
+   *
+   * @param topic topic to look up.
+   * @return stored versions. Empty if the topic has no keys.
+   * @throws KeyNotFoundException if the key store has nothing stored for the topic.
+   */
+  Set<Long> versions(String topic);
+
+  /**
+   * Returns the secret for a version of the key for the topic.
+   *
+   * @param topic   topic to look up.
+   * @param version version of the key.
+   * @return the secret settings.
+   * @throws KeyNotFoundException if the version does not exist.
+   */
+  Map<String, String> secret(String topic, long version);
+
+  /**
+   * Stores the secret for a version of the key for the topic.
+   *
+   * @param topic   topic to store the secret for.
+   * @param version version of the key.
+   * @param secret  the secret settings.
+   */
+  void secret(String topic, long version, Map<String, String> secret);
+
+  /**
+   * Takes or renews the rotation lease for the topic. The lease is granted when no other owner holds an unexpired
+   * lease. Used by {@link KeyRotationScheduler} so only one client rotates a topic.
+   *
+   * @param topic      topic to lease.
+   * @param owner      unique id of the client asking for the lease.
+   * @param now        current time in milliseconds.
+   * @param durationMs how long the lease is held for.
+   * @return true if the owner holds the lease.
+   */
+  boolean tryLease(String topic, String owner, long now, long durationMs);
+
+  @Override
+  void close();
+}
@@ -0,0 +1,162 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.kafka.common.utils.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotates topic keys in the background. Every `rotation.check.interval.ms` the current key of each topic this client
+ * has encrypted for, plus the topics in `rotation.topics`, is checked against the rotation policy. Key versions are the
+ * time the key was created, so the age of a key is the current time minus its version. Topics that are due are rotated
+ * in parallel on `rotation.threads` threads and the new key is put straight into the local caches.
+ * <p>
+ * A topic is only rotated by the client holding its lease in the key provider. The current version is also read from
+ * the key provider again before rotating, so a key that another client has already rotated is picked up instead of
+ * being rotated a second time.
+ */
+class KeyRotationScheduler implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(KeyRotationScheduler.class);
+  final CipherManager cipherManager;
+  final KafkaVaultConfig config;
+  final Time time;
+  final String owner = UUID.randomUUID().toString();
+  final ScheduledExecutorService scheduler;
+  final ExecutorService rotationExecutor;
+
+  KeyRotationScheduler(CipherManager cipherManager, KafkaVaultConfig config, Time time) {
+    this.cipherManager = cipherManager;
+    this.config = config;
+    this.time = time;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("kafka-vault-rotation-scheduler-%d")
+            .build()
+    );
+    this.rotationExecutor = Executors.newFixedThreadPool(
+        this.config.rotationThreads,
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("kafka-vault-rotation-%d")
+            .build()
+    );
+  }
+
+  void start() {
+    log.info("start() - Checking keys for rotation every {} ms.", this.config.rotationCheckIntervalMs);
+    this.scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          check();
+        } catch (RuntimeException e) {
+          log.warn("run() - Exception thrown while checking keys for rotation.", e);
+        }
+      }
+    }, this.config.rotationCheckIntervalMs, this.config.rotationCheckIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Rotates every topic that is due and waits for the rotations to finish. Failures are logged and retried on the
+   * next check.
+   *
+   * @return topics that were rotated by this client.
+   */
+  Set<String> check() {
+    Set<String> topics = new TreeSet<>();
+    for (String topic : this.config.rotationTopics) {
+      topics.add(this.cipherManager.scope(topic));
+    }
+    topics.addAll(this.cipherManager.stateCache.asMap().keySet());
+
+    final List<String> due = new ArrayList<>();
+    final List<Callable<Boolean>> tasks = new ArrayList<>();
+    for (final String topic : topics) {
+      try {
+        if (!due(this.cipherManager.get(topic))) {
+          continue;
+        }
+      } catch (IllegalStateException e) {
+        log.warn("check() - Exception thrown while loading key for '{}'.", topic, e);
+        continue;
+      }
+      due.add(topic);
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return rotate(topic);
+        }
+      });
+    }
+
+    Set<String> rotated = new TreeSet<>();
+    if (tasks.isEmpty()) {
+      return rotated;
+    }
+    log.debug("check() - {} topic(s) due for rotation.", tasks.size());
+    try {
+      List<Future<Boolean>> futures = this.rotationExecutor.invokeAll(tasks);
+      Iterator<String> topicIterator = due.iterator();
+      for (Future<Boolean> future : futures) {
+        String topic = topicIterator.next();
+        try {
+          if (future.get()) {
+            rotated.add(topic);
+          }
+        } catch (ExecutionException e) {
+          log.warn("check() - Exception thrown while rotating key for '{}'.", topic, e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return rotated;
+  }
+
+  boolean due(CipherManager.CipherState state) {
+    if (this.config.rotationIntervalMs > 0 && this.time.milliseconds() - state.version >= this.config.rotationIntervalMs) {
+      return true;
+    }
+    return this.config.rotationMaxRecords > 0 && state.records.sum() >= this.config.rotationMaxRecords;
+  }
+
+  boolean rotate(String topic) {
+    final KeyProvider keyProvider = this.cipherManager.keyProvider;
+    if (!keyProvider.tryLease(topic, this.owner, this.time.milliseconds(), this.config.rotationLeaseMs)) {
+      log.debug("rotate('{}') - Lease is held by another client.", topic);
+      return false;
+    }
+    CipherManager.CipherState state = this.cipherManager.get(topic);
+    if (keyProvider.currentVersion(topic) != state.version) {
+      state = this.cipherManager.reload(topic);
+      if (!due(state)) {
+        log.debug("rotate('{}') - Already rotated to version {} by another client.", topic, state.version);
+        return false;
+      }
+    }
+    this.cipherManager.rotate(topic);
+    return true;
+  }
+
+  @Override
+  public void close() {
+    this.scheduler.shutdownNow();
+    this.rotationExecutor.shutdownNow();
+  }
+}
@@ -0,0 +1,91 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps topics to the name their keys are stored under. Topics that start with a prefix in `key.scope.prefixes` use the
+ * scope of the longest matching prefix. Otherwise topics matching `key.scope.pattern` use the text of its first
+ * capturing group. Every other topic is its own scope.
+ */
+class KeyScopes extends TopicLookup<String> {
+  static class Prefix {
+    final String prefix;
+    final String scope;
+
+    Prefix(String prefix, String scope) {
+      this.prefix = prefix;
+      this.scope = scope;
+    }
+  }
+
+  final List<Prefix> prefixes;
+  final Pattern pattern;
+
+  KeyScopes(Collection<String> prefixes, String pattern) {
+    this.prefixes = new ArrayList<>(prefixes.size());
+    for (String mapping : prefixes) {
+      int index = mapping.indexOf('=');
+      if (index < 1 || index == mapping.length() - 1) {
+        throw new ConfigException(
+            KafkaVaultConfig.KEY_SCOPE_PREFIXES_CONF, mapping, "Prefixes must be written as <prefix>=<scope>."
+        );
+      }
+      this.prefixes.add(new Prefix(mapping.substring(0, index).trim(), mapping.substring(index + 1).trim()));
+    }
+    Collections.sort(this.prefixes, new Comparator<Prefix>() {
+      @Override
+      public int compare(Prefix a, Prefix b) {
+        return Integer.compare(b.prefix.length(), a.prefix.length());
+      }
+    });
+
+    this.pattern = compile(pattern);
+    if (null != this.pattern && this.pattern.matcher("").groupCount() < 1) {
+      throw new ConfigException(
+          KafkaVaultConfig.KEY_SCOPE_PATTERN_CONF, pattern, "The pattern must have a capturing group for the scope."
+      );
+    }
+  }
+
+  @Override
+  boolean isEmpty() {
+    return this.prefixes.isEmpty() && null == this.pattern;
+  }
+
+  /**
+   * Returns the name the keys of the topic are stored under.
+   */
+  String scope(String topic) {
+    if (isEmpty()) {
+      return topic;
+    }
+    return get(topic);
+  }
+
+  @Override
+  String lookup(String topic) {
+    for (Prefix prefix : this.prefixes) {
+      if (topic.startsWith(prefix.prefix)) {
+        return prefix.scope;
+      }
+    }
+    if (null != this.pattern) {
+      Matcher matcher = this.pattern.matcher(topic);
+      if (matcher.matches()) {
+        String scope = matcher.group(1);
+        if (null != scope && !scope.isEmpty()) {
+          return scope;
+        }
+      }
+    }
+    return topic;
+  }
+}
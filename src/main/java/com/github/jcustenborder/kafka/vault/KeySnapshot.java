@@ -0,0 +1,169 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.KeyGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Encrypted copy of key material on local disk. Secrets are stored as properties named
+ * {@code secret/<topic>/<version>/<setting>} and current versions as {@code current/<topic>}. The properties are
+ * encrypted with AES/GCM.
+ * <p>
+ * {@link #write(Path, KeyWrapper, Map, Map)} generates a new AES key for every snapshot and stores it wrapped by the
+ * {@link KeyWrapper} in front of the encrypted properties, so reading a snapshot back needs one unwrap call and the
+ * file is useless without access to the wrapping key.
+ */
+class KeySnapshot {
+  private static final Logger log = LoggerFactory.getLogger(KeySnapshot.class);
+  static final String CURRENT_PREFIX = "current/";
+  static final String SECRET_PREFIX = "secret/";
+  static final String TOPIC = "kafka-vault-snapshot";
+
+  private KeySnapshot() {
+  }
+
+  static String secretKey(String topic, long version) {
+    return topic + '/' + version;
+  }
+
+  static byte[] encode(Map<String, Long> currentVersions, Map<String, Map<String, String>> secrets) throws IOException {
+    Properties properties = new Properties();
+    for (Map.Entry<String, Long> entry : currentVersions.entrySet()) {
+      properties.setProperty(CURRENT_PREFIX + entry.getKey(), entry.getValue().toString());
+    }
+    for (Map.Entry<String, Map<String, String>> entry : secrets.entrySet()) {
+      for (Map.Entry<String, String> setting : entry.getValue().entrySet()) {
+        properties.setProperty(SECRET_PREFIX + entry.getKey() + '/' + setting.getKey(), setting.getValue());
+      }
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    }
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Decodes properties written by {@link #encode(Map, Map)}. Secrets are keyed by {@link #secretKey(String, long)}.
+   */
+  static void decode(byte[] buffer, int offset, int length, Map<String, Long> currentVersions, Map<String, Map<String, String>> secrets) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = new InputStreamReader(new ByteArrayInputStream(buffer, offset, length), StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+
+    Map<String, Map<String, String>> decoded = new LinkedHashMap<>();
+    for (String name : properties.stringPropertyNames()) {
+      String value = properties.getProperty(name);
+      if (name.startsWith(CURRENT_PREFIX)) {
+        currentVersions.put(name.substring(CURRENT_PREFIX.length()), Long.parseLong(value));
+      } else if (name.startsWith(SECRET_PREFIX)) {
+        int index = name.lastIndexOf('/');
+        String secretKey = name.substring(SECRET_PREFIX.length(), index);
+        Map<String, String> secret = decoded.get(secretKey);
+        if (null == secret) {
+          secret = new LinkedHashMap<>();
+          decoded.put(secretKey, secret);
+        }
+        secret.put(name.substring(index + 1), value);
+      }
+    }
+    for (Map.Entry<String, Map<String, String>> entry : decoded.entrySet()) {
+      secrets.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+    }
+  }
+
+  static byte[] encrypt(CipherManager.CipherState state, byte[] decrypted) throws GeneralSecurityException {
+    byte[] encrypted = new byte[state.encryptedSize(decrypted.length)];
+    int length = state.encrypt(decrypted, 0, decrypted.length, encrypted, 0);
+    Arrays.fill(decrypted, (byte) 0);
+    return length == encrypted.length ? encrypted : Arrays.copyOf(encrypted, length);
+  }
+
+  /**
+   * Writes to a temporary file in the same directory and moves it over the target so readers never see a partially
+   * written file.
+   */
+  static void writeAtomically(Path path, byte[] contents) throws IOException {
+    Path parent = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, contents);
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Writes a snapshot. The layout is the varint length of the wrapped key, the wrapped key and the encrypted
+   * properties.
+   */
+  static void write(Path path, KeyWrapper keyWrapper, Map<String, Long> currentVersions, Map<String, Map<String, String>> secrets) {
+    log.trace("write() - Writing {} secret(s) to '{}'.", secrets.size(), path);
+    try {
+      KeyGenerator kgen = KeyGenerator.getInstance("AES");
+      kgen.init(256);
+      byte[] key = kgen.generateKey().getEncoded();
+      byte[] wrappedKey = keyWrapper.wrap(TOPIC, key);
+      CipherManager.CipherState state = EnvelopeManager.createState(TOPIC, 0L, key);
+      Arrays.fill(key, (byte) 0);
+
+      byte[] encrypted = encrypt(state, encode(currentVersions, secrets));
+      final int prefixLength = Varint.size(wrappedKey.length);
+      byte[] contents = new byte[prefixLength + wrappedKey.length + encrypted.length];
+      Varint.write(wrappedKey.length, contents, 0);
+      System.arraycopy(wrappedKey, 0, contents, prefixLength, wrappedKey.length);
+      System.arraycopy(encrypted, 0, contents, prefixLength + wrappedKey.length, encrypted.length);
+      writeAtomically(path, contents);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while writing key snapshot to " + path, e);
+    }
+  }
+
+  /**
+   * Reads a snapshot written by {@link #write(Path, KeyWrapper, Map, Map)}.
+   */
+  static void read(Path path, KeyWrapper keyWrapper, Map<String, Long> currentVersions, Map<String, Map<String, String>> secrets) {
+    log.trace("read() - Reading key snapshot from '{}'.", path);
+    try {
+      byte[] contents = Files.readAllBytes(path);
+      ByteBuffer buffer = ByteBuffer.wrap(contents);
+      long wrappedLength = Varint.read(buffer);
+      if (wrappedLength > buffer.remaining()) {
+        throw new IllegalStateException("Key snapshot " + path + " is truncated.");
+      }
+      byte[] wrappedKey = Arrays.copyOfRange(contents, buffer.position(), buffer.position() + (int) wrappedLength);
+      int offset = buffer.position() + (int) wrappedLength;
+      byte[] key = keyWrapper.unwrap(TOPIC, wrappedKey);
+      CipherManager.CipherState state = EnvelopeManager.createState(TOPIC, 0L, key);
+      Arrays.fill(key, (byte) 0);
+
+      byte[] decrypted = new byte[state.decryptedSize(contents.length - offset)];
+      int length = state.decrypt(contents, offset, contents.length - offset, decrypted, 0);
+      decode(decrypted, 0, length, currentVersions, secrets);
+      Arrays.fill(decrypted, (byte) 0);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while reading key snapshot from " + path, e);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.io.Closeable;
+
+/**
+ * Wraps the data keys used by envelope encryption with a key that never leaves the key store.
+ */
+interface KeyWrapper extends Closeable {
+  /**
+   * Encrypts a data key.
+   *
+   * @param topic   topic the data key is used for.
+   * @param dataKey raw data key.
+   * @return wrapped data key that is written along side the records.
+   */
+  byte[] wrap(String topic, byte[] dataKey);
+
+  /**
+   * Decrypts a data key that was returned by {@link #wrap(String, byte[])}.
+   *
+   * @param topic      topic the data key is used for.
+   * @param wrappedKey wrapped data key.
+   * @return raw data key.
+   */
+  byte[] unwrap(String topic, byte[] wrappedKey);
+
+  /**
+   * Wraps a data key returned by {@link #wrap(String, byte[])} again with the latest version of the key encryption key.
+   * Used by {@link ReEncryptTool} to retire old key encryption keys without decrypting the records.
+   *
+   * @param topic      topic the data key is used for.
+   * @param wrappedKey wrapped data key.
+   * @return data key wrapped with the latest key encryption key.
+   */
+  byte[] rewrap(String topic, byte[] wrappedKey);
+
+  @Override
+  void close();
+}
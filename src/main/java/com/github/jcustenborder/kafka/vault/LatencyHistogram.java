@@ -0,0 +1,121 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Histogram of latencies in nanoseconds with log linear buckets, in the style of HdrHistogram. Each power of two is
+ * split into {@link #SUB_BUCKETS} buckets, so a reported value is at most 1/16 above the recorded one. Values up to
+ * {@link #SUB_BUCKETS} are exact and values above 2^{@link #MAX_EXPONENT} nanoseconds go to the last bucket. Recording
+ * is a single atomic increment, so it does not take locks.
+ */
+class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 4;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int MAX_EXPONENT = 40;
+  static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  final AtomicLong max = new AtomicLong();
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return value < 0 ? 0 : (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    final int shift = exponent - SUB_BUCKET_BITS;
+    final int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Returns the highest value that goes to the bucket.
+   */
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    final long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  void record(long nanos) {
+    this.counts.incrementAndGet(index(nanos));
+    long max;
+    while (nanos > (max = this.max.get()) && !this.max.compareAndSet(max, nanos)) {
+      // Another thread raised the max, check again.
+    }
+  }
+
+  long count() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += this.counts.get(i);
+    }
+    return count;
+  }
+
+  long max() {
+    return this.max.get();
+  }
+
+  /**
+   * Returns the value at the percentile, rounded up to the highest value of its bucket and capped at the max.
+   *
+   * @param percentile percentile between 0 and 100.
+   * @return latency in nanoseconds, or 0 if nothing was recorded.
+   */
+  long percentile(double percentile) {
+    final long count = count();
+    if (0 == count) {
+      return 0L;
+    }
+    final long rank = Math.max(1L, (long) Math.ceil(percentile / 100D * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max());
+      }
+    }
+    return max();
+  }
+
+  /**
+   * Records into a histogram that is swapped out for an empty one each interval, like the HdrHistogram recorder. The
+   * histogram is only created on the first record of an interval, so idle recorders hold no buckets. A record that
+   * races with the swap can be lost, which is fine for a summary.
+   */
+  static class Recorder {
+    final AtomicReference<LatencyHistogram> current = new AtomicReference<>();
+
+    void record(long nanos) {
+      LatencyHistogram histogram;
+      while (true) {
+        histogram = this.current.get();
+        if (null != histogram) {
+          break;
+        }
+        histogram = new LatencyHistogram();
+        if (this.current.compareAndSet(null, histogram)) {
+          break;
+        }
+      }
+      histogram.record(nanos);
+    }
+
+    /**
+     * Returns the histogram of the interval that just ended and starts a new one.
+     *
+     * @return histogram, or null if nothing was recorded.
+     */
+    LatencyHistogram interval() {
+      return this.current.getAndSet(null);
+    }
+  }
+}
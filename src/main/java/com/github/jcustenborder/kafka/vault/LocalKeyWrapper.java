@@ -0,0 +1,77 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Wraps data keys locally with AES/GCM using the key in `envelope.local.key`. This is a stand in for the transit
+ * backend for testing and for environments where the key encryption key is distributed out of band.
+ */
+class LocalKeyWrapper implements KeyWrapper {
+  private static final Logger log = LoggerFactory.getLogger(LocalKeyWrapper.class);
+  final CipherManager.CipherState state;
+
+  LocalKeyWrapper(KafkaVaultConfig config) {
+    Preconditions.checkState(
+        !config.envelopeLocalKey.isEmpty(),
+        "%s must be set to use the local key wrapper.",
+        KafkaVaultConfig.ENVELOPE_LOCAL_KEY_CONF
+    );
+    try {
+      this.state = new CipherManager.CipherState(
+          "local",
+          0L,
+          new SecretConfig(
+              ImmutableMap.of(
+                  SecretConfig.CIPHER_CONF, SecretConfig.CIPHER_AES_GCM,
+                  SecretConfig.KEY_CONF, config.envelopeLocalKey
+              )
+          )
+      );
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while creating local key wrapper.", e);
+    }
+  }
+
+  @Override
+  public byte[] wrap(String topic, byte[] dataKey) {
+    log.trace("wrap('{}')", topic);
+    try {
+      byte[] wrapped = new byte[this.state.encryptedSize(dataKey.length)];
+      int length = this.state.encrypt(dataKey, 0, dataKey.length, wrapped, 0);
+      return length == wrapped.length ? wrapped : Arrays.copyOf(wrapped, length);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while wrapping data key for " + topic, e);
+    }
+  }
+
+  @Override
+  public byte[] unwrap(String topic, byte[] wrappedKey) {
+    log.trace("unwrap('{}')", topic);
+    try {
+      byte[] dataKey = new byte[this.state.decryptedSize(wrappedKey.length)];
+      int length = this.state.decrypt(wrappedKey, 0, wrappedKey.length, dataKey, 0);
+      return length == dataKey.length ? dataKey : Arrays.copyOf(dataKey, length);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Exception thrown while unwrapping data key for " + topic, e);
+    }
+  }
+
+  /**
+   * The local key has no versions, so this only unwraps and wraps the key again under a new nonce.
+   */
+  @Override
+  public byte[] rewrap(String topic, byte[] wrappedKey) {
+    return wrap(topic, unwrap(topic, wrappedKey));
+  }
+
+  @Override
+  public void close() {
+
+  }
+}
@@ -0,0 +1,750 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line tool that copies records from a topic or a {@link RecordDump} file to another topic or file, decrypting
+ * them with whatever key version they were written with and encrypting them again with the current key and the
+ * settings of {@link CryptoSerializer}. Used to retire old keys after a rotation, to move topics to `format.version` 2,
+ * envelope encryption or another cipher, and to encrypt an existing plaintext topic listed in `plaintext.topics`.
+ * <p>
+ * Source records are decrypted with the same settings, overridden by any setting prefixed with `source.`. Setting
+ * `source.key.scope.prefixes` and `source.key.scope.pattern` to empty values reads each topic with its own keys, which
+ * moves the records of an existing topic into the key scope it is configured with.
+ * <p>
+ * With `reencrypt.mode` set to `rewrap` records written with envelope encryption are not decrypted. Only their wrapped
+ * data key is replaced with one wrapped by the latest key encryption key, and other records are encrypted again.
+ * <p>
+ * Topics are read by `reencrypt.threads` workers that each own a consumer and a share of the partitions, and copy them
+ * up to the end offsets seen at startup. Files are read in batches that are encrypted on `reencrypt.threads` threads.
+ * Progress is written to `reencrypt.checkpoint.path` after each batch so a run that was stopped resumes where it left
+ * off. Records written after the last checkpoint are written again when resuming.
+ * <p>
+ * Run with {@code java com.github.jcustenborder.kafka.vault.ReEncryptTool <config file>}.
+ */
+public class ReEncryptTool implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(ReEncryptTool.class);
+  static final long POLL_TIMEOUT_MS = 1000L;
+
+  Config config;
+  CryptoSerializer<byte[]> valueSerializer;
+  CryptoDeserializer<byte[]> valueDeserializer;
+  CryptoSerializer<byte[]> keySerializer;
+  CryptoDeserializer<byte[]> keyDeserializer;
+  KeyWrapper keyWrapper;
+  Cache<Long, byte[]> rewrappedKeys;
+  Checkpoint checkpoint;
+  final AtomicLong records = new AtomicLong();
+  final AtomicLong bytes = new AtomicLong();
+  final AtomicLong rewrapped = new AtomicLong();
+  final AtomicLong remaining = new AtomicLong(-1L);
+
+  public static void main(String... args) throws Exception {
+    if (1 != args.length) {
+      System.err.println("Usage: " + ReEncryptTool.class.getName() + " <config file>");
+      System.exit(1);
+    }
+    Properties properties = new Properties();
+    try (InputStream inputStream = new FileInputStream(args[0])) {
+      properties.load(inputStream);
+    }
+    Map<String, Object> settings = new LinkedHashMap<>();
+    for (String name : properties.stringPropertyNames()) {
+      settings.put(name, properties.getProperty(name));
+    }
+    try (ReEncryptTool tool = new ReEncryptTool()) {
+      tool.configure(settings);
+      tool.run();
+    }
+  }
+
+  public void configure(Map<String, ?> settings) {
+    this.config = new Config(settings);
+
+    Map<String, Object> cryptoSettings = new LinkedHashMap<>(settings);
+    cryptoSettings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, ByteArraySerializer.class.getName());
+    cryptoSettings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, ByteArrayDeserializer.class.getName());
+    cryptoSettings.put(CryptoDeserializer.Config.PASSTHROUGH_ENABLED_CONF, "false");
+    Map<String, Object> sourceSettings = new LinkedHashMap<>(cryptoSettings);
+    sourceSettings.putAll(this.config.sourceSettings);
+    this.valueSerializer = new CryptoSerializer<>();
+    this.valueSerializer.configure(cryptoSettings, false);
+    this.valueDeserializer = new CryptoDeserializer<>();
+    this.valueDeserializer.configure(sourceSettings, false);
+    if (this.config.keys) {
+      this.keySerializer = new CryptoSerializer<>();
+      this.keySerializer.configure(cryptoSettings, true);
+      this.keyDeserializer = new CryptoDeserializer<>();
+      this.keyDeserializer.configure(sourceSettings, true);
+    }
+    if (Config.MODE_REWRAP.equals(this.config.mode)) {
+      Preconditions.checkState(
+          this.valueDeserializer.cipherManager.scope(this.config.sourceTopic())
+              .equals(this.valueSerializer.cipherManager.scope(this.config.sourceTopic())),
+          "%s = %s cannot move records to another key scope. Use %s.",
+          Config.MODE_CONF,
+          Config.MODE_REWRAP,
+          Config.MODE_REENCRYPT
+      );
+      this.keyWrapper = this.valueSerializer.cipherManager.keyWrapper();
+      this.rewrappedKeys = CacheBuilder.newBuilder()
+          .maximumSize(this.config.envelopeDataKeyCacheSize)
+          .build();
+    }
+  }
+
+  /**
+   * Copies every record of the source to the target and returns once the end of the source is reached.
+   */
+  public void run() throws IOException, InterruptedException {
+    this.checkpoint = new Checkpoint(this.config.checkpointPath);
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("kafka-vault-reencrypt-report")
+            .build()
+    );
+    final long start = System.nanoTime();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        report(start);
+      }
+    }, this.config.reportIntervalMs, this.config.reportIntervalMs, TimeUnit.MILLISECONDS);
+
+    try (RecordWriter writer = writer()) {
+      if (this.config.sourceTopic.isEmpty()) {
+        runFile(writer);
+      } else {
+        runTopic(writer);
+      }
+    } finally {
+      reporter.shutdownNow();
+      report(start);
+    }
+  }
+
+  void report(long start) {
+    final double seconds = Math.max(1L, System.nanoTime() - start) / 1000000000D;
+    final long records = this.records.get();
+    final long remaining = this.remaining.get();
+    log.info(
+        "report() - Copied {} records ({} rewrapped) at {} records/s and {} MB/s.{}",
+        records,
+        this.rewrapped.get(),
+        String.format("%.0f", records / seconds),
+        String.format("%.2f", this.bytes.get() / seconds / (1024D * 1024D)),
+        remaining < 0 ? "" : " " + remaining + " records remaining."
+    );
+  }
+
+  RecordWriter writer() throws IOException {
+    if (!this.config.targetTopic.isEmpty()) {
+      return new TopicWriter();
+    }
+    return new FileWriter(new File(this.config.targetFile), this.checkpoint.resumed());
+  }
+
+  void runFile(final RecordWriter writer) throws IOException, InterruptedException {
+    final String position = "file.position";
+    Long resumeAt = this.checkpoint.get(position);
+    ExecutorService executor = executor(this.config.threads);
+    try (RecordDump.Reader reader = new RecordDump.Reader(new File(this.config.sourceFile), null == resumeAt ? 0L : resumeAt)) {
+      List<RecordDump.Record> batch;
+      while (!(batch = reader.read(this.config.batchSize)).isEmpty()) {
+        writer.write(transform(executor, batch));
+        this.checkpoint.commit(Collections.singletonMap(position, reader.position));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Splits the batch between the threads of the executor and returns the records in their original order.
+   */
+  List<RecordDump.Record> transform(ExecutorService executor, final List<RecordDump.Record> batch) throws InterruptedException {
+    final int slices = Math.min(this.config.threads, batch.size());
+    final int sliceSize = (batch.size() + slices - 1) / slices;
+    List<Callable<List<RecordDump.Record>>> tasks = new ArrayList<>(slices);
+    for (int i = 0; i < batch.size(); i += sliceSize) {
+      final List<RecordDump.Record> slice = batch.subList(i, Math.min(batch.size(), i + sliceSize));
+      tasks.add(new Callable<List<RecordDump.Record>>() {
+        @Override
+        public List<RecordDump.Record> call() {
+          List<RecordDump.Record> result = new ArrayList<>(slice.size());
+          for (RecordDump.Record record : slice) {
+            result.add(transform(record));
+          }
+          return result;
+        }
+      });
+    }
+    List<RecordDump.Record> result = new ArrayList<>(batch.size());
+    for (Future<List<RecordDump.Record>> future : executor.invokeAll(tasks)) {
+      result.addAll(get(future));
+    }
+    return result;
+  }
+
+  void runTopic(final RecordWriter writer) throws InterruptedException {
+    List<PartitionInfo> partitionInfos;
+    try (KafkaConsumer<byte[], byte[]> consumer = consumer()) {
+      partitionInfos = consumer.partitionsFor(this.config.sourceTopic);
+    }
+    Preconditions.checkState(
+        null != partitionInfos && !partitionInfos.isEmpty(),
+        "Topic '%s' does not exist.",
+        this.config.sourceTopic
+    );
+
+    final int workers = Math.min(this.config.threads, partitionInfos.size());
+    List<List<TopicPartition>> assignments = new ArrayList<>(workers);
+    for (int i = 0; i < workers; i++) {
+      assignments.add(new ArrayList<TopicPartition>());
+    }
+    for (int i = 0; i < partitionInfos.size(); i++) {
+      assignments.get(i % workers).add(new TopicPartition(this.config.sourceTopic, partitionInfos.get(i).partition()));
+    }
+    log.info("runTopic() - Copying {} partitions of '{}' with {} workers.", partitionInfos.size(), this.config.sourceTopic, workers);
+    this.remaining.set(0L);
+
+    ExecutorService executor = executor(workers);
+    try {
+      List<Future<Void>> futures = new ArrayList<>(workers);
+      for (final List<TopicPartition> assignment : assignments) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            copy(writer, assignment);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        get(future);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Copies the partitions up to the end offsets they had when the worker started.
+   */
+  void copy(RecordWriter writer, List<TopicPartition> partitions) {
+    try (KafkaConsumer<byte[], byte[]> consumer = consumer()) {
+      consumer.assign(partitions);
+      for (TopicPartition partition : partitions) {
+        Long offset = this.checkpoint.get(checkpointKey(partition));
+        if (null == offset) {
+          consumer.seekToBeginning(Collections.singletonList(partition));
+        } else {
+          consumer.seek(partition, offset);
+        }
+      }
+      Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+      List<TopicPartition> pending = new ArrayList<>();
+      for (TopicPartition partition : partitions) {
+        final long behind = endOffsets.get(partition) - consumer.position(partition);
+        if (behind > 0) {
+          pending.add(partition);
+          this.remaining.addAndGet(behind);
+        }
+      }
+
+      while (!pending.isEmpty()) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new IllegalStateException("Interrupted while copying " + pending);
+        }
+        ConsumerRecords<byte[], byte[]> consumerRecords = consumer.poll(POLL_TIMEOUT_MS);
+        List<RecordDump.Record> batch = new ArrayList<>(consumerRecords.count());
+        Map<String, Long> offsets = new LinkedHashMap<>();
+        for (TopicPartition partition : consumerRecords.partitions()) {
+          final long endOffset = endOffsets.get(partition);
+          for (ConsumerRecord<byte[], byte[]> consumerRecord : consumerRecords.records(partition)) {
+            if (consumerRecord.offset() >= endOffset) {
+              break;
+            }
+            batch.add(
+                transform(
+                    new RecordDump.Record(
+                        consumerRecord.partition(),
+                        consumerRecord.offset(),
+                        consumerRecord.timestamp(),
+                        consumerRecord.key(),
+                        consumerRecord.value()
+                    )
+                )
+            );
+            offsets.put(checkpointKey(partition), consumerRecord.offset() + 1);
+          }
+        }
+        if (!batch.isEmpty()) {
+          writer.write(batch);
+          this.checkpoint.commit(offsets);
+          this.remaining.addAndGet(-batch.size());
+        }
+        for (int i = pending.size() - 1; i >= 0; i--) {
+          TopicPartition partition = pending.get(i);
+          if (consumer.position(partition) >= endOffsets.get(partition)) {
+            log.info("copy() - Finished copying {}.", partition);
+            consumer.pause(Collections.singletonList(partition));
+            pending.remove(i);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Exception thrown while writing records of " + partitions, e);
+    }
+  }
+
+  static String checkpointKey(TopicPartition partition) {
+    return "partition." + partition.partition();
+  }
+
+  KafkaConsumer<byte[], byte[]> consumer() {
+    Map<String, Object> settings = new LinkedHashMap<>(this.config.consumerSettings);
+    settings.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+    if (!settings.containsKey(ConsumerConfig.MAX_POLL_RECORDS_CONFIG)) {
+      settings.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, this.config.batchSize);
+    }
+    return new KafkaConsumer<>(settings, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+  }
+
+  /**
+   * Decrypts the key and value of a record and encrypts them again, or only rewraps the data key of the value.
+   */
+  RecordDump.Record transform(RecordDump.Record record) {
+    byte[] key = record.key;
+    if (null != this.keySerializer && null != key) {
+      key = this.keySerializer.serialize(targetTopic(), this.keyDeserializer.deserialize(this.config.sourceTopic(), key));
+    }
+    byte[] value = record.value;
+    if (null != value) {
+      byte[] result = null == this.keyWrapper ? null : rewrap(value);
+      if (null == result) {
+        result = this.valueSerializer.serialize(targetTopic(), this.valueDeserializer.deserialize(this.config.sourceTopic(), value));
+      } else {
+        this.rewrapped.incrementAndGet();
+      }
+      value = result;
+    }
+    RecordDump.Record result = new RecordDump.Record(record.partition, record.offset, record.timestamp, key, value);
+    this.records.incrementAndGet();
+    this.bytes.addAndGet(result.size());
+    return result;
+  }
+
+  String targetTopic() {
+    return this.config.targetTopic();
+  }
+
+  /**
+   * Replaces the wrapped data key of a record written with envelope encryption and copies the ciphertext unchanged.
+   *
+   * @return the rewritten record, or null if the record was not written with envelope encryption.
+   */
+  byte[] rewrap(byte[] bytes) {
+    if (bytes.length < 2) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    switch (buffer.get()) {
+      case KafkaVaultConfig.ENVELOPE_MAGIC_BYTE: {
+        CryptoDeserializer.checkLength(bytes, KafkaVaultConfig.ENVELOPE_HEADER_LENGTH);
+        final long dataKeyId = buffer.getLong();
+        final int wrappedLength = buffer.getShort() & 0xFFFF;
+        if (wrappedLength + 4 > buffer.remaining()) {
+          throw new IllegalStateException(
+              String.format("Wrapped key length %s does not fit in the %s bytes remaining.", wrappedLength, buffer.remaining())
+          );
+        }
+        final int wrappedOffset = buffer.position();
+        byte[] wrappedKey = rewrappedKey(dataKeyId, bytes, wrappedOffset, wrappedLength);
+        Preconditions.checkState(wrappedKey.length <= 0xFFFF, "Wrapped key is longer than %s bytes.", 0xFFFF);
+        final int tail = bytes.length - wrappedOffset - wrappedLength;
+        return ByteBuffer.allocate(11 + wrappedKey.length + tail)
+            .put(KafkaVaultConfig.ENVELOPE_MAGIC_BYTE)
+            .putLong(dataKeyId)
+            .putShort((short) wrappedKey.length)
+            .put(wrappedKey)
+            .put(bytes, wrappedOffset + wrappedLength, tail)
+            .array();
+      }
+      case KafkaVaultConfig.V2_MAGIC_BYTE: {
+        final int flags = buffer.get() & 0xFF;
+        if ((flags & KafkaVaultConfig.V2_FLAG_ENVELOPE) == 0) {
+          return null;
+        }
+        final long dataKeyId = Varint.read(buffer);
+        final int prefixLength = buffer.position();
+        final long wrappedLength = Varint.read(buffer);
+        if (wrappedLength > buffer.remaining()) {
+          throw new IllegalStateException(
+              String.format("Wrapped key length %s does not fit in the %s bytes remaining.", wrappedLength, buffer.remaining())
+          );
+        }
+        final int wrappedOffset = buffer.position();
+        byte[] wrappedKey = rewrappedKey(dataKeyId, bytes, wrappedOffset, (int) wrappedLength);
+        final int tail = bytes.length - wrappedOffset - (int) wrappedLength;
+        byte[] result = new byte[prefixLength + Varint.size(wrappedKey.length) + wrappedKey.length + tail];
+        System.arraycopy(bytes, 0, result, 0, prefixLength);
+        int offset = Varint.write(wrappedKey.length, result, prefixLength);
+        System.arraycopy(wrappedKey, 0, result, offset, wrappedKey.length);
+        System.arraycopy(bytes, wrappedOffset + (int) wrappedLength, result, offset + wrappedKey.length, tail);
+        return result;
+      }
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Rewraps each data key once. Records that share a data key are written with the same wrapped key.
+   */
+  byte[] rewrappedKey(long dataKeyId, final byte[] bytes, final int offset, final int length) {
+    try {
+      return this.rewrappedKeys.get(dataKeyId, new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          byte[] wrappedKey = new byte[length];
+          System.arraycopy(bytes, offset, wrappedKey, 0, length);
+          return keyWrapper.rewrap(valueSerializer.cipherManager.scope(config.sourceTopic()), wrappedKey);
+        }
+      });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw new IllegalStateException("Exception thrown while rewrapping data key " + dataKeyId, e.getCause());
+    }
+  }
+
+  static ExecutorService executor(int threads) {
+    return Executors.newFixedThreadPool(
+        threads,
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("kafka-vault-reencrypt-%d")
+            .build()
+    );
+  }
+
+  static <T> T get(Future<T> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  @Override
+  public void close() {
+    if (null != this.valueSerializer) {
+      this.valueSerializer.close();
+      this.valueDeserializer.close();
+    }
+    if (null != this.keySerializer) {
+      this.keySerializer.close();
+      this.keyDeserializer.close();
+    }
+  }
+
+  interface RecordWriter extends Closeable {
+    /**
+     * Writes the records and returns once they are durable.
+     */
+    void write(List<RecordDump.Record> records) throws IOException;
+  }
+
+  class TopicWriter implements RecordWriter {
+    final KafkaProducer<byte[], byte[]> producer;
+
+    TopicWriter() {
+      this.producer = new KafkaProducer<>(config.producerSettings, new ByteArraySerializer(), new ByteArraySerializer());
+    }
+
+    @Override
+    public void write(List<RecordDump.Record> records) throws IOException {
+      List<Future<RecordMetadata>> futures = new ArrayList<>(records.size());
+      for (RecordDump.Record record : records) {
+        futures.add(
+            this.producer.send(
+                new ProducerRecord<>(
+                    config.targetTopic,
+                    config.preservePartitions ? record.partition : null,
+                    record.timestamp,
+                    record.key,
+                    record.value
+                )
+            )
+        );
+      }
+      try {
+        for (Future<RecordMetadata> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while writing to " + config.targetTopic, e);
+      } catch (ExecutionException e) {
+        throw new IOException("Exception thrown while writing to " + config.targetTopic, e.getCause());
+      }
+    }
+
+    @Override
+    public void close() {
+      this.producer.close();
+    }
+  }
+
+  static class FileWriter implements RecordWriter {
+    final RecordDump.Writer writer;
+
+    FileWriter(File file, boolean append) throws IOException {
+      this.writer = new RecordDump.Writer(file, append);
+    }
+
+    @Override
+    public void write(List<RecordDump.Record> records) throws IOException {
+      this.writer.write(records);
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.writer.close();
+    }
+  }
+
+  /**
+   * Positions that have been copied, written to a properties file by replacing it so a crash never leaves a partial
+   * file behind. Kept in memory only when no path is set.
+   */
+  static class Checkpoint {
+    final File file;
+    final Properties properties = new Properties();
+    final boolean resumed;
+
+    Checkpoint(String path) throws IOException {
+      this.file = path.isEmpty() ? null : new File(path);
+      this.resumed = null != this.file && this.file.exists();
+      if (this.resumed) {
+        try (InputStream inputStream = new FileInputStream(this.file)) {
+          this.properties.load(inputStream);
+        }
+        log.info("Checkpoint() - Resuming from {}.", this.properties);
+      }
+    }
+
+    boolean resumed() {
+      return this.resumed;
+    }
+
+    synchronized Long get(String key) {
+      String value = this.properties.getProperty(key);
+      return null == value ? null : Long.valueOf(value);
+    }
+
+    synchronized void commit(Map<String, Long> positions) {
+      for (Map.Entry<String, Long> position : positions.entrySet()) {
+        this.properties.setProperty(position.getKey(), position.getValue().toString());
+      }
+      if (null == this.file) {
+        return;
+      }
+      File temp = new File(this.file.getPath() + ".tmp");
+      try {
+        try (OutputStream outputStream = new FileOutputStream(temp)) {
+          this.properties.store(outputStream, null);
+        }
+        Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        throw new IllegalStateException("Exception thrown while writing checkpoint " + this.file, e);
+      }
+    }
+  }
+
+  public static class Config extends KafkaVaultConfig {
+    public final String sourceTopic;
+    public final String sourceFile;
+    public final String targetTopic;
+    public final String targetFile;
+    public final String mode;
+    public final boolean keys;
+    public final int threads;
+    public final int batchSize;
+    public final String checkpointPath;
+    public final long reportIntervalMs;
+    public final boolean preservePartitions;
+    public final String topic;
+    public final Map<String, Object> consumerSettings;
+    public final Map<String, Object> producerSettings;
+    public final Map<String, Object> sourceSettings;
+
+    public Config(Map<String, ?> parsedConfig) {
+      super(config(), parsedConfig);
+      this.sourceTopic = this.getString(SOURCE_TOPIC_CONF);
+      this.sourceFile = this.getString(SOURCE_FILE_CONF);
+      this.targetTopic = this.getString(TARGET_TOPIC_CONF);
+      this.targetFile = this.getString(TARGET_FILE_CONF);
+      this.mode = this.getString(MODE_CONF);
+      this.keys = this.getBoolean(KEYS_CONF);
+      int threads = this.getInt(THREADS_CONF);
+      this.threads = 0 == threads ? Runtime.getRuntime().availableProcessors() : threads;
+      this.batchSize = this.getInt(BATCH_SIZE_CONF);
+      this.checkpointPath = this.getString(CHECKPOINT_PATH_CONF);
+      this.reportIntervalMs = this.getLong(REPORT_INTERVAL_MS_CONF);
+      this.preservePartitions = this.getBoolean(PRESERVE_PARTITIONS_CONF);
+      this.topic = this.getString(TOPIC_CONF);
+      this.consumerSettings = this.originalsWithPrefix("consumer.");
+      this.producerSettings = this.originalsWithPrefix("producer.");
+      this.sourceSettings = this.originalsWithPrefix("source.");
+
+      Preconditions.checkState(
+          this.sourceTopic.isEmpty() != this.sourceFile.isEmpty(),
+          "Exactly one of %s and %s must be set.",
+          SOURCE_TOPIC_CONF,
+          SOURCE_FILE_CONF
+      );
+      Preconditions.checkState(
+          this.targetTopic.isEmpty() != this.targetFile.isEmpty(),
+          "Exactly one of %s and %s must be set.",
+          TARGET_TOPIC_CONF,
+          TARGET_FILE_CONF
+      );
+      Preconditions.checkState(
+          !this.sourceTopic.isEmpty() || !this.topic.isEmpty(),
+          "%s must be set when reading from %s.",
+          TOPIC_CONF,
+          SOURCE_FILE_CONF
+      );
+      Preconditions.checkState(
+          this.sourceTopic.isEmpty() || !this.sourceTopic.equals(this.targetTopic),
+          "%s and %s must be different topics.",
+          SOURCE_TOPIC_CONF,
+          TARGET_TOPIC_CONF
+      );
+    }
+
+    /**
+     * The topic whose keys the source records were encrypted with.
+     */
+    String sourceTopic() {
+      return this.topic.isEmpty() ? this.sourceTopic : this.topic;
+    }
+
+    /**
+     * The topic whose keys the copied records are encrypted with.
+     */
+    String targetTopic() {
+      return this.targetTopic.isEmpty() ? sourceTopic() : this.targetTopic;
+    }
+
+    static final String MODE_REENCRYPT = "reencrypt";
+    static final String MODE_REWRAP = "rewrap";
+
+    public static final String SOURCE_TOPIC_CONF = "reencrypt.source.topic";
+    static final String SOURCE_TOPIC_DOC = "The topic to copy records from. Consumer settings are passed by prefixing " +
+        "them with `consumer.`, for example `consumer.bootstrap.servers`.";
+    public static final String SOURCE_FILE_CONF = "reencrypt.source.file";
+    static final String SOURCE_FILE_DOC = "The record file to copy records from, as written by `reencrypt.target.file`.";
+    public static final String TARGET_TOPIC_CONF = "reencrypt.target.topic";
+    static final String TARGET_TOPIC_DOC = "The topic to copy records to. Records are encrypted with the keys of this " +
+        "topic. Producer settings are passed by prefixing them with `producer.`, for example `producer.bootstrap.servers`.";
+    public static final String TARGET_FILE_CONF = "reencrypt.target.file";
+    static final String TARGET_FILE_DOC = "The record file to copy records to. Records are encrypted with the keys of " +
+        "`reencrypt.topic`, or of `reencrypt.source.topic` if it is not set.";
+    public static final String TOPIC_CONF = "reencrypt.topic";
+    static final String TOPIC_DOC = "The topic whose keys the source records were encrypted with. Defaults to " +
+        "`reencrypt.source.topic`. Required when reading from `reencrypt.source.file`. Settings used only to decrypt " +
+        "the source records are passed by prefixing them with `source.`, for example an empty " +
+        "`source.key.scope.prefixes` to move a topic into a key scope.";
+    public static final String MODE_CONF = "reencrypt.mode";
+    static final String MODE_DOC = "`reencrypt` decrypts every record and encrypts it again with the current key and " +
+        "the serializer settings. `rewrap` only replaces the wrapped data key of records written with envelope " +
+        "encryption with one wrapped by the latest key encryption key, and encrypts other records again.";
+    static final String MODE_DEFAULT = MODE_REENCRYPT;
+    public static final String KEYS_CONF = "reencrypt.keys";
+    static final String KEYS_DOC = "Flag to decrypt and encrypt record keys as well as values. Enable when the record " +
+        "keys were written by `CryptoSerializer`.";
+    static final boolean KEYS_DEFAULT = false;
+    public static final String THREADS_CONF = "reencrypt.threads";
+    static final String THREADS_DOC = "The number of threads that copy records. Topics are split by partition between " +
+        "the threads. Set to 0 to use one thread per processor.";
+    static final int THREADS_DEFAULT = 0;
+    public static final String BATCH_SIZE_CONF = "reencrypt.batch.size";
+    static final String BATCH_SIZE_DOC = "The number of records read, written and checkpointed together. Also the " +
+        "default `max.poll.records` of the consumers.";
+    static final int BATCH_SIZE_DEFAULT = 500;
+    public static final String CHECKPOINT_PATH_CONF = "reencrypt.checkpoint.path";
+    static final String CHECKPOINT_PATH_DOC = "The file progress is saved to after each batch. A run started with the " +
+        "same file resumes after the last saved batch. Delete the file to start over.";
+    public static final String REPORT_INTERVAL_MS_CONF = "reencrypt.report.interval.ms";
+    static final String REPORT_INTERVAL_MS_DOC = "How often the number of records copied and the throughput are logged.";
+    static final long REPORT_INTERVAL_MS_DEFAULT = 10000L;
+    public static final String PRESERVE_PARTITIONS_CONF = "reencrypt.preserve.partitions";
+    static final String PRESERVE_PARTITIONS_DOC = "Flag to write each record to the partition it was read from. The " +
+        "target topic must have at least as many partitions as the source. When disabled the producer partitioner is used.";
+    static final boolean PRESERVE_PARTITIONS_DEFAULT = true;
+
+    public static ConfigDef config() {
+      return KafkaVaultConfig.config()
+          .define(SOURCE_TOPIC_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH, SOURCE_TOPIC_DOC)
+          .define(SOURCE_FILE_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH, SOURCE_FILE_DOC)
+          .define(TARGET_TOPIC_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH, TARGET_TOPIC_DOC)
+          .define(TARGET_FILE_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH, TARGET_FILE_DOC)
+          .define(TOPIC_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.HIGH, TOPIC_DOC)
+          .define(MODE_CONF, ConfigDef.Type.STRING, MODE_DEFAULT, ConfigDef.ValidString.in(MODE_REENCRYPT, MODE_REWRAP), ConfigDef.Importance.MEDIUM, MODE_DOC)
+          .define(KEYS_CONF, ConfigDef.Type.BOOLEAN, KEYS_DEFAULT, ConfigDef.Importance.MEDIUM, KEYS_DOC)
+          .define(CHECKPOINT_PATH_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, CHECKPOINT_PATH_DOC)
+          .define(THREADS_CONF, ConfigDef.Type.INT, THREADS_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.MEDIUM, THREADS_DOC)
+          .define(BATCH_SIZE_CONF, ConfigDef.Type.INT, BATCH_SIZE_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, BATCH_SIZE_DOC)
+          .define(REPORT_INTERVAL_MS_CONF, ConfigDef.Type.LONG, REPORT_INTERVAL_MS_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, REPORT_INTERVAL_MS_DOC)
+          .define(PRESERVE_PARTITIONS_CONF, ConfigDef.Type.BOOLEAN, PRESERVE_PARTITIONS_DEFAULT, ConfigDef.Importance.LOW, PRESERVE_PARTITIONS_DOC);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File of records used by {@link ReEncryptTool} to work offline. Each record is written as the 4 byte partition, the 8
+ * byte offset, the 8 byte timestamp, then the key and the value, each as a 4 byte length followed by the bytes. A length
+ * of -1 is a null key or value.
+ */
+class RecordDump {
+  static final int RECORD_OVERHEAD = 4 + 8 + 8 + 4 + 4;
+
+  static class Record {
+    final int partition;
+    final long offset;
+    final long timestamp;
+    final byte[] key;
+    final byte[] value;
+
+    Record(int partition, long offset, long timestamp, byte[] key, byte[] value) {
+      this.partition = partition;
+      this.offset = offset;
+      this.timestamp = timestamp;
+      this.key = key;
+      this.value = value;
+    }
+
+    int size() {
+      return RECORD_OVERHEAD + (null == this.key ? 0 : this.key.length) + (null == this.value ? 0 : this.value.length);
+    }
+  }
+
+  static class Reader implements Closeable {
+    final DataInputStream input;
+    long position;
+
+    /**
+     * Opens the file and skips to the position returned by an earlier reader.
+     */
+    Reader(File file, long position) throws IOException {
+      FileInputStream fileInput = new FileInputStream(file);
+      fileInput.getChannel().position(position);
+      this.input = new DataInputStream(new BufferedInputStream(fileInput, 64 * 1024));
+      this.position = position;
+    }
+
+    /**
+     * Reads up to maxRecords records. Returns an empty list at the end of the file.
+     */
+    List<Record> read(int maxRecords) throws IOException {
+      List<Record> records = new ArrayList<>(Math.min(maxRecords, 1024));
+      while (records.size() < maxRecords) {
+        int partition;
+        try {
+          partition = this.input.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        long offset = this.input.readLong();
+        long timestamp = this.input.readLong();
+        byte[] key = readBytes();
+        byte[] value = readBytes();
+        Record record = new Record(partition, offset, timestamp, key, value);
+        this.position += record.size();
+        records.add(record);
+      }
+      return records;
+    }
+
+    byte[] readBytes() throws IOException {
+      int length = this.input.readInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      this.input.readFully(bytes);
+      return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.input.close();
+    }
+  }
+
+  static class Writer implements Closeable {
+    final DataOutputStream output;
+
+    Writer(File file, boolean append) throws IOException {
+      this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append), 64 * 1024));
+    }
+
+    synchronized void write(List<Record> records) throws IOException {
+      for (Record record : records) {
+        this.output.writeInt(record.partition);
+        this.output.writeLong(record.offset);
+        this.output.writeLong(record.timestamp);
+        writeBytes(record.key);
+        writeBytes(record.value);
+      }
+      this.output.flush();
+    }
+
+    void writeBytes(byte[] bytes) throws IOException {
+      if (null == bytes) {
+        this.output.writeInt(-1);
+      } else {
+        this.output.writeInt(bytes.length);
+        this.output.write(bytes);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.output.close();
+    }
+  }
+}
@@ -41,12 +41,26 @@ class SecretConfig extends AbstractConfig {
   static String CIPHER_DEFAULT = "AES/CBC/PKCS5PADDING";
   static String CIPHER_DOC = "";
 
+  public static final String CIPHER_AES_CBC = "AES/CBC/PKCS5PADDING";
+  public static final String CIPHER_AES_GCM = "AES/GCM/NoPadding";
+
   public static String VERSION_KEY = "version";
 
+  /**
+   * Authenticated ciphers generate a nonce for every record instead of using the IV stored with the key.
+   */
+  public boolean isAuthenticated() {
+    return isAuthenticated(this.cipher);
+  }
+
+  static boolean isAuthenticated(String cipher) {
+    return cipher.toUpperCase().contains("/GCM/");
+  }
+
   public static ConfigDef config() {
     return new ConfigDef()
         .define(KEY_CONF, ConfigDef.Type.PASSWORD, ConfigDef.Importance.HIGH, KEY_DOC)
-        .define(IV_CONF, ConfigDef.Type.PASSWORD, ConfigDef.Importance.HIGH, IV_DOC)
+        .define(IV_CONF, ConfigDef.Type.PASSWORD, "", ConfigDef.Importance.HIGH, IV_DOC)
         .define(CIPHER_CONF, ConfigDef.Type.STRING, CIPHER_DEFAULT, ConfigDef.Importance.HIGH, CIPHER_DOC)
         .define(KEY_TYPE_CONF, ConfigDef.Type.STRING, KEY_TYPE_DEFAULT, ConfigDef.Importance.HIGH, KEY_TYPE_DOC);
   }
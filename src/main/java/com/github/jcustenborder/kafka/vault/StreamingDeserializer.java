@@ -0,0 +1,25 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.io.InputStream;
+
+/**
+ * A {@link Deserializer} that can read the payload as a stream. When the deserializer set in `deserializer.class`
+ * implements this interface, {@link CryptoDeserializer} hands it the plaintext of chunked records as a stream that
+ * decrypts one chunk at a time, so the plaintext of a large record is never held in a single array. Other records are
+ * passed to {@link #deserialize(String, byte[])}.
+ *
+ * @param <T> type to deserialize to.
+ */
+public interface StreamingDeserializer<T> extends Deserializer<T> {
+  /**
+   * Deserializes a record from a stream.
+   *
+   * @param topic       topic the record was read from.
+   * @param inputStream plaintext of the record. Only valid for the duration of the call and must be read on the
+   *                    calling thread. Reads throw an {@link java.io.IOException} if a chunk fails authentication.
+   * @return deserialized value.
+   */
+  T deserialize(String topic, InputStream inputStream);
+}
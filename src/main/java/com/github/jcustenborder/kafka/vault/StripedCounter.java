@@ -0,0 +1,57 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for the hot path. Updates go to one of several cells picked by thread id, and each cell sits on its own cache
+ * line, so threads that record at the same time do not contend. Reads add up the cells and are only approximate while
+ * updates are running.
+ */
+class StripedCounter {
+  static final int PADDING = 16;
+  static final int CELLS = cells(Runtime.getRuntime().availableProcessors());
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+  static int cells(int processors) {
+    int cells = 1;
+    while (cells < processors * 2 && cells < 64) {
+      cells <<= 1;
+    }
+    return cells;
+  }
+
+  void increment() {
+    add(1L);
+  }
+
+  void add(long delta) {
+    this.cells.getAndAdd(cell(), delta);
+  }
+
+  /**
+   * Adds to the counter and returns true once the total has reached the limit. The cells are only added up when the
+   * cell of the calling thread passes a multiple of {@link #checkInterval(long)}, so the limit is exceeded by at most
+   * one interval per cell, which is 1/16 of the limit, and most updates stay a single atomic add.
+   */
+  boolean add(long delta, long limit) {
+    final long after = this.cells.addAndGet(cell(), delta);
+    final long interval = checkInterval(limit);
+    return (after - delta) / interval != after / interval && sum() >= limit;
+  }
+
+  static long checkInterval(long limit) {
+    return Math.max(1L, limit / (CELLS * 16L));
+  }
+
+  private static int cell() {
+    return ((int) Thread.currentThread().getId() & (CELLS - 1)) * PADDING;
+  }
+
+  long sum() {
+    long sum = 0L;
+    for (int i = 0; i < CELLS; i++) {
+      sum += this.cells.get(i * PADDING);
+    }
+    return sum;
+  }
+}
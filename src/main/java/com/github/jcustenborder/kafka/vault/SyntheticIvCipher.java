@@ -0,0 +1,129 @@
+package com.github.jcustenborder.kafka.vault;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Deterministic authenticated encryption with a synthetic IV, in the style of AES-SIV (RFC 5297). The IV is the first
+ * 16 bytes of an HMAC-SHA256 of the plaintext and is used as the counter of AES-CTR, so the same plaintext always
+ * encrypts to the same ciphertext under the same key, and the IV doubles as the tag. Used for record keys so the
+ * default partitioner and log compaction keep working. It reveals which records have equal keys, which the partitioner
+ * reveals anyway. It does not have the weakness of a fixed IV, where records that share a prefix share a ciphertext
+ * prefix.
+ * <p>
+ * The MAC and encryption keys are derived from the topic key with HMAC-SHA256, so the topic key is never used directly
+ * by two algorithms. JCE does not ship AES-SIV, so this is built from HMAC-SHA256 and AES-CTR.
+ */
+class SyntheticIvCipher {
+  static final int IV_LENGTH = 16;
+  static final String MAC_ALGORITHM = "HmacSHA256";
+  static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+  static final byte[] MAC_KEY_LABEL = "kafka-vault-siv-mac".getBytes(StandardCharsets.UTF_8);
+  static final byte[] ENCRYPTION_KEY_LABEL = "kafka-vault-siv-enc".getBytes(StandardCharsets.UTF_8);
+
+  final SecretKeySpec macKey;
+  final SecretKeySpec encryptionKey;
+  private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(macKey);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Exception thrown while creating " + MAC_ALGORITHM, e);
+      }
+    }
+  };
+  private final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance(CIPHER_ALGORITHM);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Exception thrown while creating " + CIPHER_ALGORITHM, e);
+      }
+    }
+  };
+  private final ThreadLocal<byte[]> digest = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[32];
+    }
+  };
+
+  SyntheticIvCipher(byte[] key) throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(MAC_ALGORITHM);
+    mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+    this.macKey = new SecretKeySpec(mac.doFinal(MAC_KEY_LABEL), MAC_ALGORITHM);
+    byte[] encryptionKey = mac.doFinal(ENCRYPTION_KEY_LABEL);
+    this.encryptionKey = new SecretKeySpec(Arrays.copyOf(encryptionKey, key.length), "AES");
+
+    // Create the instances for the calling thread so a missing algorithm fails here instead of on the first record.
+    this.mac.get();
+    this.cipher.get();
+  }
+
+  int encryptedSize(int length) {
+    return IV_LENGTH + length;
+  }
+
+  int decryptedSize(int length) {
+    return Math.max(0, length - IV_LENGTH);
+  }
+
+  /**
+   * Computes the synthetic IV of the plaintext into the digest buffer of the calling thread.
+   */
+  byte[] syntheticIv(byte[] input, int offset, int length) throws GeneralSecurityException {
+    final Mac mac = this.mac.get();
+    final byte[] digest = this.digest.get();
+    mac.update(input, offset, length);
+    mac.doFinal(digest, 0);
+    return digest;
+  }
+
+  /**
+   * Writes the synthetic IV followed by the ciphertext.
+   *
+   * @return number of bytes written.
+   */
+  int encrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+    final byte[] iv = syntheticIv(input, offset, length);
+    System.arraycopy(iv, 0, output, outputOffset, IV_LENGTH);
+    final Cipher cipher = this.cipher.get();
+    cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new IvParameterSpec(iv, 0, IV_LENGTH));
+    return IV_LENGTH + cipher.doFinal(input, offset, length, output, outputOffset + IV_LENGTH);
+  }
+
+  /**
+   * Decrypts the ciphertext and checks the synthetic IV against the plaintext.
+   *
+   * @return number of bytes written.
+   * @throws AEADBadTagException if the ciphertext was changed or was encrypted with another key.
+   */
+  int decrypt(byte[] input, int offset, int length, byte[] output, int outputOffset) throws GeneralSecurityException {
+    if (length < IV_LENGTH) {
+      throw new AEADBadTagException("Encrypted payload is too short to contain the synthetic IV.");
+    }
+    final Cipher cipher = this.cipher.get();
+    cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new IvParameterSpec(input, offset, IV_LENGTH));
+    final int written = cipher.doFinal(input, offset + IV_LENGTH, length - IV_LENGTH, output, outputOffset);
+    final byte[] iv = syntheticIv(output, outputOffset, written);
+    int difference = 0;
+    for (int i = 0; i < IV_LENGTH; i++) {
+      difference |= iv[i] ^ input[offset + i];
+    }
+    if (0 != difference) {
+      Arrays.fill(output, outputOffset, outputOffset + written, (byte) 0);
+      throw new AEADBadTagException("Synthetic IV does not match the decrypted payload.");
+    }
+    return written;
+  }
+}
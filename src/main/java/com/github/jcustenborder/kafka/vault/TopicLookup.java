@@ -0,0 +1,42 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.regex.Pattern;
+
+/**
+ * Remembers a value computed from the topic name, so the prefixes and regular expressions of the subclass only run the
+ * first time a topic is seen and every later record is a cache lookup. At most {@link #MAX_TOPICS} topics are
+ * remembered so a client that sees an unbounded number of topic names does not grow without limit.
+ */
+abstract class TopicLookup<V> {
+  static final int MAX_TOPICS = 10000;
+
+  final Cache<String, V> values = CacheBuilder.newBuilder()
+      .maximumSize(MAX_TOPICS)
+      .build();
+
+  static Pattern compile(String pattern) {
+    return null == pattern || pattern.isEmpty() ? null : Pattern.compile(pattern);
+  }
+
+  /**
+   * Returns true if every topic gets the same value, so callers can skip the lookup.
+   */
+  abstract boolean isEmpty();
+
+  /**
+   * Computes the value of a topic that is not remembered.
+   */
+  abstract V lookup(String topic);
+
+  V get(String topic) {
+    V value = this.values.getIfPresent(topic);
+    if (null == value) {
+      value = lookup(topic);
+      this.values.put(topic, value);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,36 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches topics against a list of names and a regular expression.
+ */
+class TopicMatcher extends TopicLookup<Boolean> {
+  final Set<String> topics;
+  final Pattern pattern;
+
+  TopicMatcher(Collection<String> topics, String pattern) {
+    this.topics = new HashSet<>(topics);
+    this.pattern = compile(pattern);
+  }
+
+  @Override
+  boolean isEmpty() {
+    return this.topics.isEmpty() && null == this.pattern;
+  }
+
+  boolean matches(String topic) {
+    if (isEmpty()) {
+      return false;
+    }
+    return get(topic);
+  }
+
+  @Override
+  Boolean lookup(String topic) {
+    return this.topics.contains(topic) || (null != this.pattern && this.pattern.matcher(topic).matches());
+  }
+}
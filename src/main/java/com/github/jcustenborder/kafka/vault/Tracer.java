@@ -0,0 +1,71 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.io.Closeable;
+
+/**
+ * Receives the time spent in each stage of a traced record. One in `tracing.sample.interval` records is traced. The
+ * implementation is selected with `tracer.class` and must have a public no argument constructor. {@link #record} is
+ * called on the producer and consumer threads, so implementations must be thread safe and must not block.
+ */
+public interface Tracer extends Closeable {
+  enum Operation {
+    ENCRYPT,
+    DECRYPT
+  }
+
+  enum Stage {
+    /**
+     * The wrapped serializer.
+     */
+    SERIALIZE,
+    /**
+     * Compressing the payload. Only recorded when compression is tried.
+     */
+    COMPRESS,
+    /**
+     * Looking up the key, including calls to the key provider or key wrapper when the key is not cached. When
+     * decrypting this also covers reading the header.
+     */
+    KEY_LOOKUP,
+    /**
+     * Encrypting or decrypting the payload. When decrypting this also covers decompression.
+     */
+    CRYPTO,
+    /**
+     * Writing the header.
+     */
+    FRAME,
+    /**
+     * The wrapped deserializer. For a {@link StreamingDeserializer} this also covers decryption.
+     */
+    DESERIALIZE,
+    /**
+     * The whole record, from the start of the first stage to the end of the last.
+     */
+    TOTAL,
+    /**
+     * A record that failed, from the start of the first stage until the failure. Recorded instead of {@link #TOTAL}.
+     */
+    ERROR
+  }
+
+  /**
+   * Configures the tracer. Called once before any other method.
+   *
+   * @param config config of the serializer or deserializer that created the tracer.
+   */
+  void configure(KafkaVaultConfig config);
+
+  /**
+   * Records the time spent in one stage of a record.
+   *
+   * @param topic     topic of the record.
+   * @param operation whether the record was encrypted or decrypted.
+   * @param stage     stage that was timed.
+   * @param nanos     time spent in the stage in nanoseconds.
+   */
+  void record(String topic, Operation operation, Stage stage, long nanos);
+
+  @Override
+  void close();
+}
@@ -0,0 +1,109 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.utils.Time;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the records that are traced and times their stages for the configured {@link Tracer}. Records that are not
+ * traced get {@link Trace#NONE}, so the hot path only pays for a random number when tracing is on and for a field read
+ * when it is off.
+ */
+class Tracing implements Closeable {
+  final Tracer tracer;
+  final int sampleInterval;
+  final Time time;
+
+  Tracing(KafkaVaultConfig config, Time time) {
+    this.time = time;
+    this.sampleInterval = config.tracingSampleInterval;
+    this.tracer = 0 == this.sampleInterval ? null : tracer(config);
+  }
+
+  static Tracer tracer(KafkaVaultConfig config) {
+    Tracer tracer;
+    try {
+      tracer = (Tracer) config.tracerClass.newInstance();
+    } catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+      throw new IllegalStateException("Exception thrown while creating " + config.tracerClass.getName(), e);
+    }
+    tracer.configure(config);
+    return tracer;
+  }
+
+  /**
+   * Starts tracing a record.
+   *
+   * @return trace for the record, or {@link Trace#NONE} if this record is not traced.
+   */
+  Trace start(String topic, Tracer.Operation operation) {
+    if (null == this.tracer ||
+        (1 != this.sampleInterval && 0 != ThreadLocalRandom.current().nextInt(this.sampleInterval))) {
+      return Trace.NONE;
+    }
+    return new Trace(this, topic, operation);
+  }
+
+  @Override
+  public void close() {
+    if (null != this.tracer) {
+      this.tracer.close();
+    }
+  }
+
+  /**
+   * Times the stages of one record. Each stage runs from the end of the one before it, so a record only reads the clock
+   * once per stage. Not thread safe.
+   */
+  static class Trace {
+    static final Trace NONE = new Trace(null, null, null);
+
+    final Tracing tracing;
+    final String topic;
+    final Tracer.Operation operation;
+    final long start;
+    long last;
+
+    Trace(Tracing tracing, String topic, Tracer.Operation operation) {
+      this.tracing = tracing;
+      this.topic = topic;
+      this.operation = operation;
+      this.start = null == tracing ? 0L : tracing.time.nanoseconds();
+      this.last = this.start;
+    }
+
+    /**
+     * Records the time since the last stage ended as the given stage.
+     */
+    void lap(Tracer.Stage stage) {
+      if (null == this.tracing) {
+        return;
+      }
+      final long now = this.tracing.time.nanoseconds();
+      this.tracing.tracer.record(this.topic, this.operation, stage, now - this.last);
+      this.last = now;
+    }
+
+    /**
+     * Records the time from the start to the end of the last stage as {@link Tracer.Stage#TOTAL}.
+     */
+    void end() {
+      if (null == this.tracing) {
+        return;
+      }
+      this.tracing.tracer.record(this.topic, this.operation, Tracer.Stage.TOTAL, this.last - this.start);
+    }
+
+    /**
+     * Records the time from the start until now as {@link Tracer.Stage#ERROR}. Called instead of {@link #end()} when the
+     * record fails.
+     */
+    void fail() {
+      if (null == this.tracing) {
+        return;
+      }
+      this.tracing.tracer.record(this.topic, this.operation, Tracer.Stage.ERROR, this.tracing.time.nanoseconds() - this.start);
+    }
+  }
+}
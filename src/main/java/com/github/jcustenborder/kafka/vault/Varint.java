@@ -0,0 +1,58 @@
+package com.github.jcustenborder.kafka.vault;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 encoding of longs. Seven bits are stored per byte, least significant group first, with the high bit
+ * set on every byte except the last.
+ */
+class Varint {
+  static final int MAX_LENGTH = 10;
+
+  private Varint() {
+  }
+
+  /**
+   * Returns the number of bytes {@link #write(long, byte[], int)} will use for the value.
+   */
+  static int size(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Writes the value to the buffer.
+   *
+   * @return the offset after the last byte written.
+   */
+  static int write(long value, byte[] buffer, int offset) {
+    while ((value & ~0x7FL) != 0) {
+      buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[offset++] = (byte) value;
+    return offset;
+  }
+
+  /**
+   * Reads a value from the current position of the buffer and advances the position past it.
+   */
+  static long read(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        throw new IllegalStateException("Varint is truncated.");
+      }
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalStateException("Varint is longer than " + MAX_LENGTH + " bytes.");
+  }
+}
@@ -0,0 +1,193 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.bettercloud.vault.Vault;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Stores keys in a vault secret backend. Each version is written to
+ * {@code <vault.backend>/<kafka.path>/<topic>/<version>} and the current version is stored under
+ * {@code <vault.backend>/<kafka.path>/<topic>/current}. This is the default provider.
+ */
+public class VaultKeyProvider implements KeyProvider {
+  private static final Logger log = LoggerFactory.getLogger(VaultKeyProvider.class);
+  static final String CURRENT = "current";
+  static final String LEASE = "rotation-lease";
+  static final String LEASE_OWNER_KEY = "owner";
+  static final String LEASE_EXPIRES_KEY = "expires";
+  KafkaVaultConfig config;
+  VaultSession session;
+  Vault vault;
+  VaultRetry retry;
+
+  @Override
+  public void configure(KafkaVaultConfig config) {
+    this.config = config;
+    this.session = VaultSession.acquire(this.config);
+    this.vault = this.session.vault;
+    this.retry = new VaultRetry(this.config, this.session);
+  }
+
+  String secretPath(String topic, String version) {
+    return this.config.vaultBackend + '/' + this.config.kafkaPath + '/' + topic + '/' + version;
+  }
+
+  Map<String, String> read(final String path) {
+    log.trace("read() - Retrieving secret from vault '{}'.", path);
+    try {
+      return this.retry.execute(path, new VaultRetry.Request<Map<String, String>>() {
+        @Override
+        public Map<String, String> execute() throws VaultException {
+          return vault.logical().read(path).getData();
+        }
+      });
+    } catch (VaultException e) {
+      if (404 == e.getHttpStatusCode()) {
+        throw new KeyNotFoundException("Secret " + path + " does not exist.", e);
+      }
+      throw new IllegalStateException("Exception thrown while reading " + path, e);
+    }
+  }
+
+  void write(final String path, final Map<String, String> data) {
+    log.trace("write() - Writing secret to vault '{}'.", path);
+    try {
+      this.retry.execute(path, new VaultRetry.Request<LogicalResponse>() {
+        @Override
+        public LogicalResponse execute() throws VaultException {
+          return vault.logical().write(path, data);
+        }
+      });
+    } catch (VaultException e) {
+      throw new IllegalStateException("Exception thrown while writing " + path, e);
+    }
+  }
+
+  @Override
+  public Set<String> topics() {
+    List<String> keys;
+    try {
+      keys = list(this.config.vaultBackend + '/' + this.config.kafkaPath);
+    } catch (KeyNotFoundException e) {
+      log.trace("topics() - No topics stored.", e);
+      return new TreeSet<>();
+    }
+    Set<String> topics = new TreeSet<>();
+    for (String key : keys) {
+      topics.add(key.endsWith("/") ? key.substring(0, key.length() - 1) : key);
+    }
+    return topics;
+  }
+
+  List<String> list(final String path) {
+    log.trace("list() - Listing secrets in vault '{}'.", path);
+    try {
+      return this.retry.execute(path, new VaultRetry.Request<List<String>>() {
+        @Override
+        public List<String> execute() throws VaultException {
+          return vault.logical().list(path);
+        }
+      });
+    } catch (VaultException e) {
+      if (404 == e.getHttpStatusCode()) {
+        throw new KeyNotFoundException("Path " + path + " does not exist.", e);
+      }
+      throw new IllegalStateException("Exception thrown while listing " + path, e);
+    }
+  }
+
+  @Override
+  public long currentVersion(String topic) {
+    final String path = secretPath(topic, CURRENT);
+    Map<String, String> data = read(path);
+    String version = data.get(SecretConfig.VERSION_KEY);
+    if (null == version) {
+      throw new IllegalStateException(
+          String.format("Secret '%s' does not contain a '%s' key.", path, SecretConfig.VERSION_KEY)
+      );
+    }
+    return Long.parseLong(version);
+  }
+
+  @Override
+  public void currentVersion(String topic, long version) {
+    write(secretPath(topic, CURRENT), ImmutableMap.of(SecretConfig.VERSION_KEY, Long.toString(version)));
+  }
+
+  @Override
+  public Set<Long> versions(String topic) {
+    List<String> keys = list(this.config.vaultBackend + '/' + this.config.kafkaPath + '/' + topic);
+    Set<Long> versions = new TreeSet<>();
+    for (String key : keys) {
+      if (CURRENT.equals(key)) {
+        continue;
+      }
+      try {
+        versions.add(Long.parseLong(key));
+      } catch (NumberFormatException e) {
+        log.trace("versions() - Skipping '{}' under '{}'.", key, topic);
+      }
+    }
+    return versions;
+  }
+
+  @Override
+  public Map<String, String> secret(String topic, long version) {
+    return read(secretPath(topic, Long.toString(version)));
+  }
+
+  @Override
+  public void secret(String topic, long version, Map<String, String> secret) {
+    write(secretPath(topic, Long.toString(version)), secret);
+  }
+
+  /**
+   * Vault's kv backend has no compare and set, so the lease is written and read back to check that no other client
+   * wrote it at the same time. Two clients can still both win a close race; {@link KeyRotationScheduler} checks the
+   * current version again before rotating so the worst case is a topic being rotated twice.
+   */
+  @Override
+  public boolean tryLease(String topic, String owner, long now, long durationMs) {
+    final String path = secretPath(topic, LEASE);
+    Map<String, String> lease = readLease(path);
+    if (null != lease && !owner.equals(lease.get(LEASE_OWNER_KEY)) && Long.parseLong(lease.get(LEASE_EXPIRES_KEY)) > now) {
+      return false;
+    }
+    write(path, ImmutableMap.of(LEASE_OWNER_KEY, owner, LEASE_EXPIRES_KEY, Long.toString(now + durationMs)));
+    lease = readLease(path);
+    return null != lease && owner.equals(lease.get(LEASE_OWNER_KEY));
+  }
+
+  Map<String, String> readLease(final String path) {
+    try {
+      Map<String, String> data = this.retry.execute(path, new VaultRetry.Request<Map<String, String>>() {
+        @Override
+        public Map<String, String> execute() throws VaultException {
+          return vault.logical().read(path).getData();
+        }
+      });
+      return null == data || !data.containsKey(LEASE_OWNER_KEY) || !data.containsKey(LEASE_EXPIRES_KEY) ? null : data;
+    } catch (VaultException e) {
+      if (404 == e.getHttpStatusCode()) {
+        return null;
+      }
+      throw new IllegalStateException("Exception thrown while reading " + path, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (null != this.session) {
+      VaultSession.release(this.session);
+      this.session = null;
+    }
+  }
+}
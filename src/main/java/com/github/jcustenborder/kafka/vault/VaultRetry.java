@@ -0,0 +1,90 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.bettercloud.vault.VaultException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries vault requests with jittered exponential backoff. The vault driver retries with a fixed interval, so a vault
+ * outage makes every waiting thread retry in lock step. Here the delay doubles from `vault.retry.interval.ms` up to
+ * `vault.retry.backoff.max.ms`, and each delay is picked at random from the upper half of that range. Only connection
+ * errors, 429 and 5xx responses are retried. Other responses, like 404 for a missing key, fail straight away. When a
+ * {@link VaultSession} is passed, a 403 makes it log in again once and the request is retried with the new token.
+ */
+class VaultRetry {
+  private static final Logger log = LoggerFactory.getLogger(VaultRetry.class);
+  final int maxRetries;
+  final long backoffMs;
+  final long backoffMaxMs;
+  final VaultSession session;
+  final AtomicLong retries = new AtomicLong();
+
+  VaultRetry(KafkaVaultConfig config) {
+    this(config, null);
+  }
+
+  VaultRetry(KafkaVaultConfig config, VaultSession session) {
+    this(config.vaultMaxRetries, config.vaultRetryInterval, config.vaultRetryBackoffMaxMs, session);
+  }
+
+  VaultRetry(int maxRetries, long backoffMs, long backoffMaxMs) {
+    this(maxRetries, backoffMs, backoffMaxMs, null);
+  }
+
+  VaultRetry(int maxRetries, long backoffMs, long backoffMaxMs, VaultSession session) {
+    this.maxRetries = maxRetries;
+    this.backoffMs = backoffMs;
+    this.backoffMaxMs = Math.max(backoffMs, backoffMaxMs);
+    this.session = session;
+  }
+
+  interface Request<T> {
+    T execute() throws VaultException;
+  }
+
+  <T> T execute(String path, Request<T> request) throws VaultException {
+    boolean reauthenticated = false;
+    for (int attempt = 0; ; attempt++) {
+      final String token = null == this.session ? null : this.session.token();
+      try {
+        return request.execute();
+      } catch (VaultException e) {
+        if (403 == e.getHttpStatusCode() && null != this.session && !reauthenticated && this.session.reauthenticate(token)) {
+          log.debug("execute() - Request to '{}' was rejected. Retrying with a new token.", path);
+          reauthenticated = true;
+          attempt--;
+          continue;
+        }
+        if (attempt >= this.maxRetries || !retriable(e)) {
+          throw e;
+        }
+        long delay = delayMs(attempt);
+        log.debug("execute() - Request to '{}' failed. Retrying in {} ms.", path, delay, e);
+        this.retries.incrementAndGet();
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  static boolean retriable(VaultException e) {
+    final int status = e.getHttpStatusCode();
+    return 0 == status || 429 == status || status >= 500;
+  }
+
+  long delayMs(int attempt) {
+    final long ceiling = Math.min(this.backoffMaxMs, this.backoffMs << Math.min(attempt, 30));
+    if (ceiling <= 1) {
+      return ceiling;
+    }
+    final long half = ceiling / 2;
+    return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+  }
+}
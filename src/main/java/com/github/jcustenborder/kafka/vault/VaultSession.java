@@ -0,0 +1,365 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.bettercloud.vault.Vault;
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.response.AuthResponse;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.bettercloud.vault.rest.Rest;
+import com.bettercloud.vault.rest.RestException;
+import com.bettercloud.vault.rest.RestResponse;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vault client with a token that is kept valid, shared by the {@link VaultKeyProvider} and
+ * {@link VaultTransitKeyWrapper} of every client in the JVM with the same vault settings. The token is obtained on first
+ * use as set by `vault.auth.method`, renewed in the background once two thirds of its lease have passed, and replaced
+ * by logging in again when it can no longer be renewed or a request is rejected with 403. Sessions are reference
+ * counted like {@link CipherManagerRegistry} and closed when the last user releases them.
+ * <p>
+ * Requests go through the vault driver, which uses {@link java.net.HttpURLConnection}. The JDK keeps those connections
+ * alive and pools them per host as long as responses are read to the end, which the driver does, so only the first
+ * request to vault pays for the TCP and TLS handshake.
+ */
+class VaultSession implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(VaultSession.class);
+  static final Map<Map<String, Object>, VaultSession> SESSIONS = new HashMap<>();
+  static final double RENEW_FRACTION = 2D / 3D;
+  static final long MIN_RENEW_DELAY_MS = 1000L;
+
+  /**
+   * A token and how long it is valid for.
+   */
+  static class Lease {
+    final String token;
+    final long durationMs;
+    final boolean renewable;
+
+    Lease(String token, long durationMs, boolean renewable) {
+      this.token = token;
+      this.durationMs = durationMs;
+      this.renewable = renewable;
+    }
+  }
+
+  /**
+   * Obtains and renews tokens. Split out so the lifecycle can be tested without vault.
+   */
+  interface Authenticator {
+    /**
+     * Logs in, or looks up the configured token for `token`.
+     */
+    Lease login() throws VaultException;
+
+    Lease renew(String token) throws VaultException;
+
+    /**
+     * Returns true if {@link #login()} returns a new token, so an expired token can be replaced.
+     */
+    boolean canLogin();
+  }
+
+  final VaultConfig vaultConfig;
+  final Vault vault;
+  final Authenticator authenticator;
+  final VaultRetry retry;
+  final ScheduledExecutorService executor;
+  int references;
+  volatile Lease lease;
+  long loginDurationMs;
+  int failures;
+  ScheduledFuture<?> renewal;
+
+  VaultSession(KafkaVaultConfig config) {
+    this.vaultConfig = config.vaultConfig();
+    this.vault = new Vault(this.vaultConfig);
+    this.authenticator = new DriverAuthenticator(config, this.vaultConfig, this.vault);
+    this.retry = new VaultRetry(config);
+    this.executor = config.vaultTokenRenewEnabled ? Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("kafka-vault-token-renewal-%d")
+            .build()
+    ) : null;
+  }
+
+  VaultSession(VaultConfig vaultConfig, Authenticator authenticator, VaultRetry retry, ScheduledExecutorService executor) {
+    this.vaultConfig = vaultConfig;
+    this.vault = new Vault(vaultConfig);
+    this.authenticator = authenticator;
+    this.retry = retry;
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the shared session for the config, creating it if this is the first reference.
+   *
+   * @return shared session. Call {@link #release(VaultSession)} once it is no longer used.
+   */
+  static synchronized VaultSession acquire(KafkaVaultConfig config) {
+    final Map<String, Object> key = key(config);
+    VaultSession session = SESSIONS.get(key);
+    if (null == session) {
+      log.trace("acquire() - Creating VaultSession for {}.", config.vaultAddress);
+      session = new VaultSession(config);
+      SESSIONS.put(key, session);
+    }
+    session.references++;
+    return session;
+  }
+
+  static synchronized void release(VaultSession session) {
+    Iterator<VaultSession> iterator = SESSIONS.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() != session) {
+        continue;
+      }
+      session.references--;
+      if (session.references <= 0) {
+        iterator.remove();
+        session.close();
+      }
+      return;
+    }
+    session.close();
+  }
+
+  static Map<String, Object> key(KafkaVaultConfig config) {
+    Map<String, Object> key = new TreeMap<>();
+    key.put(KafkaVaultConfig.VAULT_ADDRESS_CONF, config.vaultAddress);
+    key.put(KafkaVaultConfig.VAULT_TOKEN_CONF, config.vaultToken);
+    key.put(KafkaVaultConfig.VAULT_AUTH_METHOD_CONF, config.vaultAuthMethod);
+    key.put(KafkaVaultConfig.VAULT_AUTH_PATH_CONF, config.vaultAuthPath);
+    key.put(KafkaVaultConfig.VAULT_AUTH_ROLE_CONF, config.vaultAuthRole);
+    key.put(KafkaVaultConfig.VAULT_AUTH_SECRET_CONF, config.vaultAuthSecret);
+    key.put(KafkaVaultConfig.VAULT_AUTH_JWT_PATH_CONF, config.vaultAuthJwtPath);
+    key.put(KafkaVaultConfig.VAULT_TOKEN_RENEW_ENABLED_CONF, config.vaultTokenRenewEnabled);
+    return key;
+  }
+
+  /**
+   * Returns the current token, logging in on the first call.
+   */
+  String token() throws VaultException {
+    Lease lease = this.lease;
+    if (null != lease) {
+      return lease.token;
+    }
+    synchronized (this) {
+      if (null == this.lease) {
+        login();
+      }
+      return this.lease.token;
+    }
+  }
+
+  /**
+   * Called when a request made with the token was rejected with 403. Logs in again unless another thread already
+   * replaced the token.
+   *
+   * @return true if the request should be retried with the new token.
+   */
+  synchronized boolean reauthenticate(String rejectedToken) throws VaultException {
+    if (!this.authenticator.canLogin()) {
+      return false;
+    }
+    if (null != this.lease && !this.lease.token.equals(rejectedToken)) {
+      return true;
+    }
+    log.info("reauthenticate() - Token was rejected by vault. Logging in again.");
+    login();
+    return true;
+  }
+
+  synchronized void login() throws VaultException {
+    Lease lease = this.authenticator.login();
+    this.loginDurationMs = lease.durationMs;
+    update(lease);
+  }
+
+  /**
+   * Renews the token, or logs in again once renewing stops extending it by at least a third of its original lease.
+   * Failures are retried with the backoff of `vault.retry.interval.ms` until the token expires.
+   */
+  synchronized void refresh() {
+    Lease current = this.lease;
+    if (null == current) {
+      return;
+    }
+    try {
+      Lease next = null;
+      if (current.renewable) {
+        try {
+          next = this.authenticator.renew(current.token);
+        } catch (VaultException e) {
+          if (!this.authenticator.canLogin()) {
+            throw e;
+          }
+          log.warn("refresh() - Exception thrown while renewing token. Logging in again.", e);
+        }
+      }
+      if (this.authenticator.canLogin() && (null == next || next.durationMs < this.loginDurationMs * (1D - RENEW_FRACTION))) {
+        log.debug("refresh() - Token can no longer be renewed. Logging in again.");
+        login();
+        return;
+      }
+      if (null != next) {
+        log.debug("refresh() - Renewed token for {} ms.", next.durationMs);
+        update(next);
+      }
+    } catch (VaultException | RuntimeException e) {
+      final long delay = this.retry.delayMs(this.failures++);
+      log.warn("refresh() - Exception thrown while refreshing token. Retrying in {} ms.", delay, e);
+      schedule(delay);
+    }
+  }
+
+  synchronized void update(Lease lease) {
+    this.lease = lease;
+    this.failures = 0;
+    this.vaultConfig.token(lease.token);
+    if (lease.durationMs > 0 && (lease.renewable || this.authenticator.canLogin())) {
+      schedule(renewDelayMs(lease));
+    }
+  }
+
+  static long renewDelayMs(Lease lease) {
+    return Math.max(MIN_RENEW_DELAY_MS, (long) (lease.durationMs * RENEW_FRACTION));
+  }
+
+  synchronized void schedule(long delayMs) {
+    if (null == this.executor) {
+      return;
+    }
+    if (null != this.renewal) {
+      this.renewal.cancel(false);
+    }
+    this.renewal = this.executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        refresh();
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (null != this.executor) {
+      this.executor.shutdownNow();
+    }
+  }
+
+  static class DriverAuthenticator implements Authenticator {
+    static final String LOOKUP_SELF_PATH = "auth/token/lookup-self";
+    final KafkaVaultConfig config;
+    final VaultConfig vaultConfig;
+    final Vault vault;
+
+    DriverAuthenticator(KafkaVaultConfig config, VaultConfig vaultConfig, Vault vault) {
+      this.config = config;
+      this.vaultConfig = vaultConfig;
+      this.vault = vault;
+      if (canLogin()) {
+        Preconditions.checkState(
+            !this.config.vaultAuthRole.isEmpty(),
+            "%s must be set to use %s.",
+            KafkaVaultConfig.VAULT_AUTH_ROLE_CONF,
+            this.config.vaultAuthMethod
+        );
+      }
+    }
+
+    @Override
+    public boolean canLogin() {
+      return !KafkaVaultConfig.VAULT_AUTH_METHOD_TOKEN.equals(this.config.vaultAuthMethod);
+    }
+
+    @Override
+    public Lease login() throws VaultException {
+      switch (this.config.vaultAuthMethod) {
+        case KafkaVaultConfig.VAULT_AUTH_METHOD_APPROLE:
+          log.debug("login() - Logging in with approle at '{}'.", this.config.vaultAuthPath);
+          return lease(this.vault.auth().loginByAppRole(this.config.vaultAuthPath, this.config.vaultAuthRole, this.config.vaultAuthSecret));
+        case KafkaVaultConfig.VAULT_AUTH_METHOD_KUBERNETES:
+          log.debug("login() - Logging in with kubernetes at '{}'.", this.config.vaultAuthPath);
+          return loginKubernetes();
+        default:
+          return lookupSelf();
+      }
+    }
+
+    /**
+     * The configured token is used as is. Its lease is looked up so it can be renewed. Tokens that cannot look
+     * themselves up are used without renewal.
+     */
+    Lease lookupSelf() {
+      final String token = this.vaultConfig.getToken();
+      try {
+        LogicalResponse response = this.vault.logical().read(LOOKUP_SELF_PATH);
+        Map<String, String> data = response.getData();
+        final long ttl = null == data || null == data.get("ttl") ? 0L : Long.parseLong(data.get("ttl"));
+        final boolean renewable = null != data && Boolean.parseBoolean(data.get("renewable"));
+        return new Lease(token, TimeUnit.SECONDS.toMillis(ttl), renewable);
+      } catch (VaultException | RuntimeException e) {
+        log.warn("lookupSelf() - Exception thrown while looking up token. It will not be renewed.", e);
+        return new Lease(token, 0L, false);
+      }
+    }
+
+    Lease loginKubernetes() throws VaultException {
+      final String path = this.vaultConfig.getAddress() + "/v1/auth/" + this.config.vaultAuthPath + "/login";
+      try {
+        final String jwt = new String(Files.readAllBytes(Paths.get(this.config.vaultAuthJwtPath)), StandardCharsets.UTF_8).trim();
+        final String body = Json.object()
+            .add("role", this.config.vaultAuthRole)
+            .add("jwt", jwt)
+            .toString();
+        RestResponse response = new Rest()
+            .url(path)
+            .body(body.getBytes(StandardCharsets.UTF_8))
+            .connectTimeoutSeconds(this.vaultConfig.getOpenTimeout())
+            .readTimeoutSeconds(this.vaultConfig.getReadTimeout())
+            .sslPemUTF8(this.vaultConfig.getSslPemUTF8())
+            .sslVerification(this.vaultConfig.isSslVerify())
+            .post();
+        if (200 != response.getStatus()) {
+          throw new VaultException("Vault responded with HTTP status code " + response.getStatus() + " to " + path, response.getStatus());
+        }
+        return lease(new AuthResponse(response, 0));
+      } catch (IOException | RestException e) {
+        throw new VaultException(e);
+      }
+    }
+
+    @Override
+    public Lease renew(String token) throws VaultException {
+      return lease(this.vault.auth().renewSelf());
+    }
+
+    static Lease lease(AuthResponse response) throws VaultException {
+      final String token = response.getAuthClientToken();
+      if (null == token) {
+        throw new VaultException("Vault did not return a client token.");
+      }
+      return new Lease(token, TimeUnit.SECONDS.toMillis(response.getAuthLeaseDuration()), response.isAuthRenewable());
+    }
+  }
+}
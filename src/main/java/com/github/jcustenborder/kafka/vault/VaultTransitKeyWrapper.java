@@ -0,0 +1,108 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.bettercloud.vault.Vault;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Wraps data keys with the vault [transit](https://www.vaultproject.io/docs/secrets/transit/) backend. The wrapped key
+ * is the {@code vault:v1:...} ciphertext returned by vault.
+ */
+class VaultTransitKeyWrapper implements KeyWrapper {
+  private static final Logger log = LoggerFactory.getLogger(VaultTransitKeyWrapper.class);
+  final KafkaVaultConfig config;
+  final VaultSession session;
+  final Vault vault;
+  final String encryptPath;
+  final String decryptPath;
+  final String rewrapPath;
+  final VaultRetry retry;
+
+  VaultTransitKeyWrapper(KafkaVaultConfig config, VaultSession session) {
+    this.config = config;
+    this.session = session;
+    this.vault = session.vault;
+    this.retry = new VaultRetry(config, session);
+    this.encryptPath = this.config.envelopeTransitPath + "/encrypt/" + this.config.envelopeTransitKey;
+    this.decryptPath = this.config.envelopeTransitPath + "/decrypt/" + this.config.envelopeTransitKey;
+    this.rewrapPath = this.config.envelopeTransitPath + "/rewrap/" + this.config.envelopeTransitKey;
+  }
+
+  @Override
+  public byte[] wrap(String topic, byte[] dataKey) {
+    log.trace("wrap('{}') - Wrapping data key with '{}'.", topic, this.encryptPath);
+    try {
+      final Map<String, String> request = ImmutableMap.of("plaintext", BaseEncoding.base64().encode(dataKey));
+      LogicalResponse response = this.retry.execute(this.encryptPath, new VaultRetry.Request<LogicalResponse>() {
+        @Override
+        public LogicalResponse execute() throws VaultException {
+          return vault.logical().write(encryptPath, request);
+        }
+      });
+      String ciphertext = response.getData().get("ciphertext");
+      if (null == ciphertext) {
+        throw new IllegalStateException("Vault did not return a ciphertext for " + this.encryptPath);
+      }
+      return ciphertext.getBytes(StandardCharsets.UTF_8);
+    } catch (VaultException e) {
+      throw new IllegalStateException("Exception thrown while wrapping data key for " + topic, e);
+    }
+  }
+
+  @Override
+  public byte[] unwrap(String topic, byte[] wrappedKey) {
+    log.trace("unwrap('{}') - Unwrapping data key with '{}'.", topic, this.decryptPath);
+    try {
+      final Map<String, String> request = ImmutableMap.of("ciphertext", new String(wrappedKey, StandardCharsets.UTF_8));
+      LogicalResponse response = this.retry.execute(this.decryptPath, new VaultRetry.Request<LogicalResponse>() {
+        @Override
+        public LogicalResponse execute() throws VaultException {
+          return vault.logical().write(decryptPath, request);
+        }
+      });
+      String plaintext = response.getData().get("plaintext");
+      if (null == plaintext) {
+        throw new IllegalStateException("Vault did not return a plaintext for " + this.decryptPath);
+      }
+      return BaseEncoding.base64().decode(plaintext);
+    } catch (VaultException e) {
+      throw new IllegalStateException("Exception thrown while unwrapping data key for " + topic, e);
+    }
+  }
+
+  /**
+   * Uses the rewrap endpoint of the transit backend, so the data key is never returned by vault.
+   */
+  @Override
+  public byte[] rewrap(String topic, byte[] wrappedKey) {
+    log.trace("rewrap('{}') - Rewrapping data key with '{}'.", topic, this.rewrapPath);
+    try {
+      final Map<String, String> request = ImmutableMap.of("ciphertext", new String(wrappedKey, StandardCharsets.UTF_8));
+      LogicalResponse response = this.retry.execute(this.rewrapPath, new VaultRetry.Request<LogicalResponse>() {
+        @Override
+        public LogicalResponse execute() throws VaultException {
+          return vault.logical().write(rewrapPath, request);
+        }
+      });
+      String ciphertext = response.getData().get("ciphertext");
+      if (null == ciphertext) {
+        throw new IllegalStateException("Vault did not return a ciphertext for " + this.rewrapPath);
+      }
+      return ciphertext.getBytes(StandardCharsets.UTF_8);
+    } catch (VaultException e) {
+      throw new IllegalStateException("Exception thrown while rewrapping data key for " + topic, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    VaultSession.release(this.session);
+  }
+}
@@ -0,0 +1,158 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchDecryptInterceptorTest {
+  static final int PARTITIONS = 3;
+  final String TOPIC = "testing.topic";
+
+  Map<String, String> settings;
+  CryptoSerializer<String> serializer;
+  CryptoDeserializer<Object> deserializer;
+  BatchDecryptInterceptor<String, String> interceptor;
+
+  @Before
+  public void before() {
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    this.settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    this.settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+    this.settings.put(CryptoDeserializer.Config.PASSTHROUGH_ENABLED_CONF, "true");
+    this.settings.put(CryptoDeserializer.Config.BATCH_DECRYPT_PARALLELISM_CONF, "4");
+    this.settings.put(CryptoDeserializer.Config.BATCH_DECRYPT_KEYS_CONF, "true");
+
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(this.settings, false);
+    this.serializer.cipherManager.setRandomKey(TOPIC, SecretConfig.CIPHER_AES_GCM);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(this.settings, false);
+    this.interceptor = new BatchDecryptInterceptor<>();
+    this.interceptor.configure(this.settings);
+  }
+
+  @After
+  public void after() {
+    this.interceptor.close();
+    this.deserializer.close();
+    this.serializer.close();
+  }
+
+  @Test
+  public void passthrough() {
+    byte[] encrypted = this.serializer.serialize(TOPIC, "passthrough");
+    assertArrayEquals(encrypted, (byte[]) this.deserializer.deserialize(TOPIC, encrypted));
+  }
+
+  @Test
+  public void largeBatch() {
+    assertBatch(1000);
+  }
+
+  @Test
+  public void smallBatch() {
+    assertBatch(10);
+  }
+
+  @Test
+  public void nullValue() {
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> input = new LinkedHashMap<>();
+    input.put(
+        new TopicPartition(TOPIC, 0),
+        Arrays.asList(record(0, 0L, this.serializer.serialize(TOPIC, "key"), null))
+    );
+    ConsumerRecords<String, String> output = this.interceptor.onConsume(new ConsumerRecords<>(input));
+    ConsumerRecord<String, String> record = output.iterator().next();
+    assertEquals("key", record.key());
+    assertNull(record.value());
+  }
+
+  @Test
+  public void undecryptableRecord() {
+    for (int count : new int[]{10, 1000}) {
+      final int bad = count / 2;
+      List<ConsumerRecord<String, String>> records = new ArrayList<>();
+      for (long offset = 0; offset < count; offset++) {
+        byte[] value = this.serializer.serialize(TOPIC, "value-" + offset);
+        if (bad == offset) {
+          value[value.length - 1] ^= 0x01;
+        }
+        records.add(record(0, offset, this.serializer.serialize(TOPIC, "key-" + offset), value));
+      }
+      Map<TopicPartition, List<ConsumerRecord<String, String>>> input = new LinkedHashMap<>();
+      input.put(new TopicPartition(TOPIC, 0), records);
+
+      List<ConsumerRecord<String, String>> output =
+          this.interceptor.onConsume(new ConsumerRecords<>(input)).records(new TopicPartition(TOPIC, 0));
+      assertEquals(count, output.size());
+      for (int offset = 0; offset < count; offset++) {
+        ConsumerRecord<String, String> record = output.get(offset);
+        assertEquals("key-" + offset, record.key());
+        Object value = ((ConsumerRecord<?, ?>) record).value();
+        if (bad == offset) {
+          assertTrue(value instanceof DecryptionFailure);
+          DecryptionFailure failure = (DecryptionFailure) value;
+          assertEquals(TOPIC, failure.topic());
+          assertEquals(0, failure.partition());
+          assertEquals(offset, failure.offset());
+        } else {
+          assertEquals("value-" + offset, value);
+        }
+      }
+    }
+  }
+
+  void assertBatch(int count) {
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> input = new LinkedHashMap<>();
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      List<ConsumerRecord<String, String>> records = new ArrayList<>();
+      for (long offset = 0; offset < count; offset++) {
+        records.add(
+            record(
+                partition,
+                offset,
+                this.serializer.serialize(TOPIC, "key-" + partition + "-" + offset),
+                this.serializer.serialize(TOPIC, "value-" + partition + "-" + offset)
+            )
+        );
+      }
+      input.put(new TopicPartition(TOPIC, partition), records);
+    }
+
+    ConsumerRecords<String, String> output = this.interceptor.onConsume(new ConsumerRecords<>(input));
+    assertEquals(PARTITIONS * count, output.count());
+    for (int partition = 0; partition < PARTITIONS; partition++) {
+      List<ConsumerRecord<String, String>> records = output.records(new TopicPartition(TOPIC, partition));
+      assertEquals(count, records.size());
+      for (int offset = 0; offset < count; offset++) {
+        ConsumerRecord<String, String> record = records.get(offset);
+        assertEquals(offset, record.offset());
+        assertEquals("key-" + partition + "-" + offset, record.key());
+        assertEquals("value-" + partition + "-" + offset, record.value());
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  ConsumerRecord<String, String> record(int partition, long offset, byte[] key, byte[] value) {
+    ConsumerRecord<Object, Object> record = new ConsumerRecord<Object, Object>(TOPIC, partition, offset, key, value);
+    return (ConsumerRecord<String, String>) (ConsumerRecord<?, ?>) record;
+  }
+}
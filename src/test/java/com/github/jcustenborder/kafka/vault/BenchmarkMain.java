@@ -0,0 +1,41 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for the benchmark profile. Accepts the regular JMH command line, always attaches the gc profiler so the
+ * allocation rate is reported, and runs the selected benchmarks at 1, 4, 16 and 64 threads unless {@code -t} is passed.
+ */
+public class BenchmarkMain {
+  static final int[] THREADS = {1, 4, 16, 64};
+
+  public static void main(String... args) throws Exception {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList() || commandLineOptions.shouldListProfilers()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+
+    if (commandLineOptions.getThreads().hasValue()) {
+      run(commandLineOptions, commandLineOptions.getThreads().get());
+      return;
+    }
+
+    for (int threads : THREADS) {
+      run(commandLineOptions, threads);
+    }
+  }
+
+  static void run(CommandLineOptions commandLineOptions, int threads) throws Exception {
+    Options options = new OptionsBuilder()
+        .parent(commandLineOptions)
+        .threads(threads)
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ChunkedPayloadTest {
+  static final int CHUNK_SIZE = 100;
+  final String TOPIC = "testing.topic";
+
+  CipherManager.CipherState state;
+
+  @Before
+  public void before() throws Exception {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    SecretConfig secretConfig = new SecretConfig(
+        ImmutableMap.of(
+            SecretConfig.CIPHER_CONF, SecretConfig.CIPHER_AES_GCM,
+            SecretConfig.KEY_CONF, BaseEncoding.base64().encode(key)
+        )
+    );
+    this.state = new CipherManager.CipherState(TOPIC, 1234L, secretConfig);
+  }
+
+  byte[] encrypt(byte[] input) throws GeneralSecurityException {
+    byte[] output = new byte[ChunkedPayload.encryptedSize(input.length, CHUNK_SIZE)];
+    assertEquals(output.length, ChunkedPayload.encrypt(this.state, input, output, 0, CHUNK_SIZE));
+    return output;
+  }
+
+  byte[] decrypt(byte[] input) throws GeneralSecurityException {
+    byte[] output = new byte[ChunkedPayload.decryptedSize(input.length, CHUNK_SIZE)];
+    assertEquals(output.length, ChunkedPayload.decrypt(this.state, input, 0, input.length, output, CHUNK_SIZE));
+    return output;
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    for (int length : new int[]{0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 10, 12345}) {
+      byte[] expected = CompressionTest.compressible(length);
+      byte[] encrypted = encrypt(expected);
+      assertEquals(
+          ChunkedPayload.RECORD_ID_LENGTH + length + ChunkedPayload.chunks(length, CHUNK_SIZE) * ChunkedPayload.OVERHEAD,
+          encrypted.length
+      );
+      assertArrayEquals(expected, decrypt(encrypted));
+      try (InputStream inputStream = new ChunkedPayload.ChunkedInputStream(this.state, encrypted, 0, encrypted.length, CHUNK_SIZE)) {
+        assertArrayEquals(expected, ByteStreams.toByteArray(inputStream));
+      }
+    }
+  }
+
+  @Test(expected = AEADBadTagException.class)
+  public void reordered() throws Exception {
+    byte[] encrypted = encrypt(CompressionTest.compressible(CHUNK_SIZE * 3));
+    final int chunk = CHUNK_SIZE + ChunkedPayload.OVERHEAD;
+    final int start = ChunkedPayload.RECORD_ID_LENGTH;
+    byte[] first = Arrays.copyOfRange(encrypted, start, start + chunk);
+    System.arraycopy(encrypted, start + chunk, encrypted, start, chunk);
+    System.arraycopy(first, 0, encrypted, start + chunk, chunk);
+    decrypt(encrypted);
+  }
+
+  @Test
+  public void splicedBetweenRecords() throws Exception {
+    final int chunk = CHUNK_SIZE + ChunkedPayload.OVERHEAD;
+    final int start = ChunkedPayload.RECORD_ID_LENGTH;
+    byte[] first = encrypt(CompressionTest.compressible(CHUNK_SIZE * 3));
+    byte[] second = encrypt(CompressionTest.compressible(CHUNK_SIZE * 3));
+    System.arraycopy(first, start, second, start, chunk);
+    try {
+      decrypt(second);
+      fail("AEADBadTagException should have been thrown.");
+    } catch (AEADBadTagException e) {
+      // expected
+    }
+    try (InputStream inputStream = new ChunkedPayload.ChunkedInputStream(this.state, second, 0, second.length, CHUNK_SIZE)) {
+      inputStream.read();
+      fail("IOException should have been thrown.");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = AEADBadTagException.class)
+  public void truncated() throws Exception {
+    byte[] encrypted = encrypt(CompressionTest.compressible(CHUNK_SIZE * 3));
+    decrypt(Arrays.copyOf(encrypted, ChunkedPayload.RECORD_ID_LENGTH + (CHUNK_SIZE + ChunkedPayload.OVERHEAD) * 2));
+  }
+
+  @Test
+  public void streamFailsOnTamperedChunk() throws Exception {
+    final int length = CHUNK_SIZE * 3;
+    byte[] encrypted = encrypt(CompressionTest.compressible(length));
+    encrypted[encrypted.length - 1] ^= 1;
+    byte[] buffer = new byte[length];
+    int read = 0;
+    try (InputStream inputStream = new ChunkedPayload.ChunkedInputStream(this.state, encrypted, 0, encrypted.length, CHUNK_SIZE)) {
+      while (true) {
+        int count = inputStream.read(buffer, read, buffer.length - read);
+        if (count < 0) {
+          break;
+        }
+        read += count;
+      }
+      fail("IOException should have been thrown.");
+    } catch (IOException e) {
+      assertEquals("Only the chunks before the tampered one should be read.", CHUNK_SIZE * 2, read);
+    }
+  }
+
+  @Test
+  public void streamingDeserializer() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, ByteArraySerializer.class.getName());
+    settings.put(CryptoSerializer.Config.FORMAT_VERSION_CONF, "2");
+    settings.put(CryptoSerializer.Config.PAYLOAD_CHUNK_BYTES_CONF, Integer.toString(CHUNK_SIZE));
+    settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StreamingByteArrayDeserializer.class.getName());
+    CryptoSerializer<byte[]> serializer = new CryptoSerializer<>();
+    serializer.configure(settings, false);
+    CryptoDeserializer<byte[]> deserializer = new CryptoDeserializer<>();
+    deserializer.configure(settings, false);
+    try {
+      serializer.cipherManager.setRandomKey(TOPIC, SecretConfig.CIPHER_AES_GCM);
+      StreamingByteArrayDeserializer streaming = (StreamingByteArrayDeserializer) deserializer.deserializer;
+      for (int length : new int[]{CHUNK_SIZE, CHUNK_SIZE * 10 + 1}) {
+        byte[] expected = CompressionTest.compressible(length);
+        assertArrayEquals(expected, deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, expected)));
+      }
+      assertEquals("Only the chunked record should be streamed.", 1, streaming.streamed);
+    } finally {
+      serializer.close();
+      deserializer.close();
+    }
+  }
+
+  public static class StreamingByteArrayDeserializer extends ByteArrayDeserializer implements StreamingDeserializer<byte[]> {
+    int streamed;
+
+    @Override
+    public byte[] deserialize(String topic, InputStream inputStream) {
+      this.streamed++;
+      try {
+        return ByteStreams.toByteArray(inputStream);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
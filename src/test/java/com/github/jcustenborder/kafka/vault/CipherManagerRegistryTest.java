@@ -0,0 +1,187 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CipherManagerRegistryTest {
+  public static class StartKeyProvider extends InMemoryKeyProvider {
+    static volatile boolean fail;
+    static volatile CountDownLatch block;
+    static volatile CountDownLatch entered;
+    static final AtomicInteger closes = new AtomicInteger();
+
+    @Override
+    public Set<String> topics() {
+      if (fail) {
+        throw new IllegalStateException("topics failed");
+      }
+      if (null != block) {
+        entered.countDown();
+        try {
+          block.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return super.topics();
+    }
+
+    @Override
+    public void close() {
+      closes.incrementAndGet();
+    }
+  }
+
+  Map<String, String> settings;
+
+  @Before
+  public void before() {
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.VAULT_ADDRESS_CONF, "http://127.0.0.1:8200");
+    this.settings.put(CryptoSerializer.Config.KAFKA_SECRET_PATH_CONF, "kafka-" + System.nanoTime());
+    StartKeyProvider.fail = false;
+    StartKeyProvider.block = null;
+    StartKeyProvider.closes.set(0);
+  }
+
+  Map<String, String> prewarmSettings() {
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, StartKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.PREWARM_TOPIC_PATTERN_CONF, ".*");
+    return settings;
+  }
+
+  @Test
+  public void closedWhenStartFails() {
+    final CryptoSerializer.Config config = serializerConfig(prewarmSettings());
+    StartKeyProvider.fail = true;
+    try {
+      CipherManagerRegistry.acquire(config);
+      fail("IllegalStateException should have been thrown.");
+    } catch (IllegalStateException e) {
+      assertEquals("topics failed", e.getMessage());
+    }
+    assertEquals(1, StartKeyProvider.closes.get());
+    synchronized (CipherManagerRegistry.class) {
+      assertFalse(CipherManagerRegistry.MANAGERS.containsKey(CipherManagerRegistry.key(config)));
+    }
+
+    StartKeyProvider.fail = false;
+    CipherManager manager = CipherManagerRegistry.acquire(config);
+    CipherManagerRegistry.release(manager);
+    assertEquals(2, StartKeyProvider.closes.get());
+  }
+
+  @Test
+  public void startDoesNotBlockOtherConfigs() throws Exception {
+    final CryptoSerializer.Config config = serializerConfig(prewarmSettings());
+    StartKeyProvider.entered = new CountDownLatch(1);
+    StartKeyProvider.block = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Callable<CipherManager> acquire = new Callable<CipherManager>() {
+        @Override
+        public CipherManager call() throws Exception {
+          return CipherManagerRegistry.acquire(config);
+        }
+      };
+      Future<CipherManager> first = executor.submit(acquire);
+      assertTrue(StartKeyProvider.entered.await(10, TimeUnit.SECONDS));
+      Future<CipherManager> second = executor.submit(acquire);
+
+      Map<String, String> other = new LinkedHashMap<>(this.settings);
+      other.put(CryptoSerializer.Config.KAFKA_SECRET_PATH_CONF, this.settings.get(CryptoSerializer.Config.KAFKA_SECRET_PATH_CONF) + "-other");
+      CipherManager unrelated = CipherManagerRegistry.acquire(serializerConfig(other));
+      CipherManagerRegistry.release(unrelated);
+      Thread.sleep(50);
+      assertFalse(second.isDone());
+
+      StartKeyProvider.block.countDown();
+      CipherManager manager = first.get(10, TimeUnit.SECONDS);
+      assertSame(manager, second.get(10, TimeUnit.SECONDS));
+      CipherManagerRegistry.release(manager);
+      CipherManagerRegistry.release(manager);
+      assertEquals(1, StartKeyProvider.closes.get());
+    } finally {
+      StartKeyProvider.block.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  CryptoSerializer.Config serializerConfig(Map<String, String> settings) {
+    Map<String, String> copy = new LinkedHashMap<>(settings);
+    copy.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    return new CryptoSerializer.Config(copy);
+  }
+
+  CryptoDeserializer.Config deserializerConfig(Map<String, String> settings) {
+    Map<String, String> copy = new LinkedHashMap<>(settings);
+    copy.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+    return new CryptoDeserializer.Config(copy);
+  }
+
+  @Test
+  public void sharedBetweenSerializerAndDeserializer() {
+    CipherManager first = CipherManagerRegistry.acquire(serializerConfig(this.settings));
+    CipherManager second = CipherManagerRegistry.acquire(deserializerConfig(this.settings));
+    try {
+      assertSame(first, second);
+    } finally {
+      CipherManagerRegistry.release(second);
+      CipherManagerRegistry.release(first);
+    }
+  }
+
+  @Test
+  public void differentPath() {
+    Map<String, String> other = new LinkedHashMap<>(this.settings);
+    other.put(CryptoSerializer.Config.KAFKA_SECRET_PATH_CONF, this.settings.get(CryptoSerializer.Config.KAFKA_SECRET_PATH_CONF) + "-other");
+    CipherManager first = CipherManagerRegistry.acquire(serializerConfig(this.settings));
+    CipherManager second = CipherManagerRegistry.acquire(serializerConfig(other));
+    try {
+      assertNotSame(first, second);
+    } finally {
+      CipherManagerRegistry.release(second);
+      CipherManagerRegistry.release(first);
+    }
+  }
+
+  @Test
+  public void closedOnLastRelease() {
+    CipherManager first = CipherManagerRegistry.acquire(serializerConfig(this.settings));
+    CipherManager second = CipherManagerRegistry.acquire(serializerConfig(this.settings));
+    assertSame(first, second);
+
+    CipherManagerRegistry.release(first);
+    assertFalse(first.refreshExecutor.isShutdown());
+    CipherManagerRegistry.release(second);
+    assertTrue(first.refreshExecutor.isShutdown());
+
+    CipherManager third = CipherManagerRegistry.acquire(serializerConfig(this.settings));
+    try {
+      assertNotSame(first, third);
+    } finally {
+      CipherManagerRegistry.release(third);
+    }
+  }
+}
@@ -0,0 +1,426 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Time;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CipherManagerTest {
+  public static class MissingVersionsKeyProvider extends InMemoryKeyProvider {
+    final AtomicInteger listings = new AtomicInteger();
+
+    @Override
+    public Set<Long> versions(String topic) {
+      this.listings.incrementAndGet();
+      throw new KeyNotFoundException("Path " + topic + " does not exist.");
+    }
+  }
+
+  static final long CACHE_INTERVAL = 1000L;
+  static final long STALE_MS = 5000L;
+  static final int PREFETCH_MAX = 5;
+  final String TOPIC = "testing.topic";
+
+  MockTime time;
+  TestCipherManager manager;
+
+  @Before
+  public void before() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.VAULT_ADDRESS_CONF, "http://127.0.0.1:8200");
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.VERSION_PREFETCH_MAX_CONF, Integer.toString(PREFETCH_MAX));
+    settings.put(CryptoSerializer.Config.VAULT_CACHE_INTERVAL_MS_CONF, Long.toString(CACHE_INTERVAL));
+    settings.put(CryptoSerializer.Config.VAULT_CACHE_STALE_MS_CONF, Long.toString(STALE_MS));
+    this.time = new MockTime();
+    this.manager = new TestCipherManager(new CryptoSerializer.Config(settings), this.time);
+  }
+
+  @After
+  public void after() {
+    this.manager.close();
+  }
+
+  @Test
+  public void cached() {
+    CipherManager.CipherState first = this.manager.get(TOPIC);
+    CipherManager.CipherState second = this.manager.get(TOPIC);
+    assertEquals(first.version, second.version);
+    assertEquals(1, this.manager.loads.get());
+  }
+
+  @Test
+  public void refreshServesOldStateWhileLoading() throws Exception {
+    CipherManager.CipherState first = this.manager.get(TOPIC);
+    this.manager.block = new CountDownLatch(1);
+    this.time.sleep(CACHE_INTERVAL + 1);
+
+    CipherManager.CipherState state = this.manager.get(TOPIC);
+    assertEquals("Stale state should be returned while the refresh is blocked.", first.version, state.version);
+
+    this.manager.block.countDown();
+    assertEquals(first.version + 1, waitForVersion(first.version + 1).version);
+  }
+
+  @Test
+  public void staleWhileError() throws Exception {
+    CipherManager.CipherState first = this.manager.get(TOPIC);
+    this.manager.fail = true;
+
+    this.time.sleep(CACHE_INTERVAL + 1);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(first.version, this.manager.get(TOPIC).version);
+      Thread.sleep(50);
+    }
+
+    this.time.sleep(STALE_MS);
+    try {
+      this.manager.get(TOPIC);
+      fail("IllegalStateException should have been thrown once the stale window elapsed.");
+    } catch (IllegalStateException ex) {
+      assertTrue(ex.getMessage().contains(TOPIC));
+    }
+  }
+
+  @Test
+  public void keyWrapperCreatedOnFirstUse() {
+    this.manager.get(TOPIC);
+    assertNull(this.manager.keyWrapper);
+    assertTrue(this.manager.vaultRetries.isEmpty());
+    KeyWrapper keyWrapper = this.manager.keyWrapper();
+    assertTrue(keyWrapper instanceof VaultTransitKeyWrapper);
+    assertSame(keyWrapper, this.manager.keyWrapper());
+    assertEquals(1, this.manager.vaultRetries.size());
+  }
+
+  @Test
+  public void currentVersionServedFromVersionMap() {
+    CipherManager.CipherState current = this.manager.get(TOPIC);
+    assertSame(current, this.manager.get(TOPIC, current.version));
+    assertEquals(1, this.manager.loads.get());
+  }
+
+  @Test
+  public void versionLoadedOnce() {
+    CipherManager.CipherState state = this.manager.get(TOPIC, 12345L);
+    assertEquals(12345L, state.version);
+    assertSame(state, this.manager.get(TOPIC, 12345L));
+    assertEquals(1, this.manager.versionLoads.get());
+  }
+
+  @Test
+  public void versionMap() throws Exception {
+    CipherManager.VersionMap versions = new CipherManager.VersionMap(Integer.MAX_VALUE);
+    CipherManager.CipherState state = this.manager.get(TOPIC);
+    for (long version = 0; version < 1000; version++) {
+      assertNull(versions.get(version * 31));
+      versions.put(version * 31, state);
+    }
+    assertEquals(1000, versions.size());
+    for (long version = 0; version < 1000; version++) {
+      assertSame(state, versions.get(version * 31));
+      assertNull(versions.get(version * 31 + 1));
+    }
+    versions.put(0, state);
+    assertEquals(1000, versions.size());
+  }
+
+  @Test
+  public void versionMapEvictsLeastRecentlyUsed() throws Exception {
+    CipherManager.VersionMap versions = new CipherManager.VersionMap(3);
+    for (long version = 1; version <= 3; version++) {
+      versions.put(version, this.manager.create(TOPIC, version));
+    }
+    assertNotNull(versions.get(1));
+    assertNotNull(versions.get(3));
+    versions.put(4, this.manager.create(TOPIC, 4));
+    assertEquals(3, versions.size());
+    assertNull(versions.get(2));
+    assertNotNull(versions.get(1));
+    assertNotNull(versions.get(3));
+    assertNotNull(versions.get(4));
+  }
+
+  @Test
+  public void concurrentMissesLoadOnce() throws Exception {
+    final long version = 12345L;
+    this.manager.versionBlock = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<CipherManager.CipherState>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<CipherManager.CipherState>() {
+          @Override
+          public CipherManager.CipherState call() throws Exception {
+            return manager.get(TOPIC, version);
+          }
+        }));
+      }
+      Thread.sleep(100);
+      this.manager.versionBlock.countDown();
+      CipherManager.CipherState state = futures.get(0).get(30, TimeUnit.SECONDS);
+      for (Future<CipherManager.CipherState> future : futures) {
+        assertSame(state, future.get(30, TimeUnit.SECONDS));
+      }
+      assertEquals(1, this.manager.versionLoads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void failedLoadNotRepeatedByWaiters() throws Exception {
+    final long version = 12345L;
+    this.manager.versionBlock = new CountDownLatch(1);
+    this.manager.versionFail = true;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<CipherManager.CipherState>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<CipherManager.CipherState>() {
+          @Override
+          public CipherManager.CipherState call() throws Exception {
+            return manager.get(TOPIC, version);
+          }
+        }));
+      }
+      Thread.sleep(100);
+      this.manager.versionBlock.countDown();
+      for (Future<CipherManager.CipherState> future : futures) {
+        try {
+          future.get(30, TimeUnit.SECONDS);
+          fail("IllegalStateException should have been thrown.");
+        } catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+      }
+      assertEquals(1, this.manager.versionLoads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void missingListingDoesNotTripCircuitBreaker() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, MissingVersionsKeyProvider.class.getName());
+    CipherManager manager = new CipherManager(new CryptoSerializer.Config(settings));
+    try {
+      for (int i = 0; i <= manager.config.circuitBreakerFailureThreshold; i++) {
+        assertNull(manager.listVersions(TOPIC, 1L));
+      }
+      assertEquals(
+          manager.config.circuitBreakerFailureThreshold + 1,
+          ((MissingVersionsKeyProvider) manager.keyProvider).listings.get()
+      );
+      assertEquals(CircuitBreaker.State.CLOSED, manager.circuitBreaker.state());
+    } finally {
+      manager.close();
+    }
+  }
+
+  @Test
+  public void prefetchFollowingVersions() throws Exception {
+    for (long version = 1; version <= 20; version++) {
+      this.manager.keyProvider.secret(TOPIC, version, ImmutableMap.<String, String>of());
+    }
+    this.manager.get(TOPIC, 3L);
+
+    CipherManager.VersionMap versions = this.manager.versions(TOPIC);
+    long end = System.currentTimeMillis() + 30000;
+    while (versions.size() < PREFETCH_MAX + 1 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(PREFETCH_MAX + 1, versions.size());
+    for (long version = 3; version <= 3 + PREFETCH_MAX; version++) {
+      this.manager.get(TOPIC, version);
+    }
+    assertEquals(PREFETCH_MAX + 1, this.manager.versionLoads.get());
+    assertNull(versions.get(3 + PREFETCH_MAX + 1));
+  }
+
+  @Test
+  public void missingVersionCached() {
+    this.manager.missing = true;
+    for (int i = 0; i < 3; i++) {
+      try {
+        this.manager.get(TOPIC, 42L);
+        fail("KeyNotFoundException should have been thrown.");
+      } catch (KeyNotFoundException e) {
+        assertEquals("Missing version should only be loaded once.", 1, this.manager.versionLoads.get());
+      }
+    }
+
+    this.manager.missing = false;
+    this.time.sleep(KafkaVaultConfig.NEGATIVE_CACHE_MS_DEFAULT + 1);
+    assertEquals(42L, this.manager.get(TOPIC, 42L).version);
+    assertEquals(2, this.manager.versionLoads.get());
+  }
+
+  @Test
+  public void prewarm() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.PREWARM_TOPICS_CONF, "listed.topic");
+    settings.put(CryptoSerializer.Config.PREWARM_TOPIC_PATTERN_CONF, "prewarm\\..+");
+    CipherManager manager = new CipherManager(new CryptoSerializer.Config(settings));
+    try {
+      for (String topic : new String[]{"listed.topic", "prewarm.first", "prewarm.second", "other.topic"}) {
+        manager.setRandomKey(topic);
+      }
+      manager.start();
+      assertEquals(
+          ImmutableSet.of("listed.topic", "prewarm.first", "prewarm.second"),
+          manager.stateCache.asMap().keySet()
+      );
+    } finally {
+      manager.close();
+    }
+  }
+
+  @Test
+  public void prewarmFailure() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.PREWARM_TOPICS_CONF, "missing.topic");
+    CipherManager manager = new CipherManager(new CryptoSerializer.Config(settings));
+    try {
+      manager.start();
+      assertEquals(0, manager.stateCache.size());
+    } finally {
+      manager.close();
+    }
+  }
+
+  CipherManager.CipherState waitForVersion(long version) throws InterruptedException {
+    long end = System.currentTimeMillis() + 30000;
+    CipherManager.CipherState state;
+    do {
+      state = this.manager.get(TOPIC);
+      if (state.version == version) {
+        return state;
+      }
+      Thread.sleep(10);
+    } while (System.currentTimeMillis() < end);
+    return state;
+  }
+
+  static class TestCipherManager extends CipherManager {
+    final AtomicInteger loads = new AtomicInteger();
+    final AtomicInteger versionLoads = new AtomicInteger();
+    final SecureRandom random = new SecureRandom();
+    volatile CountDownLatch block;
+    volatile CountDownLatch versionBlock;
+    volatile boolean fail;
+    volatile boolean missing;
+    volatile boolean versionFail;
+
+    TestCipherManager(KafkaVaultConfig config, Time time) {
+      super(config, time);
+    }
+
+    @Override
+    CipherState loadCurrent(String topic) throws GeneralSecurityException {
+      if (null != this.block) {
+        try {
+          this.block.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      if (this.fail) {
+        throw new IllegalStateException("Simulated vault failure for " + topic);
+      }
+      return create(topic, this.loads.incrementAndGet());
+    }
+
+    @Override
+    CipherState loadVersion(String topic, long version) throws GeneralSecurityException {
+      if (null != this.versionBlock) {
+        try {
+          this.versionBlock.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      this.versionLoads.incrementAndGet();
+      if (this.missing) {
+        throw new KeyNotFoundException("Simulated missing version " + version + " for " + topic);
+      }
+      if (this.versionFail) {
+        throw new IllegalStateException("Simulated vault failure for " + topic + " version " + version);
+      }
+      return create(topic, version);
+    }
+
+    CipherState create(String topic, long version) throws GeneralSecurityException {
+      byte[] keyBytes = new byte[32];
+      byte[] iv = new byte[16];
+      random.nextBytes(keyBytes);
+      random.nextBytes(iv);
+      SecretConfig secretConfig = new SecretConfig(
+          ImmutableMap.of(
+              SecretConfig.KEY_CONF, BaseEncoding.base64().encode(keyBytes),
+              SecretConfig.IV_CONF, BaseEncoding.base64().encode(iv)
+          )
+      );
+      return new CipherState(topic, version, secretConfig);
+    }
+  }
+
+  static class MockTime implements Time {
+    final AtomicLong nanos = new AtomicLong(TimeUnit.MILLISECONDS.toNanos(1000000L));
+
+    @Override
+    public long milliseconds() {
+      return TimeUnit.NANOSECONDS.toMillis(this.nanos.get());
+    }
+
+    @Override
+    public long hiResClockMs() {
+      return milliseconds();
+    }
+
+    @Override
+    public long nanoseconds() {
+      return this.nanos.get();
+    }
+
+    @Override
+    public void sleep(long ms) {
+      this.nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+  }
+}
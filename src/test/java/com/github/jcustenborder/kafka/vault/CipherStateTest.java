@@ -0,0 +1,158 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(Parameterized.class)
+public class CipherStateTest {
+  static final int THREADS = 48;
+  static final int ITERATIONS = 2000;
+  final String TOPIC = "testing.topic";
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> ciphers() {
+    return Arrays.asList(
+        new Object[]{SecretConfig.CIPHER_AES_CBC},
+        new Object[]{SecretConfig.CIPHER_AES_GCM}
+    );
+  }
+
+  @Parameterized.Parameter
+  public String cipher;
+
+  CipherManager.CipherState state;
+
+  @Before
+  public void before() throws Exception {
+    SecureRandom random = new SecureRandom();
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    random.nextBytes(key);
+    random.nextBytes(iv);
+    SecretConfig secretConfig = new SecretConfig(
+        ImmutableMap.of(
+            SecretConfig.CIPHER_CONF, this.cipher,
+            SecretConfig.KEY_CONF, BaseEncoding.base64().encode(key),
+            SecretConfig.IV_CONF, BaseEncoding.base64().encode(iv)
+        )
+    );
+    this.state = new CipherManager.CipherState(TOPIC, 1234L, secretConfig);
+  }
+
+  @Test
+  public void cipherPerThread() throws Exception {
+    assertSame(this.state.encryptCipher(), this.state.encryptCipher());
+    assertSame(this.state.decryptCipher(), this.state.decryptCipher());
+
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      Object other = executorService.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return state.encryptCipher();
+        }
+      }).get();
+      assertNotSame(this.state.encryptCipher(), other);
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void concurrentRoundTrip() throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+    List<Future<Integer>> futures = new ArrayList<>(THREADS);
+
+    try {
+      for (int i = 0; i < THREADS; i++) {
+        final int thread = i;
+        futures.add(executorService.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            start.await();
+            int count = 0;
+            for (int j = 0; j < ITERATIONS; j++) {
+              StringBuilder builder = new StringBuilder();
+              builder.append("thread=").append(thread).append(" iteration=").append(j).append(' ');
+              for (int k = 0; k < j % 64; k++) {
+                builder.append((char) ('a' + (k % 26)));
+              }
+              byte[] expected = builder.toString().getBytes(StandardCharsets.UTF_8);
+              assertArrayEquals(expected, decrypt(encrypt(expected)));
+              count++;
+            }
+            return count;
+          }
+        }));
+      }
+      start.countDown();
+
+      for (Future<Integer> future : futures) {
+        assertEquals(ITERATIONS, (int) future.get(2, TimeUnit.MINUTES));
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+    assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void nonceIsUniquePerRecord() throws Exception {
+    assumeTrue(this.state.authenticated);
+    byte[] expected = "This is a testing string".getBytes(StandardCharsets.UTF_8);
+    byte[] first = encrypt(expected);
+    byte[] second = encrypt(expected);
+    assertEquals(CipherManager.CipherState.GCM_NONCE_LENGTH + expected.length + CipherManager.CipherState.GCM_TAG_LENGTH, first.length);
+    assertFalse(Arrays.equals(first, second));
+    assertArrayEquals(expected, decrypt(first));
+    assertArrayEquals(expected, decrypt(second));
+  }
+
+  @Test(expected = AEADBadTagException.class)
+  public void tampered() throws Exception {
+    assumeTrue(this.state.authenticated);
+    byte[] encrypted = encrypt("This is a testing string".getBytes(StandardCharsets.UTF_8));
+    encrypted[CipherManager.CipherState.GCM_NONCE_LENGTH + 2] ^= 0x01;
+    decrypt(encrypted);
+  }
+
+  byte[] encrypt(byte[] input) throws GeneralSecurityException {
+    byte[] output = new byte[this.state.encryptedSize(input.length)];
+    int written = this.state.encrypt(input, 0, input.length, output, 0);
+    return Arrays.copyOf(output, written);
+  }
+
+  byte[] decrypt(byte[] input) throws GeneralSecurityException {
+    byte[] output = new byte[this.state.decryptedSize(input.length)];
+    int written = this.state.decrypt(input, 0, input.length, output, 0);
+    return Arrays.copyOf(output, written);
+  }
+}
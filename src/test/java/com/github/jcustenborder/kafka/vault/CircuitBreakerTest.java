@@ -0,0 +1,102 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.bettercloud.vault.VaultException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+  static final int THRESHOLD = 3;
+  static final long OPEN_MS = 10000L;
+
+  CipherManagerTest.MockTime time;
+  CircuitBreaker circuitBreaker;
+
+  @Before
+  public void before() {
+    this.time = new CipherManagerTest.MockTime();
+    this.circuitBreaker = new CircuitBreaker(THRESHOLD, OPEN_MS, this.time);
+  }
+
+  void fails() {
+    this.circuitBreaker.acquire();
+    this.circuitBreaker.failure();
+  }
+
+  void assertFailsFast() {
+    try {
+      this.circuitBreaker.acquire();
+      fail("IllegalStateException should have been thrown.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void opensAfterThreshold() {
+    for (int i = 0; i < THRESHOLD - 1; i++) {
+      fails();
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.state());
+    fails();
+    assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.state());
+    assertFailsFast();
+  }
+
+  @Test
+  public void successResetsFailures() {
+    for (int i = 0; i < THRESHOLD - 1; i++) {
+      fails();
+    }
+    this.circuitBreaker.acquire();
+    this.circuitBreaker.success();
+    fails();
+    assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.state());
+  }
+
+  @Test
+  public void halfOpen() {
+    for (int i = 0; i < THRESHOLD; i++) {
+      fails();
+    }
+    this.time.sleep(OPEN_MS);
+    this.circuitBreaker.acquire();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, this.circuitBreaker.state());
+    assertFailsFast();
+
+    this.circuitBreaker.failure();
+    assertEquals("A failed trial should open the breaker again.", CircuitBreaker.State.OPEN, this.circuitBreaker.state());
+    assertFailsFast();
+
+    this.time.sleep(OPEN_MS);
+    this.circuitBreaker.acquire();
+    this.circuitBreaker.success();
+    assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.state());
+    this.circuitBreaker.acquire();
+  }
+
+  @Test
+  public void retryBackoff() {
+    VaultRetry retry = new VaultRetry(10, 100L, 1000L);
+    for (int attempt = 0; attempt < 10; attempt++) {
+      long ceiling = Math.min(1000L, 100L << attempt);
+      for (int i = 0; i < 100; i++) {
+        long delay = retry.delayMs(attempt);
+        assertTrue("Delay " + delay + " for attempt " + attempt, delay >= ceiling / 2 && delay <= ceiling);
+      }
+    }
+  }
+
+  @Test
+  public void retriable() {
+    assertTrue(VaultRetry.retriable(new VaultException("connection refused")));
+    assertTrue(VaultRetry.retriable(new VaultException("unavailable", 503)));
+    assertTrue(VaultRetry.retriable(new VaultException("rate limited", 429)));
+    assertFalse(VaultRetry.retriable(new VaultException("not found", 404)));
+    assertFalse(VaultRetry.retriable(new VaultException("denied", 403)));
+  }
+}
@@ -0,0 +1,93 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class CompressionTest {
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> compressions() {
+    List<Object[]> result = new ArrayList<>();
+    for (Compression compression : Compression.values()) {
+      if (!compression.isNone()) {
+        result.add(new Object[]{compression});
+      }
+    }
+    return result;
+  }
+
+  static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+  @Parameterized.Parameter
+  public Compression compression;
+
+  static byte[] compressible(int length) {
+    StringBuilder builder = new StringBuilder();
+    while (builder.length() < length) {
+      builder.append("{\"firstName\":\"example\",\"lastName\":\"user\",\"id\":").append(builder.length()).append('}');
+    }
+    return builder.substring(0, length).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void roundTrip() {
+    for (int length : new int[]{256, 4096, 1024 * 1024}) {
+      byte[] expected = compressible(length);
+      byte[] compressed = this.compression.compress(expected);
+      assertTrue(compressed.length < expected.length);
+      assertArrayEquals(expected, this.compression.decompress(compressed, 0, compressed.length, MAX_LENGTH));
+    }
+  }
+
+  @Test
+  public void offset() {
+    byte[] expected = compressible(4096);
+    byte[] compressed = this.compression.compress(expected);
+    byte[] padded = new byte[compressed.length + 10];
+    System.arraycopy(compressed, 0, padded, 5, compressed.length);
+    assertArrayEquals(expected, this.compression.decompress(padded, 5, compressed.length, MAX_LENGTH));
+  }
+
+  @Test
+  public void incompressible() {
+    byte[] random = new byte[4096];
+    new SecureRandom().nextBytes(random);
+    assertNull(this.compression.compress(random));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void corrupt() {
+    byte[] compressed = this.compression.compress(compressible(4096));
+    for (int i = compressed.length / 2; i < compressed.length; i++) {
+      compressed[i] = (byte) 0xFF;
+    }
+    this.compression.decompress(compressed, 0, compressed.length, MAX_LENGTH);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void overLimit() {
+    byte[] compressed = this.compression.compress(compressible(4096));
+    this.compression.decompress(compressed, 0, compressed.length, 4095);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void lengthPrefixLargerThanPayload() {
+    byte[] compressed = this.compression.compress(compressible(4096));
+    byte[] forged = new byte[compressed.length + Varint.MAX_LENGTH];
+    int prefixLength = Varint.write(Integer.MAX_VALUE - 8, forged, 0);
+    System.arraycopy(compressed, Varint.size(4096), forged, prefixLength, compressed.length - Varint.size(4096));
+    this.compression.decompress(forged, 0, prefixLength + compressed.length - Varint.size(4096), Integer.MAX_VALUE);
+  }
+}
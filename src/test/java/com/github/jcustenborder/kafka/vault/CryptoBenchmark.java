@@ -0,0 +1,113 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CryptoSerializer#serialize(String, Object)} and {@link CryptoDeserializer#deserialize(String, byte[])}
+ * against {@link InMemoryKeyProvider}, so vault is not needed. The {@code cache} parameter controls whether the key lookup
+ * is served from the state cache or has to load the key on every call. {@link BenchmarkMain} runs every benchmark at
+ * 1, 4, 16 and 64 threads with the gc profiler. Run with {@code mvn -Pbenchmark test -Djmh.args="CryptoBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+  static final String TOPIC = "testing.topic";
+
+  @Param({"64", "1024", "65536", "1048576"})
+  int payloadSize;
+
+  @Param({SecretConfig.CIPHER_AES_CBC, SecretConfig.CIPHER_AES_GCM})
+  String cipher;
+
+  @Param({"hit", "miss"})
+  String cache;
+
+  boolean miss;
+  byte[] payload;
+  byte[] encrypted;
+  CipherManager cipherManager;
+  CryptoSerializer<byte[]> serializer;
+  CryptoDeserializer<byte[]> deserializer;
+
+  @Setup
+  public void setup() {
+    this.miss = "miss".equals(this.cache);
+    this.payload = new byte[this.payloadSize];
+    new Random().nextBytes(this.payload);
+
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, ByteArraySerializer.class.getName());
+    settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, ByteArrayDeserializer.class.getName());
+
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(settings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(settings, false);
+    this.cipherManager = this.serializer.cipherManager;
+    this.cipherManager.setRandomKey(TOPIC, this.cipher);
+    this.encrypted = this.serializer.serialize(TOPIC, this.payload);
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.serializer.close();
+    this.deserializer.close();
+  }
+
+  /**
+   * Counts the payload bytes processed so JMH reports bytes/s next to ops/s.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      this.bytes = 0;
+    }
+  }
+
+  @Benchmark
+  public byte[] serialize(Bytes bytes) {
+    if (this.miss) {
+      this.cipherManager.invalidateAll();
+    }
+    bytes.bytes += this.payloadSize;
+    return this.serializer.serialize(TOPIC, this.payload);
+  }
+
+  @Benchmark
+  public byte[] deserialize(Bytes bytes) {
+    if (this.miss) {
+      this.cipherManager.invalidateAll();
+    }
+    bytes.bytes += this.payloadSize;
+    return this.deserializer.deserialize(TOPIC, this.encrypted);
+  }
+}
@@ -0,0 +1,188 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CryptoDeserializerTest {
+  static final int THREADS = 8;
+  static final int ITERATIONS = 500;
+  final String TOPIC = "testing.topic";
+
+  Map<String, String> settings;
+  CryptoSerializer<String> serializer;
+  CryptoDeserializer<String> deserializer;
+
+  @Before
+  public void before() {
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    this.settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    this.settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+  }
+
+  void configure() {
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(this.settings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(this.settings, false);
+    this.serializer.cipherManager.setRandomKey(TOPIC, SecretConfig.CIPHER_AES_GCM);
+  }
+
+  @After
+  public void after() {
+    if (null != this.serializer) {
+      this.serializer.close();
+      this.deserializer.close();
+    }
+  }
+
+  static String value(int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) ('a' + i % 26);
+    }
+    return new String(chars);
+  }
+
+  void assertRejected(byte[] record) {
+    try {
+      this.deserializer.deserialize(TOPIC, record);
+      fail("Record should have been rejected.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void lengthField() {
+    configure();
+    byte[] record = this.serializer.serialize(TOPIC, value(100));
+    final int length = record.length - KafkaVaultConfig.HEADER_LENGTH;
+
+    byte[] overLong = record.clone();
+    ByteBuffer.wrap(overLong, 9, 4).putInt(length + 1);
+    assertRejected(overLong);
+
+    byte[] negative = record.clone();
+    ByteBuffer.wrap(negative, 9, 4).putInt(-1);
+    assertRejected(negative);
+
+    byte[] truncated = record.clone();
+    ByteBuffer.wrap(truncated, 9, 4).putInt(length - 16);
+    assertRejected(truncated);
+
+    assertRejected(Arrays.copyOf(record, record.length - 1));
+    assertRejected(Arrays.copyOf(record, KafkaVaultConfig.HEADER_LENGTH - 1));
+  }
+
+  @Test
+  public void scratchBuffer() {
+    configure();
+    String value = value(100);
+    assertEquals(value, this.deserializer.deserialize(TOPIC, this.serializer.serialize(TOPIC, value)));
+    byte[] scratch = this.deserializer.scratchBuffer.get();
+    assertNotNull(scratch);
+    for (byte b : scratch) {
+      assertEquals("Scratch buffer should be cleared after use.", 0, b);
+    }
+  }
+
+  @Test
+  public void largerThanScratchBuffer() {
+    this.settings.put(CryptoDeserializer.Config.SCRATCH_BUFFER_MAX_BYTES_CONF, "64");
+    configure();
+    String value = value(1000);
+    assertEquals(value, this.deserializer.deserialize(TOPIC, this.serializer.serialize(TOPIC, value)));
+    assertNull(this.deserializer.scratchBuffer.get());
+
+    String small = value(10);
+    assertEquals(small, this.deserializer.deserialize(TOPIC, this.serializer.serialize(TOPIC, small)));
+    assertTrue(this.deserializer.scratchBuffer.get().length <= 64);
+  }
+
+  @Test
+  public void scratchBufferDisabled() {
+    this.settings.put(CryptoDeserializer.Config.SCRATCH_BUFFER_MAX_BYTES_CONF, "0");
+    configure();
+    for (int length : new int[]{0, 1, 100, 10000}) {
+      String value = value(length);
+      assertEquals(value, this.deserializer.deserialize(TOPIC, this.serializer.serialize(TOPIC, value)));
+    }
+    assertNull(this.deserializer.scratchBuffer.get());
+  }
+
+  @Test
+  public void gcmKeyRotatedAtEncryptionLimit() {
+    this.settings.put(CryptoSerializer.Config.GCM_MAX_ENCRYPTIONS_CONF, "10");
+    configure();
+    Set<Long> versions = new HashSet<>();
+    List<byte[]> records = new ArrayList<>();
+    for (int i = 0; i < 35; i++) {
+      byte[] record = this.serializer.serialize(TOPIC, value(i));
+      versions.add(ByteBuffer.wrap(record, 1, 8).getLong());
+      records.add(record);
+    }
+    assertEquals(4, versions.size());
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals(value(i), this.deserializer.deserialize(TOPIC, records.get(i)));
+    }
+  }
+
+  @Test
+  public void concurrent() throws Exception {
+    this.settings.put(CryptoDeserializer.Config.SCRATCH_BUFFER_MAX_BYTES_CONF, "4096");
+    configure();
+    final List<String> values = new ArrayList<>();
+    final List<byte[]> records = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      String value = i + value(i * 97);
+      values.add(value);
+      records.add(this.serializer.serialize(TOPIC, value));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        final int offset = thread;
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int i = 0; i < ITERATIONS; i++) {
+              int index = (i * 7 + offset) % records.size();
+              assertEquals(values.get(index), deserializer.deserialize(TOPIC, records.get(index)));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CryptoMetricsTest {
+  static final int RECORDS = 10;
+  final String TOPIC = "testing.topic";
+
+  CryptoSerializer<String> serializer;
+  CryptoDeserializer<String> deserializer;
+  CryptoMetrics metrics;
+
+  @Before
+  public void before() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.METRICS_SAMPLE_INTERVAL_CONF, "1");
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(settings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(settings, false);
+    this.serializer.cipherManager.setRandomKey(TOPIC);
+    this.metrics = this.serializer.cipherManager.metrics;
+  }
+
+  @After
+  public void after() {
+    this.serializer.close();
+    this.deserializer.close();
+  }
+
+  double value(String name) {
+    return this.metrics.metrics.metric(this.metrics.metrics.metricName(name, CryptoMetrics.GROUP, this.metrics.tags)).value();
+  }
+
+  double topicValue(String name) {
+    Map<String, String> tags = new LinkedHashMap<>(this.metrics.tags);
+    tags.put("topic", TOPIC);
+    return this.metrics.metrics.metric(this.metrics.metrics.metricName(name, CryptoMetrics.TOPIC_GROUP, tags)).value();
+  }
+
+  @Test
+  public void roundTrip() {
+    long plaintextBytes = 0;
+    long encryptedBytes = 0;
+    for (int i = 0; i < RECORDS; i++) {
+      String value = "This is testing string " + i;
+      byte[] encrypted = this.serializer.serialize(TOPIC, value);
+      assertEquals(value, this.deserializer.deserialize(TOPIC, encrypted));
+      plaintextBytes += value.length();
+      encryptedBytes += encrypted.length;
+    }
+
+    assertEquals(RECORDS, value("encrypt-records-total"), 0D);
+    assertEquals(plaintextBytes, value("encrypt-bytes-in-total"), 0D);
+    assertEquals(encryptedBytes, value("encrypt-bytes-out-total"), 0D);
+    assertEquals(RECORDS, value("decrypt-records-total"), 0D);
+    assertEquals(encryptedBytes, value("decrypt-bytes-in-total"), 0D);
+    assertEquals(plaintextBytes, value("decrypt-bytes-out-total"), 0D);
+    assertEquals(1D, value("cache-load-total"), 0D);
+    assertEquals(RECORDS - 1, value("cache-hit-total"), 0D);
+    assertEquals(RECORDS, value("version-cache-hit-total"), 0D);
+    assertTrue(value("encrypt-latency-max") > 0D);
+    assertTrue(value("decrypt-latency-max") > 0D);
+    assertEquals(this.serializer.cipherManager.get(TOPIC).version, topicValue("key-version"), 0D);
+    assertTrue(topicValue("key-age-ms") >= 0D);
+  }
+
+  @Test
+  public void keyProviderErrors() {
+    try {
+      this.serializer.serialize("missing.topic", "value");
+      fail("IllegalStateException should have been thrown.");
+    } catch (IllegalStateException e) {
+      assertEquals(1D, value("key-provider-error-count"), 0D);
+      assertEquals(1D, value("cache-load-failure-total"), 0D);
+    }
+  }
+
+  @Test
+  public void stripedCounter() throws Exception {
+    final StripedCounter counter = new StripedCounter();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int j = 0; j < 10000; j++) {
+              counter.increment();
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(80000L, counter.sum());
+  }
+}
@@ -0,0 +1,103 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.Serdes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CryptoSerdeTest {
+  final String TOPIC = "testing.topic";
+  final String CHANGELOG_TOPIC = "application-store-changelog";
+  final String VALUE = "This is a test value.";
+
+  Map<String, String> settings;
+  CryptoSerde<String> serde;
+
+  @Before
+  public void before() {
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerde.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    this.settings.put(CryptoSerde.Config.PLAINTEXT_TOPIC_PATTERN_CONF, ".*-(changelog|repartition)");
+    this.serde = new CryptoSerde<>(Serdes.String());
+    this.serde.configure(this.settings, false);
+    this.serde.serializer.cipherManager.setRandomKey(TOPIC);
+  }
+
+  @After
+  public void after() {
+    this.serde.close();
+  }
+
+  @Test
+  public void roundTrip() {
+    assertSame(this.serde.serializer.cipherManager, this.serde.deserializer.cipherManager);
+    byte[] encrypted = this.serde.serializer().serialize(TOPIC, VALUE);
+    assertFalse(Arrays.equals(VALUE.getBytes(StandardCharsets.UTF_8), encrypted));
+    assertEquals(VALUE, this.serde.deserializer().deserialize(TOPIC, encrypted));
+  }
+
+  @Test
+  public void tombstone() {
+    byte[] serialized = this.serde.serializer().serialize(TOPIC, null);
+    assertNull(serialized);
+    assertNull(this.serde.deserializer().deserialize(TOPIC, serialized));
+    assertEquals(0L, this.serde.serializer.cipherManager.metrics.encryptRecords.sum());
+  }
+
+  @Test
+  public void plaintextTopics() {
+    byte[] serialized = this.serde.serializer().serialize(CHANGELOG_TOPIC, VALUE);
+    assertArrayEquals(VALUE.getBytes(StandardCharsets.UTF_8), serialized);
+    assertEquals(VALUE, this.serde.deserializer().deserialize(CHANGELOG_TOPIC, serialized));
+  }
+
+  @Test
+  public void serdeClass() {
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerde.Config.SERDE_CLASS_CONF, Serdes.StringSerde.class.getName());
+    CryptoSerde<String> serde = new CryptoSerde<>();
+    serde.configure(settings, false);
+    try {
+      assertEquals(VALUE, serde.deserializer().deserialize(TOPIC, serde.serializer().serialize(TOPIC, VALUE)));
+    } finally {
+      serde.close();
+    }
+  }
+
+  @Test
+  public void serdeSettings() {
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerde.Config.SERDE_CLASS_CONF, Serdes.StringSerde.class.getName());
+    settings.put("serde.serializer.encoding", "UTF-16");
+    CryptoSerde.Config config = new CryptoSerde.Config(settings);
+    assertEquals(Collections.<String, Object>singletonMap("serializer.encoding", "UTF-16"), config.serdeSettings);
+  }
+
+  @Test(expected = ConfigException.class)
+  public void serdeRequired() {
+    new CryptoSerde<String>().configure(this.settings, false);
+  }
+
+  @Test
+  public void topicMatcher() {
+    TopicMatcher matcher = new TopicMatcher(Arrays.asList("plain"), "internal-.*");
+    assertEquals(true, matcher.matches("plain"));
+    assertEquals(true, matcher.matches("internal-topic"));
+    assertEquals(false, matcher.matches(TOPIC));
+    assertEquals(3, matcher.values.size());
+    assertEquals(false, new TopicMatcher(Arrays.<String>asList(), "").matches(TOPIC));
+  }
+}
@@ -0,0 +1,99 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single allocation serialize path against the previous path that encrypted into a temporary array and
+ * copied it into a framed {@link ByteBuffer}. Run with {@code mvn -Pbenchmark test -Djmh.args="CryptoSerializerBenchmark -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoSerializerBenchmark {
+  static final String TOPIC = "testing.topic";
+
+  @Param({"1024", "51200", "204800"})
+  int payloadSize;
+
+  byte[] payload;
+  CryptoSerializer<byte[]> serializer;
+  CipherManager.CipherState state;
+
+  @Setup
+  public void setup() throws GeneralSecurityException {
+    SecureRandom random = new SecureRandom();
+    this.payload = new byte[this.payloadSize];
+    random.nextBytes(this.payload);
+
+    byte[] key = new byte[32];
+    byte[] iv = new byte[16];
+    random.nextBytes(key);
+    random.nextBytes(iv);
+    SecretConfig secretConfig = new SecretConfig(
+        ImmutableMap.of(
+            SecretConfig.KEY_CONF, BaseEncoding.base64().encode(key),
+            SecretConfig.IV_CONF, BaseEncoding.base64().encode(iv)
+        )
+    );
+    this.state = new CipherManager.CipherState(TOPIC, 1234L, secretConfig);
+
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.VAULT_ADDRESS_CONF, "http://127.0.0.1:8200");
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, ByteArraySerializer.class.getName());
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(settings, false);
+    CipherManagerRegistry.release(this.serializer.cipherManager);
+    this.serializer.cipherManager = new CipherManager(this.serializer.config) {
+      @Override
+      public CipherState get(String topic) {
+        return state;
+      }
+    };
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.serializer.close();
+  }
+
+  @Benchmark
+  public byte[] framed() {
+    return this.serializer.serialize(TOPIC, this.payload);
+  }
+
+  @Benchmark
+  public byte[] copy() throws GeneralSecurityException {
+    byte[] unencrypted = this.serializer.serializer.serialize(TOPIC, this.payload);
+    byte[] encrypted = this.state.encryptCipher().doFinal(unencrypted);
+    ByteBuffer buffer = ByteBuffer.allocate(encrypted.length + KafkaVaultConfig.HEADER_LENGTH);
+    buffer.put(KafkaVaultConfig.MAGIC_BYTE);
+    buffer.putLong(this.state.version);
+    buffer.putInt(encrypted.length);
+    buffer.put(encrypted);
+    return buffer.array();
+  }
+}
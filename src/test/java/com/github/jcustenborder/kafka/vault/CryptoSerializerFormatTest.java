@@ -0,0 +1,189 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(Parameterized.class)
+public class CryptoSerializerFormatTest {
+  final String TOPIC = "testing.topic";
+
+  @Parameterized.Parameters(name = "{0} envelope={1}")
+  public static Collection<Object[]> parameters() {
+    List<Object[]> result = new ArrayList<>();
+    for (Compression compression : Compression.values()) {
+      result.add(new Object[]{compression, false});
+      result.add(new Object[]{compression, true});
+    }
+    return result;
+  }
+
+  @Parameterized.Parameter(0)
+  public Compression compression;
+
+  @Parameterized.Parameter(1)
+  public boolean envelope;
+
+  Map<String, String> settings;
+  CryptoSerializer<byte[]> serializer;
+  CryptoDeserializer<byte[]> deserializer;
+
+  @Before
+  public void before() {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    this.settings.put(CryptoSerializer.Config.KAFKA_SECRET_PATH_CONF, "kafka-" + System.nanoTime());
+    this.settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, ByteArraySerializer.class.getName());
+    this.settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, ByteArrayDeserializer.class.getName());
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_ENABLED_CONF, Boolean.toString(this.envelope));
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_KEY_WRAPPER_CONF, CryptoSerializer.Config.ENVELOPE_KEY_WRAPPER_LOCAL);
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_LOCAL_KEY_CONF, BaseEncoding.base64().encode(key));
+    this.settings.put(CryptoSerializer.Config.FORMAT_VERSION_CONF, "2");
+    this.settings.put(CryptoSerializer.Config.PAYLOAD_COMPRESSION_TYPE_CONF, this.compression.type);
+
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(this.settings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(this.settings, false);
+    this.serializer.cipherManager.setRandomKey(TOPIC);
+  }
+
+  @After
+  public void after() {
+    this.serializer.close();
+    this.deserializer.close();
+  }
+
+  @Test
+  public void roundTrip() {
+    for (int length : new int[]{0, 1, 127, 128, 4096, 1024 * 1024}) {
+      byte[] expected = CompressionTest.compressible(length);
+      byte[] encrypted = this.serializer.serialize(TOPIC, expected);
+      assertEquals(KafkaVaultConfig.V2_MAGIC_BYTE, encrypted[0]);
+      assertEquals(this.envelope, (encrypted[1] & KafkaVaultConfig.V2_FLAG_ENVELOPE) != 0);
+      assertArrayEquals(expected, this.deserializer.deserialize(TOPIC, encrypted));
+    }
+  }
+
+  @Test
+  public void compressed() {
+    byte[] expected = CompressionTest.compressible(64 * 1024);
+    byte[] encrypted = this.serializer.serialize(TOPIC, expected);
+    if (Compression.NONE == this.compression) {
+      assertTrue(encrypted.length > expected.length);
+    } else {
+      assertEquals(this.compression.id, encrypted[1] & KafkaVaultConfig.V2_FLAG_COMPRESSION_MASK);
+      assertTrue(encrypted.length < expected.length / 2);
+    }
+  }
+
+  @Test
+  public void chunked() {
+    final String topic = "chunked.topic";
+    final int chunkBytes = 1000;
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerializer.Config.PAYLOAD_CHUNK_BYTES_CONF, Integer.toString(chunkBytes));
+    CryptoSerializer<byte[]> serializer = new CryptoSerializer<>();
+    serializer.configure(settings, false);
+    try {
+      serializer.cipherManager.setRandomKey(topic, SecretConfig.CIPHER_AES_GCM);
+      for (int length : new int[]{0, chunkBytes, chunkBytes + 1, 4096, 1024 * 1024}) {
+        byte[] expected = CompressionTest.compressible(length);
+        byte[] encrypted = serializer.serialize(topic, expected);
+        if (Compression.NONE == this.compression) {
+          assertEquals(length > chunkBytes, (encrypted[1] & KafkaVaultConfig.V2_FLAG_CHUNKED) != 0);
+        }
+        assertArrayEquals(expected, this.deserializer.deserialize(topic, encrypted));
+      }
+    } finally {
+      serializer.close();
+    }
+  }
+
+  @Test
+  public void deterministicKeys() {
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerializer.Config.DETERMINISTIC_KEYS_ENABLED_CONF, "true");
+    CryptoSerializer<byte[]> keySerializer = new CryptoSerializer<>();
+    keySerializer.configure(settings, true);
+    CryptoSerializer<byte[]> valueSerializer = new CryptoSerializer<>();
+    valueSerializer.configure(settings, false);
+    try {
+      for (int length : new int[]{0, 16, 4096}) {
+        byte[] expected = CompressionTest.compressible(length);
+        byte[] encrypted = keySerializer.serialize(TOPIC, expected);
+        assertTrue((encrypted[1] & KafkaVaultConfig.V2_FLAG_DETERMINISTIC) != 0);
+        assertArrayEquals(encrypted, keySerializer.serialize(TOPIC, expected));
+        assertArrayEquals(expected, this.deserializer.deserialize(TOPIC, encrypted));
+
+        byte[] value = valueSerializer.serialize(TOPIC, expected);
+        assertEquals(0, value[1] & KafkaVaultConfig.V2_FLAG_DETERMINISTIC);
+        if (this.envelope) {
+          assertFalse(Arrays.equals(value, valueSerializer.serialize(TOPIC, expected)));
+        }
+      }
+    } finally {
+      keySerializer.close();
+      valueSerializer.close();
+    }
+  }
+
+  @Test
+  public void headerSize() {
+    assumeFalse(this.envelope);
+    CipherManager.CipherState state = this.serializer.cipherManager.get(TOPIC);
+    byte[] encrypted = this.serializer.serialize(TOPIC, new byte[0]);
+    assertEquals(2 + Varint.size(state.version) + state.encryptedSize(0), encrypted.length);
+  }
+
+  @Test
+  public void readsVersion1() {
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerializer.Config.FORMAT_VERSION_CONF, "1");
+    settings.put(CryptoSerializer.Config.PAYLOAD_COMPRESSION_TYPE_CONF, "none");
+    CryptoSerializer<byte[]> serializer = new CryptoSerializer<>();
+    serializer.configure(settings, false);
+    try {
+      byte[] expected = CompressionTest.compressible(4096);
+      byte[] encrypted = serializer.serialize(TOPIC, expected);
+      assertEquals(
+          this.envelope ? KafkaVaultConfig.ENVELOPE_MAGIC_BYTE : KafkaVaultConfig.MAGIC_BYTE,
+          encrypted[0]
+      );
+      assertArrayEquals(expected, this.deserializer.deserialize(TOPIC, encrypted));
+    } finally {
+      serializer.close();
+    }
+  }
+
+  @Test(expected = ConfigException.class)
+  public void compressionRequiresVersion2() {
+    assumeTrue(Compression.NONE != this.compression);
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerializer.Config.FORMAT_VERSION_CONF, "1");
+    new CryptoSerializer.Config(settings);
+  }
+}
@@ -78,6 +78,17 @@ public class CryptoSerializerTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void roundTripGcm() {
+    final String expected = "This is a testing string";
+    byte[] cbc = this.serializer.serialize(TOPIC, expected);
+    this.manager.setRandomKey(TOPIC, SecretConfig.CIPHER_AES_GCM);
+    this.serializer.cipherManager.invalidateAll();
+    byte[] gcm = this.serializer.serialize(TOPIC, expected);
+    assertEquals(expected, this.deserializer.deserialize(TOPIC, gcm));
+    assertEquals(expected, this.deserializer.deserialize(TOPIC, cbc));
+  }
+
 
 
   @After
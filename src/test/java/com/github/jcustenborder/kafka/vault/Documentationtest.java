@@ -20,4 +20,25 @@ public class Documentationtest {
         MarkdownFormatter.toMarkdown(CryptoDeserializer.Config.config())
     );
   }
+
+  @Test
+  public void serdeDoc() {
+    log.info("\n" +
+        MarkdownFormatter.toMarkdown(CryptoSerde.Config.config())
+    );
+  }
+
+  @Test
+  public void fieldEncryptionDoc() {
+    log.info("\n" +
+        MarkdownFormatter.toMarkdown(FieldEncryption.Config.config())
+    );
+  }
+
+  @Test
+  public void reEncryptToolDoc() {
+    log.info("\n" +
+        MarkdownFormatter.toMarkdown(ReEncryptTool.Config.config())
+    );
+  }
 }
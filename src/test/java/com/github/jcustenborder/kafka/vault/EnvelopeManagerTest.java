@@ -0,0 +1,210 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EnvelopeManagerTest {
+  static final long MAX_RECORDS = 3L;
+  static final long MAX_AGE_MS = 10000L;
+  final String TOPIC = "testing.topic";
+
+  static class TestKeyWrapper implements KeyWrapper {
+    final KeyWrapper keyWrapper;
+    final AtomicInteger wraps = new AtomicInteger();
+    final CountDownLatch wrapping = new CountDownLatch(1);
+    volatile CountDownLatch block;
+    volatile boolean fail;
+
+    TestKeyWrapper(KeyWrapper keyWrapper) {
+      this.keyWrapper = keyWrapper;
+    }
+
+    @Override
+    public byte[] wrap(String topic, byte[] dataKey) {
+      this.wraps.incrementAndGet();
+      if (this.fail) {
+        throw new IllegalStateException("wrap failed");
+      }
+      if (null != this.block) {
+        this.wrapping.countDown();
+        try {
+          this.block.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return this.keyWrapper.wrap(topic, dataKey);
+    }
+
+    @Override
+    public byte[] unwrap(String topic, byte[] wrappedKey) {
+      return this.keyWrapper.unwrap(topic, wrappedKey);
+    }
+
+    @Override
+    public byte[] rewrap(String topic, byte[] wrappedKey) {
+      return this.keyWrapper.rewrap(topic, wrappedKey);
+    }
+
+    @Override
+    public void close() {
+      this.keyWrapper.close();
+    }
+  }
+
+  Map<String, String> settings;
+  CipherManagerTest.MockTime time;
+  TestKeyWrapper keyWrapper;
+  EnvelopeManager manager;
+
+  @Before
+  public void before() {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.VAULT_ADDRESS_CONF, "http://127.0.0.1:8200");
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_ENABLED_CONF, "true");
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_KEY_WRAPPER_CONF, CryptoSerializer.Config.ENVELOPE_KEY_WRAPPER_LOCAL);
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_LOCAL_KEY_CONF, BaseEncoding.base64().encode(key));
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_DATA_KEY_MAX_RECORDS_CONF, Long.toString(MAX_RECORDS));
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_DATA_KEY_MAX_AGE_MS_CONF, Long.toString(MAX_AGE_MS));
+
+    Map<String, String> managerSettings = new LinkedHashMap<>(this.settings);
+    managerSettings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    KafkaVaultConfig config = new CryptoSerializer.Config(managerSettings);
+    this.time = new CipherManagerTest.MockTime();
+    this.keyWrapper = new TestKeyWrapper(new LocalKeyWrapper(config));
+    this.manager = new EnvelopeManager(config, this.keyWrapper, this.time);
+  }
+
+  EnvelopeManager.DataKey exhausted() {
+    EnvelopeManager.DataKey first = this.manager.current(TOPIC);
+    for (int i = 1; i < MAX_RECORDS; i++) {
+      this.manager.current(TOPIC);
+    }
+    return first;
+  }
+
+  @Test
+  public void previousKeyUsedWhileRotating() throws Exception {
+    final EnvelopeManager.DataKey first = exhausted();
+    this.keyWrapper.block = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<EnvelopeManager.DataKey> rotating = executor.submit(new Callable<EnvelopeManager.DataKey>() {
+        @Override
+        public EnvelopeManager.DataKey call() throws Exception {
+          return manager.current(TOPIC);
+        }
+      });
+      assertTrue(this.keyWrapper.wrapping.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 5; i++) {
+        assertSame(first, this.manager.current(TOPIC));
+      }
+      this.keyWrapper.block.countDown();
+      EnvelopeManager.DataKey second = rotating.get(10, TimeUnit.SECONDS);
+      assertNotSame(first, second);
+      assertSame(second, this.manager.current(TOPIC));
+      assertEquals(2, this.keyWrapper.wraps.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void previousKeyUsedWhenWrapFails() {
+    EnvelopeManager.DataKey first = exhausted();
+    this.keyWrapper.fail = true;
+    assertSame(first, this.manager.current(TOPIC));
+    assertSame(first, this.manager.current(TOPIC));
+    assertEquals("Rotation should not be retried before the retry interval.", 2, this.keyWrapper.wraps.get());
+
+    this.keyWrapper.fail = false;
+    this.time.sleep(CryptoSerializer.Config.VAULT_RETRY_INTERVAL_DEFAULT + 1);
+    assertNotSame(first, this.manager.current(TOPIC));
+  }
+
+  @Test
+  public void mismatchedWrappedKeyIsNotCached() {
+    EnvelopeManager.DataKey dataKey = this.manager.current(TOPIC);
+    byte[] otherKey = new byte[32];
+    new SecureRandom().nextBytes(otherKey);
+    byte[] otherWrappedKey = this.keyWrapper.wrap(TOPIC, otherKey);
+
+    CipherManager.CipherState other = this.manager.get(TOPIC, dataKey.state.version, otherWrappedKey, 0, otherWrappedKey.length);
+    assertNotEquals(dataKey.state.keySpec, other.keySpec);
+    assertSame(dataKey.state, this.manager.get(TOPIC, dataKey.state.version, dataKey.wrappedKey, 0, dataKey.wrappedKey.length));
+    assertNotSame(dataKey.state, this.manager.get("other.topic", dataKey.state.version, dataKey.wrappedKey, 0, dataKey.wrappedKey.length));
+  }
+
+  @Test
+  public void rotateAfterMaxRecords() {
+    EnvelopeManager.DataKey first = this.manager.current(TOPIC);
+    for (int i = 1; i < MAX_RECORDS; i++) {
+      assertSame(first, this.manager.current(TOPIC));
+    }
+    EnvelopeManager.DataKey second = this.manager.current(TOPIC);
+    assertNotSame(first, second);
+    assertNotEquals(first.state.version, second.state.version);
+  }
+
+  @Test
+  public void rotateAfterMaxAge() {
+    EnvelopeManager.DataKey first = this.manager.current(TOPIC);
+    this.time.sleep(MAX_AGE_MS + 1);
+    assertNotSame(first, this.manager.current(TOPIC));
+  }
+
+  @Test
+  public void unwrap() {
+    EnvelopeManager.DataKey dataKey = this.manager.current(TOPIC);
+    this.manager.unwrappedKeys.invalidateAll();
+    CipherManager.CipherState state = this.manager.get(TOPIC, dataKey.state.version, dataKey.wrappedKey, 0, dataKey.wrappedKey.length);
+    assertEquals(dataKey.state.keySpec, state.keySpec);
+    assertSame(state, this.manager.get(TOPIC, dataKey.state.version, dataKey.wrappedKey, 0, dataKey.wrappedKey.length));
+  }
+
+  @Test
+  public void roundTrip() {
+    Map<String, String> serializerSettings = new LinkedHashMap<>(this.settings);
+    serializerSettings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    Map<String, String> deserializerSettings = new LinkedHashMap<>(this.settings);
+    deserializerSettings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+
+    CryptoSerializer<String> serializer = new CryptoSerializer<>();
+    CryptoDeserializer<String> deserializer = new CryptoDeserializer<>();
+    serializer.configure(serializerSettings, false);
+    deserializer.configure(deserializerSettings, false);
+    try {
+      for (int i = 0; i < MAX_RECORDS * 3; i++) {
+        final String expected = "This is testing string " + i;
+        byte[] encrypted = serializer.serialize(TOPIC, expected);
+        assertEquals(KafkaVaultConfig.ENVELOPE_MAGIC_BYTE, encrypted[0]);
+        assertEquals(expected, deserializer.deserialize(TOPIC, encrypted));
+      }
+    } finally {
+      serializer.close();
+      deserializer.close();
+    }
+  }
+}
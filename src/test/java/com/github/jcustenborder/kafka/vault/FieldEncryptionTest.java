@@ -0,0 +1,89 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FieldEncryptionTest {
+  final String TOPIC = "testing.topic";
+  static final Schema SCHEMA = SchemaBuilder.struct()
+      .name("com.example.Person")
+      .field("name", Schema.STRING_SCHEMA)
+      .field("ssn", Schema.OPTIONAL_STRING_SCHEMA)
+      .field("salary", Schema.INT64_SCHEMA)
+      .build();
+
+  FieldEncryption.Value<SinkRecord> encrypt;
+  FieldEncryption.Value<SinkRecord> decrypt;
+
+  @Before
+  public void before() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(FieldEncryptor.Config.FIELDS_CONF, "ssn,salary");
+    this.encrypt = new FieldEncryption.Value<>();
+    this.encrypt.configure(settings);
+    settings.put(FieldEncryption.Config.MODE_CONF, FieldEncryption.Config.MODE_DECRYPT);
+    this.decrypt = new FieldEncryption.Value<>();
+    this.decrypt.configure(settings);
+    this.encrypt.encryptor.serializer.cipherManager.setRandomKey(TOPIC);
+  }
+
+  @After
+  public void after() {
+    this.encrypt.close();
+    this.decrypt.close();
+  }
+
+  SinkRecord record(Schema schema, Object value) {
+    return new SinkRecord(TOPIC, 1, null, null, schema, value, 1234L);
+  }
+
+  @Test
+  public void struct() {
+    Struct value = new Struct(SCHEMA)
+        .put("name", "example")
+        .put("ssn", "123-45-6789")
+        .put("salary", 100000L);
+
+    SinkRecord encrypted = this.encrypt.apply(record(SCHEMA, value));
+    Struct encryptedValue = (Struct) encrypted.value();
+    assertEquals(Schema.Type.BYTES, encrypted.valueSchema().field("ssn").schema().type());
+    assertTrue(encrypted.valueSchema().field("ssn").schema().isOptional());
+    assertEquals("example", encryptedValue.get("name"));
+    assertTrue(encryptedValue.get("salary") instanceof byte[]);
+
+    SinkRecord decrypted = this.decrypt.apply(encrypted);
+    assertEquals(SCHEMA, decrypted.valueSchema());
+    assertEquals(value, decrypted.value());
+  }
+
+  @Test
+  public void nullField() {
+    Struct value = new Struct(SCHEMA)
+        .put("name", "example")
+        .put("salary", 100000L);
+    SinkRecord decrypted = this.decrypt.apply(this.encrypt.apply(record(SCHEMA, value)));
+    assertEquals(value, decrypted.value());
+  }
+
+  @Test
+  public void schemaless() {
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("name", "example");
+    value.put("ssn", "123-45-6789");
+    SinkRecord encrypted = this.encrypt.apply(record(null, value));
+    assertTrue(((Map<?, ?>) encrypted.value()).get("ssn") instanceof byte[]);
+    assertEquals(value, this.decrypt.apply(encrypted).value());
+  }
+}
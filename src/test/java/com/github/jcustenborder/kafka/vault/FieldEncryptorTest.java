@@ -0,0 +1,77 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FieldEncryptorTest {
+  final String TOPIC = "testing.topic";
+
+  FieldEncryptor encryptor;
+
+  @Before
+  public void before() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(FieldEncryptor.Config.FIELDS_CONF, "ssn,salary");
+    this.encryptor = new FieldEncryptor();
+    this.encryptor.configure(settings);
+    this.encryptor.serializer.cipherManager.setRandomKey(TOPIC);
+  }
+
+  @After
+  public void after() {
+    this.encryptor.close();
+  }
+
+  @Test
+  public void roundTrip() {
+    for (Object value : Arrays.<Object>asList("123-45-6789", "", true, false, (byte) 7, (short) -2, 42, Long.MAX_VALUE, 1.5F, -2.25D)) {
+      byte[] encrypted = this.encryptor.encrypt(TOPIC, value);
+      assertEquals(value, this.encryptor.decrypt(TOPIC, encrypted));
+      assertEquals(value, this.encryptor.decrypt(TOPIC, ByteBuffer.wrap(encrypted)));
+    }
+    byte[] bytes = "bytes".getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(bytes, (byte[]) this.encryptor.decrypt(TOPIC, this.encryptor.encrypt(TOPIC, bytes)));
+    assertArrayEquals(bytes, (byte[]) this.encryptor.decrypt(TOPIC, this.encryptor.encrypt(TOPIC, ByteBuffer.wrap(bytes))));
+    assertNull(this.encryptor.encrypt(TOPIC, null));
+    assertNull(this.encryptor.decrypt(TOPIC, null));
+  }
+
+  @Test
+  public void fields() {
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("name", "example");
+    value.put("ssn", "123-45-6789");
+    value.put("salary", 100000L);
+
+    Map<String, Object> encrypted = this.encryptor.encryptFields(TOPIC, value);
+    assertEquals("example", encrypted.get("name"));
+    assertTrue(encrypted.get("ssn") instanceof byte[]);
+    assertTrue(encrypted.get("salary") instanceof byte[]);
+    assertEquals(value, this.encryptor.decryptFields(TOPIC, encrypted));
+  }
+
+  @Test
+  public void missingFields() {
+    Map<String, Object> value = ImmutableMap.<String, Object>of("name", "example");
+    assertEquals(value, this.encryptor.encryptFields(TOPIC, value));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void unsupportedType() {
+    this.encryptor.encrypt(TOPIC, new Object());
+  }
+}
@@ -0,0 +1,94 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FileKeyProviderTest {
+  final String TOPIC = "testing.topic";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  File file;
+  Map<String, String> settings;
+
+  @Before
+  public void before() {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.file = new File(this.temporaryFolder.getRoot(), "keys.bin");
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, FileKeyProvider.class.getName());
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_FILE_PATH_CONF, this.file.getAbsolutePath());
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_FILE_KEY_CONF, BaseEncoding.base64().encode(key));
+  }
+
+  FileKeyProvider provider(Map<String, String> settings) {
+    FileKeyProvider provider = new FileKeyProvider();
+    provider.configure(new CryptoSerializer.Config(settings));
+    return provider;
+  }
+
+  @Test
+  public void persisted() throws Exception {
+    Map<String, String> secret = ImmutableMap.of(
+        SecretConfig.CIPHER_CONF, SecretConfig.CIPHER_AES_GCM,
+        SecretConfig.KEY_CONF, "c2VjcmV0LWtleS1tYXRlcmlhbA=="
+    );
+    FileKeyProvider provider = provider(this.settings);
+    provider.secret(TOPIC, 1234L, secret);
+    provider.currentVersion(TOPIC, 1234L);
+
+    String contents = new String(Files.readAllBytes(this.file.toPath()), StandardCharsets.ISO_8859_1);
+    assertFalse("Key material should not be stored in plain text.", contents.contains("c2VjcmV0LWtleS1tYXRlcmlhbA=="));
+
+    FileKeyProvider reloaded = provider(this.settings);
+    assertEquals(1234L, reloaded.currentVersion(TOPIC));
+    assertEquals(secret, reloaded.secret(TOPIC, 1234L));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void wrongKey() {
+    FileKeyProvider provider = provider(this.settings);
+    provider.secret(TOPIC, 1234L, ImmutableMap.of(SecretConfig.KEY_CONF, "c2VjcmV0"));
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_FILE_KEY_CONF, BaseEncoding.base64().encode(key));
+    provider(settings);
+  }
+
+  @Test
+  public void cipherManager() {
+    CipherManager manager = new CipherManager(new CryptoSerializer.Config(this.settings));
+    try {
+      manager.setRandomKey(TOPIC);
+      CipherManager.CipherState state = manager.get(TOPIC);
+      CipherManager reloaded = new CipherManager(new CryptoSerializer.Config(this.settings));
+      try {
+        assertEquals(state.keySpec, reloaded.get(TOPIC, state.version).keySpec);
+      } finally {
+        reloaded.close();
+      }
+    } finally {
+      manager.close();
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HistogramTracerTest {
+  static final int RECORDS = 10;
+  final String TOPIC = "testing.topic";
+
+  Map<String, String> settings;
+  CryptoSerializer<String> serializer;
+  CryptoDeserializer<String> deserializer;
+
+  @Before
+  public void before() {
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    this.settings.put(CryptoSerializer.Config.TRACING_SAMPLE_INTERVAL_CONF, "1");
+    this.settings.put(CryptoSerializer.Config.TRACING_REPORT_INTERVAL_MS_CONF, "0");
+    this.settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    this.settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+  }
+
+  void configure() {
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(this.settings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(this.settings, false);
+    this.serializer.cipherManager.setRandomKey(TOPIC);
+  }
+
+  @After
+  public void after() {
+    if (null != this.serializer) {
+      this.serializer.close();
+      this.deserializer.close();
+    }
+  }
+
+  HistogramTracer tracer() {
+    return (HistogramTracer) this.serializer.cipherManager.tracing.tracer;
+  }
+
+  void roundTrip() {
+    for (int i = 0; i < RECORDS; i++) {
+      String value = "This is testing string " + i;
+      assertEquals(value, this.deserializer.deserialize(TOPIC, this.serializer.serialize(TOPIC, value)));
+    }
+  }
+
+  long count(Tracer.Operation operation, Tracer.Stage stage) {
+    LatencyHistogram.Recorder[] recorders = tracer().topics.get(TOPIC);
+    LatencyHistogram histogram = recorders[operation.ordinal() * HistogramTracer.STAGES.length + stage.ordinal()].current.get();
+    return null == histogram ? 0L : histogram.count();
+  }
+
+  @Test
+  public void stages() {
+    configure();
+    assertSame(this.serializer.cipherManager, this.deserializer.cipherManager);
+    roundTrip();
+
+    for (Tracer.Stage stage : new Tracer.Stage[]{Tracer.Stage.SERIALIZE, Tracer.Stage.KEY_LOOKUP, Tracer.Stage.CRYPTO, Tracer.Stage.FRAME, Tracer.Stage.TOTAL}) {
+      assertEquals(stage.toString(), RECORDS, count(Tracer.Operation.ENCRYPT, stage));
+    }
+    for (Tracer.Stage stage : new Tracer.Stage[]{Tracer.Stage.KEY_LOOKUP, Tracer.Stage.CRYPTO, Tracer.Stage.DESERIALIZE, Tracer.Stage.TOTAL}) {
+      assertEquals(stage.toString(), RECORDS, count(Tracer.Operation.DECRYPT, stage));
+    }
+    assertEquals(0L, count(Tracer.Operation.ENCRYPT, Tracer.Stage.COMPRESS));
+    assertEquals(0L, count(Tracer.Operation.DECRYPT, Tracer.Stage.FRAME));
+  }
+
+  @Test
+  public void failedDecrypt() {
+    configure();
+    byte[] encrypted = this.serializer.serialize(TOPIC, "value");
+    encrypted[encrypted.length - 1] ^= 0x01;
+    try {
+      this.deserializer.deserialize(TOPIC, encrypted);
+      fail("Tampered record should not decrypt.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(1L, count(Tracer.Operation.DECRYPT, Tracer.Stage.KEY_LOOKUP));
+    assertEquals(1L, count(Tracer.Operation.DECRYPT, Tracer.Stage.ERROR));
+    assertEquals(0L, count(Tracer.Operation.DECRYPT, Tracer.Stage.TOTAL));
+    assertEquals(1L, this.deserializer.cipherManager.metrics.decryptErrors.sum());
+    assertEquals(0L, this.deserializer.cipherManager.metrics.decryptRecords.sum());
+  }
+
+  @Test
+  public void compressedV2() {
+    this.settings.put(CryptoSerializer.Config.FORMAT_VERSION_CONF, "2");
+    this.settings.put(CryptoSerializer.Config.PAYLOAD_COMPRESSION_TYPE_CONF, "gzip");
+    this.settings.put(CryptoSerializer.Config.PAYLOAD_COMPRESSION_MIN_BYTES_CONF, "1");
+    configure();
+    roundTrip();
+    assertEquals(RECORDS, count(Tracer.Operation.ENCRYPT, Tracer.Stage.COMPRESS));
+    assertEquals(RECORDS, count(Tracer.Operation.ENCRYPT, Tracer.Stage.FRAME));
+  }
+
+  @Test
+  public void report() {
+    configure();
+    roundTrip();
+    List<String> lines = tracer().report();
+    assertEquals(9, lines.size());
+    for (String line : lines) {
+      assertTrue(line, line.startsWith("topic = 'testing.topic', operation = "));
+      assertTrue(line, line.contains("count = " + RECORDS + ","));
+    }
+    assertTrue(tracer().report().isEmpty());
+  }
+
+  @Test
+  public void reportMaxLines() {
+    this.settings.put(CryptoSerializer.Config.TRACING_REPORT_MAX_LINES_CONF, "3");
+    configure();
+    roundTrip();
+    List<String> lines = tracer().report();
+    assertEquals(4, lines.size());
+    assertEquals("6 more with a lower p99 were not logged.", lines.get(3));
+  }
+
+  @Test
+  public void idleTopicsAreDropped() {
+    configure();
+    roundTrip();
+    assertEquals(9, tracer().report().size());
+    assertTrue(tracer().topics.containsKey(TOPIC));
+    assertTrue(tracer().report().isEmpty());
+    assertTrue(tracer().topics.isEmpty());
+  }
+
+  @Test
+  public void plaintextTopicsAreNotTraced() {
+    this.settings.put(CryptoSerializer.Config.PLAINTEXT_TOPICS_CONF, "plaintext.topic");
+    configure();
+    assertEquals("value", this.deserializer.deserialize("plaintext.topic", this.serializer.serialize("plaintext.topic", "value")));
+    assertTrue(tracer().topics.isEmpty());
+  }
+
+  @Test
+  public void disabled() {
+    this.settings.remove(CryptoSerializer.Config.TRACING_SAMPLE_INTERVAL_CONF);
+    configure();
+    assertNull(this.serializer.cipherManager.tracing.tracer);
+    assertSame(Tracing.Trace.NONE, this.serializer.cipherManager.tracing.start(TOPIC, Tracer.Operation.ENCRYPT));
+    roundTrip();
+  }
+}
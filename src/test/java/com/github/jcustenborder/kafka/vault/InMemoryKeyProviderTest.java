@@ -0,0 +1,58 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryKeyProviderTest {
+  final String TOPIC = "testing.topic";
+  CryptoSerializer<String> serializer;
+  CryptoDeserializer<String> deserializer;
+
+  @Before
+  public void before() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.KAFKA_SECRET_PATH_CONF, "kafka-" + System.nanoTime());
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(settings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(settings, false);
+  }
+
+  @After
+  public void after() {
+    this.serializer.close();
+    this.deserializer.close();
+  }
+
+  @Test
+  public void roundTrip() {
+    assertSame(this.serializer.cipherManager, this.deserializer.cipherManager);
+    assertTrue(this.serializer.cipherManager.keyProvider instanceof InMemoryKeyProvider);
+
+    for (String cipher : new String[]{SecretConfig.CIPHER_AES_CBC, SecretConfig.CIPHER_AES_GCM}) {
+      this.serializer.cipherManager.setRandomKey(TOPIC, cipher);
+      this.serializer.cipherManager.invalidateAll();
+      final String expected = "This is a testing string for " + cipher;
+      byte[] encrypted = this.serializer.serialize(TOPIC, expected);
+      assertEquals(expected, this.deserializer.deserialize(TOPIC, encrypted));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void missingKey() {
+    this.serializer.serialize("missing.topic", "This is a testing string");
+  }
+}
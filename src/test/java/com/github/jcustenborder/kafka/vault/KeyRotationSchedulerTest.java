@@ -0,0 +1,95 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRotationSchedulerTest {
+  static final long INTERVAL_MS = 10000L;
+  static final long MAX_RECORDS = 3L;
+  final String TOPIC = "testing.topic";
+
+  CipherManagerTest.MockTime time;
+  CipherManager manager;
+  KeyRotationScheduler scheduler;
+
+  @Before
+  public void before() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.ROTATION_ENABLED_CONF, "true");
+    settings.put(CryptoSerializer.Config.ROTATION_INTERVAL_MS_CONF, Long.toString(INTERVAL_MS));
+    settings.put(CryptoSerializer.Config.ROTATION_MAX_RECORDS_CONF, Long.toString(MAX_RECORDS));
+    KafkaVaultConfig config = new CryptoSerializer.Config(settings);
+    this.time = new CipherManagerTest.MockTime();
+    this.manager = new CipherManager(config, this.time);
+    this.scheduler = new KeyRotationScheduler(this.manager, config, this.time);
+    this.manager.setRandomKey(TOPIC, SecretConfig.CIPHER_AES_GCM);
+  }
+
+  @After
+  public void after() {
+    this.scheduler.close();
+    this.manager.close();
+  }
+
+  @Test
+  public void notDue() {
+    this.manager.get(TOPIC);
+    assertTrue(this.scheduler.check().isEmpty());
+  }
+
+  @Test
+  public void rotateOnAge() {
+    CipherManager.CipherState first = this.manager.get(TOPIC);
+    this.time.sleep(INTERVAL_MS);
+    assertEquals(ImmutableSet.of(TOPIC), this.scheduler.check());
+
+    CipherManager.CipherState second = this.manager.get(TOPIC);
+    assertNotEquals(first.version, second.version);
+    assertEquals(SecretConfig.CIPHER_AES_GCM, second.secretConfig.cipher);
+    assertEquals(second.version, this.manager.keyProvider.currentVersion(TOPIC));
+    assertSame(second, this.manager.get(TOPIC, second.version));
+  }
+
+  @Test
+  public void rotateOnRecordCount() {
+    CipherManager.CipherState first = this.manager.get(TOPIC);
+    first.records.add(MAX_RECORDS);
+    this.time.sleep(1);
+    assertEquals(ImmutableSet.of(TOPIC), this.scheduler.check());
+    assertNotEquals(first.version, this.manager.get(TOPIC).version);
+  }
+
+  @Test
+  public void leaseHeldByOtherClient() {
+    CipherManager.CipherState first = this.manager.get(TOPIC);
+    this.manager.keyProvider.tryLease(TOPIC, "other", this.time.milliseconds(), INTERVAL_MS * 2);
+    this.time.sleep(INTERVAL_MS);
+    assertTrue(this.scheduler.check().isEmpty());
+    assertEquals(first.version, this.manager.get(TOPIC).version);
+
+    this.time.sleep(INTERVAL_MS);
+    assertEquals(ImmutableSet.of(TOPIC), this.scheduler.check());
+  }
+
+  @Test
+  public void rotatedByOtherClient() {
+    this.manager.get(TOPIC);
+    this.time.sleep(INTERVAL_MS);
+    CipherManager.CipherState other = this.manager.setRandomKey(TOPIC, SecretConfig.CIPHER_AES_GCM);
+    assertTrue(this.scheduler.check().isEmpty());
+    assertEquals(other.version, this.manager.get(TOPIC).version);
+  }
+}
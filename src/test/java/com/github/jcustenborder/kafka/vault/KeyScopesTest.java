@@ -0,0 +1,89 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyScopesTest {
+
+  @Test
+  public void scopes() {
+    KeyScopes scopes = new KeyScopes(
+        Arrays.asList("orders.=orders", "orders.eu.=orders-eu"),
+        "tenant-([^.]+)\\..*"
+    );
+    assertEquals("orders", scopes.scope("orders.us.created"));
+    assertEquals("orders-eu", scopes.scope("orders.eu.created"));
+    assertEquals("acme", scopes.scope("tenant-acme.invoices"));
+    assertEquals("acme", scopes.scope("tenant-acme.payments"));
+    assertEquals("payments", scopes.scope("payments"));
+    assertEquals(5, scopes.values.size());
+    assertSame(scopes.values.getIfPresent("tenant-acme.invoices"), scopes.scope("tenant-acme.invoices"));
+  }
+
+  @Test
+  public void empty() {
+    KeyScopes scopes = new KeyScopes(Collections.<String>emptyList(), "");
+    assertTrue(scopes.isEmpty());
+    assertEquals("testing.topic", scopes.scope("testing.topic"));
+    assertEquals(0, scopes.values.size());
+  }
+
+  @Test
+  public void rememberedTopicsAreBounded() {
+    KeyScopes scopes = new KeyScopes(Collections.<String>emptyList(), "tenant-([^.]+)\\..*");
+    for (int i = 0; i < TopicLookup.MAX_TOPICS + 100; i++) {
+      assertEquals("acme", scopes.scope("tenant-acme.topic-" + i));
+    }
+    assertTrue(scopes.values.size() <= TopicLookup.MAX_TOPICS);
+  }
+
+  @Test(expected = ConfigException.class)
+  public void prefixWithoutScope() {
+    new KeyScopes(Collections.singletonList("orders."), "");
+  }
+
+  @Test(expected = ConfigException.class)
+  public void patternWithoutGroup() {
+    new KeyScopes(Collections.<String>emptyList(), "tenant-.*");
+  }
+
+  @Test
+  public void sharedKey() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    settings.put(CryptoSerializer.Config.KEY_SCOPE_PREFIXES_CONF, "tenant-a.=tenant-a");
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+    CryptoSerializer<String> serializer = new CryptoSerializer<>();
+    serializer.configure(settings, false);
+    CryptoDeserializer<String> deserializer = new CryptoDeserializer<>();
+    deserializer.configure(settings, false);
+    try {
+      serializer.cipherManager.setRandomKey("tenant-a");
+      final long version = serializer.cipherManager.get("tenant-a").version;
+
+      byte[] orders = serializer.serialize("tenant-a.orders", "order");
+      byte[] payments = serializer.serialize("tenant-a.payments", "payment");
+      assertEquals(version, ByteBuffer.wrap(orders, 1, 8).getLong());
+      assertEquals(version, ByteBuffer.wrap(payments, 1, 8).getLong());
+      assertEquals("order", deserializer.deserialize("tenant-a.orders", orders));
+      assertEquals("payment", deserializer.deserialize("tenant-a.payments", payments));
+      assertEquals(Collections.singleton("tenant-a"), serializer.cipherManager.stateCache.asMap().keySet());
+    } finally {
+      serializer.close();
+      deserializer.close();
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeySnapshotTest {
+  final String TOPIC = "testing.topic";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  File snapshot;
+  Map<String, String> settings;
+
+  @Before
+  public void before() {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.snapshot = new File(this.temporaryFolder.getRoot(), "snapshot.bin");
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    this.settings.put(CryptoSerializer.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_KEY_WRAPPER_CONF, CryptoSerializer.Config.ENVELOPE_KEY_WRAPPER_LOCAL);
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_LOCAL_KEY_CONF, BaseEncoding.base64().encode(key));
+    this.settings.put(CryptoSerializer.Config.SNAPSHOT_PATH_CONF, this.snapshot.getAbsolutePath());
+  }
+
+  @Test
+  public void restart() {
+    CipherManager first = new CipherManager(new CryptoSerializer.Config(this.settings));
+    first.start();
+    first.setRandomKey(TOPIC);
+    CipherManager.CipherState current = first.get(TOPIC);
+    first.setRandomKey("other.topic", SecretConfig.CIPHER_AES_GCM);
+    first.get("other.topic");
+    first.close();
+    assertTrue(this.snapshot.exists());
+
+    // The second manager has an empty in memory provider so every key has to come from the snapshot.
+    CipherManager second = new CipherManager(new CryptoSerializer.Config(this.settings));
+    try {
+      second.start();
+      assertEquals(current.keySpec, second.get(TOPIC).keySpec);
+      assertEquals(current.keySpec, second.get(TOPIC, current.version).keySpec);
+      assertTrue(second.get("other.topic").authenticated);
+    } finally {
+      second.close();
+    }
+  }
+
+  @Test
+  public void wrongWrappingKey() {
+    CipherManager first = new CipherManager(new CryptoSerializer.Config(this.settings));
+    first.start();
+    first.setRandomKey(TOPIC);
+    first.get(TOPIC);
+    first.close();
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.settings.put(CryptoSerializer.Config.ENVELOPE_LOCAL_KEY_CONF, BaseEncoding.base64().encode(key));
+    CipherManager second = new CipherManager(new CryptoSerializer.Config(this.settings));
+    try {
+      second.start();
+      assertEquals(0, second.versionMaps.size());
+    } finally {
+      second.close();
+    }
+  }
+}
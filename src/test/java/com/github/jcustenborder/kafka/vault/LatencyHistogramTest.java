@@ -0,0 +1,58 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void index() {
+    long previous = -1L;
+    for (int index = 0; index < LatencyHistogram.BUCKETS - 1; index++) {
+      long highest = LatencyHistogram.highestValue(index);
+      assertTrue(highest > previous);
+      assertEquals(index, LatencyHistogram.index(previous + 1));
+      assertEquals(index, LatencyHistogram.index(highest));
+      previous = highest;
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+    assertEquals(0, LatencyHistogram.index(-5L));
+  }
+
+  @Test
+  public void percentile() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0L, histogram.percentile(50D));
+    for (long i = 1; i <= 10000; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(10000L, histogram.count());
+    assertEquals(10000000L, histogram.max());
+    assertWithin(5000000L, histogram.percentile(50D));
+    assertWithin(9900000L, histogram.percentile(99D));
+    assertWithin(9990000L, histogram.percentile(99.9D));
+    assertEquals(10000000L, histogram.percentile(100D));
+  }
+
+  static void assertWithin(long expected, long actual) {
+    assertTrue(String.format("%s is not within 1/16 of %s", actual, expected), actual >= expected && actual <= expected + expected / 16);
+  }
+
+  @Test
+  public void recorder() {
+    LatencyHistogram.Recorder recorder = new LatencyHistogram.Recorder();
+    assertNull(recorder.interval());
+    recorder.record(100L);
+    recorder.record(200L);
+    LatencyHistogram histogram = recorder.current.get();
+    assertSame(histogram, recorder.interval());
+    assertEquals(2L, histogram.count());
+    assertNull(recorder.interval());
+    recorder.record(300L);
+    assertEquals(1L, recorder.interval().count());
+  }
+}
@@ -0,0 +1,212 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReEncryptToolTest {
+  static final int RECORDS = 50;
+  final String TOPIC = "testing.topic";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  Map<String, String> settings;
+  File source;
+  File target;
+  CryptoSerializer<String> serializer;
+  CryptoDeserializer<String> deserializer;
+
+  @Before
+  public void before() throws IOException {
+    this.source = this.folder.newFile("source.dump");
+    this.target = new File(this.folder.getRoot(), "target.dump");
+    this.settings = new LinkedHashMap<>();
+    this.settings.put(ReEncryptTool.Config.KEY_PROVIDER_CLASS_CONF, InMemoryKeyProvider.class.getName());
+    this.settings.put(ReEncryptTool.Config.SOURCE_FILE_CONF, this.source.getAbsolutePath());
+    this.settings.put(ReEncryptTool.Config.TARGET_FILE_CONF, this.target.getAbsolutePath());
+    this.settings.put(ReEncryptTool.Config.TOPIC_CONF, TOPIC);
+    this.settings.put(ReEncryptTool.Config.THREADS_CONF, "4");
+    this.settings.put(ReEncryptTool.Config.BATCH_SIZE_CONF, "7");
+  }
+
+  @After
+  public void after() {
+    if (null != this.serializer) {
+      this.serializer.close();
+      this.deserializer.close();
+    }
+  }
+
+  void configure() {
+    Map<String, String> settings = new LinkedHashMap<>(this.settings);
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, StringSerializer.class.getName());
+    settings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+    this.serializer = new CryptoSerializer<>();
+    this.serializer.configure(settings, false);
+    this.deserializer = new CryptoDeserializer<>();
+    this.deserializer.configure(settings, false);
+    this.serializer.cipherManager.setRandomKey(TOPIC, SecretConfig.CIPHER_AES_GCM);
+  }
+
+  List<RecordDump.Record> writeSource(int first, int count) throws IOException {
+    List<RecordDump.Record> records = new ArrayList<>(count);
+    for (int i = first; i < first + count; i++) {
+      records.add(
+          new RecordDump.Record(
+              i % 3,
+              i,
+              1000L + i,
+              ("key " + i).getBytes(StandardCharsets.UTF_8),
+              i % 10 == 9 ? null : this.serializer.serialize(TOPIC, "This is testing value " + i)
+          )
+      );
+    }
+    try (RecordDump.Writer writer = new RecordDump.Writer(this.source, true)) {
+      writer.write(records);
+    }
+    return records;
+  }
+
+  List<RecordDump.Record> readTarget() throws IOException {
+    try (RecordDump.Reader reader = new RecordDump.Reader(this.target, 0L)) {
+      return reader.read(Integer.MAX_VALUE);
+    }
+  }
+
+  void run() throws Exception {
+    try (ReEncryptTool tool = new ReEncryptTool()) {
+      tool.configure(this.settings);
+      tool.run();
+    }
+  }
+
+  @Test
+  public void reencrypt() throws Exception {
+    configure();
+    List<RecordDump.Record> sources = writeSource(0, RECORDS);
+    final long oldVersion = this.serializer.cipherManager.get(TOPIC).version;
+    final long newVersion = this.serializer.cipherManager.rotate(TOPIC).version;
+    run();
+
+    List<RecordDump.Record> targets = readTarget();
+    assertEquals(RECORDS, targets.size());
+    for (int i = 0; i < RECORDS; i++) {
+      RecordDump.Record source = sources.get(i);
+      RecordDump.Record target = targets.get(i);
+      assertEquals(source.partition, target.partition);
+      assertEquals(source.offset, target.offset);
+      assertEquals(source.timestamp, target.timestamp);
+      assertArrayEquals(source.key, target.key);
+      if (null == source.value) {
+        assertEquals(null, target.value);
+        continue;
+      }
+      assertEquals(oldVersion, ByteBuffer.wrap(source.value, 1, 8).getLong());
+      assertEquals(newVersion, ByteBuffer.wrap(target.value, 1, 8).getLong());
+      assertEquals("This is testing value " + i, this.deserializer.deserialize(TOPIC, target.value));
+    }
+  }
+
+  @Test
+  public void intoScope() throws Exception {
+    configure();
+    List<RecordDump.Record> sources = writeSource(0, RECORDS);
+    this.settings.put(ReEncryptTool.Config.KEY_SCOPE_PREFIXES_CONF, "testing.=testing");
+    this.settings.put("source." + ReEncryptTool.Config.KEY_SCOPE_PREFIXES_CONF, "");
+
+    Map<String, String> scopedSettings = new LinkedHashMap<>(this.settings);
+    scopedSettings.put(CryptoDeserializer.Config.DESERIALIZER_CLASS_CONF, StringDeserializer.class.getName());
+    CryptoDeserializer<String> scoped = new CryptoDeserializer<>();
+    scoped.configure(scopedSettings, false);
+    try {
+      assertEquals("testing", scoped.cipherManager.scope(TOPIC));
+      final long scopeVersion = scoped.cipherManager.setRandomKey("testing", SecretConfig.CIPHER_AES_GCM).version;
+      run();
+
+      List<RecordDump.Record> targets = readTarget();
+      assertEquals(RECORDS, targets.size());
+      for (int i = 0; i < RECORDS; i++) {
+        RecordDump.Record target = targets.get(i);
+        if (null == sources.get(i).value) {
+          continue;
+        }
+        assertEquals(scopeVersion, ByteBuffer.wrap(target.value, 1, 8).getLong());
+        assertEquals("This is testing value " + i, scoped.deserialize(TOPIC, target.value));
+      }
+    } finally {
+      scoped.close();
+    }
+  }
+
+  @Test
+  public void resume() throws Exception {
+    this.settings.put(ReEncryptTool.Config.CHECKPOINT_PATH_CONF, new File(this.folder.getRoot(), "checkpoint").getAbsolutePath());
+    configure();
+    writeSource(0, RECORDS);
+    run();
+    assertEquals(RECORDS, readTarget().size());
+
+    writeSource(RECORDS, 10);
+    run();
+    List<RecordDump.Record> targets = readTarget();
+    assertEquals(RECORDS + 10, targets.size());
+    for (int i = 0; i < targets.size(); i++) {
+      assertEquals(i, targets.get(i).offset);
+    }
+  }
+
+  @Test
+  public void rewrap() throws Exception {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.settings.put(ReEncryptTool.Config.ENVELOPE_ENABLED_CONF, "true");
+    this.settings.put(ReEncryptTool.Config.ENVELOPE_KEY_WRAPPER_CONF, KafkaVaultConfig.ENVELOPE_KEY_WRAPPER_LOCAL);
+    this.settings.put(ReEncryptTool.Config.ENVELOPE_LOCAL_KEY_CONF, BaseEncoding.base64().encode(key));
+    this.settings.put(ReEncryptTool.Config.MODE_CONF, ReEncryptTool.Config.MODE_REWRAP);
+    configure();
+    List<RecordDump.Record> sources = writeSource(0, RECORDS);
+    run();
+    this.deserializer.cipherManager.envelopeManager.unwrappedKeys.invalidateAll();
+
+    List<RecordDump.Record> targets = readTarget();
+    assertEquals(RECORDS, targets.size());
+    for (int i = 0; i < RECORDS; i++) {
+      RecordDump.Record source = sources.get(i);
+      RecordDump.Record target = targets.get(i);
+      if (null == source.value) {
+        continue;
+      }
+      assertEquals(KafkaVaultConfig.ENVELOPE_MAGIC_BYTE, target.value[0]);
+      assertFalse(Arrays.equals(source.value, target.value));
+      final int sourceCiphertext = source.value.length - KafkaVaultConfig.ENVELOPE_HEADER_LENGTH - (ByteBuffer.wrap(source.value, 9, 2).getShort() & 0xFFFF);
+      final int targetCiphertext = target.value.length - KafkaVaultConfig.ENVELOPE_HEADER_LENGTH - (ByteBuffer.wrap(target.value, 9, 2).getShort() & 0xFFFF);
+      assertEquals(sourceCiphertext, targetCiphertext);
+      assertArrayEquals(
+          Arrays.copyOfRange(source.value, source.value.length - sourceCiphertext, source.value.length),
+          Arrays.copyOfRange(target.value, target.value.length - targetCiphertext, target.value.length)
+      );
+      assertEquals("This is testing value " + i, this.deserializer.deserialize(TOPIC, target.value));
+    }
+  }
+}
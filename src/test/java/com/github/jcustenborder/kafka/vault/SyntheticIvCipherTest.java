@@ -0,0 +1,78 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SyntheticIvCipherTest {
+  SyntheticIvCipher cipher;
+
+  @Before
+  public void before() throws Exception {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.cipher = new SyntheticIvCipher(key);
+  }
+
+  byte[] encrypt(SyntheticIvCipher cipher, byte[] input) throws GeneralSecurityException {
+    byte[] output = new byte[cipher.encryptedSize(input.length)];
+    assertEquals(output.length, cipher.encrypt(input, 0, input.length, output, 0));
+    return output;
+  }
+
+  byte[] decrypt(byte[] input) throws GeneralSecurityException {
+    byte[] output = new byte[this.cipher.decryptedSize(input.length)];
+    assertEquals(output.length, this.cipher.decrypt(input, 0, input.length, output, 0));
+    return output;
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    for (int length : new int[]{0, 1, 15, 16, 17, 1024}) {
+      byte[] expected = CompressionTest.compressible(length);
+      assertArrayEquals(expected, decrypt(encrypt(this.cipher, expected)));
+    }
+  }
+
+  @Test
+  public void deterministic() throws Exception {
+    byte[] first = encrypt(this.cipher, "customer-1".getBytes());
+    assertArrayEquals(first, encrypt(this.cipher, "customer-1".getBytes()));
+    assertFalse(Arrays.equals(first, encrypt(this.cipher, "customer-2".getBytes())));
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    assertFalse(Arrays.equals(first, encrypt(new SyntheticIvCipher(key), "customer-1".getBytes())));
+  }
+
+  @Test
+  public void sharedPrefix() throws Exception {
+    byte[] first = encrypt(this.cipher, "customer-1".getBytes());
+    byte[] second = encrypt(this.cipher, "customer-2".getBytes());
+    final int ivLength = SyntheticIvCipher.IV_LENGTH;
+    assertFalse(
+        "Plaintexts with a shared prefix should not share a ciphertext prefix.",
+        Arrays.equals(Arrays.copyOfRange(first, ivLength, ivLength + 8), Arrays.copyOfRange(second, ivLength, ivLength + 8))
+    );
+  }
+
+  @Test(expected = AEADBadTagException.class)
+  public void tampered() throws Exception {
+    byte[] encrypted = encrypt(this.cipher, "customer-1".getBytes());
+    encrypted[encrypted.length - 1] ^= 1;
+    decrypt(encrypted);
+  }
+
+  @Test(expected = AEADBadTagException.class)
+  public void tooShort() throws Exception {
+    decrypt(new byte[SyntheticIvCipher.IV_LENGTH - 1]);
+  }
+}
@@ -0,0 +1,33 @@
+package com.github.jcustenborder.kafka.vault;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class VarintTest {
+
+  @Test
+  public void roundTrip() {
+    long[] values = {0L, 1L, 127L, 128L, 16383L, 16384L, 1500000000000L, Long.MAX_VALUE, -1L, Long.MIN_VALUE};
+    byte[] buffer = new byte[Varint.MAX_LENGTH + 1];
+    for (long value : values) {
+      int end = Varint.write(value, buffer, 1);
+      assertEquals("size(" + value + ")", Varint.size(value), end - 1);
+      ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 1, buffer.length - 1);
+      assertEquals(value, Varint.read(byteBuffer));
+      assertEquals(end, byteBuffer.position());
+    }
+  }
+
+  @Test
+  public void millisecondVersion() {
+    assertEquals(6, Varint.size(1500000000000L));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void truncated() {
+    Varint.read(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80}));
+  }
+}
@@ -0,0 +1,148 @@
+package com.github.jcustenborder.kafka.vault;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class VaultSessionTest {
+  static final long LEASE_MS = 60000L;
+
+  static class MockAuthenticator implements VaultSession.Authenticator {
+    final boolean canLogin;
+    int logins;
+    int renewals;
+    long renewDurationMs = LEASE_MS;
+    boolean failRenew;
+
+    MockAuthenticator(boolean canLogin) {
+      this.canLogin = canLogin;
+    }
+
+    @Override
+    public VaultSession.Lease login() {
+      this.logins++;
+      return new VaultSession.Lease("token-" + this.logins, LEASE_MS, true);
+    }
+
+    @Override
+    public VaultSession.Lease renew(String token) throws VaultException {
+      if (this.failRenew) {
+        throw new VaultException("renew failed", 500);
+      }
+      this.renewals++;
+      return new VaultSession.Lease(token, this.renewDurationMs, true);
+    }
+
+    @Override
+    public boolean canLogin() {
+      return this.canLogin;
+    }
+  }
+
+  MockAuthenticator authenticator;
+  VaultSession session;
+
+  @Before
+  public void before() {
+    this.authenticator = new MockAuthenticator(true);
+    this.session = new VaultSession(new VaultConfig(), this.authenticator, new VaultRetry(3, 1, 1), null);
+  }
+
+  @Test
+  public void loginOnFirstUse() throws VaultException {
+    assertEquals(0, this.authenticator.logins);
+    assertEquals("token-1", this.session.token());
+    assertEquals("token-1", this.session.token());
+    assertEquals(1, this.authenticator.logins);
+    assertEquals("token-1", this.session.vaultConfig.getToken());
+  }
+
+  @Test
+  public void renew() throws VaultException {
+    this.session.token();
+    this.session.refresh();
+    assertEquals(1, this.authenticator.renewals);
+    assertEquals(1, this.authenticator.logins);
+    assertEquals("token-1", this.session.token());
+  }
+
+  @Test
+  public void loginWhenRenewalIsCapped() throws VaultException {
+    this.session.token();
+    this.authenticator.renewDurationMs = LEASE_MS / 10;
+    this.session.refresh();
+    assertEquals(2, this.authenticator.logins);
+    assertEquals("token-2", this.session.token());
+  }
+
+  @Test
+  public void loginWhenRenewalFails() throws VaultException {
+    this.session.token();
+    this.authenticator.failRenew = true;
+    this.session.refresh();
+    assertEquals("token-2", this.session.token());
+  }
+
+  @Test
+  public void staticTokenIsNotReplaced() throws VaultException {
+    this.authenticator = new MockAuthenticator(false);
+    this.session = new VaultSession(new VaultConfig(), this.authenticator, new VaultRetry(3, 1, 1), null);
+    this.session.token();
+    this.authenticator.failRenew = true;
+    this.session.refresh();
+    assertEquals(1, this.session.failures);
+    assertEquals("token-1", this.session.token());
+    assertEquals(false, this.session.reauthenticate("token-1"));
+  }
+
+  @Test
+  public void renewDelay() {
+    assertEquals(40000L, VaultSession.renewDelayMs(new VaultSession.Lease("token", LEASE_MS, true)));
+    assertEquals(VaultSession.MIN_RENEW_DELAY_MS, VaultSession.renewDelayMs(new VaultSession.Lease("token", 10L, true)));
+  }
+
+  @Test
+  public void retryWithNewTokenOn403() throws VaultException {
+    VaultRetry retry = new VaultRetry(0, 1, 1, this.session);
+    final String[] tokens = new String[2];
+    String result = retry.execute("secret/test", new VaultRetry.Request<String>() {
+      int calls;
+
+      @Override
+      public String execute() throws VaultException {
+        tokens[this.calls] = session.vaultConfig.getToken();
+        if (0 == this.calls++) {
+          throw new VaultException("permission denied", 403);
+        }
+        return "ok";
+      }
+    });
+    assertEquals("ok", result);
+    assertEquals("token-1", tokens[0]);
+    assertEquals("token-2", tokens[1]);
+  }
+
+  @Test
+  public void shared() {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(CryptoSerializer.Config.SERIALIZER_CLASS_CONF, "org.apache.kafka.common.serialization.StringSerializer");
+    settings.put(CryptoSerializer.Config.VAULT_ADDRESS_CONF, "http://vault-session-test:8200");
+    KafkaVaultConfig config = new CryptoSerializer.Config(settings);
+    VaultSession first = VaultSession.acquire(config);
+    VaultSession second = VaultSession.acquire(config);
+    assertSame(first, second);
+    VaultSession.release(first);
+    VaultSession.release(second);
+    VaultSession third = VaultSession.acquire(config);
+    assertNotSame(first, third);
+    VaultSession.release(third);
+  }
+}